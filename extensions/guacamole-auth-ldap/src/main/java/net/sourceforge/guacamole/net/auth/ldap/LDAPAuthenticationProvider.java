@@ -252,8 +252,8 @@ public class LDAPAuthenticationProvider extends SimpleAuthenticationProvider {
 
                 }
 
-                // Store config by CN
-                configs.put(cn.getStringValue(), config);
+                // Store config by CN, shared with other users of the group
+                configs.put(cn.getStringValue(), config.intern());
 
             }
 
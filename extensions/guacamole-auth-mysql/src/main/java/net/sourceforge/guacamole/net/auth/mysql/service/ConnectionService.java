@@ -48,8 +48,7 @@ import java.util.Set;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
-import org.glyptodon.guacamole.net.InetGuacamoleSocket;
-import org.glyptodon.guacamole.net.SSLGuacamoleSocket;
+import org.glyptodon.guacamole.net.GuacdSocketFactory;
 import net.sourceforge.guacamole.net.auth.mysql.ActiveConnectionMap;
 import net.sourceforge.guacamole.net.auth.mysql.MySQLConnection;
 import net.sourceforge.guacamole.net.auth.mysql.MySQLConnectionRecord;
@@ -66,7 +65,6 @@ import net.sourceforge.guacamole.net.auth.mysql.model.ConnectionParameter;
 import net.sourceforge.guacamole.net.auth.mysql.model.ConnectionParameterExample;
 import net.sourceforge.guacamole.net.auth.mysql.properties.MySQLGuacamoleProperties;
 import org.glyptodon.guacamole.properties.GuacamoleProperties;
-import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 import org.apache.ibatis.session.RowBounds;
@@ -256,14 +254,15 @@ public class ConnectionService {
             config.setParameter(parameter.getParameter_name(),
                     parameter.getParameter_value());
 
-        // Create new MySQLConnection from retrieved data
+        // Create new MySQLConnection from retrieved data, sharing the
+        // configuration with all other users of the same connection
         MySQLConnection mySQLConnection = mySQLConnectionProvider.get();
         mySQLConnection.init(
             connection.getConnection_id(),
             connection.getParent_id(),
             connection.getConnection_name(),
             Integer.toString(connection.getConnection_id()),
-            config,
+            config.intern(),
             retrieveHistory(connection.getConnection_id()),
             userID
         );
@@ -349,22 +348,9 @@ public class ConnectionService {
             throw new GuacamoleClientException
                     ("Cannot connect. Connection already in use by this user.");
 
-        // Get guacd connection information
-        String host = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_HOSTNAME);
-        int port = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_PORT);
-
         // Get socket
-        GuacamoleSocket socket;
-        if (GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL, false))
-            socket = new ConfiguredGuacamoleSocket(
-                new SSLGuacamoleSocket(host, port),
-                connection.getConfiguration(), info
-            );
-        else
-            socket = new ConfiguredGuacamoleSocket(
-                new InetGuacamoleSocket(host, port),
-                connection.getConfiguration(), info
-            );
+        GuacamoleSocket socket = GuacdSocketFactory.getInstance()
+                .createConfiguredSocket(connection.getConfiguration(), info);
 
         // Mark this connection as active
         int historyID = activeConnectionMap.openConnection(connection.getConnectionID(), 
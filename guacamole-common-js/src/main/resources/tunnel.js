@@ -116,6 +116,7 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
     var TUNNEL_CONNECT = tunnelURL + "?connect";
     var TUNNEL_READ    = tunnelURL + "?read:";
     var TUNNEL_WRITE   = tunnelURL + "?write:";
+    var TUNNEL_RESUME  = tunnelURL + "?resume:";
 
     var STATE_IDLE          = 0;
     var STATE_CONNECTED     = 1;
@@ -132,6 +133,42 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
     var sendingMessages = false;
     var outputMessageBuffer = "";
 
+    /**
+     * The maximum number of consecutive attempts to resume the tunnel after
+     * the connection is lost, before giving up and disconnecting.
+     * @private
+     */
+    var MAX_RESUME_ATTEMPTS = 15;
+
+    /**
+     * The number of milliseconds to wait between attempts to resume the
+     * tunnel.
+     * @private
+     */
+    var RESUME_INTERVAL = 1000;
+
+    /**
+     * The number of consecutive attempts made to resume the tunnel since
+     * the last successful response.
+     * @private
+     */
+    var resumeAttempts = 0;
+
+    /**
+     * The number of consecutive attempts made to send the same messages
+     * since the last successful write.
+     * @private
+     */
+    var writeAttempts = 0;
+
+    /**
+     * The position of the end of the last complete instruction received,
+     * in characters since the beginning of the stream. If the connection is
+     * lost, reading resumes from this position.
+     * @private
+     */
+    var position = 0;
+
     this.sendMessage = function() {
 
         // Do not attempt to send messages if not connected
@@ -176,10 +213,19 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
 
     function sendPendingMessages() {
 
+        // Stop sending once disconnected
+        if (currentState != STATE_CONNECTED) {
+            sendingMessages = false;
+            return;
+        }
+
         if (outputMessageBuffer.length > 0) {
 
             sendingMessages = true;
 
+            // Messages remain unacknowledged until the write succeeds
+            var unacknowledged = outputMessageBuffer;
+
             var message_xmlhttprequest = new XMLHttpRequest();
             message_xmlhttprequest.open("POST", TUNNEL_WRITE + tunnel_uuid);
             message_xmlhttprequest.setRequestHeader("Content-type", "application/x-www-form-urlencoded; charset=UTF-8");
@@ -188,13 +234,35 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
             message_xmlhttprequest.onreadystatechange = function() {
                 if (message_xmlhttprequest.readyState == 4) {
 
+                    // If the connection was lost, put the messages sent
+                    // back in front of anything queued since, and retry on
+                    // the same schedule as resumed reads
+                    if (message_xmlhttprequest.status == 0) {
+
+                        outputMessageBuffer = unacknowledged + outputMessageBuffer;
+
+                        // Give up if too many attempts have failed
+                        if (writeAttempts >= MAX_RESUME_ATTEMPTS) {
+                            sendingMessages = false;
+                            handleHTTPTunnelError(message_xmlhttprequest);
+                            return;
+                        }
+
+                        // Retry immediately at first, then at intervals
+                        var delay = (writeAttempts++ == 0) ? 0 : RESUME_INTERVAL;
+                        window.setTimeout(sendPendingMessages, delay);
+
+                    }
+
                     // If an error occurs during send, handle it
-                    if (message_xmlhttprequest.status != 200)
+                    else if (message_xmlhttprequest.status != 200)
                         handleHTTPTunnelError(message_xmlhttprequest);
 
                     // Otherwise, continue the send loop
-                    else
+                    else {
+                        writeAttempts = 0;
                         sendPendingMessages();
+                    }
 
                 }
             }
@@ -265,6 +333,9 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
         // Where to start the next length search or the next element
         var startIndex = 0;
 
+        // The location of the first character of the current instruction
+        var instructionStart = 0;
+
         // Parsed elements
         var elements = new Array();
 
@@ -291,8 +362,10 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
             catch (e) { status = 200; }
 
             // Start next request as soon as possible IF request was successful
-            if (nextRequest == null && status == 200)
+            if (nextRequest == null && status == 200) {
+                resumeAttempts = 0;
                 nextRequest = makeRequest();
+            }
 
             // Parse stream when data is received and when complete.
             if (xmlhttprequest.readyState == 3 ||
@@ -306,10 +379,34 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
                         clearInterval(interval);
                 }
 
-                // If canceled, stop transfer
+                // If connection lost, attempt to resume from the end of the
+                // last complete instruction
                 if (xmlhttprequest.status == 0) {
-                    tunnel.disconnect();
+
+                    // Clean up interval if polling
+                    if (interval != null)
+                        clearInterval(interval);
+
+                    // Abandon this request and the next
+                    xmlhttprequest.onreadystatechange = null;
+                    if (nextRequest)
+                        nextRequest.abort();
+
+                    // Give up if too many attempts have failed
+                    if (resumeAttempts >= MAX_RESUME_ATTEMPTS) {
+                        tunnel.disconnect();
+                        return;
+                    }
+
+                    // Retry immediately at first, then at intervals
+                    var delay = (resumeAttempts++ == 0) ? 0 : RESUME_INTERVAL;
+                    window.setTimeout(function() {
+                        if (currentState == STATE_CONNECTED)
+                            handleResponse(makeRequest(true));
+                    }, delay);
+
                     return;
+
                 }
 
                 // Halt on error during request
@@ -341,6 +438,10 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
                         // If last element, handle instruction
                         if (terminator == ";") {
 
+                            // Advance position past instruction
+                            position += elementEnd + 1 - instructionStart;
+                            instructionStart = elementEnd + 1;
+
                             // Get opcode
                             var opcode = elements.shift();
 
@@ -440,11 +541,15 @@ Guacamole.HTTPTunnel = function(tunnelURL) {
      */
     var request_id = 0;
 
-    function makeRequest() {
+    function makeRequest(resume) {
 
-        // Make request, increment request ID
+        // Make request, increment request ID. Resume requests continue
+        // from the end of the last complete instruction received.
         var xmlhttprequest = new XMLHttpRequest();
-        xmlhttprequest.open("GET", TUNNEL_READ + tunnel_uuid + ":" + (request_id++));
+        if (resume)
+            xmlhttprequest.open("GET", TUNNEL_RESUME + tunnel_uuid + ":" + position + ":" + (request_id++));
+        else
+            xmlhttprequest.open("GET", TUNNEL_READ + tunnel_uuid + ":" + (request_id++));
         xmlhttprequest.send(null);
 
         return xmlhttprequest;
@@ -0,0 +1,780 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * Base GuacamoleReader which parses instructions in place within a buffer of
+ * received data, where the units of that buffer (UTF-16 characters or UTF-8
+ * bytes) are defined by the implementation. Implementations need only read
+ * data into the buffer and determine where characters begin and end within
+ * it; all parsing, buffer management, views and batches are provided here.
+ *
+ * @author Michael Jumper
+ * @param <B> The type of array used to buffer received data, such as char[]
+ *            or byte[].
+ */
+public abstract class AbstractGuacamoleReader<B> implements GuacamoleReader {
+
+    /**
+     * The initial size of the buffer, in units. The buffer will never shrink
+     * below this size.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 20480;
+
+    /**
+     * The maximum size of the buffer, in units.
+     */
+    private final int maxBufferSize;
+
+    /**
+     * The maximum length of any element buffered in its entirety by
+     * readBatch(), in characters.
+     */
+    private final int maxElementSize;
+
+    /**
+     * Creates a new AbstractGuacamoleReader, never allowing its buffer to
+     * grow beyond the given size. Instructions containing elements longer
+     * than the given maximum element size are returned by readBatch() in
+     * pieces, as they are received, rather than being buffered in their
+     * entirety. The initial buffer is allocated with allocate(), which thus
+     * must not depend on the state of the implementation.
+     *
+     * @param maxBufferSize The maximum size of the buffer, in units. Any
+     *                      instruction larger than this size will result in
+     *                      an error, unless returned in pieces by
+     *                      readBatch().
+     * @param maxElementSize The maximum length of any element buffered in its
+     *                       entirety by readBatch(), in characters.
+     */
+    protected AbstractGuacamoleReader(int maxBufferSize, int maxElementSize) {
+        this.maxBufferSize = maxBufferSize;
+        this.maxElementSize = maxElementSize;
+        this.capacity = Math.min(INITIAL_BUFFER_SIZE, maxBufferSize);
+        this.buffer = allocate(capacity);
+    }
+
+    /**
+     * The buffer holding all received, unparsed data.
+     */
+    private B buffer;
+
+    /**
+     * The size of the buffer, in units.
+     */
+    private int capacity;
+
+    /**
+     * The location within the buffer of the first unit which has not yet
+     * been consumed. Units before this location are free space which will be
+     * reclaimed only when the buffer is next compacted.
+     */
+    private int start = 0;
+
+    /**
+     * The number of units currently used within the data buffer, including
+     * any consumed units before the start of unconsumed data. All other
+     * units within the buffer are free space available for future reads.
+     */
+    private int usedLength = 0;
+
+    /**
+     * The largest amount of unconsumed data held within the buffer since the
+     * size of the buffer was last evaluated. The buffer is shrunk if this
+     * value remains well below the size of the buffer.
+     */
+    private int highWaterMark = 0;
+
+    /**
+     * The location within the buffer that parsing should resume from when
+     * more data is read.
+     */
+    private int parseStart = 0;
+
+    /**
+     * The length of the instruction most recently returned, which begins at
+     * the start of unconsumed data. This instruction remains in the buffer
+     * until the next read, such that views of that instruction remain valid.
+     */
+    private int instructionLength = 0;
+
+    /**
+     * The offset of each element of the instruction currently being parsed,
+     * in order, the first element being the opcode.
+     */
+    private int[] elementOffsets = new int[32];
+
+    /**
+     * The length of each element of the instruction currently being parsed,
+     * in order, the first element being the opcode.
+     */
+    private int[] elementLengths = new int[32];
+
+    /**
+     * The number of elements of the instruction currently being parsed which
+     * have been completely parsed.
+     */
+    private int elementCount = 0;
+
+    /**
+     * Whether the elements recorded within elementOffsets and elementLengths
+     * belong to an instruction which has already been completely parsed.
+     * Such elements are discarded when parsing of the next instruction
+     * begins.
+     */
+    private boolean instructionParsed = false;
+
+    /**
+     * Whether the most recently read batch included every complete
+     * instruction which was buffered at the time.
+     */
+    private boolean batchDrained = false;
+
+    /**
+     * Whether the most recently read batch ends at the end of an
+     * instruction.
+     */
+    private boolean batchComplete = false;
+
+    /**
+     * Whether part of the instruction currently being parsed has already
+     * been returned by readBatch(), such that the remainder of that
+     * instruction can only be returned by readBatch().
+     */
+    private boolean instructionStreamed = false;
+
+    /**
+     * The known opcode of the instruction most recently parsed, if
+     * knownOpcodeResolved is true.
+     */
+    private GuacamoleOpcode knownOpcode;
+
+    /**
+     * Whether the opcode of the instruction most recently parsed has been
+     * looked up and stored within knownOpcode.
+     */
+    private boolean knownOpcodeResolved = false;
+
+    /**
+     * The parser which locates each element and instruction within the
+     * buffer, stopping at the end of each instruction.
+     */
+    private final GuacamoleParser parser = new GuacamoleParser() {
+
+        @Override
+        protected void handleElement(int element, int terminator, int size) {
+            addElement(terminator - size, size);
+        }
+
+        @Override
+        protected boolean handleInstruction(int terminator) {
+
+            // The full instruction remains in the buffer until the next read
+            instructionLength = terminator + 1 - start;
+            instructionParsed = true;
+            knownOpcodeResolved = false;
+            return false;
+
+        }
+
+    };
+
+    /**
+     * The view of the most recently read instruction. As the view refers
+     * only to the state of this reader, the same view is reused for every
+     * instruction read.
+     */
+    private final GuacamoleInstructionView view = new InstructionView();
+
+    /**
+     * The most recently read batch of instructions. As the batch refers only
+     * to the state of this reader, the same batch is reused for every batch
+     * read.
+     */
+    private final GuacamoleInstructionBatch batch = new InstructionBatch();
+
+    /**
+     * Allocates a new buffer of the given size.
+     *
+     * @param size The size of the buffer to allocate, in units.
+     * @return A new buffer of the given size.
+     */
+    protected abstract B allocate(int size);
+
+    /**
+     * Reads data from the underlying stream into the given buffer, blocking
+     * until at least some data is available.
+     *
+     * @param buffer The buffer to read data into.
+     * @param offset The location within the buffer to store the first unit
+     *               read.
+     * @param length The maximum number of units to read.
+     * @return The number of units read, or -1 if the end of the stream has
+     *         been reached.
+     * @throws IOException If an error occurs while reading from the stream.
+     */
+    protected abstract int fill(B buffer, int offset, int length)
+            throws IOException;
+
+    /**
+     * Returns whether data can be read from the underlying stream without
+     * blocking.
+     *
+     * @return true if data can be read without blocking, false otherwise.
+     * @throws IOException If an error occurs while checking the stream.
+     */
+    protected abstract boolean ready() throws IOException;
+
+    /**
+     * Returns the number of units at the start of the given range which form
+     * complete characters, excluding the beginning of any character whose
+     * remaining units have not yet been received.
+     *
+     * @param buffer The buffer containing the range.
+     * @param offset The offset of the first unit of the range.
+     * @param length The number of units within the range.
+     * @return The number of leading units of the range which form complete
+     *         characters.
+     */
+    protected abstract int getCompleteLength(B buffer, int offset, int length);
+
+    /**
+     * Parses the given range of the given buffer using the given parser.
+     *
+     * @param parser The parser to use.
+     * @param buffer The buffer containing the range to parse.
+     * @param offset The offset of the first unit to parse.
+     * @param length The number of units to parse.
+     * @return The number of units parsed.
+     * @throws GuacamoleException If the data parsed is not valid.
+     */
+    protected abstract int parse(GuacamoleParser parser, B buffer, int offset,
+            int length) throws GuacamoleException;
+
+    /**
+     * Decodes the given range of the given buffer as a new String.
+     *
+     * @param buffer The buffer containing the range to decode.
+     * @param offset The offset of the first unit to decode.
+     * @param length The number of units to decode.
+     * @return The decoded String.
+     */
+    protected abstract String decode(B buffer, int offset, int length);
+
+    /**
+     * Returns whether the given range of the given buffer contains exactly
+     * the given String, comparing in place where possible.
+     *
+     * @param buffer The buffer containing the range to compare.
+     * @param offset The offset of the first unit to compare.
+     * @param length The number of units to compare.
+     * @param value The String to compare against.
+     * @return true if the range contains exactly the given String, false
+     *         otherwise.
+     */
+    protected abstract boolean regionMatches(B buffer, int offset, int length,
+            String value);
+
+    /**
+     * Looks up the known opcode contained within the given range of the
+     * given buffer, without allocation.
+     *
+     * @param buffer The buffer containing the opcode.
+     * @param offset The offset of the first unit of the opcode.
+     * @param length The number of units of the opcode.
+     * @return The known opcode within the given range, or null if the range
+     *         does not contain a known opcode.
+     */
+    protected abstract GuacamoleOpcode getKnownOpcode(B buffer, int offset,
+            int length);
+
+    /**
+     * Writes the given range of the given buffer to the given OutputStream,
+     * encoded as UTF-8.
+     *
+     * @param buffer The buffer containing the range to write.
+     * @param offset The offset of the first unit to write.
+     * @param length The number of units to write.
+     * @param output The OutputStream to write to.
+     * @throws IOException If an error occurs while writing.
+     */
+    protected abstract void write(B buffer, int offset, int length,
+            OutputStream output) throws IOException;
+
+    /**
+     * Writes the given range of the given buffer to the given Writer.
+     *
+     * @param buffer The buffer containing the range to write.
+     * @param offset The offset of the first unit to write.
+     * @param length The number of units to write.
+     * @param output The Writer to write to.
+     * @throws IOException If an error occurs while writing.
+     */
+    protected abstract void write(B buffer, int offset, int length,
+            Writer output) throws IOException;
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        try {
+            return ready() || usedLength > start + instructionLength;
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+    }
+
+    /**
+     * Removes the instruction most recently returned from the buffer, if
+     * any, invalidating any view of that instruction.
+     */
+    private void discardInstruction() {
+
+        // Do nothing if no instruction is waiting to be discarded
+        if (instructionLength == 0)
+            return;
+
+        // Begin parsing next instruction after the discarded instruction.
+        // The space used by the discarded instruction is reclaimed later,
+        // when the buffer is compacted.
+        start += instructionLength;
+        instructionLength = 0;
+
+        // If all data has been consumed, reuse the buffer from the beginning,
+        // shrinking it if recent usage has been well below its size
+        if (start == usedLength) {
+
+            start = 0;
+            usedLength = 0;
+            parseStart = 0;
+
+            int size = getBufferSize(highWaterMark * 2);
+            if (size < capacity) {
+                buffer = allocate(size);
+                capacity = size;
+            }
+
+            highWaterMark = 0;
+
+        }
+
+    }
+
+    /**
+     * Returns the size a buffer must have to hold the given number of units.
+     * The size returned is the initial buffer size multiplied by the smallest
+     * power of two that is sufficient, but is never larger than the maximum
+     * buffer size.
+     *
+     * @param required The number of units the buffer must hold.
+     * @return The size the buffer should have.
+     */
+    private int getBufferSize(int required) {
+
+        int size = Math.min(INITIAL_BUFFER_SIZE, maxBufferSize);
+        while (size < required && size < maxBufferSize)
+            size *= 2;
+
+        return Math.min(size, maxBufferSize);
+
+    }
+
+    /**
+     * Ensures free space is available at the end of the buffer for further
+     * reads. Once more than half of the buffer is used, all unconsumed data
+     * is moved to the start of a buffer sized according to recent usage,
+     * which may be the same buffer, a larger buffer, or a smaller buffer.
+     * As each such compaction is preceded by at least half a buffer of new
+     * data, the cost of compaction per unit read remains constant.
+     *
+     * @throws GuacamoleException If the buffer is full and cannot grow
+     *                            further.
+     */
+    private void reserveSpace() throws GuacamoleException {
+
+        // Nothing to do while at least half of the buffer remains free
+        if (usedLength <= capacity/2)
+            return;
+
+        // Determine size of buffer needed based on recent usage
+        int pending = usedLength - start;
+        int size = getBufferSize(highWaterMark * 2);
+
+        // Move unconsumed data to start of buffer, unless it is already at
+        // the start of a properly sized buffer
+        if (start != 0 || size != capacity) {
+
+            B newBuffer = (size == capacity) ? buffer : allocate(size);
+            System.arraycopy(buffer, start, newBuffer, 0, pending);
+
+            // Update locations of elements parsed so far
+            for (int i=0; i<elementCount; i++)
+                elementOffsets[i] -= start;
+
+            buffer = newBuffer;
+            capacity = size;
+            parseStart -= start;
+            usedLength = pending;
+            start = 0;
+            highWaterMark = pending;
+
+        }
+
+        // Fail if no space can be made for further data
+        if (usedLength == capacity)
+            throw new GuacamoleServerException("Instruction exceeds maximum buffer size.");
+
+    }
+
+    /**
+     * Records the location of a completely-parsed element of the instruction
+     * currently being parsed, growing the element arrays if necessary.
+     *
+     * @param offset The offset of the element within the buffer.
+     * @param length The length of the element, in units.
+     */
+    private void addElement(int offset, int length) {
+
+        // Grow element arrays if full
+        if (elementCount == elementOffsets.length) {
+
+            int[] biggerOffsets = new int[elementCount*2];
+            System.arraycopy(elementOffsets, 0, biggerOffsets, 0, elementCount);
+            elementOffsets = biggerOffsets;
+
+            int[] biggerLengths = new int[elementCount*2];
+            System.arraycopy(elementLengths, 0, biggerLengths, 0, elementCount);
+            elementLengths = biggerLengths;
+
+        }
+
+        elementOffsets[elementCount] = offset;
+        elementLengths[elementCount] = length;
+        elementCount++;
+
+    }
+
+    /**
+     * Parses as much of the received data as possible, stopping at the end
+     * of the first complete instruction. Characters whose remaining units
+     * have not yet been received are left unparsed until they are complete.
+     *
+     * @return true if a complete instruction has been parsed, false if more
+     *         data must be read.
+     * @throws GuacamoleException If the received data is not a valid
+     *                            Guacamole instruction.
+     */
+    private boolean parse() throws GuacamoleException {
+
+        // Elements of any previously-parsed instruction are no longer needed
+        if (instructionParsed) {
+            elementCount = 0;
+            instructionParsed = false;
+        }
+
+        int length = getCompleteLength(buffer, parseStart, usedLength - parseStart);
+        parseStart += parse(parser, buffer, parseStart, length);
+
+        return instructionParsed;
+
+    }
+
+    /**
+     * Reads more data into the buffer, blocking until at least some data is
+     * available. The buffer is first compacted or resized if needed.
+     *
+     * @return true if data was read, false if the end of the stream has been
+     *         reached.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            stream, or if the buffer is full and cannot
+     *                            grow further.
+     */
+    private boolean fill() throws GuacamoleException {
+
+        // If past threshold, compact or resize buffer before reading
+        reserveSpace();
+
+        try {
+
+            // Attempt to fill buffer
+            int numRead = fill(buffer, usedLength, capacity - usedLength);
+            if (numRead == -1)
+                return false;
+
+            // Update used length
+            usedLength += numRead;
+            highWaterMark = Math.max(highWaterMark, usedLength - start);
+            return true;
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Previously-read instruction is no longer needed
+        discardInstruction();
+
+        // The remainder of an instruction returned in pieces is not an
+        // instruction on its own
+        if (instructionStreamed)
+            throw new GuacamoleServerException("Cannot read partially-streamed instruction as a whole.");
+
+        // Read until an instruction is parsed
+        while (!parse()) {
+            if (!fill())
+                return null;
+        }
+
+        return view;
+
+    }
+
+    @Override
+    public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+
+        // Previously-read data is no longer needed
+        discardInstruction();
+
+        // Read until an instruction is parsed
+        while (!parse()) {
+
+            // If the instruction contains an oversized element, return all
+            // of the instruction parsed so far rather than buffering the
+            // entire element
+            if (parser.getElementLength() > maxElementSize && parseStart > start) {
+                instructionLength = parseStart - start;
+                instructionStreamed = true;
+                batchComplete = false;
+                batchDrained = true;
+                return batch;
+            }
+
+            if (!fill())
+                return null;
+
+        }
+
+        // Any instruction returned in pieces is now complete
+        instructionStreamed = false;
+        batchComplete = true;
+
+        // Include all further complete instructions already buffered, up to
+        // the given length. As each instruction directly follows the last,
+        // the batch is simply the span of the buffer they occupy.
+        batchDrained = false;
+        while (instructionLength < maxLength) {
+            if (!parse()) {
+                batchDrained = true;
+                break;
+            }
+        }
+
+        return batch;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Read next instruction, return EOF if EOF
+        if (readInstructionView() == null)
+            return null;
+
+        // Copy instruction data
+        return decode(buffer, start, instructionLength).toCharArray();
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // Get instruction
+        GuacamoleInstructionView instructionView = readInstructionView();
+
+        // If EOF, return EOF
+        if (instructionView == null)
+            return null;
+
+        // Return parsed instruction
+        return instructionView.toInstruction();
+
+    }
+
+    /**
+     * View of the instruction most recently read by this reader, backed
+     * directly by the reader's buffer and element arrays.
+     */
+    private class InstructionView implements GuacamoleInstructionView {
+
+        /**
+         * Returns the value of the element at the given index as a new
+         * String, where the opcode is the element at index 0.
+         *
+         * @param index The index of the element to return.
+         * @return The value of the element at the given index.
+         */
+        private String getElement(int index) {
+            return decode(buffer, elementOffsets[index], elementLengths[index]);
+        }
+
+        @Override
+        public String getOpcode() {
+
+            // Known opcodes need not be copied
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return opcode.getValue();
+
+            return getElement(0);
+
+        }
+
+        @Override
+        public GuacamoleOpcode getKnownOpcode() {
+
+            // Look up opcode only once per instruction
+            if (!knownOpcodeResolved) {
+                knownOpcode = AbstractGuacamoleReader.this.getKnownOpcode(
+                        buffer, elementOffsets[0], elementLengths[0]);
+                knownOpcodeResolved = true;
+            }
+
+            return knownOpcode;
+
+        }
+
+        @Override
+        public boolean isOpcode(String opcode) {
+            return regionMatches(buffer, elementOffsets[0], elementLengths[0], opcode);
+        }
+
+        @Override
+        public int getArgumentCount() {
+            return elementCount - 1;
+        }
+
+        @Override
+        public String getArgument(int index) {
+
+            if (index < 0 || index >= elementCount - 1)
+                throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+            return getElement(index + 1);
+
+        }
+
+        @Override
+        public int getLength() {
+            return instructionLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            write(buffer, start, instructionLength, output);
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            write(buffer, start, instructionLength, output);
+        }
+
+        @Override
+        public GuacamoleInstruction toInstruction() {
+
+            // Copy each argument
+            String[] args = new String[elementCount - 1];
+            for (int i=0; i<args.length; i++)
+                args[i] = getElement(i + 1);
+
+            // Known opcodes need not be copied or looked up again
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return new GuacamoleInstruction(opcode, args);
+
+            return new GuacamoleInstruction(getElement(0), args);
+
+        }
+
+    }
+
+    /**
+     * The batch of instructions most recently read by this reader, backed
+     * directly by the reader's buffer.
+     */
+    private class InstructionBatch implements GuacamoleInstructionBatch {
+
+        @Override
+        public int getLength() {
+            return instructionLength;
+        }
+
+        @Override
+        public boolean isDrained() {
+            return batchDrained;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return batchComplete;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            write(buffer, start, instructionLength, output);
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            write(buffer, start, instructionLength, output);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A contiguous run of one or more complete Guacamole instructions, read
+ * together and held within the buffer of the GuacamoleReader which produced
+ * the batch. If an instruction is too large to be buffered in its entirety,
+ * a batch may instead contain part of that instruction, as received so far.
+ * Like a GuacamoleInstructionView, a batch is only valid until the next call
+ * to any read function of that GuacamoleReader.
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleInstructionBatch {
+
+    /**
+     * Returns the total length of all instructions within this batch, in the
+     * units of the underlying stream: characters for streams of characters,
+     * and bytes for streams of bytes.
+     *
+     * @return The total length of all instructions within this batch.
+     */
+    public int getLength();
+
+    /**
+     * Returns whether this batch contains every complete instruction that
+     * was buffered at the time the batch was read. If false, the batch was
+     * limited by its maximum length, and further instructions can be read
+     * immediately. If true, the next read will likely need to wait for more
+     * data to be received.
+     *
+     * @return true if this batch contains every complete instruction that was
+     *         buffered when read, false otherwise.
+     */
+    public boolean isDrained();
+
+    /**
+     * Returns whether this batch ends at the end of an instruction. If false,
+     * this batch contains only part of an instruction which is being
+     * returned in pieces, and the remainder of that instruction will be
+     * returned by subsequent batches.
+     *
+     * @return true if this batch ends at the end of an instruction, false
+     *         otherwise.
+     */
+    public boolean isComplete();
+
+    /**
+     * Writes all instructions within this batch to the given OutputStream,
+     * encoded as UTF-8, with a single write. If the underlying stream is
+     * already UTF-8, the instructions are written exactly as received.
+     *
+     * @param output The OutputStream to write the instructions to.
+     * @throws IOException If an error occurs while writing to the given
+     *                     OutputStream.
+     */
+    public void writeTo(OutputStream output) throws IOException;
+
+    /**
+     * Writes all instructions within this batch to the given Writer.
+     *
+     * @param output The Writer to write the instructions to.
+     * @throws IOException If an error occurs while writing to the given
+     *                     Writer.
+     */
+    public void writeTo(Writer output) throws IOException;
+
+}
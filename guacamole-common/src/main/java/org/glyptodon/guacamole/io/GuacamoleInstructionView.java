@@ -0,0 +1,151 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * A lightweight view of a single Guacamole instruction which has been parsed
+ * in place within the buffer of a GuacamoleReader. Rather than copying the
+ * instruction, the view refers to the opcode and elements of the instruction
+ * by their offsets and lengths within that buffer, thus no allocation is
+ * required to route or forward the instruction.
+ *
+ * A view is only valid until the next call to any read function of the
+ * GuacamoleReader which produced it. Data which must be retained beyond that
+ * point must be copied out, for example with toInstruction().
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleInstructionView {
+
+    /**
+     * Returns the opcode of the viewed instruction. Note that this function
+     * creates a new String unless the opcode is known; if only a comparison
+     * is required, getKnownOpcode() or isOpcode() should be used instead.
+     *
+     * @return The opcode of the viewed instruction.
+     */
+    public String getOpcode();
+
+    /**
+     * Returns the known opcode of the viewed instruction, if the opcode is
+     * defined by the Guacamole protocol. The opcode is looked up directly
+     * within the underlying buffer, and does not require allocation.
+     *
+     * @return The known opcode of the viewed instruction, or null if the
+     *         opcode is not defined by the Guacamole protocol.
+     */
+    public GuacamoleOpcode getKnownOpcode();
+
+    /**
+     * Returns whether the opcode of the viewed instruction is the given
+     * opcode. This comparison is performed directly against the underlying
+     * buffer, and does not require allocation.
+     *
+     * @param opcode The opcode to compare against.
+     * @return true if the viewed instruction has the given opcode, false
+     *         otherwise.
+     */
+    public boolean isOpcode(String opcode);
+
+    /**
+     * Returns the number of arguments of the viewed instruction, not
+     * including the opcode.
+     *
+     * @return The number of arguments of the viewed instruction.
+     */
+    public int getArgumentCount();
+
+    /**
+     * Returns the value of the argument at the given index as a new String.
+     *
+     * @param index The index of the argument to return, where the first
+     *              argument following the opcode has index 0.
+     * @return The value of the argument at the given index.
+     * @throws IndexOutOfBoundsException If no argument exists at the given
+     *                                   index.
+     */
+    public String getArgument(int index);
+
+    /**
+     * Returns the length of the viewed instruction as it appeared in the
+     * instruction stream, including all length prefixes and terminators. The
+     * length is measured in the units of the underlying stream: characters
+     * for streams of characters, and bytes for streams of bytes.
+     *
+     * @return The length of the viewed instruction as it appeared in the
+     *         instruction stream.
+     */
+    public int getLength();
+
+    /**
+     * Writes the viewed instruction to the given OutputStream, encoded as
+     * UTF-8. If the underlying stream is already UTF-8, the instruction is
+     * written exactly as received, without decoding or re-encoding.
+     *
+     * @param output The OutputStream to write the viewed instruction to.
+     * @throws IOException If an error occurs while writing to the given
+     *                     OutputStream.
+     */
+    public void writeTo(OutputStream output) throws IOException;
+
+    /**
+     * Writes the viewed instruction to the given Writer exactly as it
+     * appeared in the instruction stream.
+     *
+     * @param output The Writer to write the viewed instruction to.
+     * @throws IOException If an error occurs while writing to the given
+     *                     Writer.
+     */
+    public void writeTo(Writer output) throws IOException;
+
+    /**
+     * Copies the viewed instruction into a new, fully parsed
+     * GuacamoleInstruction which remains valid after the view is invalidated.
+     *
+     * @return A new GuacamoleInstruction containing the opcode and arguments
+     *         of the viewed instruction.
+     */
+    public GuacamoleInstruction toInstruction();
+
+}
@@ -0,0 +1,391 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+
+/**
+ * Incremental parser of the Guacamole instruction stream, locating the
+ * elements and instructions within arbitrary chunks of UTF-16 or UTF-8 data.
+ * Chunks need not begin or end at instruction boundaries. Nothing is
+ * retained by the parser itself; each element and instruction is passed to
+ * handleElement() and handleInstruction() as it is parsed, identified by the
+ * location of its terminator within the chunk being parsed.
+ *
+ * Element lengths are counted in Unicode characters, as required by the
+ * Guacamole protocol, thus the low surrogate of a UTF-16 surrogate pair and
+ * UTF-8 continuation bytes are parsed as part of the character they
+ * continue.
+ *
+ * @author Michael Jumper
+ */
+public abstract class GuacamoleParser {
+
+    /**
+     * The largest element length prefix which may be followed by another
+     * digit without exceeding the range of an int.
+     */
+    private static final int MAX_ELEMENT_LENGTH_PREFIX = (Integer.MAX_VALUE - 9) / 10;
+
+    /**
+     * All states of the instruction parser.
+     */
+    private static enum ParseState {
+
+        /**
+         * The length prefix of an element is being parsed.
+         */
+        LENGTH,
+
+        /**
+         * The content of an element is being skipped, one character at a
+         * time.
+         */
+        CONTENT,
+
+        /**
+         * The terminator following the content of an element is expected.
+         */
+        TERMINATOR
+
+    }
+
+    /**
+     * The number of leading elements of each instruction whose characters
+     * are passed to handleCharacter().
+     */
+    private final int characterElements;
+
+    /**
+     * The current state of the instruction parser.
+     */
+    private ParseState parseState = ParseState.LENGTH;
+
+    /**
+     * The length of the element currently being parsed, in characters, as
+     * parsed so far from its length prefix.
+     */
+    private int parseLength = 0;
+
+    /**
+     * The length of the element currently being parsed, in characters, or -1
+     * if its length prefix has not yet been parsed.
+     */
+    private int elementLength = -1;
+
+    /**
+     * The number of characters of the element currently being parsed which
+     * have not yet been skipped.
+     */
+    private int parseRemaining = 0;
+
+    /**
+     * The number of units (UTF-16 characters or bytes) of the content of the
+     * element currently being parsed which have been skipped.
+     */
+    private int elementSize = 0;
+
+    /**
+     * The index of the element currently being parsed within its
+     * instruction, where the opcode is element zero.
+     */
+    private int element = 0;
+
+    /**
+     * Creates a new GuacamoleParser which does not pass the characters of any
+     * element to handleCharacter().
+     */
+    public GuacamoleParser() {
+        this(0);
+    }
+
+    /**
+     * Creates a new GuacamoleParser which passes each character of the given
+     * number of leading elements of each instruction to handleCharacter().
+     * Characters of all other elements are skipped without inspection.
+     *
+     * @param characterElements The number of leading elements of each
+     *                          instruction whose characters should be passed
+     *                          to handleCharacter(), where the opcode is the
+     *                          first element.
+     */
+    public GuacamoleParser(int characterElements) {
+        this.characterElements = characterElements;
+    }
+
+    /**
+     * Called for each character of content within the leading elements of
+     * each instruction, as configured when this parser was created. Only the
+     * first unit of each character is passed. By default, this function does
+     * nothing.
+     *
+     * @param element The index of the element containing the character,
+     *                where the opcode is element zero.
+     * @param c The first unit (UTF-16 character or byte) of the character.
+     */
+    protected void handleCharacter(int element, int c) {
+    }
+
+    /**
+     * Called for each element parsed. By default, this function does
+     * nothing.
+     *
+     * @param element The index of the element within its instruction, where
+     *                the opcode is element zero.
+     * @param terminator The location of the terminator of the element within
+     *                   the chunk being parsed. The content of the element
+     *                   immediately precedes its terminator, though it may
+     *                   have begun within a previous chunk.
+     * @param size The length of the content of the element, in units (UTF-16
+     *             characters or bytes).
+     * @throws GuacamoleException If the element is not acceptable.
+     */
+    protected void handleElement(int element, int terminator, int size)
+            throws GuacamoleException {
+    }
+
+    /**
+     * Called for each instruction parsed, after its final element has been
+     * passed to handleElement().
+     *
+     * @param terminator The location of the terminating semicolon of the
+     *                   instruction within the chunk being parsed.
+     * @return true if parsing should continue with the next instruction,
+     *         false if parsing should stop immediately after this
+     *         instruction.
+     * @throws GuacamoleException If the instruction is not acceptable.
+     */
+    protected abstract boolean handleInstruction(int terminator)
+            throws GuacamoleException;
+
+    /**
+     * Called when data is parsed which is not a valid Guacamole instruction.
+     * The parser has already been reset such that parsing will resume as if
+     * at the start of an instruction. By default, this function throws a
+     * GuacamoleServerException.
+     *
+     * @param message A human-readable description of the error.
+     * @throws GuacamoleException If the error should abort parsing.
+     */
+    protected void handleError(String message) throws GuacamoleException {
+        throw new GuacamoleServerException(message);
+    }
+
+    /**
+     * Returns the length of the element currently being parsed, in
+     * characters, as declared by its length prefix.
+     *
+     * @return The length of the element currently being parsed, or -1 if
+     *         its length prefix has not yet been completely parsed.
+     */
+    public int getElementLength() {
+        return elementLength;
+    }
+
+    /**
+     * Resets this parser such that parsing begins again as if at the start
+     * of an instruction.
+     */
+    public void reset() {
+        parseState = ParseState.LENGTH;
+        parseLength = 0;
+        elementLength = -1;
+        parseRemaining = 0;
+        elementSize = 0;
+        element = 0;
+    }
+
+    /**
+     * Parses a single unit of the instruction stream.
+     *
+     * @param c The unit (UTF-16 character or byte) to parse.
+     * @param continuation Whether the unit continues a character, rather
+     *                     than beginning a new character.
+     * @param location The location of the unit within the chunk being
+     *                 parsed.
+     * @return true if parsing should continue, false if parsing should stop
+     *         immediately after this unit.
+     * @throws GuacamoleException If the data parsed is not valid, or is not
+     *                            acceptable.
+     */
+    private boolean parse(int c, boolean continuation, int location)
+            throws GuacamoleException {
+
+        // Parse length prefix, one digit at a time
+        if (parseState == ParseState.LENGTH) {
+
+            // If digit, update length
+            if (c >= '0' && c <= '9') {
+
+                // Refuse lengths which cannot be represented
+                if (parseLength > MAX_ELEMENT_LENGTH_PREFIX) {
+                    reset();
+                    handleError("Element length too large.");
+                    return true;
+                }
+
+                parseLength = parseLength * 10 + c - '0';
+
+            }
+
+            // If end of length, begin skipping element content
+            else if (c == '.') {
+                elementLength = parseLength;
+                parseRemaining = parseLength;
+                elementSize = 0;
+                parseLength = 0;
+                parseState = (parseRemaining > 0) ? ParseState.CONTENT : ParseState.TERMINATOR;
+            }
+
+            // Otherwise, parse error
+            else {
+                reset();
+                handleError("Non-numeric character in element length.");
+            }
+
+            return true;
+
+        }
+
+        // Skip element content, one character at a time
+        if (parseState == ParseState.CONTENT) {
+
+            elementSize++;
+
+            // Only units which begin characters are counted
+            if (!continuation) {
+
+                if (element < characterElements)
+                    handleCharacter(element, c);
+
+                // Expect terminator once all characters are skipped
+                if (--parseRemaining == 0)
+                    parseState = ParseState.TERMINATOR;
+
+            }
+
+            return true;
+
+        }
+
+        // The remainder of the final character precedes the terminator
+        if (continuation && elementSize > 0) {
+            elementSize++;
+            return true;
+        }
+
+        // Handle invalid terminator characters
+        if (c != ';' && c != ',') {
+            reset();
+            handleError("Element terminator of instruction was not ';' nor ','");
+            return true;
+        }
+
+        handleElement(element, location, elementSize);
+
+        // Next element begins after terminator
+        parseState = ParseState.LENGTH;
+        elementLength = -1;
+        element++;
+
+        // If terminator is semicolon, we have a full instruction
+        if (c == ';') {
+            element = 0;
+            return handleInstruction(location);
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Parses the given chunk of UTF-16 data, stopping early only if
+     * handleInstruction() requests that parsing stop.
+     *
+     * @param chunk The buffer containing the data to parse.
+     * @param offset The offset of the first character to parse.
+     * @param length The number of characters to parse.
+     * @return The number of characters parsed.
+     * @throws GuacamoleException If the data parsed is not valid, or is not
+     *                            acceptable.
+     */
+    public int parse(char[] chunk, int offset, int length)
+            throws GuacamoleException {
+
+        for (int i = offset; i < offset + length; i++) {
+
+            // Low surrogates do not begin new characters
+            char c = chunk[i];
+            if (!parse(c, Character.isLowSurrogate(c), i))
+                return i + 1 - offset;
+
+        }
+
+        return length;
+
+    }
+
+    /**
+     * Parses the given chunk of UTF-8 data, stopping early only if
+     * handleInstruction() requests that parsing stop.
+     *
+     * @param chunk The buffer containing the data to parse.
+     * @param offset The offset of the first byte to parse.
+     * @param length The number of bytes to parse.
+     * @return The number of bytes parsed.
+     * @throws GuacamoleException If the data parsed is not valid, or is not
+     *                            acceptable.
+     */
+    public int parse(byte[] chunk, int offset, int length)
+            throws GuacamoleException {
+
+        for (int i = offset; i < offset + length; i++) {
+
+            // Continuation bytes do not begin new characters
+            int b = chunk[i] & 0xFF;
+            if (!parse(b, (b & 0xC0) == 0x80, i))
+                return i + 1 - offset;
+
+        }
+
+        return length;
+
+    }
+
+}
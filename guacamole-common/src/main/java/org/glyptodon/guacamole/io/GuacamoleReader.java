@@ -86,4 +86,49 @@ public interface GuacamoleReader {
      */
     public GuacamoleInstruction readInstruction() throws GuacamoleException;
 
+    /**
+     * Reads exactly one complete Guacamole instruction, returning a view of
+     * that instruction within this GuacamoleReader's own buffer. Unlike
+     * read() and readInstruction(), no copy of the instruction is made. The
+     * view returned is only valid until the next call to any read function
+     * of this GuacamoleReader.
+     *
+     * @return A view of the next complete instruction from the stream, or
+     *         null if no more instructions are available for reading.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            stream, or if the instruction cannot be
+     *                            parsed.
+     */
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException;
+
+    /**
+     * Reads at least one complete Guacamole instruction, returning a batch
+     * containing that instruction and every further complete instruction
+     * already buffered, within this GuacamoleReader's own buffer. No copy of
+     * the instructions is made. Instructions are added to the batch only
+     * while the batch is shorter than the given maximum length, thus the
+     * batch may exceed that length by up to one instruction. This function
+     * will block until at least one complete instruction is available, but
+     * will not block to fill the batch. The batch returned is only valid
+     * until the next call to any read function of this GuacamoleReader.
+     *
+     * If the next instruction contains an element too large to be buffered
+     * in its entirety, as determined by the implementation, the batch will
+     * instead contain as much of that instruction as has been received, and
+     * the remainder will be returned by subsequent calls to readBatch(). Once
+     * part of an instruction has been returned in this way, no other read
+     * function may be called until the batch containing the end of that
+     * instruction has been returned.
+     *
+     * @param maxLength The length beyond which no further instructions
+     *                  should be added to the batch, in the units of the
+     *                  underlying stream.
+     * @return A batch of one or more complete instructions from the stream,
+     *         or null if no more instructions are available for reading.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            stream, or if an instruction cannot be
+     *                            parsed.
+     */
+    public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException;
+
 }
@@ -0,0 +1,286 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Retains the most recent data sent from a tunnel to its client, such that
+ * a client which loses its connection may resume from the last position it
+ * received rather than reconnecting. Data is retained as the UTF-8 bytes
+ * sent, while positions are measured in UTF-16 code units from the
+ * beginning of the stream, as counted by the JavaScript client.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleReplayBuffer {
+
+    /**
+     * Circular buffer containing all retained data.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The index of the oldest retained byte within the buffer.
+     */
+    private int head = 0;
+
+    /**
+     * The number of bytes currently retained.
+     */
+    private int length = 0;
+
+    /**
+     * The position of the oldest retained byte, in UTF-16 code units.
+     */
+    private long startPosition = 0;
+
+    /**
+     * The position following the newest retained byte, in UTF-16 code
+     * units.
+     */
+    private long position = 0;
+
+    /**
+     * The number of times data has been replayed from this buffer.
+     */
+    private int replayCount = 0;
+
+    /**
+     * Creates a new GuacamoleReplayBuffer which retains up to the given
+     * number of bytes.
+     *
+     * @param size The maximum number of bytes to retain.
+     */
+    public GuacamoleReplayBuffer(int size) {
+
+        if (size <= 0)
+            throw new IllegalArgumentException("Replay buffer size must be positive.");
+
+        buffer = new byte[size];
+
+    }
+
+    /**
+     * Returns the number of UTF-16 code units represented by the given
+     * UTF-8 byte. The first byte of each four-byte sequence represents a
+     * surrogate pair, while continuation bytes represent nothing further.
+     *
+     * @param b The byte to count.
+     * @return The number of UTF-16 code units represented by the given byte.
+     */
+    private static int getUnits(byte b) {
+
+        // Continuation bytes
+        if ((b & 0xC0) == 0x80)
+            return 0;
+
+        // Start of four-byte sequence
+        if ((b & 0xF8) == 0xF0)
+            return 2;
+
+        return 1;
+
+    }
+
+    /**
+     * Retains the given UTF-8 data, discarding the oldest retained data as
+     * necessary. Retained data always begins with a whole character.
+     *
+     * @param data The buffer containing the data to retain.
+     * @param offset The offset of the first byte to retain.
+     * @param count The number of bytes to retain.
+     */
+    public synchronized void append(byte[] data, int offset, int count) {
+
+        // Advance position past all given data
+        for (int i = offset; i < offset + count; i++)
+            position += getUnits(data[i]);
+
+        // If given data fills the buffer, only its end can be retained
+        if (count >= buffer.length) {
+
+            offset += count - buffer.length;
+            count = buffer.length;
+
+            head = 0;
+            length = 0;
+
+            startPosition = position;
+            for (int i = offset; i < offset + count; i++)
+                startPosition -= getUnits(data[i]);
+
+        }
+
+        // Otherwise, discard only as much old data as necessary
+        else {
+            while (buffer.length - length < count) {
+                startPosition += getUnits(buffer[head]);
+                head = (head + 1) % buffer.length;
+                length--;
+            }
+        }
+
+        // Copy to tail, wrapping around if necessary
+        int tail = (head + length) % buffer.length;
+        int first = Math.min(count, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, first);
+        System.arraycopy(data, offset + first, buffer, 0, count - first);
+        length += count;
+
+        // Never begin partway through a character
+        while (length > 0 && getUnits(buffer[head]) == 0) {
+            head = (head + 1) % buffer.length;
+            length--;
+        }
+
+    }
+
+    /**
+     * Writes all retained data following the given position to the given
+     * OutputStream, if that position is still retained.
+     *
+     * @param from The position to replay from, in UTF-16 code units.
+     * @param output The OutputStream to write replayed data to.
+     * @return true if the data following the given position was written,
+     *         false if that data is no longer retained, or if the given
+     *         position is not the start of a character.
+     * @throws IOException If an error occurs while writing to the given
+     *                     OutputStream.
+     */
+    public synchronized boolean replay(long from, OutputStream output)
+            throws IOException {
+
+        // Fail if given position has been discarded or not yet reached
+        if (from < startPosition || from > position)
+            return false;
+
+        // Locate start of character at given position
+        int index = 0;
+        long current = startPosition;
+        while (index < length) {
+
+            int units = getUnits(buffer[(head + index) % buffer.length]);
+            if (units != 0) {
+                if (current >= from)
+                    break;
+                current += units;
+            }
+
+            index++;
+
+        }
+
+        // Given position must not split a surrogate pair
+        if (current != from)
+            return false;
+
+        // Write all data from that character onward
+        int start = (head + index) % buffer.length;
+        int count = length - index;
+        int first = Math.min(count, buffer.length - start);
+        output.write(buffer, start, first);
+        output.write(buffer, 0, count - first);
+
+        replayCount++;
+        return true;
+
+    }
+
+    /**
+     * Returns the position following all data appended thus far, in UTF-16
+     * code units.
+     *
+     * @return The position following all data appended thus far.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of times data has been successfully replayed from
+     * this buffer.
+     *
+     * @return The number of successful calls to replay().
+     */
+    public synchronized int getReplayCount() {
+        return replayCount;
+    }
+
+    /**
+     * Returns an OutputStream which retains all data written within this
+     * GuacamoleReplayBuffer before writing that data to the given
+     * OutputStream. Data is retained even if writing to the given
+     * OutputStream fails, as there is no way to know how much of that data
+     * was received.
+     *
+     * @param output The OutputStream to write data to once retained.
+     * @return An OutputStream which retains all data written.
+     */
+    public OutputStream getOutputStream(final OutputStream output) {
+
+        return new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int count)
+                    throws IOException {
+                append(data, offset, count);
+                output.write(data, offset, count);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                output.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                output.close();
+            }
+
+        };
+
+    }
+
+}
@@ -72,6 +72,22 @@ public interface GuacamoleWriter {
      */
     public void write(char[] chunk) throws GuacamoleException;
 
+    /**
+     * Writes a portion of the given array of UTF-8 encoded bytes to the
+     * Guacamole instruction stream. Where the underlying stream is itself
+     * UTF-8, the bytes are written as-is, without decoding. The portion may
+     * end in the middle of a multibyte character, provided the remainder of
+     * that character is written next.
+     *
+     * @param chunk An array of UTF-8 encoded bytes containing Guacamole
+     *              instructions.
+     * @param off The start offset of the portion of the array to write.
+     * @param len The length of the portion of the array to write.
+     * @throws GuacamoleException If an error occurred while writing the
+     *                            portion of the array specified.
+     */
+    public void write(byte[] chunk, int off, int len) throws GuacamoleException;
+
     /**
      * Writes the given fully parsed instruction to the Guacamole instruction
      * stream.
@@ -82,4 +98,16 @@ public interface GuacamoleWriter {
      */
     public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException;
 
+    /**
+     * Sends any data buffered by this GuacamoleWriter to the underlying
+     * stream. Writers which coalesce writes may hold data until this function
+     * is called, thus this function should be called after writing any data
+     * that the other side is expected to respond to, or which should not be
+     * delayed.
+     *
+     * @throws GuacamoleException If an error occurred while flushing buffered
+     *                            data.
+     */
+    public void flush() throws GuacamoleException;
+
 }
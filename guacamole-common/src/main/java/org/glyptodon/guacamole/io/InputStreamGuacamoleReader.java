@@ -0,0 +1,278 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * A GuacamoleReader which wraps a standard Java InputStream, using that
+ * InputStream as a UTF-8 encoded Guacamole instruction stream. Instructions
+ * are parsed directly from the received bytes, without first decoding them
+ * into characters, such that instructions can be forwarded as the exact
+ * bytes received. Element lengths are counted in Unicode characters, as
+ * required by the Guacamole protocol.
+ *
+ * @author Michael Jumper
+ */
+public class InputStreamGuacamoleReader extends AbstractGuacamoleReader<byte[]> {
+
+    /**
+     * The charset of the Guacamole instruction stream.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The default maximum size of the buffer, in bytes. No instruction larger
+     * than the maximum size of the buffer can be read.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 16777216;
+
+    /**
+     * The default maximum length of any element buffered in its entirety by
+     * readBatch(), in characters. Instructions containing longer elements are
+     * returned by readBatch() in pieces, as they are received.
+     */
+    public static final int DEFAULT_MAX_ELEMENT_SIZE = 65536;
+
+    /**
+     * Wrapped InputStream to be used for all input.
+     */
+    private InputStream input;
+
+    /**
+     * Creates a new InputStreamGuacamoleReader which will use the given
+     * InputStream as the Guacamole instruction stream.
+     *
+     * @param input The InputStream to use as the Guacamole instruction stream.
+     */
+    public InputStreamGuacamoleReader(InputStream input) {
+        this(input, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_ELEMENT_SIZE);
+    }
+
+    /**
+     * Creates a new InputStreamGuacamoleReader which will use the given
+     * InputStream as the Guacamole instruction stream, never allowing its
+     * buffer to grow beyond the given size. Instructions containing elements
+     * longer than the default maximum element size are returned by
+     * readBatch() in pieces.
+     *
+     * @param input The InputStream to use as the Guacamole instruction stream.
+     * @param maxBufferSize The maximum size of the buffer, in bytes. Any
+     *                      instruction larger than this size will result in
+     *                      an error.
+     */
+    public InputStreamGuacamoleReader(InputStream input, int maxBufferSize) {
+        this(input, maxBufferSize, DEFAULT_MAX_ELEMENT_SIZE);
+    }
+
+    /**
+     * Creates a new InputStreamGuacamoleReader which will use the given
+     * InputStream as the Guacamole instruction stream, never allowing its
+     * buffer to grow beyond the given size. Instructions containing elements
+     * longer than the given maximum element size are returned by readBatch()
+     * in pieces, as they are received, rather than being buffered in their
+     * entirety.
+     *
+     * @param input The InputStream to use as the Guacamole instruction stream.
+     * @param maxBufferSize The maximum size of the buffer, in bytes. Any
+     *                      instruction larger than this size will result in
+     *                      an error, unless returned in pieces by
+     *                      readBatch().
+     * @param maxElementSize The maximum length of any element buffered in its
+     *                       entirety by readBatch(), in characters.
+     */
+    public InputStreamGuacamoleReader(InputStream input, int maxBufferSize,
+            int maxElementSize) {
+        super(maxBufferSize, maxElementSize);
+        this.input = input;
+    }
+
+    /**
+     * Returns the number of bytes in the UTF-8 encoded character beginning
+     * with the given byte. Bytes which cannot begin a valid UTF-8 character
+     * are counted as single-byte characters.
+     *
+     * @param leadByte The first byte of a UTF-8 encoded character.
+     * @return The number of bytes in the character.
+     */
+    private static int getCharacterSize(byte leadByte) {
+
+        // Single-byte (ASCII) character
+        if ((leadByte & 0x80) == 0x00) return 1;
+
+        // Multibyte characters
+        if ((leadByte & 0xE0) == 0xC0) return 2;
+        if ((leadByte & 0xF0) == 0xE0) return 3;
+        if ((leadByte & 0xF8) == 0xF0) return 4;
+
+        // Invalid lead byte
+        return 1;
+
+    }
+
+    @Override
+    protected byte[] allocate(int size) {
+        return new byte[size];
+    }
+
+    @Override
+    protected int fill(byte[] buffer, int offset, int length)
+            throws IOException {
+        return input.read(buffer, offset, length);
+    }
+
+    @Override
+    protected boolean ready() throws IOException {
+        return input.available() > 0;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the given range which form
+     * complete UTF-8 characters, excluding the beginning of any character
+     * whose remaining bytes are not within the range.
+     *
+     * @param buffer The buffer containing the range.
+     * @param offset The offset of the first byte of the range.
+     * @param length The number of bytes within the range.
+     * @return The number of leading bytes of the range which form complete
+     *         characters.
+     */
+    static int getCompleteUTF8Length(byte[] buffer, int offset, int length) {
+
+        // Locate the start of the final character within the last four
+        // bytes, each character being at most four bytes long
+        int end = offset + length;
+        for (int i = end - 1; i >= offset && i >= end - 4; i--) {
+
+            // Continuation bytes do not begin characters
+            if ((buffer[i] & 0xC0) == 0x80)
+                continue;
+
+            // Exclude the final character if its remaining bytes have not
+            // yet been received
+            if (i + getCharacterSize(buffer[i]) > end)
+                return i - offset;
+
+            break;
+
+        }
+
+        return length;
+
+    }
+
+    /**
+     * Returns whether the given range of the given buffer contains exactly
+     * the UTF-8 encoding of the given String, comparing in place unless the
+     * String contains non-ASCII characters.
+     *
+     * @param buffer The buffer containing the range to compare.
+     * @param offset The offset of the first byte to compare.
+     * @param length The number of bytes to compare.
+     * @param value The String to compare against.
+     * @return true if the range contains exactly the given String, false
+     *         otherwise.
+     */
+    static boolean utf8RegionMatches(byte[] buffer, int offset, int length,
+            String value) {
+
+        // Compare each character in place
+        for (int i=0; i<value.length(); i++) {
+
+            // Non-ASCII values must be decoded for comparison
+            char c = value.charAt(i);
+            if (c >= 0x80)
+                return new String(buffer, offset, length, UTF8).equals(value);
+
+            if (i >= length || buffer[offset + i] != c)
+                return false;
+
+        }
+
+        // Lengths must match
+        return value.length() == length;
+
+    }
+
+    @Override
+    protected int getCompleteLength(byte[] buffer, int offset, int length) {
+        return getCompleteUTF8Length(buffer, offset, length);
+    }
+
+    @Override
+    protected int parse(GuacamoleParser parser, byte[] buffer, int offset,
+            int length) throws GuacamoleException {
+        return parser.parse(buffer, offset, length);
+    }
+
+    @Override
+    protected String decode(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, UTF8);
+    }
+
+    @Override
+    protected boolean regionMatches(byte[] buffer, int offset, int length,
+            String value) {
+        return utf8RegionMatches(buffer, offset, length, value);
+    }
+
+    @Override
+    protected GuacamoleOpcode getKnownOpcode(byte[] buffer, int offset,
+            int length) {
+        return GuacamoleOpcode.fromValue(buffer, offset, length);
+    }
+
+    @Override
+    protected void write(byte[] buffer, int offset, int length,
+            OutputStream output) throws IOException {
+        output.write(buffer, offset, length);
+    }
+
+    @Override
+    protected void write(byte[] buffer, int offset, int length,
+            Writer output) throws IOException {
+        output.write(new String(buffer, offset, length, UTF8));
+    }
+
+}
@@ -0,0 +1,342 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * A GuacamoleWriter which wraps a standard Java OutputStream, using that
+ * OutputStream as a UTF-8 encoded Guacamole instruction stream. Data which is
+ * already UTF-8 encoded is written as-is, without decoding.
+ *
+ * If given a flush delay, this writer coalesces writes, holding data in its
+ * own buffer until flush() is called, until the buffer is full, or until the
+ * flush delay has elapsed since the first unflushed write, whichever comes
+ * first. Writes made together, such as the instructions of a handshake, can
+ * thus be sent to the underlying stream together.
+ *
+ * @author Michael Jumper
+ */
+public class OutputStreamGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The size of the buffer used to coalesce writes, in bytes.
+     */
+    private static final int COALESCE_BUFFER_SIZE = 8192;
+
+    /**
+     * Timer shared by all OutputStreamGuacamoleWriters for flushing
+     * coalesced data once the flush delay has elapsed.
+     */
+    private static final Timer flushTimer = new Timer("Guacamole writer flush", true);
+
+    /**
+     * Wrapped OutputStream to be used for all output.
+     */
+    private OutputStream output;
+
+    /**
+     * The maximum number of milliseconds that written data may remain
+     * buffered before being flushed, or zero if every write is flushed
+     * immediately.
+     */
+    private final int flushDelay;
+
+    /**
+     * Buffer holding all written data which has not yet been flushed.
+     */
+    private final byte[] coalesceBuffer;
+
+    /**
+     * The number of bytes within coalesceBuffer which have been written but
+     * not yet flushed.
+     */
+    private int coalescedLength = 0;
+
+    /**
+     * Whether a flush of coalesced data is currently scheduled.
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * Any error encountered while flushing coalesced data in the background.
+     * This error will be thrown by the next write or flush.
+     */
+    private IOException flushError;
+
+    /**
+     * Buffer used to hold characters as they are encoded into UTF-8. This
+     * buffer is reused for each write of characters, growing as necessary.
+     */
+    private byte[] encodeBuffer = new byte[8192];
+
+    /**
+     * Buffer into which instructions are encoded by writeInstruction(),
+     * reused for each instruction and grown as needed.
+     */
+    private char[] instructionBuffer = new char[1024];
+
+    /**
+     * Creates a new OutputStreamGuacamoleWriter which will use the given
+     * OutputStream as the Guacamole instruction stream.
+     *
+     * @param output The OutputStream to use as the Guacamole instruction
+     *               stream.
+     */
+    public OutputStreamGuacamoleWriter(OutputStream output) {
+        this(output, 0);
+    }
+
+    /**
+     * Creates a new OutputStreamGuacamoleWriter which will use the given
+     * OutputStream as the Guacamole instruction stream, coalescing writes
+     * for up to the given number of milliseconds.
+     *
+     * @param output The OutputStream to use as the Guacamole instruction
+     *               stream.
+     * @param flushDelay The maximum number of milliseconds that written data
+     *                   may remain buffered before being flushed
+     *                   automatically, or zero if every write should be
+     *                   flushed immediately.
+     */
+    public OutputStreamGuacamoleWriter(OutputStream output, int flushDelay) {
+        this.output = output;
+        this.flushDelay = flushDelay;
+        this.coalesceBuffer = (flushDelay > 0) ? new byte[COALESCE_BUFFER_SIZE] : null;
+    }
+
+    /**
+     * Writes any coalesced data to the underlying stream, and flushes that
+     * stream. The caller must hold the lock on this writer.
+     *
+     * @throws IOException If an error occurs while writing to or flushing
+     *                     the underlying stream.
+     */
+    private void flushCoalesced() throws IOException {
+
+        if (coalescedLength == 0)
+            return;
+
+        output.write(coalesceBuffer, 0, coalescedLength);
+        output.flush();
+        coalescedLength = 0;
+
+    }
+
+    /**
+     * Schedules a flush of coalesced data once the flush delay has elapsed,
+     * if no such flush is already scheduled. The caller must hold the lock on
+     * this writer.
+     */
+    private void scheduleFlush() {
+
+        if (flushScheduled)
+            return;
+
+        flushScheduled = true;
+        flushTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                synchronized (OutputStreamGuacamoleWriter.this) {
+
+                    flushScheduled = false;
+
+                    // Store any error for the next write or flush, as there
+                    // is no caller to receive it here
+                    try {
+                        flushCoalesced();
+                    }
+                    catch (IOException e) {
+                        flushError = e;
+                    }
+
+                }
+            }
+
+        }, flushDelay);
+
+    }
+
+    /**
+     * Throws any error encountered while flushing coalesced data in the
+     * background, clearing that error. The caller must hold the lock on this
+     * writer.
+     *
+     * @throws GuacamoleException If an error was encountered while flushing
+     *                            coalesced data in the background.
+     */
+    private void checkFlushError() throws GuacamoleException {
+
+        if (flushError == null)
+            return;
+
+        IOException e = flushError;
+        flushError = null;
+        throw new GuacamoleServerException(e);
+
+    }
+
+    @Override
+    public synchronized void write(byte[] chunk, int off, int len) throws GuacamoleException {
+
+        checkFlushError();
+
+        try {
+
+            // If not coalescing, write and flush immediately
+            if (coalesceBuffer == null) {
+                output.write(chunk, off, len);
+                output.flush();
+                return;
+            }
+
+            // Make room for data, flushing if necessary
+            if (coalescedLength + len > coalesceBuffer.length)
+                flushCoalesced();
+
+            // Data too large to coalesce is written directly
+            if (len > coalesceBuffer.length) {
+                output.write(chunk, off, len);
+                output.flush();
+                return;
+            }
+
+            // Otherwise, buffer data until flushed
+            System.arraycopy(chunk, off, coalesceBuffer, coalescedLength, len);
+            coalescedLength += len;
+            scheduleFlush();
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+    @Override
+    public synchronized void flush() throws GuacamoleException {
+
+        checkFlushError();
+
+        try {
+            if (coalesceBuffer != null)
+                flushCoalesced();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+    @Override
+    public synchronized void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        // Ensure buffer can hold the worst case of three bytes per character
+        if (encodeBuffer.length < len * 3)
+            encodeBuffer = new byte[len * 3];
+
+        // Encode characters as UTF-8
+        int length = 0;
+        int end = off + len;
+        for (int i=off; i<end; i++) {
+
+            int codepoint = chunk[i];
+
+            // Combine surrogate pairs into a single codepoint
+            if (Character.isHighSurrogate(chunk[i]) && i+1 < end
+                    && Character.isLowSurrogate(chunk[i+1]))
+                codepoint = Character.toCodePoint(chunk[i], chunk[++i]);
+
+            // Single byte
+            if (codepoint < 0x80)
+                encodeBuffer[length++] = (byte) codepoint;
+
+            // Two bytes
+            else if (codepoint < 0x800) {
+                encodeBuffer[length++] = (byte) (0xC0 | (codepoint >> 6));
+                encodeBuffer[length++] = (byte) (0x80 | (codepoint & 0x3F));
+            }
+
+            // Three bytes
+            else if (codepoint < 0x10000) {
+                encodeBuffer[length++] = (byte) (0xE0 | (codepoint >> 12));
+                encodeBuffer[length++] = (byte) (0x80 | ((codepoint >> 6) & 0x3F));
+                encodeBuffer[length++] = (byte) (0x80 | (codepoint & 0x3F));
+            }
+
+            // Four bytes (from a surrogate pair, thus two characters)
+            else {
+                encodeBuffer[length++] = (byte) (0xF0 | (codepoint >> 18));
+                encodeBuffer[length++] = (byte) (0x80 | ((codepoint >> 12) & 0x3F));
+                encodeBuffer[length++] = (byte) (0x80 | ((codepoint >> 6) & 0x3F));
+                encodeBuffer[length++] = (byte) (0x80 | (codepoint & 0x3F));
+            }
+
+        }
+
+        write(encodeBuffer, 0, length);
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public synchronized void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+
+        // Grow buffer if instruction will not fit
+        int length = instruction.getEncodedLength();
+        if (length > instructionBuffer.length)
+            instructionBuffer = new char[Math.max(length, instructionBuffer.length * 2)];
+
+        // Encode and write instruction without intermediate copies
+        instruction.encode(instructionBuffer, 0);
+        write(instructionBuffer, 0, length);
+
+    }
+
+}
@@ -0,0 +1,1286 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleReader which reads instructions from a queue of bounded size.
+ * The queue holds the UTF-8 data of whole instructions along with the
+ * location at which each instruction ends, thus batches are returned
+ * directly from the queue without parsing the queued data again. Only
+ * views and parsed instructions require the elements of the instruction
+ * being read to be located.
+ *
+ * Data may be added to the queue by any producer: batches already read from
+ * another GuacamoleReader may be added whole, and raw data may be received
+ * from a non-blocking channel, in which case that data is parsed once as it
+ * arrives. Alternatively, a pump may read from another GuacamoleReader
+ * regardless of whether anything is currently reading from this
+ * GuacamoleReader. Pumps run on a shared executor of bounded size rather
+ * than on a thread of their own.
+ *
+ * @author Michael Jumper
+ */
+public class QueuedGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(QueuedGuacamoleReader.class);
+
+    /**
+     * The default maximum number of bytes which may be queued before reads
+     * from the underlying GuacamoleReader are suspended.
+     */
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 262144;
+
+    /**
+     * The maximum length of any instruction which may be read as a whole,
+     * in bytes. The queue grows beyond its maximum length only to hold such
+     * an instruction, and shrinks again once emptied.
+     */
+    public static final int MAX_INSTRUCTION_LENGTH = 16777216;
+
+    /**
+     * The maximum number of threads of the default executor, and thus the
+     * maximum number of pumps which may run at once using that executor.
+     */
+    public static final int DEFAULT_MAX_PUMP_THREADS = 256;
+
+    /**
+     * The charset of all queued data.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The shared default executor of all pumps, created when first
+     * requested.
+     */
+    private static ThreadPoolExecutor defaultExecutor;
+
+    /**
+     * The maximum number of bytes which may be queued, unless a single
+     * instruction being read as a whole is longer.
+     */
+    private final int maxQueueLength;
+
+    /**
+     * The number of milliseconds to wait for data before failing, or zero
+     * to wait indefinitely.
+     */
+    private final int timeout;
+
+    /**
+     * Circular buffer containing all queued data, as UTF-8.
+     */
+    private byte[] queue;
+
+    /**
+     * The index of the first queued byte within the queue.
+     */
+    private int head = 0;
+
+    /**
+     * The position of the first queued byte within the stream of all data
+     * ever queued.
+     */
+    private long headPosition = 0;
+
+    /**
+     * The number of bytes currently queued, including any data still held
+     * by the most recent read and any data not yet forming a complete
+     * instruction.
+     */
+    private int queuedLength = 0;
+
+    /**
+     * The number of bytes at the head of the queue returned by the most
+     * recent read, which remain in the queue until the next read such that
+     * views and batches of that data remain valid.
+     */
+    private int heldLength = 0;
+
+    /**
+     * Circular buffer containing the stream position of the end of each
+     * queued instruction or batch, in order.
+     */
+    private long[] boundaries = new long[64];
+
+    /**
+     * Whether the data ending at each boundary ends at the end of an
+     * instruction, rather than partway through an instruction being queued
+     * in pieces.
+     */
+    private boolean[] boundaryComplete = new boolean[64];
+
+    /**
+     * The index of the first boundary within the boundary buffers.
+     */
+    private int firstBoundary = 0;
+
+    /**
+     * The number of boundaries currently queued.
+     */
+    private int boundaryCount = 0;
+
+    /**
+     * Whether the end of the queued data has been reached, due to end of
+     * stream or failure. Once set, no further data will be queued.
+     */
+    private boolean ended = false;
+
+    /**
+     * Whether this GuacamoleReader has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The error which ended the queued data, if any.
+     */
+    private GuacamoleException failure;
+
+    /**
+     * Whether part of an instruction has been returned by readBatch(), such
+     * that the remainder of that instruction can only be returned by
+     * readBatch().
+     */
+    private boolean instructionStreamed = false;
+
+    /**
+     * Whether the most recently read batch included every complete
+     * instruction which was queued at the time.
+     */
+    private boolean batchDrained = false;
+
+    /**
+     * Whether the most recently read batch ends at the end of an
+     * instruction.
+     */
+    private boolean batchComplete = false;
+
+    /**
+     * Whether data is currently being added with offer(), and thus must not
+     * wait for space.
+     */
+    private boolean offering = false;
+
+    /**
+     * Whether data added with offer() did not fit within the queue.
+     */
+    private boolean overflowed = false;
+
+    /**
+     * The stream position of the first byte passed to the receive parser by
+     * the current call to receive().
+     */
+    private long receivePosition;
+
+    /**
+     * The index within the queue of the first byte passed to the receive
+     * parser by the current call to receive().
+     */
+    private int receiveOffset;
+
+    /**
+     * The offset of each element of the instruction most recently read as a
+     * whole, in order, the first element being the opcode.
+     */
+    private int[] elementOffsets = new int[32];
+
+    /**
+     * The length of each element of the instruction most recently read as a
+     * whole, in order, the first element being the opcode.
+     */
+    private int[] elementLengths = new int[32];
+
+    /**
+     * The number of elements of the instruction most recently read as a
+     * whole.
+     */
+    private int elementCount = 0;
+
+    /**
+     * The known opcode of the instruction most recently read as a whole, if
+     * knownOpcodeResolved is true.
+     */
+    private GuacamoleOpcode knownOpcode;
+
+    /**
+     * Whether the opcode of the instruction most recently read as a whole
+     * has been looked up and stored within knownOpcode.
+     */
+    private boolean knownOpcodeResolved = false;
+
+    /**
+     * Parser which locates the end of each instruction within data received
+     * from a channel, recording a boundary for each.
+     */
+    private final GuacamoleParser receiveParser = new GuacamoleParser() {
+
+        @Override
+        protected boolean handleInstruction(int terminator) {
+            addBoundary(receivePosition + terminator + 1 - receiveOffset, true);
+            return true;
+        }
+
+    };
+
+    /**
+     * Parser which locates the elements of the instruction at the head of
+     * the queue, stopping at the end of that instruction.
+     */
+    private final GuacamoleParser instructionParser = new GuacamoleParser() {
+
+        @Override
+        protected void handleElement(int element, int terminator, int size) {
+            addElement(terminator - size, size);
+        }
+
+        @Override
+        protected boolean handleInstruction(int terminator) {
+            heldLength = terminator + 1 - head;
+            return false;
+        }
+
+    };
+
+    /**
+     * OutputStream which adds data to the tail of the queue.
+     */
+    private final OutputStream output = new QueueOutputStream();
+
+    /**
+     * The view of the instruction most recently read. As the view refers
+     * only to the state of this reader, the same view is reused for every
+     * instruction read.
+     */
+    private final GuacamoleInstructionView view = new InstructionView();
+
+    /**
+     * The most recently read batch of instructions. As the batch refers only
+     * to the state of this reader, the same batch is reused for every batch
+     * read.
+     */
+    private final GuacamoleInstructionBatch batch = new InstructionBatch();
+
+    /**
+     * Creates a new QueuedGuacamoleReader which reads from the given
+     * GuacamoleReader using a pump run by the default executor, queueing up
+     * to {@link #DEFAULT_MAX_QUEUE_LENGTH} bytes.
+     *
+     * @param source The GuacamoleReader to read from.
+     * @throws RejectedExecutionException If the default executor cannot run
+     *                                    any further pumps.
+     */
+    public QueuedGuacamoleReader(GuacamoleReader source) {
+        this(source, DEFAULT_MAX_QUEUE_LENGTH);
+    }
+
+    /**
+     * Creates a new QueuedGuacamoleReader which reads from the given
+     * GuacamoleReader using a pump run by the default executor, queueing up
+     * to the given number of bytes.
+     *
+     * @param source The GuacamoleReader to read from.
+     * @param maxQueueLength The maximum number of bytes which may be queued
+     *                       before reads from the given GuacamoleReader are
+     *                       suspended.
+     * @throws RejectedExecutionException If the default executor cannot run
+     *                                    any further pumps.
+     */
+    public QueuedGuacamoleReader(GuacamoleReader source, int maxQueueLength) {
+        this(source, maxQueueLength, getDefaultExecutor());
+    }
+
+    /**
+     * Creates a new QueuedGuacamoleReader which reads from the given
+     * GuacamoleReader using a pump run by the given executor, queueing up to
+     * the given number of bytes. The pump occupies a thread of the executor
+     * until the given GuacamoleReader reaches end of stream or fails, or
+     * until this GuacamoleReader is closed and the current read from the
+     * given GuacamoleReader returns.
+     *
+     * @param source The GuacamoleReader to read from.
+     * @param maxQueueLength The maximum number of bytes which may be queued
+     *                       before reads from the given GuacamoleReader are
+     *                       suspended.
+     * @param executor The executor which should run the pump.
+     * @throws RejectedExecutionException If the given executor cannot run
+     *                                    the pump.
+     */
+    public QueuedGuacamoleReader(final GuacamoleReader source,
+            int maxQueueLength, Executor executor) {
+
+        this(maxQueueLength);
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                pump(source);
+            }
+
+        });
+
+    }
+
+    /**
+     * Creates a new QueuedGuacamoleReader which reads only data explicitly
+     * added with add(), offer() or receive(), queueing up to the given
+     * number of bytes. The end of the queued data must be signalled with
+     * end().
+     *
+     * @param maxQueueLength The maximum number of bytes which may be
+     *                       queued.
+     */
+    public QueuedGuacamoleReader(int maxQueueLength) {
+        this(maxQueueLength, 0);
+    }
+
+    /**
+     * Creates a new QueuedGuacamoleReader which reads only data explicitly
+     * added with add(), offer() or receive(), queueing up to the given
+     * number of bytes, and failing any read which waits longer than the
+     * given timeout for data. The end of the queued data must be signalled
+     * with end().
+     *
+     * @param maxQueueLength The maximum number of bytes which may be
+     *                       queued.
+     * @param timeout The number of milliseconds any read may wait for data
+     *                before failing, or zero to wait indefinitely.
+     */
+    public QueuedGuacamoleReader(int maxQueueLength, int timeout) {
+
+        if (maxQueueLength <= 0)
+            throw new IllegalArgumentException("Queue length must be positive.");
+
+        this.maxQueueLength = maxQueueLength;
+        this.timeout = timeout;
+        this.queue = new byte[maxQueueLength];
+
+    }
+
+    /**
+     * Returns the shared default executor of pumps, creating it if
+     * necessary. The default executor runs at most
+     * {@link #DEFAULT_MAX_PUMP_THREADS} pumps at once, and refuses further
+     * pumps until a running pump stops.
+     *
+     * @return The shared default executor of pumps.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+
+        if (defaultExecutor == null) {
+
+            defaultExecutor = new ThreadPoolExecutor(0, DEFAULT_MAX_PUMP_THREADS,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Guacamole read pump");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+
+        }
+
+        return defaultExecutor;
+
+    }
+
+    /**
+     * Reads from the given GuacamoleReader until end of stream, error, or
+     * until this GuacamoleReader is closed, adding each instruction read to
+     * the queue along with its boundary.
+     *
+     * @param source The GuacamoleReader to read from.
+     */
+    private void pump(GuacamoleReader source) {
+
+        try {
+
+            // Read one instruction (or piece of an oversized instruction)
+            // at a time, such that the end of every instruction is known
+            GuacamoleInstructionBatch instruction;
+            while ((instruction = source.readBatch(1)) != null)
+                add(instruction);
+
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Read pump stopped due to error.", e);
+            end(e);
+            return;
+        }
+
+        // Signal end of stream
+        end(null);
+
+    }
+
+    /**
+     * Called whenever space becomes available within a queue which was
+     * previously full, such as when data is read or when the queue grows to
+     * hold a long instruction. This function is called while holding the
+     * lock on this QueuedGuacamoleReader, and must not block. By default,
+     * this function does nothing.
+     */
+    protected void handleSpaceAvailable() {
+    }
+
+    /**
+     * Throws an exception if no further data may be added to the queue. The
+     * caller must hold the lock on this QueuedGuacamoleReader.
+     *
+     * @throws GuacamoleException If this GuacamoleReader is closed, or if
+     *                            the end of the queued data has already been
+     *                            signalled.
+     */
+    private void checkAccepting() throws GuacamoleException {
+
+        if (closed)
+            throw new GuacamoleServerException("Reader closed.");
+
+        if (ended)
+            throw new GuacamoleServerException("End of queued data already reached.");
+
+    }
+
+    /**
+     * Adds the given batch to the queue, blocking until sufficient space is
+     * available. The end of the batch is recorded as a boundary, thus the
+     * batch is never split by readBatch(), and is not parsed again unless
+     * read as individual instructions. If the batch is larger than the
+     * queue, its data is added in pieces as space becomes available.
+     *
+     * @param batch The batch to add.
+     * @throws GuacamoleException If this GuacamoleReader is closed, if the
+     *                            end of the queued data has already been
+     *                            signalled, or if interrupted while waiting
+     *                            for space.
+     */
+    public synchronized void add(GuacamoleInstructionBatch batch)
+            throws GuacamoleException {
+
+        checkAccepting();
+
+        try {
+            batch.writeTo(output);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to add data to queue.", e);
+        }
+
+        addBoundary(headPosition + queuedLength, batch.isComplete());
+
+    }
+
+    /**
+     * Adds the given batch to the queue only if sufficient space is
+     * available to add the entire batch without waiting. As with add(), the
+     * end of the batch is recorded as a boundary.
+     *
+     * @param batch The batch to add.
+     * @return true if the batch was added, false if insufficient space was
+     *         available, in which case no data is added.
+     * @throws GuacamoleException If this GuacamoleReader is closed, or if
+     *                            the end of the queued data has already been
+     *                            signalled.
+     */
+    public synchronized boolean offer(GuacamoleInstructionBatch batch)
+            throws GuacamoleException {
+
+        checkAccepting();
+
+        int previousLength = queuedLength;
+        offering = true;
+        overflowed = false;
+
+        try {
+            batch.writeTo(output);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to add data to queue.", e);
+        }
+        finally {
+            offering = false;
+        }
+
+        // Remove any part of the batch which was added before space ran out
+        if (overflowed) {
+            queuedLength = previousLength;
+            return false;
+        }
+
+        addBoundary(headPosition + queuedLength, batch.isComplete());
+        return true;
+
+    }
+
+    /**
+     * Reads as much UTF-8 data as is immediately available from the given
+     * non-blocking channel directly into the queue, without waiting for
+     * space. The data received is parsed once, as it arrives, to locate the
+     * end of each instruction. If the end of stream is reached, or if the
+     * data received is not valid, the end of the queued data is signalled,
+     * and consumers will see end of stream or the resulting error once all
+     * complete instructions have been read.
+     *
+     * @param channel The channel to read from.
+     * @return The number of bytes read, which may be zero if no data was
+     *         available or the queue is full, or -1 if no further data will
+     *         be accepted.
+     * @throws IOException If an error occurs while reading from the given
+     *                     channel.
+     */
+    public synchronized int receive(ReadableByteChannel channel)
+            throws IOException {
+
+        if (closed || ended)
+            return -1;
+
+        int total = 0;
+        while (queuedLength < queue.length) {
+
+            // Read into free space following tail, up to the end of the queue
+            int tail = (head + queuedLength) % queue.length;
+            int space = Math.min(queue.length - queuedLength, queue.length - tail);
+
+            int received = channel.read(ByteBuffer.wrap(queue, tail, space));
+            if (received == -1) {
+                end(null);
+                return -1;
+            }
+
+            if (received == 0)
+                break;
+
+            receivePosition = headPosition + queuedLength;
+            receiveOffset = tail;
+            queuedLength += received;
+            total += received;
+
+            // Locate each instruction ended by the data received
+            try {
+                receiveParser.parse(queue, tail, received);
+            }
+            catch (GuacamoleException e) {
+                end(e);
+                return -1;
+            }
+
+        }
+
+        // Allow an instruction too long for the queue to be read in pieces
+        if (queuedLength == queue.length)
+            notifyAll();
+
+        return total;
+
+    }
+
+    /**
+     * Returns whether any further data can currently be added to the queue.
+     *
+     * @return true if data can be added without waiting, false if the queue
+     *         is full, closed, or ended.
+     */
+    public synchronized boolean hasSpace() {
+        return !closed && !ended && queuedLength < queue.length;
+    }
+
+    /**
+     * Copies the given data to the tail of the queue, wrapping around if
+     * necessary. The caller must hold the lock on this QueuedGuacamoleReader
+     * and ensure sufficient space is available.
+     *
+     * @param data The buffer containing the data to add.
+     * @param offset The offset of the first byte to add.
+     * @param length The number of bytes to add.
+     */
+    private void append(byte[] data, int offset, int length) {
+
+        int tail = (head + queuedLength) % queue.length;
+        int first = Math.min(length, queue.length - tail);
+        System.arraycopy(data, offset, queue, tail, first);
+        System.arraycopy(data, offset + first, queue, 0, length - first);
+
+        queuedLength += length;
+
+        // Allow an instruction too long for the queue to be read in pieces
+        if (queuedLength == queue.length)
+            notifyAll();
+
+    }
+
+    /**
+     * Records the end of an instruction or batch at the given stream
+     * position, notifying any waiting consumers. The caller must hold the
+     * lock on this QueuedGuacamoleReader.
+     *
+     * @param position The stream position immediately following the end of
+     *                 the instruction or batch.
+     * @param complete Whether the given position is the end of an
+     *                 instruction, rather than the end of part of an
+     *                 instruction being queued in pieces.
+     */
+    private void addBoundary(long position, boolean complete) {
+
+        // Grow boundary buffers if full
+        if (boundaryCount == boundaries.length) {
+
+            long[] biggerBoundaries = new long[boundaryCount*2];
+            boolean[] biggerComplete = new boolean[boundaryCount*2];
+
+            for (int i=0; i<boundaryCount; i++) {
+                int index = (firstBoundary + i) % boundaryCount;
+                biggerBoundaries[i] = boundaries[index];
+                biggerComplete[i] = boundaryComplete[index];
+            }
+
+            boundaries = biggerBoundaries;
+            boundaryComplete = biggerComplete;
+            firstBoundary = 0;
+
+        }
+
+        int index = (firstBoundary + boundaryCount) % boundaries.length;
+        boundaries[index] = position;
+        boundaryComplete[index] = complete;
+        boundaryCount++;
+
+        notifyAll();
+
+    }
+
+    /**
+     * Signals the end of the queued data. Once all queued data has been
+     * read, consumers will see end of stream, or the given error. No further
+     * data may be added.
+     *
+     * @param failure The error which should be thrown to consumers once all
+     *                queued data has been read, or null if consumers should
+     *                simply see end of stream.
+     */
+    public synchronized void end(GuacamoleException failure) {
+
+        // Only the first end counts, and errors are expected once closed
+        if (!ended && !closed)
+            this.failure = failure;
+
+        ended = true;
+        notifyAll();
+
+    }
+
+    /**
+     * Discards all queued data and stops any pump. Consumers blocked waiting
+     * for data will see end of stream. This does not close the underlying
+     * GuacamoleReader, and a pump will only stop once its current read from
+     * the underlying GuacamoleReader returns.
+     */
+    public synchronized void close() {
+        closed = true;
+        queuedLength = 0;
+        heldLength = 0;
+        boundaryCount = 0;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes currently queued and not yet read.
+     *
+     * @return The number of bytes currently queued.
+     */
+    public synchronized int getQueuedLength() {
+        return queuedLength - heldLength;
+    }
+
+    /**
+     * Removes the data returned by the most recent read from the queue, if
+     * any, invalidating any view or batch of that data. The caller must hold
+     * the lock on this QueuedGuacamoleReader.
+     */
+    private void release() {
+
+        // Do nothing if no data is held
+        if (heldLength == 0)
+            return;
+
+        boolean wasFull = queuedLength == queue.length;
+
+        head = (head + heldLength) % queue.length;
+        headPosition += heldLength;
+        queuedLength -= heldLength;
+        heldLength = 0;
+
+        // Discard boundaries of all data released
+        while (boundaryCount > 0 && boundaries[firstBoundary] <= headPosition) {
+            firstBoundary = (firstBoundary + 1) % boundaries.length;
+            boundaryCount--;
+        }
+
+        // Once empty, reuse the queue from the beginning, shrinking it if it
+        // was grown to hold a long instruction
+        if (queuedLength == 0) {
+            head = 0;
+            if (queue.length > maxQueueLength)
+                queue = new byte[maxQueueLength];
+        }
+
+        // Space is now available to producers
+        notifyAll();
+        if (wasFull)
+            handleSpaceAvailable();
+
+    }
+
+    /**
+     * Ensures the given number of bytes at the head of the queue are stored
+     * contiguously, rotating the contents of the queue such that the head is
+     * at the start of the queue if necessary. As the head must pass the end
+     * of the queue before this is again necessary, the cost of rotation per
+     * byte read remains constant. The caller must hold the lock on this
+     * QueuedGuacamoleReader, and no data may be held.
+     *
+     * @param length The number of bytes at the head of the queue which must
+     *               be contiguous.
+     */
+    private void makeContiguous(int length) {
+
+        // Nothing to do if data does not wrap
+        if (head + length <= queue.length)
+            return;
+
+        // Rotate left by head in place
+        reverse(0, head);
+        reverse(head, queue.length);
+        reverse(0, queue.length);
+        head = 0;
+
+    }
+
+    /**
+     * Reverses the order of the bytes within the given range of the queue.
+     *
+     * @param start The index of the first byte of the range.
+     * @param end The index immediately following the last byte of the range.
+     */
+    private void reverse(int start, int end) {
+        for (int i = start, j = end - 1; i < j; i++, j--) {
+            byte swap = queue[i];
+            queue[i] = queue[j];
+            queue[j] = swap;
+        }
+    }
+
+    /**
+     * Doubles the size of the queue such that a single instruction longer
+     * than the queue can be read as a whole. The caller must hold the lock
+     * on this QueuedGuacamoleReader, and no data may be held.
+     *
+     * @throws GuacamoleException If the queue cannot grow further.
+     */
+    private void grow() throws GuacamoleException {
+
+        if (queue.length >= MAX_INSTRUCTION_LENGTH)
+            throw new GuacamoleServerException("Instruction exceeds maximum queue length.");
+
+        byte[] bigger = new byte[Math.min(queue.length * 2, MAX_INSTRUCTION_LENGTH)];
+
+        int first = Math.min(queuedLength, queue.length - head);
+        System.arraycopy(queue, head, bigger, 0, first);
+        System.arraycopy(queue, 0, bigger, first, queuedLength - first);
+
+        queue = bigger;
+        head = 0;
+
+        handleSpaceAvailable();
+        notifyAll();
+
+    }
+
+    /**
+     * Waits for data to be added to the queue, or for the queue to end or
+     * close. The caller must hold the lock on this QueuedGuacamoleReader.
+     *
+     * @param deadline The time at which waiting should fail, in milliseconds
+     *                 since midnight, January 1, 1970 UTC, or zero to wait
+     *                 indefinitely.
+     * @throws GuacamoleException If the deadline passes, or if interrupted
+     *                            while waiting.
+     */
+    private void await(long deadline) throws GuacamoleException {
+
+        try {
+
+            if (deadline == 0) {
+                wait();
+                return;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new GuacamoleServerException("Timed out waiting for data.");
+
+            wait(remaining);
+
+        }
+        catch (InterruptedException e) {
+            throw new GuacamoleServerException("Interrupted while waiting for data.", e);
+        }
+
+    }
+
+    /**
+     * Returns the deadline for the read about to begin, according to the
+     * timeout of this QueuedGuacamoleReader.
+     *
+     * @return The time at which waiting for data should fail, in
+     *         milliseconds since midnight, January 1, 1970 UTC, or zero to
+     *         wait indefinitely.
+     */
+    private long getDeadline() {
+
+        if (timeout == 0)
+            return 0;
+
+        return System.currentTimeMillis() + timeout;
+
+    }
+
+    /**
+     * Records the location of an element of the instruction being read as a
+     * whole, growing the element arrays if necessary.
+     *
+     * @param offset The index of the element within the queue.
+     * @param length The length of the element, in bytes.
+     */
+    private void addElement(int offset, int length) {
+
+        // Grow element arrays if full
+        if (elementCount == elementOffsets.length) {
+
+            int[] biggerOffsets = new int[elementCount*2];
+            System.arraycopy(elementOffsets, 0, biggerOffsets, 0, elementCount);
+            elementOffsets = biggerOffsets;
+
+            int[] biggerLengths = new int[elementCount*2];
+            System.arraycopy(elementLengths, 0, biggerLengths, 0, elementCount);
+            elementLengths = biggerLengths;
+
+        }
+
+        elementOffsets[elementCount] = offset;
+        elementLengths[elementCount] = length;
+        elementCount++;
+
+    }
+
+    @Override
+    public synchronized boolean available() throws GuacamoleException {
+
+        if (closed || boundaryCount == 0)
+            return false;
+
+        // Data is available if any boundary lies beyond the held data
+        int last = (firstBoundary + boundaryCount - 1) % boundaries.length;
+        return boundaries[last] > headPosition + heldLength;
+
+    }
+
+    @Override
+    public synchronized GuacamoleInstructionBatch readBatch(int maxLength)
+            throws GuacamoleException {
+
+        // Previously-read data is no longer needed
+        release();
+
+        long deadline = getDeadline();
+        while (boundaryCount == 0) {
+
+            // Closed readers see end of stream
+            if (closed)
+                return null;
+
+            // If the queue is filled by an instruction too long to fit,
+            // return as much of that instruction as has been received
+            if (queuedLength == queue.length) {
+
+                makeContiguous(queuedLength);
+                heldLength = InputStreamGuacamoleReader.getCompleteUTF8Length(
+                        queue, head, queuedLength);
+
+                instructionStreamed = true;
+                batchComplete = false;
+                batchDrained = true;
+                return batch;
+
+            }
+
+            // Once ended, any incomplete instruction is discarded
+            if (ended) {
+                if (failure != null)
+                    throw failure;
+                return null;
+            }
+
+            await(deadline);
+
+        }
+
+        // Include all further queued instructions up to the given length.
+        // Boundaries are known, thus no parsing is required.
+        int index = firstBoundary;
+        int included = 1;
+        while (boundaries[index] - headPosition < maxLength && included < boundaryCount) {
+            index = (index + 1) % boundaries.length;
+            included++;
+        }
+
+        batchDrained = (included == boundaryCount);
+        batchComplete = boundaryComplete[index];
+
+        // Any instruction returned in pieces is complete only once the
+        // batch containing its end has been returned
+        instructionStreamed = !batchComplete;
+
+        int length = (int) (boundaries[index] - headPosition);
+        makeContiguous(length);
+        heldLength = length;
+
+        return batch;
+
+    }
+
+    @Override
+    public synchronized GuacamoleInstructionView readInstructionView()
+            throws GuacamoleException {
+
+        // Previously-read data is no longer needed
+        release();
+
+        // The remainder of an instruction returned in pieces is not an
+        // instruction on its own
+        if (instructionStreamed)
+            throw new GuacamoleServerException("Cannot read partially-streamed instruction as a whole.");
+
+        long deadline = getDeadline();
+        while (boundaryCount == 0) {
+
+            // Closed readers see end of stream
+            if (closed)
+                return null;
+
+            // Once ended, any incomplete instruction is discarded
+            if (ended) {
+                if (failure != null)
+                    throw failure;
+                return null;
+            }
+
+            // Grow to hold any instruction too long for the queue
+            if (queuedLength == queue.length)
+                grow();
+            else
+                await(deadline);
+
+        }
+
+        // Locate the elements of the first instruction, which ends at or
+        // before the first boundary
+        int length = (int) (boundaries[firstBoundary] - headPosition);
+        makeContiguous(length);
+
+        elementCount = 0;
+        knownOpcodeResolved = false;
+        instructionParser.parse(queue, head, length);
+
+        // Data queued in pieces cannot be read as a whole
+        if (heldLength == 0) {
+            instructionParser.reset();
+            throw new GuacamoleServerException("Instruction exceeds maximum queue length.");
+        }
+
+        return view;
+
+    }
+
+    @Override
+    public synchronized char[] read() throws GuacamoleException {
+
+        // Read next instruction, return EOF if EOF
+        if (readInstructionView() == null)
+            return null;
+
+        // Copy instruction data
+        return new String(queue, head, heldLength, UTF8).toCharArray();
+
+    }
+
+    @Override
+    public synchronized GuacamoleInstruction readInstruction()
+            throws GuacamoleException {
+
+        // Get instruction
+        GuacamoleInstructionView instructionView = readInstructionView();
+
+        // If EOF, return EOF
+        if (instructionView == null)
+            return null;
+
+        // Return parsed instruction
+        return instructionView.toInstruction();
+
+    }
+
+    /**
+     * OutputStream which adds data to the tail of the queue, blocking while
+     * the queue is full unless data is being offered, in which case data
+     * which does not fit is refused. This OutputStream is only written while
+     * holding the lock on this QueuedGuacamoleReader.
+     */
+    private class QueueOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length)
+                throws IOException {
+
+            // Refuse all remaining data once any offered data does not fit
+            if (overflowed)
+                return;
+
+            synchronized (QueuedGuacamoleReader.this) {
+
+                while (length > 0) {
+
+                    int space = queue.length - queuedLength;
+
+                    // Offered data is added only if it fits entirely
+                    if (offering && space < length) {
+                        overflowed = true;
+                        return;
+                    }
+
+                    // Otherwise, wait for space
+                    if (space == 0) {
+
+                        if (closed || ended)
+                            throw new IOException("No further data may be queued.");
+
+                        try {
+                            QueuedGuacamoleReader.this.wait();
+                        }
+                        catch (InterruptedException e) {
+                            throw new IOException("Interrupted while waiting for space.", e);
+                        }
+
+                        continue;
+
+                    }
+
+                    int written = Math.min(length, space);
+                    append(data, offset, written);
+                    offset += written;
+                    length -= written;
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * View of the instruction most recently read by this reader, backed
+     * directly by the queue and element arrays.
+     */
+    private class InstructionView implements GuacamoleInstructionView {
+
+        /**
+         * Returns the value of the element at the given index as a new
+         * String, where the opcode is the element at index 0.
+         *
+         * @param index The index of the element to return.
+         * @return The value of the element at the given index.
+         */
+        private String getElement(int index) {
+            return new String(queue, elementOffsets[index], elementLengths[index], UTF8);
+        }
+
+        @Override
+        public String getOpcode() {
+
+            // Known opcodes need not be copied
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return opcode.getValue();
+
+            return getElement(0);
+
+        }
+
+        @Override
+        public GuacamoleOpcode getKnownOpcode() {
+
+            // Look up opcode only once per instruction
+            if (!knownOpcodeResolved) {
+                knownOpcode = GuacamoleOpcode.fromValue(queue,
+                        elementOffsets[0], elementLengths[0]);
+                knownOpcodeResolved = true;
+            }
+
+            return knownOpcode;
+
+        }
+
+        @Override
+        public boolean isOpcode(String opcode) {
+            return InputStreamGuacamoleReader.utf8RegionMatches(queue,
+                    elementOffsets[0], elementLengths[0], opcode);
+        }
+
+        @Override
+        public int getArgumentCount() {
+            return elementCount - 1;
+        }
+
+        @Override
+        public String getArgument(int index) {
+
+            if (index < 0 || index >= elementCount - 1)
+                throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+            return getElement(index + 1);
+
+        }
+
+        @Override
+        public int getLength() {
+            return heldLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(queue, head, heldLength);
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            output.write(new String(queue, head, heldLength, UTF8));
+        }
+
+        @Override
+        public GuacamoleInstruction toInstruction() {
+
+            // Copy each argument
+            String[] args = new String[elementCount - 1];
+            for (int i=0; i<args.length; i++)
+                args[i] = getElement(i + 1);
+
+            // Known opcodes need not be copied or looked up again
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return new GuacamoleInstruction(opcode, args);
+
+            return new GuacamoleInstruction(getElement(0), args);
+
+        }
+
+    }
+
+    /**
+     * The batch of instructions most recently read by this reader, backed
+     * directly by the queue.
+     */
+    private class InstructionBatch implements GuacamoleInstructionBatch {
+
+        @Override
+        public int getLength() {
+            return heldLength;
+        }
+
+        @Override
+        public boolean isDrained() {
+            return batchDrained;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return batchComplete;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(queue, head, heldLength);
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            output.write(new String(queue, head, heldLength, UTF8));
+        }
+
+    }
+
+}
@@ -38,12 +38,12 @@ package org.glyptodon.guacamole.io;
  * ***** END LICENSE BLOCK ***** */
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import org.glyptodon.guacamole.GuacamoleException;
-import org.glyptodon.guacamole.GuacamoleServerException;
-import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
 
 /**
  * A GuacamoleReader which wraps a standard Java Reader, using that Reader as
@@ -51,7 +51,25 @@ import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
  *
  * @author Michael Jumper
  */
-public class ReaderGuacamoleReader implements GuacamoleReader {
+public class ReaderGuacamoleReader extends AbstractGuacamoleReader<char[]> {
+
+    /**
+     * The charset used when instructions are written as bytes.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The default maximum size of the buffer, in characters. No instruction
+     * larger than the maximum size of the buffer can be read.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 8388608;
+
+    /**
+     * The default maximum length of any element buffered in its entirety by
+     * readBatch(), in characters. Instructions containing longer elements are
+     * returned by readBatch() in pieces, as they are received.
+     */
+    public static final int DEFAULT_MAX_ELEMENT_SIZE = 65536;
 
     /**
      * Wrapped Reader to be used for all input.
@@ -65,212 +83,118 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
      * @param input The Reader to use as the Guacamole instruction stream.
      */
     public ReaderGuacamoleReader(Reader input) {
-        this.input = input;
+        this(input, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_ELEMENT_SIZE);
     }
 
     /**
-     * The location within the received data buffer that parsing should begin
-     * when more data is read.
-     */
-    private int parseStart;
-
-    /**
-     * The buffer holding all received, unparsed data.
+     * Creates a new ReaderGuacamoleReader which will use the given Reader as
+     * the Guacamole instruction stream, never allowing its buffer to grow
+     * beyond the given size. Instructions containing elements longer than the
+     * default maximum element size are returned by readBatch() in pieces.
+     *
+     * @param input The Reader to use as the Guacamole instruction stream.
+     * @param maxBufferSize The maximum size of the buffer, in characters.
+     *                      Any instruction larger than this size will
+     *                      result in an error.
      */
-    private char[] buffer = new char[20480];
+    public ReaderGuacamoleReader(Reader input, int maxBufferSize) {
+        this(input, maxBufferSize, DEFAULT_MAX_ELEMENT_SIZE);
+    }
 
     /**
-     * The number of characters currently used within the data buffer. All
-     * other characters within the buffer are free space available for
-     * future reads.
+     * Creates a new ReaderGuacamoleReader which will use the given Reader as
+     * the Guacamole instruction stream, never allowing its buffer to grow
+     * beyond the given size. Instructions containing elements longer than the
+     * given maximum element size are returned by readBatch() in pieces, as
+     * they are received, rather than being buffered in their entirety.
+     *
+     * @param input The Reader to use as the Guacamole instruction stream.
+     * @param maxBufferSize The maximum size of the buffer, in characters.
+     *                      Any instruction larger than this size will
+     *                      result in an error, unless returned in pieces
+     *                      by readBatch().
+     * @param maxElementSize The maximum length of any element buffered in its
+     *                       entirety by readBatch(), in characters.
      */
-    private int usedLength = 0;
+    public ReaderGuacamoleReader(Reader input, int maxBufferSize,
+            int maxElementSize) {
+        super(maxBufferSize, maxElementSize);
+        this.input = input;
+    }
 
     @Override
-    public boolean available() throws GuacamoleException {
-        try {
-            return input.ready() || usedLength != 0;
-        }
-        catch (IOException e) {
-            throw new GuacamoleServerException(e);
-        }
+    protected char[] allocate(int size) {
+        return new char[size];
     }
 
     @Override
-    public char[] read() throws GuacamoleException {
-
-        try {
-
-            // While we're blocking, or input is available
-            for (;;) {
-
-                // Length of element
-                int elementLength = 0;
-
-                // Resume where we left off
-                int i = parseStart;
-
-                // Parse instruction in buffer
-                while (i < usedLength) {
-
-                    // Read character
-                    char readChar = buffer[i++];
-
-                    // If digit, update length
-                    if (readChar >= '0' && readChar <= '9')
-                        elementLength = elementLength * 10 + readChar - '0';
-
-                    // If not digit, check for end-of-length character
-                    else if (readChar == '.') {
-
-                        // Check if element present in buffer
-                        if (i + elementLength < usedLength) {
-
-                            // Get terminator
-                            char terminator = buffer[i + elementLength];
-
-                            // Move to character after terminator
-                            i += elementLength + 1;
-
-                            // Reset length
-                            elementLength = 0;
-
-                            // Continue here if necessary
-                            parseStart = i;
-
-                            // If terminator is semicolon, we have a full
-                            // instruction.
-                            if (terminator == ';') {
-
-                                // Copy instruction data
-                                char[] instruction = new char[i];
-                                System.arraycopy(buffer, 0, instruction, 0, i);
-
-                                // Update buffer
-                                usedLength -= i;
-                                parseStart = 0;
-                                System.arraycopy(buffer, i, buffer, 0, usedLength);
-
-                                return instruction;
-
-                            }
-
-                            // Handle invalid terminator characters
-                            else if (terminator != ',')
-                                throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
-
-                        }
-
-                        // Otherwise, read more data
-                        else
-                            break;
-
-                    }
-
-                    // Otherwise, parse error
-                    else
-                        throw new GuacamoleServerException("Non-numeric character in element length.");
-
-                }
-
-                // If past threshold, resize buffer before reading
-                if (usedLength > buffer.length/2) {
-                    char[] biggerBuffer = new char[buffer.length*2];
-                    System.arraycopy(buffer, 0, biggerBuffer, 0, usedLength);
-                    buffer = biggerBuffer;
-                }
-
-                // Attempt to fill buffer
-                int numRead = input.read(buffer, usedLength, buffer.length - usedLength);
-                if (numRead == -1)
-                    return null;
-
-                // Update used length
-                usedLength += numRead;
-
-            } // End read loop
-
-        }
-        catch (IOException e) {
-            throw new GuacamoleServerException(e);
-        }
-
+    protected int fill(char[] buffer, int offset, int length)
+            throws IOException {
+        return input.read(buffer, offset, length);
     }
 
     @Override
-    public GuacamoleInstruction readInstruction() throws GuacamoleException {
-
-        // Get instruction
-        char[] instructionBuffer = read();
-
-        // If EOF, return EOF
-        if (instructionBuffer == null)
-            return null;
-
-        // Start of element
-        int elementStart = 0;
-
-        // Build list of elements
-        Deque<String> elements = new LinkedList<String>();
-        while (elementStart < instructionBuffer.length) {
+    protected boolean ready() throws IOException {
+        return input.ready();
+    }
 
-            // Find end of length
-            int lengthEnd = -1;
-            for (int i=elementStart; i<instructionBuffer.length; i++) {
-                if (instructionBuffer[i] == '.') {
-                    lengthEnd = i;
-                    break;
-                }
-            }
+    @Override
+    protected int getCompleteLength(char[] buffer, int offset, int length) {
 
-            // read() is required to return a complete instruction. If it does
-            // not, this is a severe internal error.
-            if (lengthEnd == -1)
-                throw new GuacamoleServerException("Read returned incomplete instruction.");
+        // A trailing high surrogate awaits the low surrogate completing its
+        // surrogate pair
+        if (length > 0 && Character.isHighSurrogate(buffer[offset + length - 1]))
+            return length - 1;
 
-            // Parse length
-            int length = Integer.parseInt(new String(
-                    instructionBuffer,
-                    elementStart,
-                    lengthEnd - elementStart
-            ));
+        return length;
 
-            // Parse element from just after period
-            elementStart = lengthEnd + 1;
-            String element = new String(
-                    instructionBuffer,
-                    elementStart,
-                    length
-            );
+    }
 
-            // Append element to list of elements
-            elements.addLast(element);
+    @Override
+    protected int parse(GuacamoleParser parser, char[] buffer, int offset,
+            int length) throws GuacamoleException {
+        return parser.parse(buffer, offset, length);
+    }
 
-            // Read terminator after element
-            elementStart += length;
-            char terminator = instructionBuffer[elementStart];
+    @Override
+    protected String decode(char[] buffer, int offset, int length) {
+        return new String(buffer, offset, length);
+    }
 
-            // Continue reading instructions after terminator
-            elementStart++;
+    @Override
+    protected boolean regionMatches(char[] buffer, int offset, int length,
+            String value) {
 
-            // If we've reached the end of the instruction
-            if (terminator == ';')
-                break;
+        // Lengths must match
+        if (value.length() != length)
+            return false;
 
+        // Compare each character in place
+        for (int i=0; i<length; i++) {
+            if (buffer[offset + i] != value.charAt(i))
+                return false;
         }
 
-        // Pull opcode off elements list
-        String opcode = elements.removeFirst();
+        return true;
 
-        // Create instruction
-        GuacamoleInstruction instruction = new GuacamoleInstruction(
-                opcode,
-                elements.toArray(new String[elements.size()])
-        );
+    }
 
-        // Return parsed instruction
-        return instruction;
+    @Override
+    protected GuacamoleOpcode getKnownOpcode(char[] buffer, int offset,
+            int length) {
+        return GuacamoleOpcode.fromValue(buffer, offset, length);
+    }
 
+    @Override
+    protected void write(char[] buffer, int offset, int length,
+            OutputStream output) throws IOException {
+        output.write(new String(buffer, offset, length).getBytes(UTF8));
+    }
+
+    @Override
+    protected void write(char[] buffer, int offset, int length,
+            Writer output) throws IOException {
+        output.write(buffer, offset, length);
     }
 
 }
@@ -39,6 +39,11 @@ package org.glyptodon.guacamole.io;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
 import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
@@ -56,6 +61,32 @@ public class WriterGuacamoleWriter implements GuacamoleWriter {
      */
     private Writer output;
 
+    /**
+     * Decoder used to convert UTF-8 bytes into characters for writes of
+     * bytes.
+     */
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * The trailing bytes of an incomplete character from the last write of
+     * bytes, if any. A UTF-8 character is at most four bytes long, thus at
+     * most three bytes can remain.
+     */
+    private final byte[] partialCharacter = new byte[3];
+
+    /**
+     * The number of bytes within partialCharacter which are in use.
+     */
+    private int partialLength = 0;
+
+    /**
+     * Buffer into which instructions are encoded by writeInstruction(),
+     * reused for each instruction and grown as needed.
+     */
+    private char[] instructionBuffer = new char[1024];
+
     /**
      * Creates a new WriterGuacamoleWriter which will use the given Writer as
      * the Guacamole instruction stream.
@@ -82,9 +113,54 @@ public class WriterGuacamoleWriter implements GuacamoleWriter {
         write(chunk, 0, chunk.length);
     }
 
+    @Override
+    public void write(byte[] chunk, int off, int len) throws GuacamoleException {
+
+        // Prepend any incomplete character from the previous write
+        ByteBuffer bytes;
+        if (partialLength != 0) {
+            bytes = ByteBuffer.allocate(partialLength + len);
+            bytes.put(partialCharacter, 0, partialLength);
+            bytes.put(chunk, off, len);
+            bytes.flip();
+        }
+        else
+            bytes = ByteBuffer.wrap(chunk, off, len);
+
+        // Decode all complete characters
+        CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+        decoder.decode(bytes, chars, false);
+
+        // Save any incomplete character for the next write
+        partialLength = bytes.remaining();
+        bytes.get(partialCharacter, 0, partialLength);
+
+        write(chars.array(), 0, chars.position());
+
+    }
+
+    @Override
+    public void flush() throws GuacamoleException {
+        try {
+            output.flush();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+    }
+
     @Override
     public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
-        write(instruction.toString().toCharArray());
+
+        // Grow buffer if instruction will not fit
+        int length = instruction.getEncodedLength();
+        if (length > instructionBuffer.length)
+            instructionBuffer = new char[Math.max(length, instructionBuffer.length * 2)];
+
+        // Encode and write instruction without intermediate copies
+        instruction.encode(instructionBuffer, 0);
+        write(instructionBuffer, 0, length);
+
     }
 
 }
@@ -0,0 +1,478 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleSocketFactory which spreads connections across several Guacamole
+ * proxy servers, each represented by its own GuacamoleSocketFactory. Each
+ * new connection is made to the healthy endpoint having the fewest open
+ * connections relative to its weight. An endpoint which fails to connect is
+ * ejected for a period of time, and all endpoints are probed periodically in
+ * the background such that failed endpoints are ejected, and recovered
+ * endpoints restored, without waiting for a user to connect.
+ *
+ * @author Michael Jumper
+ */
+public class BalancedGuacamoleSocketFactory implements GuacamoleSocketFactory {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(BalancedGuacamoleSocketFactory.class);
+
+    /**
+     * The default number of milliseconds between probes of each endpoint.
+     */
+    public static final int DEFAULT_PROBE_INTERVAL = 10000;
+
+    /**
+     * The default number of milliseconds an endpoint is ejected for after
+     * failing, unless a probe succeeds sooner.
+     */
+    public static final int DEFAULT_EJECTION_TIME = 30000;
+
+    /**
+     * The number of milliseconds an endpoint is ejected for after failing,
+     * unless a probe succeeds sooner.
+     */
+    private final int ejectionTime;
+
+    /**
+     * All endpoints connections may be made to.
+     */
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<Endpoint>();
+
+    /**
+     * Counter used to rotate between equally-loaded endpoints.
+     */
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * The thread which probes all endpoints.
+     */
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Guacamole endpoint probe");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * A single Guacamole proxy server, along with its current load and
+     * health.
+     */
+    private class Endpoint {
+
+        /**
+         * Human-readable name of this endpoint, used for logging.
+         */
+        private final String name;
+
+        /**
+         * The factory which connects to this endpoint.
+         */
+        private final GuacamoleSocketFactory factory;
+
+        /**
+         * The relative share of connections this endpoint should receive.
+         */
+        private final int weight;
+
+        /**
+         * The number of connections to this endpoint which are open.
+         */
+        private final AtomicInteger connections = new AtomicInteger();
+
+        /**
+         * The time until which this endpoint is ejected, in milliseconds
+         * since the epoch, or zero if healthy.
+         */
+        private volatile long ejectedUntil = 0;
+
+        /**
+         * Creates a new Endpoint with the given name, factory, and weight.
+         *
+         * @param name Human-readable name of the endpoint.
+         * @param factory The factory which connects to the endpoint.
+         * @param weight The relative share of connections the endpoint
+         *               should receive.
+         */
+        public Endpoint(String name, GuacamoleSocketFactory factory,
+                int weight) {
+            this.name = name;
+            this.factory = factory;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns whether this endpoint is currently healthy.
+         *
+         * @return true if this endpoint is healthy, false if ejected.
+         */
+        public boolean isHealthy() {
+            return System.currentTimeMillis() >= ejectedUntil;
+        }
+
+        /**
+         * Returns the load of this endpoint relative to its weight. Lower
+         * values indicate an endpoint better able to accept connections.
+         *
+         * @return The load of this endpoint relative to its weight.
+         */
+        public double getLoad() {
+            return (double) connections.get() / weight;
+        }
+
+        /**
+         * Ejects this endpoint due to the given error.
+         *
+         * @param e The error which caused ejection.
+         */
+        public void eject(GuacamoleException e) {
+
+            if (isHealthy())
+                logger.warn("Ejecting guacd endpoint {}: {}", name, e.getMessage());
+
+            ejectedUntil = System.currentTimeMillis() + ejectionTime;
+            logger.debug("Endpoint failure.", e);
+
+        }
+
+        /**
+         * Restores this endpoint, if ejected.
+         */
+        public void restore() {
+
+            if (!isHealthy())
+                logger.info("Restoring guacd endpoint {}.", name);
+
+            ejectedUntil = 0;
+
+        }
+
+        /**
+         * Connects a new socket to this endpoint, ejecting this endpoint if
+         * the connection fails. The socket returned counts towards the load
+         * of this endpoint until closed.
+         *
+         * @return A new socket connected to this endpoint.
+         * @throws GuacamoleException If the connection fails.
+         */
+        public GuacamoleSocket connect() throws GuacamoleException {
+
+            GuacamoleSocket socket;
+            try {
+                socket = factory.createSocket();
+            }
+            catch (GuacamoleException e) {
+                eject(e);
+                throw e;
+            }
+
+            connections.incrementAndGet();
+            return new EndpointSocket(this, socket);
+
+        }
+
+        /**
+         * Verifies this endpoint can accept connections by connecting and
+         * immediately disconnecting, ejecting or restoring this endpoint
+         * depending on the result.
+         */
+        public void probe() {
+
+            try {
+                factory.createSocket().close();
+                restore();
+            }
+            catch (GuacamoleException e) {
+                eject(e);
+            }
+
+        }
+
+    }
+
+    /**
+     * GuacamoleSocket which counts towards the load of an endpoint until
+     * closed.
+     */
+    private static class EndpointSocket implements GuacamoleSocket {
+
+        /**
+         * The endpoint this socket is connected to.
+         */
+        private final Endpoint endpoint;
+
+        /**
+         * The wrapped socket.
+         */
+        private final GuacamoleSocket socket;
+
+        /**
+         * Whether this socket has been closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates a new EndpointSocket wrapping the given socket, which is
+         * connected to the given endpoint.
+         *
+         * @param endpoint The endpoint the socket is connected to.
+         * @param socket The socket to wrap.
+         */
+        public EndpointSocket(Endpoint endpoint, GuacamoleSocket socket) {
+            this.endpoint = endpoint;
+            this.socket = socket;
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return socket.getReader();
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return socket.getWriter();
+        }
+
+        @Override
+        public void close() throws GuacamoleException {
+
+            // Only the first close affects load
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+
+            try {
+                socket.close();
+            }
+            finally {
+                endpoint.connections.decrementAndGet();
+            }
+
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+    }
+
+    /**
+     * Creates a new BalancedGuacamoleSocketFactory with no endpoints, which
+     * probes endpoints and ejects failed endpoints at the default intervals.
+     */
+    public BalancedGuacamoleSocketFactory() {
+        this(DEFAULT_PROBE_INTERVAL, DEFAULT_EJECTION_TIME);
+    }
+
+    /**
+     * Creates a new BalancedGuacamoleSocketFactory with no endpoints, which
+     * probes endpoints and ejects failed endpoints at the given intervals.
+     *
+     * @param probeInterval The number of milliseconds between probes of each
+     *                      endpoint, or zero if endpoints should not be
+     *                      probed.
+     * @param ejectionTime The number of milliseconds an endpoint is ejected
+     *                     for after failing, unless a probe succeeds sooner.
+     */
+    public BalancedGuacamoleSocketFactory(int probeInterval, int ejectionTime) {
+
+        this.ejectionTime = ejectionTime;
+
+        // Probe all endpoints periodically
+        if (probeInterval > 0)
+            executor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (Endpoint endpoint : endpoints)
+                        endpoint.probe();
+                }
+
+            }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Adds an endpoint to which connections may be made.
+     *
+     * @param name A human-readable name for the endpoint, such as its
+     *             hostname and port, used for logging.
+     * @param factory The factory which connects to the endpoint.
+     * @param weight The relative share of connections the endpoint should
+     *               receive. An endpoint with weight 2 receives twice the
+     *               connections of an endpoint with weight 1.
+     */
+    public void addEndpoint(String name, GuacamoleSocketFactory factory,
+            int weight) {
+
+        if (weight <= 0)
+            throw new IllegalArgumentException("Endpoint weight must be positive.");
+
+        endpoints.add(new Endpoint(name, factory, weight));
+
+    }
+
+    /**
+     * Returns the endpoint which should receive the next connection, if any,
+     * excluding the given endpoints. Healthy endpoints are always preferred
+     * over ejected endpoints. Among those, the endpoint having the lowest
+     * load relative to its weight is chosen, rotating between endpoints of
+     * equal load.
+     *
+     * @param excluded Endpoints which must not be chosen, as they have
+     *                 already failed.
+     * @return The endpoint which should receive the next connection, or null
+     *         if all endpoints are excluded.
+     */
+    private Endpoint select(List<Endpoint> excluded) {
+
+        Endpoint[] all = endpoints.toArray(new Endpoint[0]);
+        int offset = all.length > 0 ? (rotation.getAndIncrement() & Integer.MAX_VALUE) % all.length : 0;
+
+        Endpoint best = null;
+        boolean bestHealthy = false;
+        double bestLoad = 0;
+
+        for (int i=0; i<all.length; i++) {
+
+            Endpoint endpoint = all[(offset + i) % all.length];
+            if (excluded.contains(endpoint))
+                continue;
+
+            boolean healthy = endpoint.isHealthy();
+            double load = endpoint.getLoad();
+
+            // Prefer healthy endpoints, then lower load
+            if (best == null
+                    || (healthy && !bestHealthy)
+                    || (healthy == bestHealthy && load < bestLoad)) {
+                best = endpoint;
+                bestHealthy = healthy;
+                bestLoad = load;
+            }
+
+        }
+
+        return best;
+
+    }
+
+    @Override
+    public GuacamoleSocket createSocket() throws GuacamoleException {
+
+        List<Endpoint> failed = new ArrayList<Endpoint>();
+        GuacamoleException lastError = null;
+
+        // Try each endpoint in order of preference until one connects
+        Endpoint endpoint;
+        while ((endpoint = select(failed)) != null) {
+
+            try {
+                return endpoint.connect();
+            }
+            catch (GuacamoleException e) {
+                failed.add(endpoint);
+                lastError = e;
+            }
+
+        }
+
+        // All endpoints failed
+        if (lastError != null)
+            throw lastError;
+
+        throw new GuacamoleServerException("No guacd endpoints are configured.");
+
+    }
+
+    /**
+     * Returns the name of the endpoint the given socket is connected to, if
+     * that socket was created by a BalancedGuacamoleSocketFactory. State
+     * which differs between servers, such as the arguments each server
+     * requests during the initial protocol handshake, can thus be kept
+     * separately for each endpoint.
+     *
+     * @param socket The socket to return the endpoint name of.
+     * @return The name given to the endpoint the socket is connected to when
+     *         that endpoint was added, or null if the socket was not created
+     *         by a BalancedGuacamoleSocketFactory.
+     */
+    public static String getEndpointName(GuacamoleSocket socket) {
+
+        if (socket instanceof EndpointSocket)
+            return ((EndpointSocket) socket).endpoint.name;
+
+        return null;
+
+    }
+
+    /**
+     * Stops probing endpoints in the background. Sockets already returned by
+     * createSocket() are not affected.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
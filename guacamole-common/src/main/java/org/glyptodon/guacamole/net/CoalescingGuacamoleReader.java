@@ -0,0 +1,1449 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleParser;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleReader which holds back data while the client is behind in
+ * rendering frames, and coalesces the frames which accumulate meanwhile
+ * before passing them on. While the client keeps up, data is passed on
+ * unchanged, without copying.
+ *
+ * Coalescing merges all accumulated frames into one, keeping only the last
+ * "sync" instruction, and drops each drawing operation whose output is
+ * entirely covered by a later "png" instruction drawn with the SRC channel
+ * mask to the same layer, provided nothing in between could depend on the
+ * contents of that layer. The drawing operations dropped are "png"
+ * instructions, "copy" instructions, and "cfill" instructions filling a path
+ * made only of "rect" instructions, along with those "rect" instructions.
+ *
+ * As clipping and transforms would alter the area actually drawn, a "png"
+ * instruction covers earlier drawing only if the clipping region and
+ * transform of its layer are known to be unset. The clipping region,
+ * transform and current path of each layer are tracked for the life of the
+ * reader, including while data is passed on unchanged: a layer is known to
+ * be unclipped and untransformed, with no path in progress, once reset by
+ * "reset" or "size", and that knowledge is lost once altered by "clip",
+ * "transform", "pop" or similar. Anything not understood is conservatively
+ * assumed to depend on, and to alter the state of, every layer.
+ *
+ * @author Michael Jumper
+ */
+class CoalescingGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingGuacamoleReader.class);
+
+    /**
+     * The default maximum number of milliseconds to hold back data while
+     * waiting for the client to catch up.
+     */
+    private static final long DEFAULT_MAX_HOLD_TIME = 1000;
+
+    /**
+     * The maximum number of bytes of data coalesced at once.
+     */
+    private static final int MAX_WINDOW_LENGTH = 1048576;
+
+    /**
+     * The channel mask which replaces the destination entirely.
+     */
+    private static final int SRC = 0xC;
+
+    /**
+     * The indices of the arguments of each instruction which refer to
+     * layers. Instructions not listed refer to no layers, unless unknown.
+     * The first index listed is the layer drawn to or altered.
+     */
+    private static final Map<GuacamoleOpcode, int[]> LAYER_ARGUMENTS =
+            new EnumMap<GuacamoleOpcode, int[]>(GuacamoleOpcode.class);
+
+    static {
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.ARC,       new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CFILL,     new int[] { 1 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CLIP,      new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CLOSE,     new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.COPY,      new int[] { 6, 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CSTROKE,   new int[] { 1 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CURSOR,    new int[] { 2 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.CURVE,     new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.DISPOSE,   new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.DISTORT,   new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.IDENTITY,  new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.LFILL,     new int[] { 1, 2 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.LINE,      new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.LSTROKE,   new int[] { 1, 2 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.MOVE,      new int[] { 0, 1 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.PNG,       new int[] { 1 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.POP,       new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.PUSH,      new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.RECT,      new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.RESET,     new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.SET,       new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.SHADE,     new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.SIZE,      new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.START,     new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.TRANSFER,  new int[] { 6, 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.TRANSFORM, new int[] { 0 });
+        LAYER_ARGUMENTS.put(GuacamoleOpcode.VIDEO,     new int[] { 0 });
+    }
+
+    /**
+     * The GuacamoleReader being read.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The FrameTracker tracking which frames the client has rendered.
+     */
+    private final FrameTracker tracker;
+
+    /**
+     * The maximum number of milliseconds to hold back data while waiting
+     * for the client to catch up.
+     */
+    private final long maxHoldTime;
+
+    /**
+     * All layers known to have no clipping region.
+     */
+    private final Set<Integer> unclipped = new HashSet<Integer>();
+
+    /**
+     * All layers known to have the identity transform.
+     */
+    private final Set<Integer> untransformed = new HashSet<Integer>();
+
+    /**
+     * All layers known to have no path in progress, such that the next path
+     * instruction begins a new path.
+     */
+    private final Set<Integer> pathless = new HashSet<Integer>();
+
+    /**
+     * Scanner which records each frame as sent and tracks the state of each
+     * layer within data passed on unchanged.
+     */
+    private final LayerScanner scanner = new LayerScanner();
+
+    /**
+     * Whether the last batch read ended partway through an instruction, in
+     * which case the remainder must be read as a batch.
+     */
+    private boolean midInstruction = false;
+
+    /**
+     * The batch most recently read from the underlying reader and passed on
+     * unchanged.
+     */
+    private GuacamoleInstructionBatch passedBatch;
+
+    /**
+     * The batch returned for data passed on unchanged. As the batch refers
+     * only to the state of this reader, the same batch is reused for every
+     * batch read.
+     */
+    private final GuacamoleInstructionBatch passthroughBatch = new PassthroughBatch();
+
+    /**
+     * OutputStream which scans data passed on unchanged before writing that
+     * data to the OutputStream given to the passthrough batch.
+     */
+    private final ScanningOutputStream scanningOutput = new ScanningOutputStream();
+
+    /**
+     * Writer which scans data passed on unchanged before writing that data
+     * to the Writer given to the passthrough batch.
+     */
+    private final ScanningWriter scanningWriter = new ScanningWriter();
+
+    /**
+     * All instructions ever read while the client was behind. Only the
+     * first windowSize instructions belong to the current window, the rest
+     * being retained only for reuse.
+     */
+    private final List<PendingInstruction> window = new ArrayList<PendingInstruction>();
+
+    /**
+     * The number of instructions within the current window.
+     */
+    private int windowSize = 0;
+
+    /**
+     * OutputStream which copies each instruction of the current window into
+     * the buffer of its PendingInstruction.
+     */
+    private final FixedOutputStream copier = new FixedOutputStream();
+
+    /**
+     * The "rect" instructions of the path in progress on each layer within
+     * the current window, for each layer whose path began within the current
+     * window and consists only of "rect" instructions.
+     */
+    private final Map<Integer, List<PendingInstruction>> paths =
+            new HashMap<Integer, List<PendingInstruction>>();
+
+    /**
+     * The batch returned for coalesced data, containing every instruction of
+     * the current window which was not dropped. As the batch refers only to
+     * the state of this reader, the same batch is reused for every window.
+     */
+    private final GuacamoleInstructionBatch coalescedBatch = new CoalescedBatch();
+
+    /**
+     * The total length of all instructions of the current window which were
+     * not dropped, in bytes.
+     */
+    private int coalescedLength = 0;
+
+    /**
+     * Creates a new CoalescingGuacamoleReader which reads from the given
+     * GuacamoleReader, holding back and coalescing data while the given
+     * FrameTracker considers the client to be behind.
+     *
+     * @param reader The GuacamoleReader to read from.
+     * @param tracker The FrameTracker tracking which frames the client has
+     *                rendered.
+     */
+    public CoalescingGuacamoleReader(GuacamoleReader reader,
+            FrameTracker tracker) {
+        this(reader, tracker, DEFAULT_MAX_HOLD_TIME);
+    }
+
+    /**
+     * Creates a new CoalescingGuacamoleReader which reads from the given
+     * GuacamoleReader, holding back data for up to the given number of
+     * milliseconds and coalescing that data while the given FrameTracker
+     * considers the client to be behind.
+     *
+     * @param reader The GuacamoleReader to read from.
+     * @param tracker The FrameTracker tracking which frames the client has
+     *                rendered.
+     * @param maxHoldTime The maximum number of milliseconds to hold back
+     *                    data while waiting for the client to catch up.
+     */
+    CoalescingGuacamoleReader(GuacamoleReader reader, FrameTracker tracker,
+            long maxHoldTime) {
+        this.reader = reader;
+        this.tracker = tracker;
+        this.maxHoldTime = maxHoldTime;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+
+        // Data being held back is not available
+        if (!midInstruction && tracker.isBehind())
+            return false;
+
+        return reader.available();
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        char[] chunk = reader.read();
+        if (chunk != null)
+            scanner.scan(chunk, 0, chunk.length);
+
+        return chunk;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction != null) {
+
+            GuacamoleOpcode opcode = instruction.getKnownOpcode();
+            int index = getStateArgument(opcode);
+            List<String> args = instruction.getArgs();
+
+            handleInstruction(opcode, index < args.size() ? args.get(index) : null);
+
+        }
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        GuacamoleInstructionView view = reader.readInstructionView();
+        if (view != null) {
+
+            GuacamoleOpcode opcode = view.getKnownOpcode();
+            int index = getStateArgument(opcode);
+
+            handleInstruction(opcode, index < view.getArgumentCount() ? view.getArgument(index) : null);
+
+        }
+
+        return view;
+
+    }
+
+    /**
+     * Returns the index of the argument which must be inspected to track
+     * the given instruction: the timestamp of "sync" instructions, or the
+     * layer whose state is altered by any other instruction.
+     *
+     * @param opcode The opcode of the instruction, or null if unknown.
+     * @return The index of the argument to inspect, which is zero if the
+     *         instruction has no such argument.
+     */
+    private static int getStateArgument(GuacamoleOpcode opcode) {
+
+        if (opcode == null)
+            return 0;
+
+        int[] indices = LAYER_ARGUMENTS.get(opcode);
+        if (indices == null)
+            return 0;
+
+        return indices[0];
+
+    }
+
+    /**
+     * Records each frame as sent and tracks the state of each layer for an
+     * instruction passed on unchanged.
+     *
+     * @param opcode The opcode of the instruction, or null if unknown.
+     * @param argument The argument at the index returned by
+     *                 getStateArgument(), or null if the instruction has no
+     *                 such argument.
+     */
+    private void handleInstruction(GuacamoleOpcode opcode, String argument) {
+
+        // Record frames as sent, ignoring invalid timestamps
+        if (opcode == GuacamoleOpcode.SYNC) {
+            try {
+                if (argument != null)
+                    tracker.frameSent(Long.parseLong(argument));
+            }
+            catch (NumberFormatException e) {
+                // Ignore invalid timestamps
+            }
+            return;
+        }
+
+        // Anything not understood may alter any layer
+        if (opcode == null || opcode == GuacamoleOpcode.NEST) {
+            invalidateLayerState();
+            return;
+        }
+
+        if (!altersLayerState(opcode))
+            return;
+
+        try {
+            updateLayerState(opcode, Integer.parseInt(argument));
+        }
+        catch (NumberFormatException e) {
+            invalidateLayerState();
+        }
+
+    }
+
+    /**
+     * Returns whether the given instruction may alter the clipping region,
+     * transform or path of the layer it refers to.
+     *
+     * @param opcode The opcode of the instruction.
+     * @return true if the instruction may alter the state of its layer,
+     *         false otherwise.
+     */
+    private static boolean altersLayerState(GuacamoleOpcode opcode) {
+
+        switch (opcode) {
+            case RESET:
+            case SIZE:
+            case IDENTITY:
+            case CLIP:
+            case TRANSFORM:
+            case DISTORT:
+            case POP:
+            case DISPOSE:
+            case RECT:
+            case ARC:
+            case CURVE:
+            case LINE:
+            case START:
+            case CLOSE:
+            case CFILL:
+            case CSTROKE:
+            case LFILL:
+            case LSTROKE:
+                return true;
+            default:
+                return false;
+        }
+
+    }
+
+    /**
+     * Updates the tracked state of the given layer to reflect the given
+     * instruction, which must be an instruction for which
+     * altersLayerState() returns true.
+     *
+     * @param opcode The opcode of the instruction.
+     * @param layer The layer whose state the instruction alters.
+     */
+    private void updateLayerState(GuacamoleOpcode opcode, int layer) {
+
+        switch (opcode) {
+
+            // Resetting a layer, or resizing its canvas, restores its
+            // initial state and clears its path
+            case RESET:
+            case SIZE:
+                unclipped.add(layer);
+                untransformed.add(layer);
+                pathless.add(layer);
+                break;
+
+            case IDENTITY:
+                untransformed.add(layer);
+                break;
+
+            // Clipping consumes the current path
+            case CLIP:
+                unclipped.remove(layer);
+                pathless.add(layer);
+                break;
+
+            case TRANSFORM:
+            case DISTORT:
+                untransformed.remove(layer);
+                break;
+
+            // Restored or disposed state is unknown
+            case POP:
+            case DISPOSE:
+                unclipped.remove(layer);
+                untransformed.remove(layer);
+                pathless.remove(layer);
+                break;
+
+            // Path instructions continue the current path
+            case RECT:
+            case ARC:
+            case CURVE:
+            case LINE:
+            case START:
+                pathless.remove(layer);
+                break;
+
+            // Closing, filling or stroking ends the current path
+            case CLOSE:
+            case CFILL:
+            case CSTROKE:
+            case LFILL:
+            case LSTROKE:
+                pathless.add(layer);
+                break;
+
+            default:
+                break;
+
+        }
+
+    }
+
+    /**
+     * Forgets the tracked state of all layers, such that no layer is known
+     * to be unclipped, untransformed, or without a path in progress.
+     */
+    private void invalidateLayerState() {
+        unclipped.clear();
+        untransformed.clear();
+        pathless.clear();
+        paths.clear();
+    }
+
+    /**
+     * Returns whether the given layer is known to have no clipping region
+     * and the identity transform, such that drawing to that layer affects
+     * exactly the area given.
+     *
+     * @param layer The layer to test.
+     * @return true if the given layer is known to be unclipped and
+     *         untransformed, false otherwise.
+     */
+    private boolean isUnaltered(int layer) {
+        return unclipped.contains(layer) && untransformed.contains(layer);
+    }
+
+    @Override
+    public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+
+        // Coalesce data held back while client is behind, unless the rest
+        // of a partially-read instruction is pending
+        if (!midInstruction && tracker.isBehind()
+                && !tracker.awaitCatchUp(maxHoldTime))
+            return readCoalescedBatch();
+
+        passedBatch = reader.readBatch(maxLength);
+        if (passedBatch == null)
+            return null;
+
+        midInstruction = !passedBatch.isComplete();
+
+        // Record frames and track layers as the batch is written
+        return passthroughBatch;
+
+    }
+
+    /**
+     * Reads all data which has accumulated, up to a reasonable limit, and
+     * returns a batch containing that data once coalesced. This function
+     * blocks only until at least one instruction is available.
+     *
+     * @return A batch containing the coalesced data, or null if no more
+     *         instructions are available for reading.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    private GuacamoleInstructionBatch readCoalescedBatch() throws GuacamoleException {
+
+        windowSize = 0;
+        int windowLength = 0;
+
+        // Read everything already available
+        do {
+
+            GuacamoleInstructionView view = reader.readInstructionView();
+            if (view == null)
+                break;
+
+            // Reuse instructions of previous windows where possible
+            PendingInstruction instruction;
+            if (windowSize < window.size())
+                instruction = window.get(windowSize);
+            else {
+                instruction = new PendingInstruction();
+                window.add(instruction);
+            }
+
+            instruction.set(view, copier);
+            windowSize++;
+            windowLength += instruction.length;
+
+        } while (windowLength < MAX_WINDOW_LENGTH && reader.available());
+
+        if (windowSize == 0)
+            return null;
+
+        int dropped = coalesce();
+
+        // Record frames of everything not dropped
+        coalescedLength = 0;
+        for (int i = 0; i < windowSize; i++) {
+            PendingInstruction instruction = window.get(i);
+            if (!instruction.dropped) {
+                coalescedLength += instruction.length;
+                if (instruction.opcode == GuacamoleOpcode.SYNC && instruction.timestamp >= 0)
+                    tracker.frameSent(instruction.timestamp);
+            }
+        }
+
+        logger.debug("Client behind. Coalesced {} instructions ({} bytes) into {} bytes, dropping {}.",
+                new Object[] { windowSize, windowLength, coalescedLength, dropped });
+
+        return coalescedBatch;
+
+    }
+
+    /**
+     * Marks superseded instructions within the current window as dropped,
+     * merging all frames into one and dropping drawing operations which are
+     * entirely covered by later images, and updates the tracked state of
+     * each layer to reflect the entire window.
+     *
+     * @return The number of instructions dropped.
+     */
+    private int coalesce() {
+
+        int dropped = 0;
+
+        // Keep only the last sync
+        boolean lastSync = true;
+        for (int i = windowSize - 1; i >= 0; i--) {
+            PendingInstruction instruction = window.get(i);
+            if (instruction.opcode == GuacamoleOpcode.SYNC) {
+                if (!lastSync) {
+                    instruction.dropped = true;
+                    dropped++;
+                }
+                lastSync = false;
+            }
+        }
+
+        // Determine which images are drawn to layers known to have no
+        // clipping region and the identity transform, and which fills are
+        // of paths made only of rectangles begun within this window, using
+        // the state of each layer carried over from all previous data
+        paths.clear();
+        for (int i = 0; i < windowSize; i++) {
+
+            PendingInstruction instruction = window.get(i);
+
+            // Anything not understood may alter any layer
+            if (instruction.layerCount == -1) {
+                invalidateLayerState();
+                continue;
+            }
+
+            GuacamoleOpcode opcode = instruction.opcode;
+            if (opcode == GuacamoleOpcode.PNG) {
+                instruction.unaltered = isUnaltered(instruction.layers[0]);
+                continue;
+            }
+
+            if (!altersLayerState(opcode))
+                continue;
+
+            Integer layer = instruction.layers[0];
+
+            // Track rectangles of paths begun within this window
+            if (opcode == GuacamoleOpcode.RECT) {
+
+                List<PendingInstruction> path = paths.get(layer);
+                if (pathless.contains(layer)) {
+                    path = new ArrayList<PendingInstruction>();
+                    paths.put(layer, path);
+                }
+
+                if (path != null) {
+                    if (instruction.width >= 0)
+                        path.add(instruction);
+                    else
+                        paths.remove(layer);
+                }
+
+            }
+
+            // Fills of such paths draw exactly those rectangles
+            else if (opcode == GuacamoleOpcode.CFILL) {
+                List<PendingInstruction> path = paths.remove(layer);
+                if (path != null && !path.isEmpty())
+                    instruction.setPath(path);
+            }
+
+            // Anything else altering the path ends or spoils it
+            else
+                paths.remove(layer);
+
+            updateLayerState(opcode, layer);
+
+        }
+
+        // Drop drawing operations entirely covered by later images. As the
+        // search below stops at anything else touching the layer, earlier
+        // operations share the clipping region and transform of the image
+        // covering them.
+        for (int i = 0; i < windowSize; i++) {
+
+            PendingInstruction cover = window.get(i);
+            if (cover.opcode != GuacamoleOpcode.PNG || cover.mask != SRC
+                    || cover.width < 0 || !cover.unaltered)
+                continue;
+
+            int layer = cover.layers[0];
+
+            // Search backwards until something depends on the layer
+            for (int j = i - 1; j >= 0; j--) {
+
+                PendingInstruction previous = window.get(j);
+                if (previous.dropped)
+                    continue;
+
+                // Operations which only draw to the layer are dropped if
+                // covered
+                if (previous.drawsOnlyTo(layer)) {
+
+                    if (cover.covers(previous))
+                        dropped += previous.drop();
+
+                    // Images do not depend on what they draw over outside
+                    // the covering image
+                    if (previous.dropped || previous.opcode == GuacamoleOpcode.PNG)
+                        continue;
+
+                }
+
+                if (previous.dependsOn(layer))
+                    break;
+
+            }
+
+        }
+
+        return dropped;
+
+    }
+
+    /**
+     * Returns the index of the first byte of the content of the given
+     * element of the given encoded instruction.
+     *
+     * @param data The buffer containing the UTF-8 encoded instruction.
+     * @param length The length of the instruction, in bytes.
+     * @param index The index of the element, where the opcode is zero.
+     * @return The index of the first byte of the content of the element, or
+     *         -1 if the instruction has no such element.
+     */
+    private static int getElementOffset(byte[] data, int length, final int index) {
+
+        final int[] offset = { -1 };
+
+        GuacamoleParser parser = new GuacamoleParser() {
+
+            @Override
+            protected void handleElement(int element, int terminator, int size) {
+                if (element == index)
+                    offset[0] = terminator - size;
+            }
+
+            @Override
+            protected boolean handleInstruction(int terminator) {
+                return false;
+            }
+
+        };
+
+        try {
+            parser.parse(data, 0, length);
+        }
+
+        // Data which is not a valid instruction has no elements
+        catch (GuacamoleException e) {
+            return -1;
+        }
+
+        return offset[0];
+
+    }
+
+    /**
+     * Decodes the given base64 character, returning its six-bit value.
+     *
+     * @param c The base64 character to decode.
+     * @return The six-bit value of the character, or -1 if the character is
+     *         not valid base64.
+     */
+    private static int decodeBase64(byte c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+        if (c >= '0' && c <= '9') return c - '0' + 52;
+        if (c == '+') return 62;
+        if (c == '/') return 63;
+        return -1;
+    }
+
+    /**
+     * An instruction read while the client was behind, copied such that it
+     * remains available after further reads, along with everything needed
+     * to decide whether it may be dropped. Each PendingInstruction is reused
+     * for later windows.
+     */
+    private static class PendingInstruction {
+
+        /**
+         * Buffer containing the instruction, encoded as UTF-8.
+         */
+        private byte[] data = new byte[256];
+
+        /**
+         * The length of the instruction, in bytes.
+         */
+        private int length;
+
+        /**
+         * The opcode of the instruction, or null if unknown.
+         */
+        private GuacamoleOpcode opcode;
+
+        /**
+         * The layers referred to by the instruction, the first being the
+         * layer drawn to or altered.
+         */
+        private final int[] layers = new int[2];
+
+        /**
+         * The number of layers referred to by the instruction, or -1 if the
+         * layers referred to cannot be determined.
+         */
+        private int layerCount;
+
+        /**
+         * The timestamp of this instruction, if a "sync" instruction, or -1
+         * otherwise.
+         */
+        private long timestamp;
+
+        /**
+         * The channel mask of this instruction, if a "png" instruction.
+         */
+        private int mask;
+
+        /**
+         * The coordinates of the upper-left corner of the area drawn, if a
+         * drawing operation which may be dropped.
+         */
+        private int x, y;
+
+        /**
+         * The dimensions of the area drawn, if a drawing operation which may
+         * be dropped and whose bounds could be determined, or -1 otherwise.
+         */
+        private int width, height;
+
+        /**
+         * Whether this instruction is a "png" instruction drawn to a layer
+         * known to have no clipping region and the identity transform, such
+         * that the image is drawn exactly at its given bounds.
+         */
+        private boolean unaltered;
+
+        /**
+         * The "rect" instructions making up the path filled, if a "cfill"
+         * instruction filling a path made only of rectangles, or null
+         * otherwise.
+         */
+        private List<PendingInstruction> path;
+
+        /**
+         * Whether this instruction has been dropped.
+         */
+        private boolean dropped;
+
+        /**
+         * Copies the instruction within the given view, parsing all
+         * arguments relevant to coalescing.
+         *
+         * @param view The view of the instruction to copy.
+         * @param copier The FixedOutputStream to use to copy the
+         *               instruction.
+         * @throws GuacamoleException If the instruction cannot be copied.
+         */
+        public void set(GuacamoleInstructionView view,
+                FixedOutputStream copier) throws GuacamoleException {
+
+            // Grow buffer if necessary
+            length = view.getLength();
+            if (length > data.length)
+                data = new byte[Math.max(length, data.length * 2)];
+
+            try {
+                copier.reset(data);
+                view.writeTo(copier);
+            }
+            catch (IOException e) {
+                throw new GuacamoleServerException(e);
+            }
+
+            opcode = view.getKnownOpcode();
+            layerCount = -1;
+            timestamp = -1;
+            mask = -1;
+            width = height = -1;
+            unaltered = false;
+            path = null;
+            dropped = false;
+
+            // Nested and unknown instructions may refer to anything
+            if (opcode == null || opcode == GuacamoleOpcode.NEST)
+                return;
+
+            try {
+
+                // Determine layers referred to
+                int[] indices = LAYER_ARGUMENTS.get(opcode);
+                if (indices == null)
+                    layerCount = 0;
+                else {
+                    for (int i = 0; i < indices.length; i++)
+                        layers[i] = Integer.parseInt(view.getArgument(indices[i]));
+                    layerCount = indices.length;
+                }
+
+                if (opcode == GuacamoleOpcode.SYNC)
+                    timestamp = Long.parseLong(view.getArgument(0));
+
+                else if (opcode == GuacamoleOpcode.PNG) {
+                    mask = Integer.parseInt(view.getArgument(0));
+                    x = Integer.parseInt(view.getArgument(2));
+                    y = Integer.parseInt(view.getArgument(3));
+                    readImageSize();
+                }
+
+                else if (opcode == GuacamoleOpcode.RECT) {
+                    x = Integer.parseInt(view.getArgument(1));
+                    y = Integer.parseInt(view.getArgument(2));
+                    setSize(Integer.parseInt(view.getArgument(3)),
+                            Integer.parseInt(view.getArgument(4)));
+                }
+
+                else if (opcode == GuacamoleOpcode.COPY) {
+                    x = Integer.parseInt(view.getArgument(7));
+                    y = Integer.parseInt(view.getArgument(8));
+                    setSize(Integer.parseInt(view.getArgument(3)),
+                            Integer.parseInt(view.getArgument(4)));
+                }
+
+            }
+
+            // Anything not understood may refer to anything
+            catch (NumberFormatException e) {
+                layerCount = -1;
+            }
+            catch (IndexOutOfBoundsException e) {
+                layerCount = -1;
+            }
+
+        }
+
+        /**
+         * Sets the dimensions of the area drawn, if not negative.
+         *
+         * @param drawnWidth The width of the area drawn.
+         * @param drawnHeight The height of the area drawn.
+         */
+        private void setSize(int drawnWidth, int drawnHeight) {
+            if (drawnWidth >= 0 && drawnHeight >= 0) {
+                width = drawnWidth;
+                height = drawnHeight;
+            }
+        }
+
+        /**
+         * Sets the rectangles making up the path filled by this "cfill"
+         * instruction, such that the area drawn is their bounding box.
+         *
+         * @param rects The "rect" instructions making up the path.
+         */
+        public void setPath(List<PendingInstruction> rects) {
+
+            int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+            int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+
+            for (PendingInstruction rect : rects) {
+                left   = Math.min(left,   rect.x);
+                top    = Math.min(top,    rect.y);
+                right  = Math.max(right,  rect.x + rect.width);
+                bottom = Math.max(bottom, rect.y + rect.height);
+            }
+
+            path = rects;
+            x = left;
+            y = top;
+            width = right - left;
+            height = bottom - top;
+
+        }
+
+        /**
+         * Reads the dimensions of the PNG image within this "png"
+         * instruction from the IHDR chunk at the start of the image, without
+         * decoding the rest of the image.
+         */
+        private void readImageSize() {
+
+            // Image data is the fifth argument, the sixth element
+            int offset = getElementOffset(data, length, 5);
+            if (offset == -1 || offset + 32 > length)
+                return;
+
+            // Decode the first 24 bytes of the image
+            byte[] header = new byte[24];
+            for (int i = 0; i < 8; i++) {
+
+                int bits = 0;
+                for (int j = 0; j < 4; j++) {
+                    int value = decodeBase64(data[offset + i*4 + j]);
+                    if (value == -1)
+                        return;
+                    bits = (bits << 6) | value;
+                }
+
+                header[i*3]     = (byte) (bits >> 16);
+                header[i*3 + 1] = (byte) (bits >> 8);
+                header[i*3 + 2] = (byte) bits;
+
+            }
+
+            // Verify PNG signature and IHDR chunk type
+            if ((header[0] & 0xFF) != 0x89 || header[1] != 'P'
+                    || header[2] != 'N' || header[3] != 'G'
+                    || header[12] != 'I' || header[13] != 'H'
+                    || header[14] != 'D' || header[15] != 'R')
+                return;
+
+            int imageWidth  = ((header[16] & 0xFF) << 24) | ((header[17] & 0xFF) << 16)
+                            | ((header[18] & 0xFF) << 8)  |  (header[19] & 0xFF);
+            int imageHeight = ((header[20] & 0xFF) << 24) | ((header[21] & 0xFF) << 16)
+                            | ((header[22] & 0xFF) << 8)  |  (header[23] & 0xFF);
+
+            setSize(imageWidth, imageHeight);
+
+        }
+
+        /**
+         * Returns whether this instruction is a drawing operation which may
+         * be dropped, drawing only to the given layer.
+         *
+         * @param layer The index of the layer to test.
+         * @return true if this instruction may be dropped and draws only to
+         *         the given layer, false otherwise.
+         */
+        public boolean drawsOnlyTo(int layer) {
+
+            if (layerCount <= 0 || layers[0] != layer || width < 0)
+                return false;
+
+            return opcode == GuacamoleOpcode.PNG
+                || opcode == GuacamoleOpcode.COPY
+                || (opcode == GuacamoleOpcode.CFILL && path != null);
+
+        }
+
+        /**
+         * Returns whether the area drawn by the given instruction lies
+         * entirely within the area drawn by this instruction.
+         *
+         * @param previous The instruction to test.
+         * @return true if the area drawn by the given instruction is
+         *         entirely covered, false otherwise.
+         */
+        public boolean covers(PendingInstruction previous) {
+            return previous.x >= x
+                && previous.y >= y
+                && (long) previous.x + previous.width  <= (long) x + width
+                && (long) previous.y + previous.height <= (long) y + height;
+        }
+
+        /**
+         * Drops this instruction, along with the rectangles making up the
+         * path it fills, if any.
+         *
+         * @return The number of instructions dropped.
+         */
+        public int drop() {
+
+            dropped = true;
+            if (path == null)
+                return 1;
+
+            for (PendingInstruction rect : path)
+                rect.dropped = true;
+
+            return path.size() + 1;
+
+        }
+
+        /**
+         * Returns whether this instruction may depend on or affect how
+         * later instructions draw to the given layer.
+         *
+         * @param layer The index of the layer to test.
+         * @return true if this instruction may depend on the given layer,
+         *         false otherwise.
+         */
+        public boolean dependsOn(int layer) {
+
+            if (layerCount == -1)
+                return true;
+
+            for (int i = 0; i < layerCount; i++) {
+                if (layers[i] == layer)
+                    return true;
+            }
+
+            return false;
+
+        }
+
+    }
+
+    /**
+     * OutputStream which writes into a given buffer from its beginning,
+     * which must be large enough for all data written.
+     */
+    private static class FixedOutputStream extends OutputStream {
+
+        /**
+         * The buffer receiving all data written.
+         */
+        private byte[] buffer;
+
+        /**
+         * The number of bytes written so far.
+         */
+        private int count = 0;
+
+        /**
+         * Begins writing into the given buffer from its beginning.
+         *
+         * @param buffer The buffer to write into.
+         */
+        public void reset(byte[] buffer) {
+            this.buffer = buffer;
+            this.count = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+
+    }
+
+    /**
+     * The batch returned for data passed on unchanged, recording frames and
+     * tracking the state of each layer as the batch is written.
+     */
+    private class PassthroughBatch implements GuacamoleInstructionBatch {
+
+        @Override
+        public int getLength() {
+            return passedBatch.getLength();
+        }
+
+        @Override
+        public boolean isDrained() {
+
+            // Data is held back once behind, thus any data written should be
+            // flushed
+            return passedBatch.isDrained() || tracker.isBehind();
+
+        }
+
+        @Override
+        public boolean isComplete() {
+            return passedBatch.isComplete();
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            scanningOutput.output = output;
+            try {
+                passedBatch.writeTo(scanningOutput);
+            }
+            finally {
+                scanningOutput.output = null;
+            }
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            scanningWriter.output = output;
+            try {
+                passedBatch.writeTo(scanningWriter);
+            }
+            finally {
+                scanningWriter.output = null;
+            }
+        }
+
+    }
+
+    /**
+     * The batch returned for coalesced data, containing every instruction of
+     * the current window which was not dropped.
+     */
+    private class CoalescedBatch implements GuacamoleInstructionBatch {
+
+        @Override
+        public int getLength() {
+            return coalescedLength;
+        }
+
+        @Override
+        public boolean isDrained() {
+            return true;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            for (int i = 0; i < windowSize; i++) {
+                PendingInstruction instruction = window.get(i);
+                if (!instruction.dropped)
+                    output.write(instruction.data, 0, instruction.length);
+            }
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            for (int i = 0; i < windowSize; i++) {
+                PendingInstruction instruction = window.get(i);
+                if (!instruction.dropped)
+                    output.write(new String(instruction.data, 0, instruction.length, "UTF-8"));
+            }
+        }
+
+    }
+
+    /**
+     * Scanner which records each frame as sent and tracks the state of each
+     * layer, inspecting the opcode and first two arguments of each
+     * instruction within data passed on unchanged.
+     */
+    private class LayerScanner extends StreamScanner {
+
+        /**
+         * The maximum number of bytes of opcode retained. Longer opcodes are
+         * never known opcodes.
+         */
+        private static final int MAX_OPCODE_LENGTH = 16;
+
+        /**
+         * The maximum number of digits of any argument accepted.
+         */
+        private static final int MAX_DIGITS = 18;
+
+        /**
+         * The bytes of the opcode of the current instruction.
+         */
+        private final byte[] opcode = new byte[MAX_OPCODE_LENGTH];
+
+        /**
+         * The number of characters of the opcode of the current instruction
+         * scanned so far, which may exceed the number retained.
+         */
+        private int opcodeLength = 0;
+
+        /**
+         * The magnitude of each of the first two arguments scanned so far.
+         */
+        private final long[] values = new long[2];
+
+        /**
+         * Whether each of the first two arguments is negative.
+         */
+        private final boolean[] negative = new boolean[2];
+
+        /**
+         * The number of digits of each of the first two arguments scanned
+         * so far, or -1 if the argument is not a valid number.
+         */
+        private final int[] digits = new int[2];
+
+        /**
+         * Creates a new LayerScanner which inspects the opcode and first two
+         * arguments of each instruction.
+         */
+        public LayerScanner() {
+            super(3);
+        }
+
+        /**
+         * Resets the scanner to the beginning of a new instruction.
+         */
+        private void resetInstruction() {
+            opcodeLength = 0;
+            for (int i = 0; i < 2; i++) {
+                values[i] = 0;
+                negative[i] = false;
+                digits[i] = 0;
+            }
+        }
+
+        @Override
+        protected void handleCharacter(int element, int c) {
+
+            // Opcodes are ASCII, thus anything else never matches
+            if (element == 0) {
+                if (opcodeLength < MAX_OPCODE_LENGTH)
+                    opcode[opcodeLength] = (byte) (c < 0x80 ? c : 0);
+                opcodeLength++;
+                return;
+            }
+
+            // Parse argument as a number
+            int arg = element - 1;
+            if (digits[arg] == -1)
+                return;
+
+            if (c == '-' && digits[arg] == 0 && !negative[arg])
+                negative[arg] = true;
+            else if (c >= '0' && c <= '9' && digits[arg] < MAX_DIGITS) {
+                values[arg] = values[arg] * 10 + c - '0';
+                digits[arg]++;
+            }
+            else
+                digits[arg] = -1;
+
+        }
+
+        @Override
+        protected void handleInstruction(long end, long length) {
+
+            GuacamoleOpcode known = null;
+            if (opcodeLength <= MAX_OPCODE_LENGTH)
+                known = GuacamoleOpcode.fromValue(opcode, 0, opcodeLength);
+
+            int index = getStateArgument(known);
+
+            // Record frames as sent, ignoring invalid timestamps
+            if (known == GuacamoleOpcode.SYNC) {
+                if (digits[0] > 0 && !negative[0])
+                    tracker.frameSent(values[0]);
+            }
+
+            // Anything not understood may alter any layer
+            else if (known == null || known == GuacamoleOpcode.NEST)
+                invalidateLayerState();
+
+            else if (altersLayerState(known)) {
+                if (index < 2 && digits[index] > 0 && values[index] <= Integer.MAX_VALUE)
+                    updateLayerState(known, (int) (negative[index] ? -values[index] : values[index]));
+                else
+                    invalidateLayerState();
+            }
+
+            resetInstruction();
+
+        }
+
+        @Override
+        protected void handleInvalid() {
+            resetInstruction();
+        }
+
+    }
+
+    /**
+     * OutputStream which scans all data written before passing that data to
+     * another OutputStream. The same ScanningOutputStream is reused for
+     * every batch passed on unchanged.
+     */
+    private class ScanningOutputStream extends OutputStream {
+
+        /**
+         * The OutputStream to pass all data to.
+         */
+        private OutputStream output;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            scanner.scan(buffer, offset, length);
+            output.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+    }
+
+    /**
+     * Writer which scans all data written before passing that data to
+     * another Writer. The same ScanningWriter is reused for every batch
+     * passed on unchanged.
+     */
+    private class ScanningWriter extends Writer {
+
+        /**
+         * The Writer to pass all data to.
+         */
+        private Writer output;
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+                throws IOException {
+            scanner.scan(buffer, offset, length);
+            output.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+    }
+
+}
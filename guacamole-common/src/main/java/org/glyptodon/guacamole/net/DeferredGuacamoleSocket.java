@@ -0,0 +1,352 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleSocket which is connected in the background, such that the
+ * thread requesting the connection need not wait for the connection to the
+ * Guacamole proxy and the initial protocol handshake to complete. Reads and
+ * writes block until the connection is established. If the connection
+ * fails, the reason is thrown by every read and write.
+ *
+ * @author Michael Jumper
+ */
+public class DeferredGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeferredGuacamoleSocket.class);
+
+    /**
+     * The connected socket, or null if not yet connected.
+     */
+    private GuacamoleSocket socket;
+
+    /**
+     * The reason the connection failed, or null if the connection has not
+     * failed.
+     */
+    private GuacamoleException failure;
+
+    /**
+     * Whether the connection attempt has finished, successfully or not.
+     */
+    private boolean done = false;
+
+    /**
+     * Whether this socket has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The pending connection attempt.
+     */
+    private final Future<?> connection;
+
+    /**
+     * GuacamoleReader which reads from the connected socket, waiting for the
+     * connection if necessary.
+     */
+    private final GuacamoleReader reader = new GuacamoleReader() {
+
+        @Override
+        public boolean available() throws GuacamoleException {
+
+            // Nothing can be available until connected
+            GuacamoleSocket connected = getConnectedSocket();
+            if (connected == null)
+                return false;
+
+            return connected.getReader().available();
+
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+            return awaitSocket().getReader().read();
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() throws GuacamoleException {
+            return awaitSocket().getReader().readInstruction();
+        }
+
+        @Override
+        public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+            return awaitSocket().getReader().readInstructionView();
+        }
+
+        @Override
+        public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+            return awaitSocket().getReader().readBatch(maxLength);
+        }
+
+    };
+
+    /**
+     * GuacamoleWriter which writes to the connected socket, waiting for the
+     * connection if necessary.
+     */
+    private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) throws GuacamoleException {
+            awaitSocket().getWriter().write(chunk, off, len);
+        }
+
+        @Override
+        public void write(char[] chunk) throws GuacamoleException {
+            awaitSocket().getWriter().write(chunk);
+        }
+
+        @Override
+        public void write(byte[] chunk, int off, int len) throws GuacamoleException {
+            awaitSocket().getWriter().write(chunk, off, len);
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+            awaitSocket().getWriter().writeInstruction(instruction);
+        }
+
+        @Override
+        public void flush() throws GuacamoleException {
+            awaitSocket().getWriter().flush();
+        }
+
+    };
+
+    /**
+     * Creates a new DeferredGuacamoleSocket which obtains its connection by
+     * running the given Callable using the given ExecutorService.
+     *
+     * @param executor The ExecutorService to connect using.
+     * @param connector The Callable which connects to the Guacamole proxy
+     *                  and completes the initial protocol handshake,
+     *                  returning the resulting GuacamoleSocket.
+     * @throws GuacamoleException If the ExecutorService cannot accept any
+     *                            further connection attempts.
+     */
+    public DeferredGuacamoleSocket(ExecutorService executor,
+            final Callable<GuacamoleSocket> connector) throws GuacamoleException {
+
+        try {
+            connection = executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    connect(connector);
+                }
+
+            });
+        }
+        catch (RejectedExecutionException e) {
+            throw new GuacamoleServerException("Too many connections are pending.", e);
+        }
+
+    }
+
+    /**
+     * Connects using the given Callable, storing the resulting socket or
+     * the reason for failure.
+     *
+     * @param connector The Callable which connects to the Guacamole proxy.
+     */
+    private void connect(Callable<GuacamoleSocket> connector) {
+
+        GuacamoleSocket connected = null;
+        GuacamoleException connectFailure = null;
+
+        try {
+            connected = connector.call();
+            if (connected == null)
+                connectFailure = new GuacamoleServerException("Connection failed.");
+        }
+        catch (GuacamoleException e) {
+            connectFailure = e;
+        }
+        catch (Exception e) {
+            connectFailure = new GuacamoleServerException(e);
+        }
+
+        synchronized (this) {
+
+            // Store result unless no longer needed
+            if (!closed) {
+                socket = connected;
+                failure = connectFailure;
+                connected = null;
+            }
+
+            done = true;
+            notifyAll();
+
+        }
+
+        // Close socket if this socket was closed while connecting
+        if (connected != null) {
+            try {
+                connected.close();
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Error closing abandoned connection.", e);
+            }
+        }
+
+        if (connectFailure != null)
+            logger.debug("Background connection failed.", connectFailure);
+
+    }
+
+    /**
+     * Returns the connected socket, if connected, without waiting.
+     *
+     * @return The connected socket, or null if not yet connected.
+     * @throws GuacamoleException If the connection failed, or if this
+     *                            socket has been closed.
+     */
+    private synchronized GuacamoleSocket getConnectedSocket()
+            throws GuacamoleException {
+
+        if (closed)
+            throw new GuacamoleServerException("Socket has been closed.");
+
+        if (failure != null)
+            throw failure;
+
+        return socket;
+
+    }
+
+    /**
+     * Waits for the connection to be established, returning the connected
+     * socket.
+     *
+     * @return The connected socket.
+     * @throws GuacamoleException If the connection fails, if this socket is
+     *                            closed, or if interrupted while waiting.
+     */
+    private synchronized GuacamoleSocket awaitSocket()
+            throws GuacamoleException {
+
+        try {
+            while (!done && !closed)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleServerException("Interrupted while waiting for connection.", e);
+        }
+
+        return getConnectedSocket();
+
+    }
+
+    /**
+     * Returns whether the connection attempt has finished, successfully or
+     * not.
+     *
+     * @return true if the connection attempt has finished, false if the
+     *         connection is still pending.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        GuacamoleSocket connected;
+        synchronized (this) {
+
+            closed = true;
+            notifyAll();
+
+            connected = socket;
+            socket = null;
+
+        }
+
+        // Close socket if connected, otherwise abandon connection attempt
+        if (connected != null)
+            connected.close();
+        else
+            connection.cancel(false);
+
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+
+        if (closed)
+            return false;
+
+        // Open only while connecting if not connected
+        if (socket == null)
+            return !done;
+
+        return socket.isOpen();
+
+    }
+
+}
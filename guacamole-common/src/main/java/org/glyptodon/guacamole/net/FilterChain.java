@@ -0,0 +1,133 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilterChain;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * Runs instructions through an ordered list of GuacamoleFilters, passing
+ * each instruction forwarded past the last filter to emit(). A single
+ * FilterChain serves as the GuacamoleFilterChain of every filter, tracking
+ * the position of each call within the list, thus filtering an instruction
+ * which is passed through unchanged requires no allocation. A FilterChain
+ * is not threadsafe, and must only be used by one thread at a time.
+ *
+ * @author Michael Jumper
+ */
+abstract class FilterChain implements GuacamoleFilterChain {
+
+    /**
+     * The filters of this chain, in order.
+     */
+    private final GuacamoleFilter[] filters;
+
+    /**
+     * The index of the filter which should receive the next instruction
+     * forwarded.
+     */
+    private int position = 0;
+
+    /**
+     * Creates a new FilterChain which runs instructions through the given
+     * filters, in order.
+     *
+     * @param filters The filters to run instructions through.
+     */
+    public FilterChain(List<GuacamoleFilter> filters) {
+        this.filters = filters.toArray(new GuacamoleFilter[filters.size()]);
+    }
+
+    /**
+     * Runs the given instruction through all filters of this chain.
+     *
+     * @param instruction The instruction to filter.
+     * @throws GuacamoleException If an error occurs while filtering or
+     *                            emitting the instruction.
+     */
+    public void filter(GuacamoleInstructionView instruction)
+            throws GuacamoleException {
+        position = 0;
+        forward(instruction);
+    }
+
+    @Override
+    public void forward(GuacamoleInstructionView instruction)
+            throws GuacamoleException {
+
+        // Emit instructions which have passed all filters
+        if (position == filters.length) {
+            emit(instruction);
+            return;
+        }
+
+        // Otherwise, pass to next filter, restoring position once that
+        // filter is done such that it may forward more than once
+        GuacamoleFilter filter = filters[position++];
+        try {
+            filter.filter(instruction, this);
+        }
+        finally {
+            position--;
+        }
+
+    }
+
+    @Override
+    public void forward(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        forward(new ParsedInstructionView(instruction));
+    }
+
+    /**
+     * Called for each instruction which has passed all filters of this
+     * chain, in order. The view given is only valid for the duration of
+     * this call.
+     *
+     * @param instruction The instruction which passed all filters.
+     * @throws GuacamoleException If an error occurs while emitting the
+     *                            instruction.
+     */
+    protected abstract void emit(GuacamoleInstructionView instruction)
+            throws GuacamoleException;
+
+}
@@ -0,0 +1,303 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleReader which runs each instruction read from another
+ * GuacamoleReader through a chain of GuacamoleFilters. Instructions are read
+ * from the underlying reader as views, thus filtering requires no parsing
+ * beyond that already performed by the underlying reader. Instructions
+ * passed through unchanged are returned as the view of the underlying
+ * reader, or copied into batches exactly as received; only instructions
+ * created by filters are encoded.
+ *
+ * As instructions are filtered whole, instructions containing elements too
+ * large to be buffered by the underlying reader cannot be read.
+ *
+ * @author Michael Jumper
+ */
+class FilteredGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * The GuacamoleReader being filtered.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The view of the instruction currently being filtered, if any.
+     */
+    private GuacamoleInstructionView source;
+
+    /**
+     * Whether the instruction currently being filtered has been passed
+     * through unchanged and, so far, is the only instruction emitted in its
+     * place.
+     */
+    private boolean sourcePassed;
+
+    /**
+     * Whether instructions emitted by the filter chain are being written to
+     * the batch buffer, rather than returned individually.
+     */
+    private boolean batching;
+
+    /**
+     * Instructions which have been emitted by the filter chain but not yet
+     * returned.
+     */
+    private final LinkedList<GuacamoleInstruction> pending =
+            new LinkedList<GuacamoleInstruction>();
+
+    /**
+     * Buffer containing the batch of instructions most recently returned by
+     * readBatch(). The buffer is reset, not reallocated, by each call to
+     * readBatch(), thus repeated batches require no allocation once the
+     * buffer has grown to fit.
+     */
+    private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream(8192);
+
+    /**
+     * The chain of filters which all instructions read must pass through.
+     */
+    private final FilterChain chain;
+
+    /**
+     * Creates a new FilteredGuacamoleReader which runs each instruction read
+     * from the given GuacamoleReader through the given filters, in order.
+     *
+     * @param reader The GuacamoleReader to filter.
+     * @param filters The filters to run each instruction through.
+     */
+    public FilteredGuacamoleReader(GuacamoleReader reader,
+            List<GuacamoleFilter> filters) {
+
+        this.reader = reader;
+
+        this.chain = new FilterChain(filters) {
+
+            @Override
+            protected void emit(GuacamoleInstructionView instruction)
+                    throws GuacamoleException {
+
+                // Copy directly into batch if batching
+                if (batching) {
+                    try {
+                        instruction.writeTo(batchBuffer);
+                    }
+                    catch (IOException e) {
+                        throw new GuacamoleServerException(e);
+                    }
+                    return;
+                }
+
+                // The source instruction alone need not be copied
+                if (instruction == source && !sourcePassed && pending.isEmpty()) {
+                    sourcePassed = true;
+                    return;
+                }
+
+                // Otherwise, retain everything emitted, in order
+                if (sourcePassed) {
+                    pending.add(source.toInstruction());
+                    sourcePassed = false;
+                }
+
+                pending.add(instruction.toInstruction());
+
+            }
+
+        };
+
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return !pending.isEmpty() || reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        // Copy instruction exactly as read
+        CharArrayWriter chunk = new CharArrayWriter(view.getLength());
+        try {
+            view.writeTo(chunk);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+        return chunk.toCharArray();
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstructionView view = readInstructionView();
+        if (view == null)
+            return null;
+
+        return view.toInstruction();
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        // Return anything already emitted first
+        if (!pending.isEmpty())
+            return new ParsedInstructionView(pending.removeFirst());
+
+        // Filter instructions until something is emitted
+        for (;;) {
+
+            source = reader.readInstructionView();
+            if (source == null)
+                return null;
+
+            sourcePassed = false;
+            chain.filter(source);
+
+            // Return source view directly if passed through alone
+            if (sourcePassed)
+                return source;
+
+            if (!pending.isEmpty())
+                return new ParsedInstructionView(pending.removeFirst());
+
+        }
+
+    }
+
+    @Override
+    public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+
+        batchBuffer.reset();
+        batching = true;
+
+        try {
+
+            // Include anything already emitted first
+            while (!pending.isEmpty())
+                new ParsedInstructionView(pending.removeFirst()).writeTo(batchBuffer);
+
+            // Filter instructions until the batch is full, blocking only
+            // until at least one instruction has been emitted
+            while (batchBuffer.size() < maxLength) {
+
+                if (batchBuffer.size() > 0 && !reader.available())
+                    break;
+
+                source = reader.readInstructionView();
+                if (source == null)
+                    break;
+
+                chain.filter(source);
+
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+        finally {
+            batching = false;
+            source = null;
+        }
+
+        // End of stream reached, with nothing left to return
+        if (batchBuffer.size() == 0)
+            return null;
+
+        return new GuacamoleInstructionBatch() {
+
+            @Override
+            public int getLength() {
+                return batchBuffer.size();
+            }
+
+            @Override
+            public boolean isDrained() {
+                try {
+                    return !reader.available();
+                }
+                catch (GuacamoleException e) {
+                    return true;
+                }
+            }
+
+            @Override
+            public boolean isComplete() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                batchBuffer.writeTo(output);
+            }
+
+            @Override
+            public void writeTo(Writer output) throws IOException {
+                output.write(batchBuffer.toString("UTF-8"));
+            }
+
+        };
+
+    }
+
+}
@@ -0,0 +1,144 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.Collections;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+
+/**
+ * GuacamoleSocket which runs each instruction passing through another
+ * GuacamoleSocket through an ordered chain of GuacamoleFilters, one chain
+ * for each direction. Instructions are filtered using the element
+ * boundaries already located by the parser, without being copied, and
+ * instructions passed through unchanged are sent on exactly as received.
+ * Only instructions created by filters are encoded.
+ *
+ * As with the reader and writer of any GuacamoleSocket, the filtered reader
+ * and writer must each be used by only one thread at a time, which
+ * GuacamoleTunnel guarantees. Filters are invoked by the thread reading or
+ * writing.
+ *
+ * @author Michael Jumper
+ */
+public class FilteredGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * The GuacamoleSocket being filtered.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The GuacamoleReader which filters all instructions read.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The GuacamoleWriter which filters all instructions written.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * Creates a new FilteredGuacamoleSocket which runs each instruction read
+     * from the given GuacamoleSocket through the given filters, in order.
+     * Instructions written are not filtered.
+     *
+     * @param socket The GuacamoleSocket to filter.
+     * @param readFilters The filters to run each instruction read through.
+     */
+    public FilteredGuacamoleSocket(GuacamoleSocket socket,
+            List<GuacamoleFilter> readFilters) {
+        this(socket, readFilters, Collections.<GuacamoleFilter>emptyList());
+    }
+
+    /**
+     * Creates a new FilteredGuacamoleSocket which runs each instruction read
+     * from and written to the given GuacamoleSocket through the given
+     * filters, in order. Each list of filters is copied, thus later changes
+     * to either list have no effect. If a list is empty, instructions in
+     * that direction pass through without being parsed or filtered.
+     *
+     * @param socket The GuacamoleSocket to filter.
+     * @param readFilters The filters to run each instruction read through.
+     * @param writeFilters The filters to run each instruction written
+     *                     through.
+     */
+    public FilteredGuacamoleSocket(GuacamoleSocket socket,
+            List<GuacamoleFilter> readFilters,
+            List<GuacamoleFilter> writeFilters) {
+
+        this.socket = socket;
+
+        // Filter instructions read, if any filters given
+        if (readFilters.isEmpty())
+            reader = socket.getReader();
+        else
+            reader = new FilteredGuacamoleReader(socket.getReader(), readFilters);
+
+        // Filter instructions written, if any filters given
+        if (writeFilters.isEmpty())
+            writer = socket.getWriter();
+        else
+            writer = new FilteredGuacamoleWriter(socket.getWriter(), writeFilters);
+
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        socket.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+}
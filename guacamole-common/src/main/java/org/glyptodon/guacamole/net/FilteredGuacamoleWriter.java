@@ -0,0 +1,531 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleClientException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleParser;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * GuacamoleWriter which runs each instruction written through a chain of
+ * GuacamoleFilters before writing it to another GuacamoleWriter. Data
+ * written as UTF-8 is parsed in place within the chunk given, and
+ * consecutive instructions passed through unchanged are written together as
+ * the exact bytes received. Only instructions which span chunks are copied,
+ * and only instructions created by filters are encoded. Data written as
+ * characters is first encoded as UTF-8.
+ *
+ * @author Michael Jumper
+ */
+class FilteredGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The character set of all data parsed by this writer.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The initial number of bytes of partial instruction data which can be
+     * held while awaiting the rest of that instruction.
+     */
+    private static final int INITIAL_PENDING_SIZE = 8192;
+
+    /**
+     * The maximum number of bytes of a single instruction which may be held
+     * while awaiting the rest of that instruction.
+     */
+    private static final int MAX_PENDING_SIZE = 16777216;
+
+    /**
+     * The initial number of elements per instruction which can be tracked.
+     */
+    private static final int INITIAL_ELEMENT_COUNT = 64;
+
+    /**
+     * The GuacamoleWriter receiving all filtered instructions.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The chain of filters which all instructions written must pass through.
+     */
+    private final FilterChain chain;
+
+    /**
+     * The offsets of the content of each element parsed, relative to the
+     * start of the instruction being parsed.
+     */
+    private int[] elementOffsets = new int[INITIAL_ELEMENT_COUNT];
+
+    /**
+     * The length of the content of each element parsed, in bytes.
+     */
+    private int[] elementLengths = new int[INITIAL_ELEMENT_COUNT];
+
+    /**
+     * The buffer containing the data currently being parsed.
+     */
+    private byte[] data;
+
+    /**
+     * The offset of the start of the instruction currently being parsed
+     * within the data being parsed.
+     */
+    private int instructionStart;
+
+    /**
+     * The number of elements parsed for the current instruction.
+     */
+    private int elementCount = 0;
+
+    /**
+     * Buffer holding the start of an instruction which has been only
+     * partially written, followed by any data written since.
+     */
+    private byte[] pending = new byte[INITIAL_PENDING_SIZE];
+
+    /**
+     * The number of bytes of data within the pending buffer.
+     */
+    private int pendingLength = 0;
+
+    /**
+     * The buffer containing the instruction most recently parsed.
+     */
+    private byte[] buffer;
+
+    /**
+     * The offset of the instruction most recently parsed within its buffer.
+     */
+    private int start;
+
+    /**
+     * The length of the instruction most recently parsed, in bytes.
+     */
+    private int instructionLength;
+
+    /**
+     * The buffer containing the run of consecutive instructions passed
+     * through unchanged which has not yet been written, if any.
+     */
+    private byte[] runBuffer;
+
+    /**
+     * The offset of the unwritten run of instructions within its buffer.
+     */
+    private int runStart;
+
+    /**
+     * The length of the unwritten run of instructions, in bytes.
+     */
+    private int runLength = 0;
+
+    /**
+     * View of the instruction most recently parsed.
+     */
+    private final GuacamoleInstructionView view = new InstructionView();
+
+    /**
+     * The parser which locates each element and instruction within the data
+     * written, running each complete instruction through the filter chain
+     * in place.
+     */
+    private final GuacamoleParser parser = new GuacamoleParser() {
+
+        @Override
+        protected void handleElement(int element, int terminator, int size) {
+            addElement(terminator - size - instructionStart, size);
+        }
+
+        @Override
+        protected boolean handleInstruction(int terminator)
+                throws GuacamoleException {
+
+            buffer = data;
+            start = instructionStart;
+            instructionLength = terminator + 1 - instructionStart;
+
+            try {
+                chain.filter(view);
+            }
+            finally {
+                elementCount = 0;
+                buffer = null;
+            }
+
+            instructionStart = terminator + 1;
+            return true;
+
+        }
+
+        @Override
+        protected void handleError(String message) throws GuacamoleException {
+            throw new GuacamoleClientException(message);
+        }
+
+    };
+
+    /**
+     * Creates a new FilteredGuacamoleWriter which runs each instruction
+     * written through the given filters, in order, before writing that
+     * instruction to the given GuacamoleWriter.
+     *
+     * @param writer The GuacamoleWriter to write filtered instructions to.
+     * @param filters The filters to run each instruction through.
+     */
+    public FilteredGuacamoleWriter(GuacamoleWriter writer,
+            List<GuacamoleFilter> filters) {
+
+        this.writer = writer;
+
+        this.chain = new FilterChain(filters) {
+
+            @Override
+            protected void emit(GuacamoleInstructionView instruction)
+                    throws GuacamoleException {
+
+                // Parsed instructions are written exactly as received,
+                // extending the current run if adjacent
+                if (instruction == view) {
+
+                    if (runLength > 0 && (runBuffer != buffer
+                                || runStart + runLength != start))
+                        writeRun();
+
+                    if (runLength == 0) {
+                        runBuffer = buffer;
+                        runStart = start;
+                    }
+
+                    runLength += instructionLength;
+
+                }
+
+                // Everything else must be encoded, after any preceding run
+                else {
+                    writeRun();
+                    FilteredGuacamoleWriter.this.writer.writeInstruction(instruction.toInstruction());
+                }
+
+            }
+
+        };
+
+    }
+
+    /**
+     * Writes the current run of consecutive instructions passed through
+     * unchanged, if any.
+     *
+     * @throws GuacamoleException If an error occurs while writing.
+     */
+    private void writeRun() throws GuacamoleException {
+
+        if (runLength == 0)
+            return;
+
+        try {
+            writer.write(runBuffer, runStart, runLength);
+        }
+        finally {
+            runBuffer = null;
+            runLength = 0;
+        }
+
+    }
+
+    @Override
+    public void write(byte[] chunk, int off, int len) throws GuacamoleException {
+
+        // Parse directly within chunk unless an instruction is partial
+        if (pendingLength == 0) {
+            int remaining = parse(chunk, off, off, len);
+            appendPending(chunk, remaining, off + len - remaining);
+        }
+
+        // Otherwise, parse the new data following the partial instruction
+        else {
+            int parsed = pendingLength;
+            appendPending(chunk, off, len);
+            int remaining = parse(pending, 0, parsed, len);
+            pendingLength -= remaining;
+            System.arraycopy(pending, remaining, pending, 0, pendingLength);
+        }
+
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        byte[] encoded = new String(chunk, off, len).getBytes(UTF8);
+        write(encoded, 0, encoded.length);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        chain.filter(new ParsedInstructionView(instruction));
+    }
+
+    @Override
+    public void flush() throws GuacamoleException {
+        writer.flush();
+    }
+
+    /**
+     * Appends the given data to the pending buffer, growing the buffer if
+     * necessary.
+     *
+     * @param chunk The buffer containing the data to append.
+     * @param off The offset of the first byte to append.
+     * @param len The number of bytes to append.
+     * @throws GuacamoleException If the pending buffer would exceed its
+     *                            maximum size.
+     */
+    private void appendPending(byte[] chunk, int off, int len)
+            throws GuacamoleException {
+
+        // Grow buffer as necessary
+        if (pendingLength + len > pending.length) {
+
+            if (pendingLength + len > MAX_PENDING_SIZE)
+                throw new GuacamoleClientException("Instruction exceeds maximum buffer size.");
+
+            byte[] grown = new byte[Math.min(MAX_PENDING_SIZE,
+                    Math.max(pending.length * 2, pendingLength + len))];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+
+        }
+
+        System.arraycopy(chunk, off, pending, pendingLength, len);
+        pendingLength += len;
+
+    }
+
+    /**
+     * Records the location of an element of the instruction being parsed.
+     *
+     * @param offset The offset of the element content, relative to the start
+     *               of the instruction.
+     * @param length The length of the element content, in bytes.
+     */
+    private void addElement(int offset, int length) {
+
+        // Grow element arrays as necessary
+        if (elementCount == elementOffsets.length) {
+
+            int[] grownOffsets = new int[elementCount * 2];
+            int[] grownLengths = new int[elementCount * 2];
+            System.arraycopy(elementOffsets, 0, grownOffsets, 0, elementCount);
+            System.arraycopy(elementLengths, 0, grownLengths, 0, elementCount);
+
+            elementOffsets = grownOffsets;
+            elementLengths = grownLengths;
+
+        }
+
+        elementOffsets[elementCount] = offset;
+        elementLengths[elementCount] = length;
+        elementCount++;
+
+    }
+
+    /**
+     * Parses the given data, running each complete instruction through the
+     * filter chain. Element offsets are recorded relative to the start of
+     * their instruction, thus remain valid if the data of an incomplete
+     * instruction is moved before parsing resumes.
+     *
+     * @param chunk The buffer containing the data to parse.
+     * @param instructionOffset The offset of the start of the instruction
+     *                          being parsed, which precedes the data to
+     *                          parse if that instruction is partial.
+     * @param off The offset of the first byte to parse.
+     * @param len The number of bytes to parse.
+     * @return The offset of the start of the instruction which remains
+     *         incomplete, or off + len if no data remains.
+     * @throws GuacamoleException If the data is not a valid Guacamole
+     *                            instruction stream, or if an error occurs
+     *                            while filtering.
+     */
+    private int parse(byte[] chunk, int instructionOffset, int off, int len)
+            throws GuacamoleException {
+
+        data = chunk;
+        instructionStart = instructionOffset;
+
+        try {
+            parser.parse(chunk, off, len);
+        }
+        finally {
+            data = null;
+        }
+
+        // Write everything passed through before the data is reused
+        writeRun();
+
+        return instructionStart;
+
+    }
+
+    /**
+     * View of the instruction most recently parsed by this
+     * FilteredGuacamoleWriter, backed directly by the buffer containing that
+     * instruction.
+     */
+    private class InstructionView implements GuacamoleInstructionView {
+
+        /**
+         * Decodes the element at the given index as a new String, where the
+         * opcode is the element at index 0.
+         *
+         * @param index The index of the element to decode.
+         * @return The decoded value of the element at the given index.
+         */
+        private String getElement(int index) {
+            return new String(buffer, start + elementOffsets[index],
+                    elementLengths[index], UTF8);
+        }
+
+        @Override
+        public String getOpcode() {
+
+            // Known opcodes need not be decoded
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return opcode.getValue();
+
+            return getElement(0);
+
+        }
+
+        @Override
+        public GuacamoleOpcode getKnownOpcode() {
+            return GuacamoleOpcode.fromValue(buffer,
+                    start + elementOffsets[0], elementLengths[0]);
+        }
+
+        @Override
+        public boolean isOpcode(String opcode) {
+
+            int offset = start + elementOffsets[0];
+            int length = elementLengths[0];
+
+            // Compare each character in place
+            for (int i=0; i<opcode.length(); i++) {
+
+                // Non-ASCII opcodes must be decoded for comparison
+                char c = opcode.charAt(i);
+                if (c >= 0x80)
+                    return getOpcode().equals(opcode);
+
+                if (i >= length || buffer[offset + i] != c)
+                    return false;
+
+            }
+
+            // Lengths must match
+            return opcode.length() == length;
+
+        }
+
+        @Override
+        public int getArgumentCount() {
+            return elementCount - 1;
+        }
+
+        @Override
+        public String getArgument(int index) {
+
+            if (index < 0 || index >= elementCount - 1)
+                throw new IndexOutOfBoundsException("No argument at index " + index + ".");
+
+            return getElement(index + 1);
+
+        }
+
+        @Override
+        public int getLength() {
+            return instructionLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(buffer, start, instructionLength);
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            output.write(new String(buffer, start, instructionLength, UTF8));
+        }
+
+        @Override
+        public GuacamoleInstruction toInstruction() {
+
+            // Decode each argument
+            String[] args = new String[elementCount - 1];
+            for (int i=0; i<args.length; i++)
+                args[i] = getElement(i + 1);
+
+            // Known opcodes need not be decoded
+            GuacamoleOpcode opcode = getKnownOpcode();
+            if (opcode != null)
+                return new GuacamoleInstruction(opcode, args);
+
+            return new GuacamoleInstruction(getElement(0), args);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.LinkedList;
+
+/**
+ * Tracks the frames sent to the client of a tunnel which the client has not
+ * yet finished rendering. Each frame ends with a "sync" instruction from
+ * the server, which the client acknowledges with a "sync" instruction
+ * bearing the same timestamp once everything prior has been rendered.
+ *
+ * @author Michael Jumper
+ */
+class FrameTracker {
+
+    /**
+     * The maximum number of unacknowledged frames tracked. Should a client
+     * never acknowledge frames, the oldest are forgotten.
+     */
+    private static final int MAX_OUTSTANDING_FRAMES = 1024;
+
+    /**
+     * The number of unacknowledged frames beyond which the client is
+     * considered to be falling behind.
+     */
+    private final int maxFramesBehind;
+
+    /**
+     * The timestamps of all unacknowledged frames, oldest first.
+     */
+    private final LinkedList<Long> outstanding = new LinkedList<Long>();
+
+    /**
+     * Creates a new FrameTracker which considers the client to be falling
+     * behind once more than the given number of frames are unacknowledged.
+     *
+     * @param maxFramesBehind The number of unacknowledged frames beyond
+     *                        which the client is falling behind.
+     */
+    public FrameTracker(int maxFramesBehind) {
+        this.maxFramesBehind = maxFramesBehind;
+    }
+
+    /**
+     * Records that a frame ending with the given timestamp has been sent.
+     *
+     * @param timestamp The timestamp of the "sync" instruction ending the
+     *                  frame.
+     */
+    public synchronized void frameSent(long timestamp) {
+
+        outstanding.addLast(timestamp);
+
+        if (outstanding.size() > MAX_OUTSTANDING_FRAMES)
+            outstanding.removeFirst();
+
+    }
+
+    /**
+     * Records that the client has rendered all frames up to and including
+     * the frame ending with the given timestamp.
+     *
+     * @param timestamp The timestamp received from the client.
+     */
+    public synchronized void frameAcknowledged(long timestamp) {
+
+        while (!outstanding.isEmpty() && outstanding.getFirst() <= timestamp)
+            outstanding.removeFirst();
+
+        notifyAll();
+
+    }
+
+    /**
+     * Returns whether the client has fallen behind, having more
+     * unacknowledged frames than allowed.
+     *
+     * @return true if the client has fallen behind, false otherwise.
+     */
+    public synchronized boolean isBehind() {
+        return outstanding.size() > maxFramesBehind;
+    }
+
+    /**
+     * Waits until the client is no longer behind, or until the given number
+     * of milliseconds elapses.
+     *
+     * @param timeout The maximum number of milliseconds to wait.
+     * @return true if the client is no longer behind, false if the client
+     *         is still behind.
+     */
+    public synchronized boolean awaitCatchUp(long timeout) {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            long remaining = timeout;
+            while (isBehind() && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return !isBehind();
+
+    }
+
+}
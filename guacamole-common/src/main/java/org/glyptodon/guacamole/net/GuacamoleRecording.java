@@ -0,0 +1,316 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleResourceNotFoundException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+
+/**
+ * A recording produced by RecordingGuacamoleSocket, which may be read from
+ * its beginning or from any indexed timestamp. Seeking uses the index
+ * written alongside the recording, thus the recording need not be read
+ * from the beginning to locate a given point in time. Recordings still
+ * being written may be read, though only data already written is
+ * available.
+ *
+ * Only the position within the instruction stream is located by seeking.
+ * As the Guacamole protocol is stateful, a client rendering a recording
+ * from a point other than its beginning will lack anything drawn prior to
+ * that point, unless that client also processes what precedes that point.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleRecording {
+
+    /**
+     * The path of the first file of the recording.
+     */
+    private final File path;
+
+    /**
+     * The timestamps of all index entries, in ascending order.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The offsets of all index entries, in the same order as timestamps.
+     */
+    private final long[] offsets;
+
+    /**
+     * Opens the recording whose first file has the given path, reading its
+     * index, if any.
+     *
+     * @param path The path of the first file of the recording.
+     * @throws GuacamoleException If the recording does not exist, or if its
+     *                            index cannot be read.
+     */
+    public GuacamoleRecording(File path) throws GuacamoleException {
+
+        this.path = path;
+
+        if (!path.exists())
+            throw new GuacamoleResourceNotFoundException("No such recording: " + path);
+
+        List<long[]> entries = new ArrayList<long[]>();
+
+        // Read index, if present
+        File indexFile = RecordingWriter.getIndexFile(path);
+        if (indexFile.exists()) {
+
+            try {
+
+                BufferedReader index = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(indexFile), "US-ASCII"));
+
+                // Read each complete entry, ignoring any entry still being
+                // written
+                try {
+
+                    String line;
+                    while ((line = index.readLine()) != null) {
+
+                        int comma = line.indexOf(',');
+                        if (comma == -1)
+                            break;
+
+                        try {
+                            entries.add(new long[] {
+                                Long.parseLong(line.substring(0, comma)),
+                                Long.parseLong(line.substring(comma + 1))
+                            });
+                        }
+                        catch (NumberFormatException e) {
+                            break;
+                        }
+
+                    }
+
+                }
+
+                // Always close index
+                finally {
+                    index.close();
+                }
+
+            }
+            catch (IOException e) {
+                throw new GuacamoleServerException("Unable to read recording index.", e);
+            }
+
+        }
+
+        // Store entries
+        timestamps = new long[entries.size()];
+        offsets = new long[entries.size()];
+        for (int i=0; i<timestamps.length; i++) {
+            timestamps[i] = entries.get(i)[0];
+            offsets[i] = entries.get(i)[1];
+        }
+
+    }
+
+    /**
+     * Returns the path of the file with the given index within the
+     * recording.
+     *
+     * @param index The index of the file.
+     * @return The path of the file with the given index.
+     */
+    private File getFile(int index) {
+
+        if (index == 0)
+            return path;
+
+        return new File(path.getPath() + "." + index);
+
+    }
+
+    /**
+     * Returns the timestamp of the first index entry, as given by the first
+     * sync instruction within the recording.
+     *
+     * @return The timestamp of the first index entry, or -1 if the
+     *         recording has no index entries.
+     */
+    public long getFirstTimestamp() {
+
+        if (timestamps.length == 0)
+            return -1;
+
+        return timestamps[0];
+
+    }
+
+    /**
+     * Returns the timestamp of the last index entry.
+     *
+     * @return The timestamp of the last index entry, or -1 if the recording
+     *         has no index entries.
+     */
+    public long getLastTimestamp() {
+
+        if (timestamps.length == 0)
+            return -1;
+
+        return timestamps[timestamps.length - 1];
+
+    }
+
+    /**
+     * Returns the offset of the latest indexed point within the recording
+     * at or before the given timestamp. Each indexed point immediately
+     * follows a sync instruction.
+     *
+     * @param timestamp The timestamp to locate.
+     * @return The offset of the latest indexed point at or before the given
+     *         timestamp, in bytes, or zero if no such point is indexed.
+     */
+    public long getOffset(long timestamp) {
+
+        // Find last entry not after given timestamp
+        int low = 0;
+        int high = timestamps.length - 1;
+        int found = -1;
+
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] <= timestamp) {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+                high = middle - 1;
+
+        }
+
+        if (found == -1)
+            return 0;
+
+        return offsets[found];
+
+    }
+
+    /**
+     * Returns an InputStream which reads the recording from the given
+     * offset, reading all files of the recording as one continuous stream.
+     *
+     * @param offset The offset to begin reading at, in bytes.
+     * @return An InputStream which reads the recording from the given
+     *         offset.
+     * @throws GuacamoleException If the recording cannot be read.
+     */
+    public InputStream getInputStream(long offset) throws GuacamoleException {
+
+        // Skip files preceding offset entirely
+        int first = 0;
+        File file = getFile(first);
+        while (file.exists() && file.length() <= offset && getFile(first + 1).exists()) {
+            offset -= file.length();
+            file = getFile(++first);
+        }
+
+        try {
+
+            // Position within first file
+            FileInputStream input = new FileInputStream(file);
+            input.getChannel().position(offset);
+
+            // Continue with each later file, opened only when reached
+            final int next = first + 1;
+            return new SequenceInputStream(input, new SequenceInputStream(
+                new Enumeration<InputStream>() {
+
+                    private int index = next;
+
+                    @Override
+                    public boolean hasMoreElements() {
+                        return getFile(index).exists();
+                    }
+
+                    @Override
+                    public InputStream nextElement() {
+                        try {
+                            return new FileInputStream(getFile(index++));
+                        }
+                        catch (FileNotFoundException e) {
+                            throw new NoSuchElementException(e.getMessage());
+                        }
+                    }
+
+                }
+            ));
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to read recording.", e);
+        }
+
+    }
+
+    /**
+     * Returns a GuacamoleReader which reads the recording from the latest
+     * indexed point at or before the given timestamp, or from the beginning
+     * if no such point is indexed.
+     *
+     * @param timestamp The timestamp to begin reading at.
+     * @return A GuacamoleReader which reads the recording from the given
+     *         timestamp.
+     * @throws GuacamoleException If the recording cannot be read.
+     */
+    public GuacamoleReader getReader(long timestamp) throws GuacamoleException {
+        return new InputStreamGuacamoleReader(getInputStream(getOffset(timestamp)));
+    }
+
+}
@@ -0,0 +1,225 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread which performs all reads and writes for any number of
+ * SelectorGuacamoleSockets using a non-blocking NIO Selector. Data received
+ * from guacd is read directly into the instruction queue of the socket it
+ * was received on, and data written to a socket is sent as the connection to
+ * guacd allows, thus no thread is needed per connection to perform network
+ * I/O or to read ahead of the consumer. A shared default instance is
+ * available, and further instances may be created to spread load across
+ * several threads.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleSelector {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(GuacamoleSelector.class);
+
+    /**
+     * The shared default GuacamoleSelector, created when first requested.
+     */
+    private static GuacamoleSelector defaultSelector;
+
+    /**
+     * The Selector used to wait for any registered connection to become
+     * ready.
+     */
+    private final Selector selector;
+
+    /**
+     * The thread handling all connections registered with this
+     * GuacamoleSelector.
+     */
+    private final Thread thread;
+
+    /**
+     * All sockets whose registration with the Selector must be created or
+     * updated. Registrations are only ever changed by the selector thread.
+     */
+    private final Queue<SelectorGuacamoleSocket> pendingUpdates =
+            new ConcurrentLinkedQueue<SelectorGuacamoleSocket>();
+
+    /**
+     * Creates a new GuacamoleSelector, starting the thread which will handle
+     * all connections registered with it.
+     *
+     * @throws GuacamoleException If the underlying Selector cannot be
+     *                            created.
+     */
+    public GuacamoleSelector() throws GuacamoleException {
+
+        try {
+            selector = Selector.open();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to open selector.", e);
+        }
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                select();
+            }
+
+        }, "Guacamole selector");
+
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    /**
+     * Returns whether the thread of this GuacamoleSelector is still running,
+     * and thus whether connections registered with this GuacamoleSelector
+     * will be serviced.
+     *
+     * @return true if this GuacamoleSelector is running, false if its thread
+     *         has stopped.
+     */
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * Returns the shared default GuacamoleSelector, creating it if
+     * necessary. If the thread of the current default GuacamoleSelector has
+     * stopped, such as due to failure of its Selector, a new default
+     * GuacamoleSelector is created in its place.
+     *
+     * @return The shared default GuacamoleSelector.
+     * @throws GuacamoleException If the default GuacamoleSelector must be
+     *                            created but cannot be.
+     */
+    public static synchronized GuacamoleSelector getDefault()
+            throws GuacamoleException {
+
+        // Replace default selector if it can no longer service connections
+        if (defaultSelector != null && !defaultSelector.isRunning()) {
+            defaultSelector.logger.warn("Default selector has stopped. A new selector will be created.");
+            defaultSelector = null;
+        }
+
+        if (defaultSelector == null)
+            defaultSelector = new GuacamoleSelector();
+
+        return defaultSelector;
+
+    }
+
+    /**
+     * Requests that the registration of the given socket be created or
+     * updated to reflect its current state. The update is performed by the
+     * selector thread.
+     *
+     * @param socket The socket whose registration should be updated.
+     */
+    void update(SelectorGuacamoleSocket socket) {
+        pendingUpdates.add(socket);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for registered connections to become ready, handling each ready
+     * connection in turn, until the Selector fails.
+     */
+    private void select() {
+
+        try {
+
+            for (;;) {
+
+                selector.select();
+
+                // Apply any requested registration changes
+                SelectorGuacamoleSocket socket;
+                while ((socket = pendingUpdates.poll()) != null)
+                    socket.updateRegistration(selector);
+
+                // Handle all ready connections
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    ((SelectorGuacamoleSocket) key.attachment()).handleReady(key);
+
+                }
+
+            }
+
+        }
+        catch (IOException e) {
+
+            logger.error("Selector failed. Closing all connections using this selector.", e);
+
+            // Fail all connections, as none can be serviced further
+            for (SelectionKey key : selector.keys())
+                ((SelectorGuacamoleSocket) key.attachment()).fail(e);
+
+            // Release the failed selector
+            try {
+                selector.close();
+            }
+            catch (IOException closeError) {
+                logger.debug("Unable to close failed selector.", closeError);
+            }
+
+        }
+
+    }
+
+}
@@ -38,10 +38,15 @@ package org.glyptodon.guacamole.net;
  * ***** END LICENSE BLOCK ***** */
 
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.ReentrantLock;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleReplayBuffer;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.QueuedGuacamoleReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Provides a unique identifier and synchronized access to the GuacamoleReader
@@ -51,6 +56,11 @@ import org.glyptodon.guacamole.io.GuacamoleWriter;
  */
 public class GuacamoleTunnel {
 
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(GuacamoleTunnel.class);
+
     /**
      * The UUID associated with this tunnel. Every tunnel must have a
      * corresponding UUID such that tunnel read/write requests can be
@@ -64,6 +74,54 @@ public class GuacamoleTunnel {
      */
     private GuacamoleSocket socket;
 
+    /**
+     * The GuacamoleReader given to each thread which acquires read access,
+     * which may queue data read from the GuacamoleSocket.
+     */
+    private GuacamoleReader reader;
+
+    /**
+     * The QueuedGuacamoleReader continuously reading from the
+     * GuacamoleSocket, or null if data is only read from the GuacamoleSocket
+     * while read access is held.
+     */
+    private QueuedGuacamoleReader queuedReader;
+
+    /**
+     * The GuacamoleWriter given to each thread which acquires write access.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * The metrics of all traffic through this tunnel, or null if this
+     * tunnel is not monitored.
+     */
+    private GuacamoleTunnelMetrics metrics;
+
+    /**
+     * The GuacamoleReplayBuffer retaining data recently sent to the client,
+     * or null if this tunnel cannot be resumed.
+     */
+    private volatile GuacamoleReplayBuffer replayBuffer;
+
+    /**
+     * The time at which this tunnel was created, in milliseconds since
+     * midnight, January 1, 1970 UTC.
+     */
+    private final long creationTime;
+
+    /**
+     * The time read access was last acquired or released, in milliseconds
+     * since midnight, January 1, 1970 UTC.
+     */
+    private volatile long lastReadTime;
+
+    /**
+     * The time write access was last acquired or released, in milliseconds
+     * since midnight, January 1, 1970 UTC.
+     */
+    private volatile long lastWriteTime;
+
     /**
      * Lock acquired when a read operation is in progress.
      */
@@ -81,13 +139,68 @@ public class GuacamoleTunnel {
      * @param socket The GuacamoleSocket to provide synchronized access for.
      */
     public GuacamoleTunnel(GuacamoleSocket socket) {
+        this(socket, new GuacamoleTunnelOptions());
+    }
+
+    /**
+     * Creates a new GuacamoleTunnel which synchronizes access to the
+     * Guacamole instruction stream associated with the given GuacamoleSocket,
+     * reading, monitoring and pacing that stream as dictated by the given
+     * options.
+     *
+     * @param socket The GuacamoleSocket to provide synchronized access for.
+     * @param options The options controlling how the Guacamole instruction
+     *                stream is read, monitored and paced.
+     * @see GuacamoleTunnelOptions
+     */
+    public GuacamoleTunnel(GuacamoleSocket socket, GuacamoleTunnelOptions options) {
 
         this.socket = socket;
+        this.reader = socket.getReader();
+        this.writer = socket.getWriter();
         uuid = UUID.randomUUID();
 
+        creationTime = System.currentTimeMillis();
+        lastReadTime = creationTime;
+        lastWriteTime = creationTime;
+
         readerLock = new ReentrantLock();
         writerLock = new ReentrantLock();
 
+        // Count all traffic to and from the socket if requested
+        if (options.isMonitored()) {
+            metrics = GuacamoleTunnelMetrics.create(uuid.toString());
+            reader = new MonitoredGuacamoleReader(reader, metrics.getReceived());
+            writer = new MonitoredGuacamoleWriter(writer, metrics.getSent());
+        }
+
+        // Read continuously if requested
+        if (options.getMaxQueueLength() > 0) {
+
+            try {
+                queuedReader = new QueuedGuacamoleReader(reader,
+                        options.getMaxQueueLength());
+                reader = queuedReader;
+            }
+
+            // Fall back to reading only while read access is held
+            catch (RejectedExecutionException e) {
+                logger.warn("All read pumps busy. Tunnel will not be read continuously.");
+                logger.debug("Read pump rejected.", e);
+            }
+
+        }
+
+        // Coalesce frames which accumulate while the client is behind
+        if (options.getMaxFramesBehind() > 0) {
+            FrameTracker tracker = new FrameTracker(options.getMaxFramesBehind());
+            reader = new CoalescingGuacamoleReader(reader, tracker);
+            writer = new SyncTrackingGuacamoleWriter(writer, tracker);
+        }
+
+        // Track tunnel until closed, only once fully constructed
+        GuacamoleTunnelRegistry.register(this);
+
     }
 
     /**
@@ -98,8 +211,19 @@ public class GuacamoleTunnel {
      *         stream.
      */
     public GuacamoleReader acquireReader() {
-        readerLock.lock();
-        return socket.getReader();
+
+        // Time wait for access only if monitored
+        if (metrics != null) {
+            long start = System.nanoTime();
+            readerLock.lock();
+            metrics.addReaderAcquisition(System.nanoTime() - start);
+        }
+        else
+            readerLock.lock();
+
+        lastReadTime = System.currentTimeMillis();
+        return reader;
+
     }
 
     /**
@@ -108,6 +232,7 @@ public class GuacamoleTunnel {
      * a GuacamoleTunnel's GuacamoleReader.
      */
     public void releaseReader() {
+        lastReadTime = System.currentTimeMillis();
         readerLock.unlock();
     }
 
@@ -131,7 +256,8 @@ public class GuacamoleTunnel {
      */
     public GuacamoleWriter acquireWriter() {
         writerLock.lock();
-        return socket.getWriter();
+        lastWriteTime = System.currentTimeMillis();
+        return writer;
     }
 
     /**
@@ -140,9 +266,57 @@ public class GuacamoleTunnel {
      * a GuacamoleTunnel's GuacamoleWriter.
      */
     public void releaseWriter() {
+        lastWriteTime = System.currentTimeMillis();
         writerLock.unlock();
     }
 
+    /**
+     * Returns whether any thread currently holds read access to the
+     * Guacamole instruction stream. As the client continuously reads from
+     * the tunnel while connected, a tunnel without read access held is
+     * not currently in use by any client.
+     *
+     * @return true if read access is currently held, false otherwise.
+     */
+    public boolean isReaderAcquired() {
+        return readerLock.isLocked();
+    }
+
+    /**
+     * Returns the time at which this GuacamoleTunnel was created.
+     *
+     * @return The time at which this GuacamoleTunnel was created, in
+     *         milliseconds since midnight, January 1, 1970 UTC.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the time at which read access was last acquired or released.
+     *
+     * @return The time at which read access was last acquired or released,
+     *         in milliseconds since midnight, January 1, 1970 UTC, or the
+     *         creation time of this GuacamoleTunnel if read access has never
+     *         been acquired.
+     */
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    /**
+     * Returns the time at which write access was last acquired or released,
+     * typically reflecting the last input from the client.
+     *
+     * @return The time at which write access was last acquired or released,
+     *         in milliseconds since midnight, January 1, 1970 UTC, or the
+     *         creation time of this GuacamoleTunnel if write access has
+     *         never been acquired.
+     */
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
     /**
      * Returns whether there are threads waiting for write access to the
      * Guacamole instruction stream.
@@ -173,6 +347,40 @@ public class GuacamoleTunnel {
         return socket;
     }
 
+    /**
+     * Returns the metrics of all traffic through this GuacamoleTunnel, if
+     * monitored.
+     *
+     * @return The metrics of all traffic through this GuacamoleTunnel, or
+     *         null if this GuacamoleTunnel is not monitored.
+     */
+    public GuacamoleTunnelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the GuacamoleReplayBuffer retaining data recently sent from
+     * this GuacamoleTunnel to its client, if any.
+     *
+     * @return The GuacamoleReplayBuffer of this GuacamoleTunnel, or null if
+     *         this GuacamoleTunnel cannot be resumed.
+     */
+    public GuacamoleReplayBuffer getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    /**
+     * Sets the GuacamoleReplayBuffer which should retain data recently sent
+     * from this GuacamoleTunnel to its client, allowing that client to
+     * resume from the last data it received should its connection be lost.
+     *
+     * @param replayBuffer The GuacamoleReplayBuffer to use, or null if this
+     *                     GuacamoleTunnel should not be resumable.
+     */
+    public void setReplayBuffer(GuacamoleReplayBuffer replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
     /**
      * Release all resources allocated to this GuacamoleTunnel.
      *
@@ -180,7 +388,24 @@ public class GuacamoleTunnel {
      *                            resources.
      */
     public void close() throws GuacamoleException {
-        socket.close();
+
+        try {
+            socket.close();
+        }
+
+        // Stop tracking tunnel, discarding any queued data and metrics
+        finally {
+
+            GuacamoleTunnelRegistry.unregister(this);
+
+            if (queuedReader != null)
+                queuedReader.close();
+
+            if (metrics != null)
+                metrics.unregister();
+
+        }
+
     }
 
     /**
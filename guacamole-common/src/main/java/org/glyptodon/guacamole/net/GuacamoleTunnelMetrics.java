@@ -0,0 +1,288 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traffic metrics of a single GuacamoleTunnel, exposed through JMX as
+ * "org.glyptodon.guacamole:type=Tunnel,uuid=[UUID]" while that tunnel is
+ * open. The metrics of every tunnel are also added to a shared total,
+ * exposed as "org.glyptodon.guacamole:type=Tunnel,uuid=total".
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelMetrics implements GuacamoleTunnelMetricsMBean {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleTunnelMetrics.class);
+
+    /**
+     * The domain of the names of all MBeans registered by this class.
+     */
+    private static final String DOMAIN = "org.glyptodon.guacamole";
+
+    /**
+     * The metrics of all monitored tunnels together, registered when first
+     * needed.
+     */
+    private static GuacamoleTunnelMetrics total;
+
+    /**
+     * The name this GuacamoleTunnelMetrics is registered under, or null if
+     * not registered.
+     */
+    private ObjectName name;
+
+    /**
+     * The counts of all data received from the Guacamole proxy.
+     */
+    private final TrafficStatistics received;
+
+    /**
+     * The counts of all data sent to the Guacamole proxy.
+     */
+    private final TrafficStatistics sent;
+
+    /**
+     * The number of times exclusive read access has been acquired.
+     */
+    private final AtomicLong readerAcquisitions = new AtomicLong();
+
+    /**
+     * The total number of nanoseconds spent waiting to acquire exclusive
+     * read access.
+     */
+    private final AtomicLong readerWaitTime = new AtomicLong();
+
+    /**
+     * The GuacamoleTunnelMetrics to which all reader wait times are also
+     * added, or null if this is the total.
+     */
+    private final GuacamoleTunnelMetrics parent;
+
+    /**
+     * Creates a new GuacamoleTunnelMetrics which adds all counts to the
+     * given parent.
+     *
+     * @param parent The GuacamoleTunnelMetrics to which all counts should
+     *               also be added, or null if counts should not be shared.
+     */
+    private GuacamoleTunnelMetrics(GuacamoleTunnelMetrics parent) {
+
+        this.parent = parent;
+
+        if (parent != null) {
+            received = new TrafficStatistics(parent.received);
+            sent = new TrafficStatistics(parent.sent);
+        }
+        else {
+            received = new TrafficStatistics(null);
+            sent = new TrafficStatistics(null);
+        }
+
+    }
+
+    /**
+     * Returns the metrics of all monitored tunnels together, creating and
+     * registering those metrics if necessary.
+     *
+     * @return The metrics of all monitored tunnels together.
+     */
+    public static synchronized GuacamoleTunnelMetrics getTotal() {
+
+        if (total == null) {
+            total = new GuacamoleTunnelMetrics(null);
+            total.register("total");
+        }
+
+        return total;
+
+    }
+
+    /**
+     * Creates and registers a new GuacamoleTunnelMetrics for the tunnel
+     * having the given UUID. All counts are also added to the total of all
+     * monitored tunnels.
+     *
+     * @param uuid The UUID of the tunnel being monitored.
+     * @return A new GuacamoleTunnelMetrics for the tunnel having the given
+     *         UUID.
+     */
+    static GuacamoleTunnelMetrics create(String uuid) {
+        GuacamoleTunnelMetrics metrics = new GuacamoleTunnelMetrics(getTotal());
+        metrics.register(uuid);
+        return metrics;
+    }
+
+    /**
+     * Registers this GuacamoleTunnelMetrics with the platform MBeanServer
+     * under the given UUID. Failure to register is logged, but does not
+     * otherwise affect the tunnel.
+     *
+     * @param uuid The UUID to register under.
+     */
+    private void register(String uuid) {
+
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Tunnel,uuid=" + uuid);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            name = objectName;
+        }
+        catch (JMException e) {
+            logger.warn("Unable to register tunnel metrics.", e);
+        }
+
+    }
+
+    /**
+     * Removes this GuacamoleTunnelMetrics from the platform MBeanServer, if
+     * registered. Counts already added to the total are kept.
+     */
+    synchronized void unregister() {
+
+        if (name == null)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(name);
+        }
+        catch (JMException e) {
+            logger.warn("Unable to unregister tunnel metrics.", e);
+        }
+
+        name = null;
+
+    }
+
+    /**
+     * Returns the counts of all data received from the Guacamole proxy.
+     *
+     * @return The counts of all data received from the Guacamole proxy.
+     */
+    TrafficStatistics getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the counts of all data sent to the Guacamole proxy.
+     *
+     * @return The counts of all data sent to the Guacamole proxy.
+     */
+    TrafficStatistics getSent() {
+        return sent;
+    }
+
+    /**
+     * Counts a single acquisition of exclusive read access.
+     *
+     * @param waitTime The number of nanoseconds spent waiting to acquire
+     *                 exclusive read access.
+     */
+    void addReaderAcquisition(long waitTime) {
+
+        readerAcquisitions.incrementAndGet();
+        readerWaitTime.addAndGet(waitTime);
+
+        if (parent != null)
+            parent.addReaderAcquisition(waitTime);
+
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return received.getBytes();
+    }
+
+    @Override
+    public long getInstructionsReceived() {
+        return received.getInstructions();
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceivedByOpcode() {
+        return received.getBytesByOpcode();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return sent.getBytes();
+    }
+
+    @Override
+    public long getInstructionsSent() {
+        return sent.getInstructions();
+    }
+
+    @Override
+    public Map<String, Long> getBytesSentByOpcode() {
+        return sent.getBytesByOpcode();
+    }
+
+    @Override
+    public long getTimeSinceLastReceived() {
+
+        long lastActivity = received.getLastActivity();
+        if (lastActivity == 0)
+            return -1;
+
+        return System.currentTimeMillis() - lastActivity;
+
+    }
+
+    @Override
+    public long getReaderAcquisitions() {
+        return readerAcquisitions.get();
+    }
+
+    @Override
+    public long getReaderWaitTime() {
+        return readerWaitTime.get() / 1000000;
+    }
+
+}
@@ -0,0 +1,125 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the traffic of a single GuacamoleTunnel, or
+ * of all monitored tunnels together, through JMX. All lengths are in bytes,
+ * as encoded in UTF-8.
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleTunnelMetricsMBean {
+
+    /**
+     * Returns the total number of bytes received from the Guacamole proxy.
+     *
+     * @return The total number of bytes received from the Guacamole proxy.
+     */
+    public long getBytesReceived();
+
+    /**
+     * Returns the total number of complete instructions received from the
+     * Guacamole proxy.
+     *
+     * @return The total number of instructions received from the Guacamole
+     *         proxy.
+     */
+    public long getInstructionsReceived();
+
+    /**
+     * Returns the total length of all complete instructions received from
+     * the Guacamole proxy, by opcode.
+     *
+     * @return The total length of all instructions received from the
+     *         Guacamole proxy, in bytes, by opcode.
+     */
+    public Map<String, Long> getBytesReceivedByOpcode();
+
+    /**
+     * Returns the total number of bytes sent to the Guacamole proxy.
+     *
+     * @return The total number of bytes sent to the Guacamole proxy.
+     */
+    public long getBytesSent();
+
+    /**
+     * Returns the total number of complete instructions sent to the
+     * Guacamole proxy.
+     *
+     * @return The total number of instructions sent to the Guacamole proxy.
+     */
+    public long getInstructionsSent();
+
+    /**
+     * Returns the total length of all complete instructions sent to the
+     * Guacamole proxy, by opcode.
+     *
+     * @return The total length of all instructions sent to the Guacamole
+     *         proxy, in bytes, by opcode.
+     */
+    public Map<String, Long> getBytesSentByOpcode();
+
+    /**
+     * Returns the number of milliseconds elapsed since data was last
+     * received from the Guacamole proxy.
+     *
+     * @return The number of milliseconds since data was last received from
+     *         the Guacamole proxy, or -1 if no data has been received.
+     */
+    public long getTimeSinceLastReceived();
+
+    /**
+     * Returns the number of times exclusive read access has been acquired.
+     *
+     * @return The number of times exclusive read access has been acquired.
+     */
+    public long getReaderAcquisitions();
+
+    /**
+     * Returns the total number of milliseconds spent waiting to acquire
+     * exclusive read access.
+     *
+     * @return The total number of milliseconds spent waiting to acquire
+     *         exclusive read access.
+     */
+    public long getReaderWaitTime();
+
+}
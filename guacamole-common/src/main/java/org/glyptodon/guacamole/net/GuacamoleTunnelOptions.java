@@ -0,0 +1,149 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/**
+ * The options controlling how a GuacamoleTunnel reads, monitors and paces
+ * the Guacamole instruction stream of its GuacamoleSocket. By default, the
+ * stream is read only while read access is held, traffic is not monitored,
+ * and frames are never coalesced.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelOptions {
+
+    /**
+     * The maximum number of bytes which may be read from the
+     * GuacamoleSocket and queued before further reads are suspended, or zero
+     * to read from the GuacamoleSocket only while read access is held.
+     */
+    private int maxQueueLength = 0;
+
+    /**
+     * Whether traffic through the tunnel should be counted and exposed
+     * through JMX.
+     */
+    private boolean monitored = false;
+
+    /**
+     * The number of unacknowledged frames beyond which the client is
+     * considered to be falling behind, or zero if frames should never be
+     * coalesced.
+     */
+    private int maxFramesBehind = 0;
+
+    /**
+     * Returns the maximum number of bytes which may be read from the
+     * GuacamoleSocket and queued before further reads are suspended.
+     *
+     * @return The maximum number of bytes which may be queued, or zero if
+     *         the GuacamoleSocket is read only while read access is held.
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * Sets the maximum number of bytes which may be read from the
+     * GuacamoleSocket and queued before further reads are suspended. If
+     * non-zero, the tunnel continuously reads its GuacamoleSocket using a
+     * pump run by the shared executor of QueuedGuacamoleReader, such that
+     * reading from the GuacamoleSocket does not depend on read access being
+     * held. If the shared executor is already running its maximum number of
+     * pumps, the GuacamoleSocket is instead read only while read access is
+     * held.
+     *
+     * @param maxQueueLength The maximum number of bytes which may be queued,
+     *                       or zero to read from the GuacamoleSocket only
+     *                       while read access is held.
+     */
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    /**
+     * Returns whether traffic through the tunnel should be counted and
+     * exposed through JMX.
+     *
+     * @return true if traffic should be monitored, false otherwise.
+     */
+    public boolean isMonitored() {
+        return monitored;
+    }
+
+    /**
+     * Sets whether traffic through the tunnel should be counted and exposed
+     * through JMX. If monitored, all data and instructions passing through
+     * the tunnel are counted, along with the time spent waiting for read
+     * access, and the resulting GuacamoleTunnelMetrics are exposed until the
+     * tunnel is closed.
+     *
+     * @param monitored Whether traffic should be monitored.
+     */
+    public void setMonitored(boolean monitored) {
+        this.monitored = monitored;
+    }
+
+    /**
+     * Returns the number of unacknowledged frames beyond which the client is
+     * considered to be falling behind.
+     *
+     * @return The maximum number of unacknowledged frames, or zero if frames
+     *         should never be coalesced.
+     */
+    public int getMaxFramesBehind() {
+        return maxFramesBehind;
+    }
+
+    /**
+     * Sets the number of unacknowledged frames beyond which the client is
+     * considered to be falling behind. If non-zero, the frames sent to the
+     * client which the client has not yet acknowledged as rendered are
+     * tracked. Once the client falls further behind than allowed, data is
+     * briefly held back, and the frames which accumulate meanwhile are
+     * merged, dropping image updates which are entirely covered by later
+     * image updates.
+     *
+     * @param maxFramesBehind The maximum number of unacknowledged frames, or
+     *                        zero if frames should never be coalesced.
+     */
+    public void setMaxFramesBehind(int maxFramesBehind) {
+        this.maxFramesBehind = maxFramesBehind;
+    }
+
+}
@@ -0,0 +1,299 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Global registry of every open GuacamoleTunnel, regardless of the session
+ * the tunnel belongs to. Tunnels are registered when created and
+ * unregistered when closed. If started, a background reaper periodically
+ * closes tunnels which have been abandoned by their clients, as such
+ * tunnels would otherwise hold their connections to the Guacamole proxy
+ * (and the remote desktop) open until their session expires.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleTunnelRegistry {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleTunnelRegistry.class);
+
+    /**
+     * The shortest interval between sweeps of the reaper, in milliseconds.
+     */
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+
+    /**
+     * All open tunnels, indexed by UUID.
+     */
+    private static final ConcurrentMap<String, GuacamoleTunnel> tunnels =
+            new ConcurrentHashMap<String, GuacamoleTunnel>();
+
+    /**
+     * The number of tunnels closed by the reaper.
+     */
+    private static final AtomicLong reapedCount = new AtomicLong();
+
+    /**
+     * The executor running the reaper, or null if the reaper is not
+     * running.
+     */
+    private static ScheduledExecutorService reaper;
+
+    /**
+     * This class is not intended to be instantiated.
+     */
+    private GuacamoleTunnelRegistry() {}
+
+    /**
+     * Adds the given tunnel to the registry.
+     *
+     * @param tunnel The tunnel to register.
+     */
+    static void register(GuacamoleTunnel tunnel) {
+        tunnels.put(tunnel.getUUID().toString(), tunnel);
+    }
+
+    /**
+     * Removes the given tunnel from the registry.
+     *
+     * @param tunnel The tunnel to unregister.
+     */
+    static void unregister(GuacamoleTunnel tunnel) {
+        tunnels.remove(tunnel.getUUID().toString());
+    }
+
+    /**
+     * Returns the tunnel having the given UUID, if that tunnel is open.
+     *
+     * @param tunnelUUID The UUID of the tunnel to return.
+     * @return The tunnel having the given UUID, or null if no such tunnel is
+     *         open.
+     */
+    public static GuacamoleTunnel getTunnel(String tunnelUUID) {
+        return tunnels.get(tunnelUUID);
+    }
+
+    /**
+     * Returns an unmodifiable view of all open tunnels.
+     *
+     * @return An unmodifiable view of all open tunnels.
+     */
+    public static Collection<GuacamoleTunnel> getTunnels() {
+        return Collections.unmodifiableCollection(tunnels.values());
+    }
+
+    /**
+     * Returns the number of open tunnels.
+     *
+     * @return The number of open tunnels.
+     */
+    public static int getTunnelCount() {
+        return tunnels.size();
+    }
+
+    /**
+     * Returns the number of tunnels closed by the reaper since this class
+     * was loaded.
+     *
+     * @return The number of tunnels closed by the reaper.
+     */
+    public static long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    /**
+     * Starts the reaper, replacing any reaper already running. The reaper
+     * closes each tunnel which is orphaned, having not been read by any
+     * client for the given orphan timeout, and each tunnel which is idle,
+     * having not received any input from its client for the given idle
+     * timeout. Tunnels whose connection to the Guacamole proxy has closed
+     * are also released.
+     *
+     * @param orphanTimeout The number of milliseconds a tunnel may go
+     *                      without being read before being closed, or zero
+     *                      if orphaned tunnels should not be closed.
+     * @param idleTimeout The number of milliseconds a tunnel may go without
+     *                    receiving input before being closed, or zero if
+     *                    idle tunnels should not be closed.
+     */
+    public static synchronized void startReaper(final long orphanTimeout,
+            final long idleTimeout) {
+
+        stopReaper();
+
+        // Sweep often enough to close tunnels reasonably close to their
+        // timeouts, but not continuously
+        long interval = Long.MAX_VALUE;
+        if (orphanTimeout > 0) interval = Math.min(interval, orphanTimeout / 4);
+        if (idleTimeout   > 0) interval = Math.min(interval, idleTimeout   / 4);
+        interval = Math.max(interval, MIN_SWEEP_INTERVAL);
+
+        // Sweep only released tunnels if no timeouts
+        if (orphanTimeout <= 0 && idleTimeout <= 0)
+            interval = 60000;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Guacamole tunnel reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+
+        reaper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                sweep(orphanTimeout, idleTimeout);
+            }
+
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        logger.debug("Tunnel reaper started (orphan timeout {} ms, idle timeout {} ms).",
+                orphanTimeout, idleTimeout);
+
+    }
+
+    /**
+     * Stops the reaper, if running.
+     */
+    public static synchronized void stopReaper() {
+
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+
+    }
+
+    /**
+     * Closes every tunnel which is orphaned or idle according to the given
+     * timeouts, as well as any tunnel whose connection has already closed.
+     *
+     * @param orphanTimeout The number of milliseconds a tunnel may go
+     *                      without being read before being closed, or zero
+     *                      if orphaned tunnels should not be closed.
+     * @param idleTimeout The number of milliseconds a tunnel may go without
+     *                    receiving input before being closed, or zero if
+     *                    idle tunnels should not be closed.
+     */
+    private static void sweep(long orphanTimeout, long idleTimeout) {
+
+        long now = System.currentTimeMillis();
+
+        for (GuacamoleTunnel tunnel : tunnels.values()) {
+
+            String reason;
+
+            // Release tunnels whose connection has closed
+            if (!tunnel.isOpen())
+                reason = null;
+
+            // Close tunnels which no client is reading
+            else if (orphanTimeout > 0 && !tunnel.isReaderAcquired()
+                    && now - tunnel.getLastReadTime() >= orphanTimeout)
+                reason = "orphaned";
+
+            // Close tunnels which have received no recent input
+            else if (idleTimeout > 0
+                    && now - tunnel.getLastWriteTime() >= idleTimeout)
+                reason = "idle";
+
+            // Otherwise, tunnel is in use
+            else
+                continue;
+
+            // Log resources released if closing an open tunnel
+            if (reason != null) {
+
+                GuacamoleTunnelMetrics metrics = tunnel.getMetrics();
+                if (metrics != null)
+                    logger.info("Closing {} tunnel {} after {} ms ({} bytes received, {} bytes sent).",
+                            new Object[] { reason, tunnel.getUUID(),
+                                now - tunnel.getCreationTime(),
+                                metrics.getBytesReceived(),
+                                metrics.getBytesSent() });
+                else
+                    logger.info("Closing {} tunnel {} after {} ms.",
+                            new Object[] { reason, tunnel.getUUID(),
+                                now - tunnel.getCreationTime() });
+
+            }
+
+            boolean closed = false;
+            try {
+                tunnel.close();
+                closed = true;
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Error closing tunnel.", e);
+            }
+
+            // Count only tunnels actually closed by the reaper
+            if (closed && reason != null)
+                reapedCount.incrementAndGet();
+
+            // Stop tracking the tunnel only once its connection is closed. A
+            // tunnel whose close was refused, such as by a listener, remains
+            // open and in use, and is reconsidered by the next sweep.
+            if (closed || !tunnel.isOpen())
+                unregister(tunnel);
+
+        }
+
+    }
+
+}
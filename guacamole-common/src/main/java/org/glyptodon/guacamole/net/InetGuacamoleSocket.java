@@ -38,16 +38,13 @@ package org.glyptodon.guacamole.net;
  * ***** END LICENSE BLOCK ***** */
 
 import org.glyptodon.guacamole.io.GuacamoleReader;
-import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
-import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+import org.glyptodon.guacamole.io.OutputStreamGuacamoleWriter;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 
-import java.io.InputStreamReader;
-
-import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import org.glyptodon.guacamole.GuacamoleException;
@@ -84,6 +81,13 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
      */
     private static final int SOCKET_TIMEOUT = 15000;
 
+    /**
+     * The default number of milliseconds that data written to the Guacamole
+     * proxy server may be held, allowing consecutive writes to be sent
+     * together.
+     */
+    public static final int DEFAULT_FLUSH_DELAY = 5;
+
     /**
      * The TCP socket that the GuacamoleReader and GuacamoleWriter exposed
      * by this class should affect.
@@ -93,7 +97,8 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
     /**
      * Creates a new InetGuacamoleSocket which reads and writes instructions
      * to the Guacamole instruction stream of the Guacamole proxy server
-     * running at the given hostname and port.
+     * running at the given hostname and port. Consecutive writes are
+     * coalesced for up to {@link #DEFAULT_FLUSH_DELAY} milliseconds.
      *
      * @param hostname The hostname of the Guacamole proxy server to connect to.
      * @param port The port of the Guacamole proxy server to connect to.
@@ -101,6 +106,25 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
      *                            Guacamole proxy server.
      */
     public InetGuacamoleSocket(String hostname, int port) throws GuacamoleException {
+        this(hostname, port, DEFAULT_FLUSH_DELAY);
+    }
+
+    /**
+     * Creates a new InetGuacamoleSocket which reads and writes instructions
+     * to the Guacamole instruction stream of the Guacamole proxy server
+     * running at the given hostname and port, coalescing writes for up to
+     * the given number of milliseconds.
+     *
+     * @param hostname The hostname of the Guacamole proxy server to connect to.
+     * @param port The port of the Guacamole proxy server to connect to.
+     * @param flushDelay The maximum number of milliseconds that data written
+     *                   to the Guacamole proxy server may be held before
+     *                   being sent, or zero to send every write immediately.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public InetGuacamoleSocket(String hostname, int port,
+            int flushDelay) throws GuacamoleException {
 
         try {
 
@@ -119,9 +143,11 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
             // Set read timeout
             sock.setSoTimeout(SOCKET_TIMEOUT);
 
-            // On successful connect, retrieve I/O streams
-            reader = new ReaderGuacamoleReader(new InputStreamReader(sock.getInputStream(),   "UTF-8"));
-            writer = new WriterGuacamoleWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+            // On successful connect, retrieve I/O streams. Instructions are
+            // read and written as raw UTF-8.
+            reader = new InputStreamGuacamoleReader(sock.getInputStream());
+            writer = new OutputStreamGuacamoleWriter(sock.getOutputStream(),
+                    flushDelay);
 
         }
         catch (IOException e) {
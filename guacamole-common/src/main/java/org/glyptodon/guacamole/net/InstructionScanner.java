@@ -0,0 +1,188 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * Locates the boundaries and opcodes of Guacamole instructions within
+ * arbitrary chunks of a Guacamole instruction stream, counting each chunk
+ * and each complete instruction within a TrafficStatistics. Chunks need not
+ * begin or end at instruction boundaries. Data is counted in bytes, as it
+ * would be encoded in UTF-8.
+ *
+ * @author Michael Jumper
+ */
+class InstructionScanner extends StreamScanner {
+
+    /**
+     * The maximum number of bytes of opcode retained. Longer opcodes are
+     * never known opcodes.
+     */
+    private static final int MAX_OPCODE_LENGTH = 16;
+
+    /**
+     * The TrafficStatistics to count all data within.
+     */
+    private final TrafficStatistics statistics;
+
+    /**
+     * The bytes of the opcode of the current instruction.
+     */
+    private final byte[] opcode = new byte[MAX_OPCODE_LENGTH];
+
+    /**
+     * The number of characters of the opcode of the current instruction
+     * scanned so far, which may exceed the number retained.
+     */
+    private int opcodeLength = 0;
+
+    /**
+     * Creates a new InstructionScanner which counts all data within the
+     * given TrafficStatistics.
+     *
+     * @param statistics The TrafficStatistics to count all data within.
+     */
+    public InstructionScanner(TrafficStatistics statistics) {
+        super(1);
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected void handleCharacter(int element, int c) {
+
+        // Opcodes are ASCII, thus anything else never matches
+        if (opcodeLength < MAX_OPCODE_LENGTH)
+            opcode[opcodeLength] = (byte) (c < 0x80 ? c : 0);
+
+        opcodeLength++;
+
+    }
+
+    @Override
+    protected void handleInstruction(long end, long length) {
+
+        GuacamoleOpcode known = null;
+        if (opcodeLength <= MAX_OPCODE_LENGTH)
+            known = GuacamoleOpcode.fromValue(opcode, 0, opcodeLength);
+
+        statistics.addInstruction(known, length);
+        opcodeLength = 0;
+
+    }
+
+    @Override
+    protected void handleInvalid() {
+        opcodeLength = 0;
+    }
+
+    /**
+     * Counts the given instruction within the TrafficStatistics of this
+     * scanner, as if its encoded form had been scanned. The length of the
+     * encoded form is calculated from the elements of the instruction
+     * directly, without encoding the instruction.
+     *
+     * @param instruction The instruction to count.
+     */
+    public void count(GuacamoleInstruction instruction) {
+
+        // Opcode and terminator
+        long length = getEncodedLength(instruction.getOpcode()) + 1;
+
+        // Each argument value, preceded by a separator
+        for (String arg : instruction.getArgs())
+            length += getEncodedLength(arg) + 1;
+
+        statistics.addInstruction(instruction.getKnownOpcode(), length);
+        statistics.addBytes(length);
+
+    }
+
+    /**
+     * Returns the number of bytes the given value would occupy if encoded in
+     * UTF-8 as an element of a Guacamole instruction, including its length
+     * prefix but excluding any separator or terminator.
+     *
+     * @param value The value of the element.
+     * @return The number of bytes required to encode the element.
+     */
+    private static long getEncodedLength(String value) {
+
+        int length = value.length();
+
+        // Length prefix counts Unicode characters, followed by a period
+        long encoded = 1;
+        int remaining = value.codePointCount(0, length);
+        do {
+            encoded++;
+            remaining /= 10;
+        } while (remaining != 0);
+
+        // Value, where each half of a surrogate pair accounts for two bytes
+        for (int i = 0; i < length; i++) {
+
+            char c = value.charAt(i);
+            if (c < 0x80)
+                encoded += 1;
+            else if (c < 0x800
+                    || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+                encoded += 2;
+            else
+                encoded += 3;
+
+        }
+
+        return encoded;
+
+    }
+
+    @Override
+    public void scan(byte[] chunk, int offset, int length) {
+        super.scan(chunk, offset, length);
+        statistics.addBytes(length);
+    }
+
+    @Override
+    public void scan(char[] chunk, int offset, int length) {
+        long start = getPosition();
+        super.scan(chunk, offset, length);
+        statistics.addBytes(getPosition() - start);
+    }
+
+}
@@ -0,0 +1,278 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleReader which counts all data and instructions read from another
+ * GuacamoleReader. Batches are counted as they are written, without
+ * copying, thus batches which are read but never written are not counted.
+ *
+ * @author Michael Jumper
+ */
+class MonitoredGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * The GuacamoleReader being monitored.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The InstructionScanner which counts all data read.
+     */
+    private final InstructionScanner scanner;
+
+    /**
+     * The batch most recently read from the GuacamoleReader being monitored.
+     */
+    private GuacamoleInstructionBatch monitoredBatch;
+
+    /**
+     * The batch returned for each batch read, counting the data of the
+     * batch most recently read as it is written. As the batch refers only
+     * to the state of this reader, the same batch is reused for every batch
+     * read.
+     */
+    private final GuacamoleInstructionBatch batch = new MonitoredBatch();
+
+    /**
+     * OutputStream which counts all data written before passing that data
+     * to the OutputStream given to the batch, or which discards that data
+     * if counting a view.
+     */
+    private final ScanningOutputStream scanningOutput = new ScanningOutputStream();
+
+    /**
+     * Writer which counts all data written before passing that data to the
+     * Writer given to the batch.
+     */
+    private final ScanningWriter scanningWriter = new ScanningWriter();
+
+    /**
+     * Creates a new MonitoredGuacamoleReader which counts all data read from
+     * the given GuacamoleReader within the given TrafficStatistics.
+     *
+     * @param reader The GuacamoleReader to monitor.
+     * @param statistics The TrafficStatistics to count all data within.
+     */
+    public MonitoredGuacamoleReader(GuacamoleReader reader,
+            TrafficStatistics statistics) {
+        this.reader = reader;
+        this.scanner = new InstructionScanner(statistics);
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        char[] chunk = reader.read();
+        if (chunk != null)
+            scanner.scan(chunk, 0, chunk.length);
+
+        return chunk;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction != null)
+            scanner.count(instruction);
+
+        return instruction;
+
+    }
+
+    @Override
+    public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+        GuacamoleInstructionView view = reader.readInstructionView();
+
+        // Count view without copying
+        if (view != null) {
+            try {
+                view.writeTo(scanningOutput);
+            }
+            catch (IOException e) {
+                throw new GuacamoleServerException(e);
+            }
+        }
+
+        return view;
+
+    }
+
+    @Override
+    public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+
+        monitoredBatch = reader.readBatch(maxLength);
+        if (monitoredBatch == null)
+            return null;
+
+        // Count batch as it is written
+        return batch;
+
+    }
+
+    /**
+     * The batch returned for each batch read, counting the data of the
+     * batch most recently read as it is written.
+     */
+    private class MonitoredBatch implements GuacamoleInstructionBatch {
+
+        @Override
+        public int getLength() {
+            return monitoredBatch.getLength();
+        }
+
+        @Override
+        public boolean isDrained() {
+            return monitoredBatch.isDrained();
+        }
+
+        @Override
+        public boolean isComplete() {
+            return monitoredBatch.isComplete();
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            scanningOutput.output = output;
+            try {
+                monitoredBatch.writeTo(scanningOutput);
+            }
+            finally {
+                scanningOutput.output = null;
+            }
+        }
+
+        @Override
+        public void writeTo(Writer output) throws IOException {
+            scanningWriter.output = output;
+            try {
+                monitoredBatch.writeTo(scanningWriter);
+            }
+            finally {
+                scanningWriter.output = null;
+            }
+        }
+
+    }
+
+    /**
+     * OutputStream which counts all data written before passing that data
+     * to another OutputStream, if any. The same ScanningOutputStream is
+     * reused for every batch and view.
+     */
+    private class ScanningOutputStream extends OutputStream {
+
+        /**
+         * The OutputStream to pass all data to, or null if data should be
+         * discarded.
+         */
+        private OutputStream output;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+
+            scanner.scan(buffer, offset, length);
+
+            if (output != null)
+                output.write(buffer, offset, length);
+
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null)
+                output.flush();
+        }
+
+    }
+
+    /**
+     * Writer which counts all data written before passing that data to
+     * another Writer. The same ScanningWriter is reused for every batch.
+     */
+    private class ScanningWriter extends Writer {
+
+        /**
+         * The Writer to pass all data to.
+         */
+        private Writer output;
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+                throws IOException {
+            scanner.scan(buffer, offset, length);
+            output.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+    }
+
+}
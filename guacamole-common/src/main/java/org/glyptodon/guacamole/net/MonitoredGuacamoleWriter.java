@@ -0,0 +1,103 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter which counts all data and instructions written to another
+ * GuacamoleWriter.
+ *
+ * @author Michael Jumper
+ */
+class MonitoredGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The GuacamoleWriter being monitored.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The InstructionScanner which counts all data written.
+     */
+    private final InstructionScanner scanner;
+
+    /**
+     * Creates a new MonitoredGuacamoleWriter which counts all data written to
+     * the given GuacamoleWriter within the given TrafficStatistics.
+     *
+     * @param writer The GuacamoleWriter to monitor.
+     * @param statistics The TrafficStatistics to count all data within.
+     */
+    public MonitoredGuacamoleWriter(GuacamoleWriter writer,
+            TrafficStatistics statistics) {
+        this.writer = writer;
+        this.scanner = new InstructionScanner(statistics);
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        writer.write(chunk, off, len);
+        scanner.scan(chunk, off, len);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void write(byte[] chunk, int off, int len) throws GuacamoleException {
+        writer.write(chunk, off, len);
+        scanner.scan(chunk, off, len);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+        writer.writeInstruction(instruction);
+        scanner.count(instruction);
+    }
+
+    @Override
+    public void flush() throws GuacamoleException {
+        writer.flush();
+    }
+
+}
@@ -0,0 +1,118 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * GuacamoleInstructionView of an already-parsed GuacamoleInstruction,
+ * allowing instructions created by filters to be handled in the same way as
+ * instructions read from the instruction stream. Unlike other views, a
+ * ParsedInstructionView remains valid indefinitely.
+ *
+ * @author Michael Jumper
+ */
+class ParsedInstructionView implements GuacamoleInstructionView {
+
+    /**
+     * The instruction being viewed.
+     */
+    private final GuacamoleInstruction instruction;
+
+    /**
+     * Creates a new ParsedInstructionView of the given instruction.
+     *
+     * @param instruction The instruction to view.
+     */
+    public ParsedInstructionView(GuacamoleInstruction instruction) {
+        this.instruction = instruction;
+    }
+
+    @Override
+    public String getOpcode() {
+        return instruction.getOpcode();
+    }
+
+    @Override
+    public GuacamoleOpcode getKnownOpcode() {
+        return instruction.getKnownOpcode();
+    }
+
+    @Override
+    public boolean isOpcode(String opcode) {
+        return instruction.getOpcode().equals(opcode);
+    }
+
+    @Override
+    public int getArgumentCount() {
+        return instruction.getArgs().size();
+    }
+
+    @Override
+    public String getArgument(int index) {
+        return instruction.getArgs().get(index);
+    }
+
+    @Override
+    public int getLength() {
+        return instruction.getEncodedLength();
+    }
+
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(instruction.toString().getBytes("UTF-8"));
+    }
+
+    @Override
+    public void writeTo(Writer output) throws IOException {
+        char[] buffer = new char[instruction.getEncodedLength()];
+        instruction.encode(buffer, 0);
+        output.write(buffer);
+    }
+
+    @Override
+    public GuacamoleInstruction toInstruction() {
+        return instruction;
+    }
+
+}
@@ -0,0 +1,292 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleSocketFactory which keeps a small number of sockets from another
+ * GuacamoleSocketFactory connected in advance, such that the time taken to
+ * connect, including any SSL/TLS handshake, is not spent when a socket is
+ * requested. Sockets taken from the pool are replaced in the background.
+ *
+ * As the Guacamole proxy server closes connections which do not begin the
+ * protocol handshake within its own timeout, sockets are only kept in the
+ * pool for a limited time, after which they are closed and replaced.
+ *
+ * @author Michael Jumper
+ */
+public class PooledGuacamoleSocketFactory implements GuacamoleSocketFactory {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(PooledGuacamoleSocketFactory.class);
+
+    /**
+     * The default number of milliseconds a connected socket may remain in
+     * the pool before being replaced. This is safely below the time guacd
+     * waits for the protocol handshake to begin.
+     */
+    public static final int DEFAULT_MAX_IDLE_TIME = 10000;
+
+    /**
+     * The factory used to create all pooled sockets.
+     */
+    private final GuacamoleSocketFactory factory;
+
+    /**
+     * The number of connected sockets to keep in the pool.
+     */
+    private final int size;
+
+    /**
+     * The number of milliseconds a connected socket may remain in the pool
+     * before being replaced.
+     */
+    private final int maxIdleTime;
+
+    /**
+     * All connected sockets currently in the pool, oldest first.
+     */
+    private final BlockingQueue<PooledSocket> pool;
+
+    /**
+     * The thread which connects new sockets and replaces expired sockets.
+     */
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Guacamole socket pool");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * Task which tops up the pool, replacing any expired sockets.
+     */
+    private final Runnable refill = new Runnable() {
+
+        @Override
+        public void run() {
+            refill();
+        }
+
+    };
+
+    /**
+     * A connected socket within the pool, along with the time it was
+     * connected.
+     */
+    private static class PooledSocket {
+
+        /**
+         * The connected socket.
+         */
+        private final GuacamoleSocket socket;
+
+        /**
+         * The time the socket was connected, in milliseconds since the
+         * epoch.
+         */
+        private final long connected = System.currentTimeMillis();
+
+        /**
+         * Creates a new PooledSocket wrapping the given socket, which has
+         * just been connected.
+         *
+         * @param socket The connected socket.
+         */
+        public PooledSocket(GuacamoleSocket socket) {
+            this.socket = socket;
+        }
+
+    }
+
+    /**
+     * Creates a new PooledGuacamoleSocketFactory which keeps the given number
+     * of sockets from the given factory connected in advance. Sockets are
+     * replaced after the default maximum idle time.
+     *
+     * @param factory The factory to use to create all pooled sockets.
+     * @param size The number of connected sockets to keep in the pool.
+     */
+    public PooledGuacamoleSocketFactory(GuacamoleSocketFactory factory,
+            int size) {
+        this(factory, size, DEFAULT_MAX_IDLE_TIME);
+    }
+
+    /**
+     * Creates a new PooledGuacamoleSocketFactory which keeps the given number
+     * of sockets from the given factory connected in advance, replacing each
+     * socket once it has been in the pool for the given amount of time.
+     *
+     * @param factory The factory to use to create all pooled sockets.
+     * @param size The number of connected sockets to keep in the pool.
+     * @param maxIdleTime The number of milliseconds a connected socket may
+     *                    remain in the pool before being replaced.
+     */
+    public PooledGuacamoleSocketFactory(GuacamoleSocketFactory factory,
+            int size, int maxIdleTime) {
+
+        this.factory = factory;
+        this.size = size;
+        this.maxIdleTime = maxIdleTime;
+        this.pool = new LinkedBlockingQueue<PooledSocket>(size);
+
+        // Fill pool, replacing expired sockets twice per idle period
+        executor.scheduleWithFixedDelay(refill, 0, Math.max(1, maxIdleTime / 2),
+                TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Returns whether the given pooled socket has been in the pool too long,
+     * or has been closed, and thus cannot be used.
+     *
+     * @param pooled The pooled socket to check.
+     * @return true if the given socket cannot be used, false otherwise.
+     */
+    private boolean isExpired(PooledSocket pooled) {
+        return System.currentTimeMillis() - pooled.connected >= maxIdleTime
+            || !pooled.socket.isOpen();
+    }
+
+    /**
+     * Closes the given pooled socket, logging any error.
+     *
+     * @param pooled The pooled socket to close.
+     */
+    private void close(PooledSocket pooled) {
+        try {
+            pooled.socket.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Error closing expired pooled socket.", e);
+        }
+    }
+
+    /**
+     * Closes and removes all expired sockets from the pool, and connects new
+     * sockets until the pool is full. If a socket cannot be connected, the
+     * pool is left partially filled until the next attempt.
+     */
+    private void refill() {
+
+        // Remove expired sockets. As sockets are added in order of age, only
+        // the head of the queue need be checked.
+        PooledSocket oldest;
+        while ((oldest = pool.peek()) != null && isExpired(oldest)) {
+            if (pool.remove(oldest))
+                close(oldest);
+        }
+
+        // Connect new sockets until full
+        while (pool.remainingCapacity() > 0) {
+
+            PooledSocket pooled;
+            try {
+                pooled = new PooledSocket(factory.createSocket());
+            }
+            catch (GuacamoleException e) {
+                logger.warn("Unable to connect pooled socket: {}", e.getMessage());
+                logger.debug("Error connecting pooled socket.", e);
+                return;
+            }
+
+            // Another thread cannot add to the pool, but close the socket
+            // regardless should the pool somehow be full
+            if (!pool.offer(pooled)) {
+                close(pooled);
+                return;
+            }
+
+        }
+
+    }
+
+    @Override
+    public GuacamoleSocket createSocket() throws GuacamoleException {
+
+        // Take the oldest usable socket, discarding any expired sockets
+        PooledSocket pooled;
+        while ((pooled = pool.poll()) != null) {
+
+            if (!isExpired(pooled)) {
+                executor.execute(refill);
+                return pooled.socket;
+            }
+
+            close(pooled);
+
+        }
+
+        // Connect directly if the pool is empty
+        executor.execute(refill);
+        return factory.createSocket();
+
+    }
+
+    /**
+     * Stops replacing sockets in the background and closes all sockets
+     * remaining in the pool. Sockets already returned by createSocket() are
+     * not affected. This factory must not be used after shutdown.
+     */
+    public void shutdown() {
+
+        executor.shutdownNow();
+
+        PooledSocket pooled;
+        while ((pooled = pool.poll()) != null)
+            close(pooled);
+
+    }
+
+}
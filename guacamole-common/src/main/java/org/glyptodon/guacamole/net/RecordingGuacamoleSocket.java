@@ -0,0 +1,435 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleSocket which records all instructions read from another
+ * GuacamoleSocket to a series of files, as UTF-8, exactly as received. The
+ * thread reading instructions only copies each instruction into a buffer,
+ * while a dedicated thread writes that buffer to disk, thus recording does
+ * not delay the delivery of instructions. Batches are recorded as they are
+ * written, thus batches which are read but never written are not recorded.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * The default size of the buffer holding data not yet written to disk,
+     * in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4194304;
+
+    /**
+     * The default size beyond which the recording continues in a new file,
+     * in bytes.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 268435456;
+
+    /**
+     * The default minimum number of milliseconds between the timestamps of
+     * consecutive index entries.
+     */
+    public static final long DEFAULT_INDEX_INTERVAL = 1000;
+
+    /**
+     * The GuacamoleSocket being recorded.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The RecordingWriter writing all recorded data to disk.
+     */
+    private final RecordingWriter recording;
+
+    /**
+     * The GuacamoleReader which records all data read.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * Creates a new RecordingGuacamoleSocket which records all instructions
+     * read from the given GuacamoleSocket to the given file, using the
+     * default buffer and file sizes and index interval.
+     *
+     * @param socket The GuacamoleSocket to record.
+     * @param path The path of the first file of the recording.
+     */
+    public RecordingGuacamoleSocket(GuacamoleSocket socket, File path) {
+        this(socket, path, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Creates a new RecordingGuacamoleSocket which records all instructions
+     * read from the given GuacamoleSocket to the given file, using the
+     * default index interval, as described by
+     * {@link #RecordingGuacamoleSocket(GuacamoleSocket, File, int, long, long)}.
+     *
+     * @param socket The GuacamoleSocket to record.
+     * @param path The path of the first file of the recording.
+     * @param bufferSize The size of the buffer holding data not yet written
+     *                   to disk, in bytes.
+     * @param maxFileSize The size beyond which the recording continues in a
+     *                    new file, in bytes.
+     */
+    public RecordingGuacamoleSocket(GuacamoleSocket socket, File path,
+            int bufferSize, long maxFileSize) {
+        this(socket, path, bufferSize, maxFileSize, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Creates a new RecordingGuacamoleSocket which records all instructions
+     * read from the given GuacamoleSocket to the given file. Once a file
+     * reaches the given maximum size, the recording continues at the next
+     * instruction boundary in a new file having ".1", ".2", etc. appended to
+     * the given path. If data is received faster than it can be written
+     * and the buffer overflows, recording stops and the failure is logged,
+     * but the connection is not otherwise affected.
+     *
+     * Unless disabled, the timestamp of each sync instruction is indexed,
+     * at most once per given interval, within a file having ".index"
+     * appended to the given path, such that the recording can be read
+     * from any indexed point using GuacamoleRecording.
+     *
+     * @param socket The GuacamoleSocket to record.
+     * @param path The path of the first file of the recording.
+     * @param bufferSize The size of the buffer holding data not yet written
+     *                   to disk, in bytes.
+     * @param maxFileSize The size beyond which the recording continues in a
+     *                    new file, in bytes.
+     * @param indexInterval The minimum number of milliseconds between the
+     *                      timestamps of consecutive index entries, or a
+     *                      negative value if the recording should not be
+     *                      indexed.
+     */
+    public RecordingGuacamoleSocket(GuacamoleSocket socket, File path,
+            int bufferSize, long maxFileSize, long indexInterval) {
+        this.socket = socket;
+        this.recording = new RecordingWriter(path, bufferSize, maxFileSize,
+                indexInterval);
+        this.reader = new RecordingReader(socket.getReader());
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return socket.getWriter();
+    }
+
+    /**
+     * Closes the underlying GuacamoleSocket and ends the recording. Data
+     * already recorded continues to be written to disk in the background.
+     *
+     * @throws GuacamoleException If an error occurs while closing the
+     *                            underlying GuacamoleSocket.
+     */
+    @Override
+    public void close() throws GuacamoleException {
+
+        try {
+            socket.close();
+        }
+
+        // Always end recording
+        finally {
+            recording.close();
+        }
+
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * Records the given characters, encoded as UTF-8.
+     *
+     * @param chunk The characters to record.
+     */
+    private void record(String chunk) {
+
+        try {
+            byte[] data = chunk.getBytes("UTF-8");
+            recording.append(data, 0, data.length);
+        }
+
+        // Should never happen
+        catch (UnsupportedEncodingException e) {
+            throw new UnsupportedOperationException("Unexpected lack of UTF-8 support.", e);
+        }
+
+    }
+
+    /**
+     * GuacamoleReader which records all data read from another
+     * GuacamoleReader.
+     */
+    private class RecordingReader implements GuacamoleReader {
+
+        /**
+         * The GuacamoleReader being recorded.
+         */
+        private final GuacamoleReader reader;
+
+        /**
+         * OutputStream which records all data written to it, discarding that
+         * data.
+         */
+        private final OutputStream recorder = new RecordingOutputStream(null);
+
+        /**
+         * Creates a new RecordingReader which records all data read from the
+         * given GuacamoleReader.
+         *
+         * @param reader The GuacamoleReader to record.
+         */
+        public RecordingReader(GuacamoleReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean available() throws GuacamoleException {
+            return reader.available();
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+
+            char[] chunk = reader.read();
+            if (chunk != null) {
+                record(new String(chunk));
+                recording.markBoundary();
+            }
+
+            return chunk;
+
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+            GuacamoleInstruction instruction = reader.readInstruction();
+            if (instruction != null) {
+                record(instruction.toString());
+                recording.markBoundary();
+            }
+
+            return instruction;
+
+        }
+
+        @Override
+        public GuacamoleInstructionView readInstructionView() throws GuacamoleException {
+
+            GuacamoleInstructionView view = reader.readInstructionView();
+
+            // Record view without copying
+            if (view != null) {
+
+                try {
+                    view.writeTo(recorder);
+                }
+                catch (IOException e) {
+                    throw new GuacamoleServerException(e);
+                }
+
+                recording.markBoundary();
+
+            }
+
+            return view;
+
+        }
+
+        @Override
+        public GuacamoleInstructionBatch readBatch(int maxLength) throws GuacamoleException {
+
+            final GuacamoleInstructionBatch batch = reader.readBatch(maxLength);
+            if (batch == null)
+                return null;
+
+            // Record batch as it is written
+            return new GuacamoleInstructionBatch() {
+
+                @Override
+                public int getLength() {
+                    return batch.getLength();
+                }
+
+                @Override
+                public boolean isDrained() {
+                    return batch.isDrained();
+                }
+
+                @Override
+                public boolean isComplete() {
+                    return batch.isComplete();
+                }
+
+                @Override
+                public void writeTo(OutputStream output) throws IOException {
+
+                    batch.writeTo(new RecordingOutputStream(output));
+
+                    if (batch.isComplete())
+                        recording.markBoundary();
+
+                }
+
+                @Override
+                public void writeTo(Writer output) throws IOException {
+
+                    batch.writeTo(new RecordingWriterAdapter(output));
+
+                    if (batch.isComplete())
+                        recording.markBoundary();
+
+                }
+
+            };
+
+        }
+
+    }
+
+    /**
+     * OutputStream which records all data written before passing that data
+     * to another OutputStream.
+     */
+    private class RecordingOutputStream extends OutputStream {
+
+        /**
+         * The OutputStream to pass all data to, or null if data should be
+         * discarded.
+         */
+        private final OutputStream output;
+
+        /**
+         * Creates a new RecordingOutputStream which passes all data to the
+         * given OutputStream.
+         *
+         * @param output The OutputStream to pass all data to, or null if data
+         *               should be discarded.
+         */
+        public RecordingOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+
+            recording.append(buffer, offset, length);
+
+            if (output != null)
+                output.write(buffer, offset, length);
+
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null)
+                output.flush();
+        }
+
+    }
+
+    /**
+     * Writer which records all data written before passing that data to
+     * another Writer.
+     */
+    private class RecordingWriterAdapter extends Writer {
+
+        /**
+         * The Writer to pass all data to.
+         */
+        private final Writer output;
+
+        /**
+         * Creates a new RecordingWriterAdapter which passes all data to the
+         * given Writer.
+         *
+         * @param output The Writer to pass all data to.
+         */
+        public RecordingWriterAdapter(Writer output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+                throws IOException {
+            record(new String(buffer, offset, length));
+            output.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a recorded instruction stream for "sync" instructions, appending
+ * the timestamp of each to an index along with the offset of the
+ * instruction which follows it. Each line of the index is of the form
+ * "TIMESTAMP,OFFSET", where OFFSET is the number of bytes preceding that
+ * point within the recording, counting all files of the recording as one
+ * continuous stream. As each sync marks the end of a frame, playback may
+ * begin at any indexed offset without beginning partway through an
+ * instruction.
+ *
+ * @author Michael Jumper
+ */
+class RecordingIndexer extends SyncScanner {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(RecordingIndexer.class);
+
+    /**
+     * The index file.
+     */
+    private final File path;
+
+    /**
+     * The minimum number of milliseconds between the timestamps of
+     * consecutive index entries.
+     */
+    private final long interval;
+
+    /**
+     * The stream writing to the index file, or null if indexing has failed.
+     */
+    private OutputStream output;
+
+    /**
+     * The timestamp of the most recent index entry, or -1 if no entries have
+     * been written.
+     */
+    private long lastTimestamp = -1;
+
+    /**
+     * Creates a new RecordingIndexer which appends to the given index file.
+     *
+     * @param path The index file to append to.
+     * @param interval The minimum number of milliseconds between the
+     *                 timestamps of consecutive index entries.
+     * @throws IOException If the index file cannot be opened.
+     */
+    public RecordingIndexer(File path, long interval) throws IOException {
+        this.path = path;
+        this.interval = interval;
+        this.output = new FileOutputStream(path, true);
+    }
+
+    @Override
+    protected void handleSync(long timestamp) {
+
+        // Index at most once per interval, unless indexing has failed
+        if (output == null
+                || (lastTimestamp != -1 && timestamp - lastTimestamp < interval))
+            return;
+
+        // Playback may begin immediately after the sync
+        try {
+            output.write((timestamp + "," + getPosition() + "\n").getBytes("US-ASCII"));
+            output.flush();
+            lastTimestamp = timestamp;
+        }
+        catch (IOException e) {
+            logger.error("Indexing of recording stopped due to write error: {}", e.getMessage());
+            logger.debug("Unable to write recording index \"" + path + "\".", e);
+            close();
+        }
+
+    }
+
+    /**
+     * Closes the index file. No further entries will be written.
+     */
+    public void close() {
+
+        if (output == null)
+            return;
+
+        try {
+            output.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close recording index.", e);
+        }
+
+        output = null;
+
+    }
+
+}
@@ -0,0 +1,400 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends a recorded instruction stream to a series of files using a
+ * dedicated thread. Data is added to a circular buffer without locking or
+ * waiting, and is written to disk by the dedicated thread, thus recording
+ * never delays the thread producing the data. A single thread may add data
+ * at any one time. If the buffer overflows, because data is produced faster
+ * than it can be written, recording stops and the failure is logged.
+ *
+ * Once the current file reaches the maximum file size, the recording
+ * continues in a new file at the next instruction boundary. The first file
+ * is named exactly as given, while subsequent files have ".1", ".2", etc.
+ * appended to that name. If requested, the timestamps of sync instructions
+ * are indexed as the recording is written, within a file having ".index"
+ * appended to the name of the first file.
+ *
+ * @author Michael Jumper
+ */
+class RecordingWriter {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(RecordingWriter.class);
+
+    /**
+     * The number of nanoseconds the writer thread waits for new data before
+     * checking again, in case a wakeup was missed.
+     */
+    private static final long MAX_PARK_TIME = 100000000;
+
+    /**
+     * The path of the first file of the recording.
+     */
+    private final File path;
+
+    /**
+     * The size beyond which no further data is written to the current file
+     * once an instruction boundary is reached, in bytes.
+     */
+    private final long maxFileSize;
+
+    /**
+     * Circular buffer containing all data not yet written. The length of
+     * this buffer is always a power of two.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The total number of bytes ever added to the buffer. Only ever updated
+     * by the producing thread.
+     */
+    private volatile long written = 0;
+
+    /**
+     * The total number of bytes ever removed from the buffer and written to
+     * disk. Only ever updated by the writer thread.
+     */
+    private volatile long read = 0;
+
+    /**
+     * The value of written as of the end of the last complete instruction
+     * added.
+     */
+    private volatile long boundary = 0;
+
+    /**
+     * Whether the recording has been closed, and the writer thread should
+     * stop once all data has been written.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Whether the recording has failed. Once failed, no further data is
+     * accepted.
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * The minimum number of milliseconds between index entries, or a
+     * negative value if the recording should not be indexed.
+     */
+    private final long indexInterval;
+
+    /**
+     * The thread writing data to disk.
+     */
+    private final Thread thread;
+
+    /**
+     * Creates a new RecordingWriter which records to the given file,
+     * starting the thread which writes to disk.
+     *
+     * @param path The path of the first file of the recording.
+     * @param bufferSize The minimum size of the buffer holding data not yet
+     *                   written, in bytes. This is rounded up to the next
+     *                   power of two.
+     * @param maxFileSize The size beyond which no further data is written
+     *                    to the current file once an instruction boundary is
+     *                    reached, in bytes.
+     * @param indexInterval The minimum number of milliseconds between the
+     *                      timestamps of index entries, or a negative value
+     *                      if the recording should not be indexed.
+     */
+    public RecordingWriter(File path, int bufferSize, long maxFileSize,
+            long indexInterval) {
+
+        this.path = path;
+        this.maxFileSize = maxFileSize;
+        this.indexInterval = indexInterval;
+
+        // Round buffer size up to power of two, such that positions can be
+        // masked rather than divided
+        int size = Integer.highestOneBit(Math.max(1, bufferSize));
+        if (size < bufferSize)
+            size <<= 1;
+
+        this.buffer = new byte[size];
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeAll();
+            }
+
+        }, "Guacamole recording writer");
+
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    /**
+     * Returns the path of the file with the given index within the
+     * recording.
+     *
+     * @param index The index of the file.
+     * @return The path of the file with the given index.
+     */
+    public File getFile(int index) {
+
+        if (index == 0)
+            return path;
+
+        return new File(path.getPath() + "." + index);
+
+    }
+
+    /**
+     * Returns the path of the index of the recording, which may not exist
+     * if the recording is not indexed.
+     *
+     * @param path The path of the first file of the recording.
+     * @return The path of the index of the recording.
+     */
+    public static File getIndexFile(File path) {
+        return new File(path.getPath() + ".index");
+    }
+
+    /**
+     * Adds the given data to the recording without waiting. If insufficient
+     * space is available, recording stops. Only one thread may call this
+     * function at any one time.
+     *
+     * @param data The buffer containing the data to add.
+     * @param offset The offset of the first byte to add.
+     * @param length The number of bytes to add.
+     */
+    public void append(byte[] data, int offset, int length) {
+
+        if (failed || closed)
+            return;
+
+        long position = written;
+
+        // Stop recording if the writer thread cannot keep up
+        if (length > buffer.length - (position - read)) {
+            logger.error("Recording to \"{}\" stopped, as data cannot be written quickly enough.", path);
+            failed = true;
+            LockSupport.unpark(thread);
+            return;
+        }
+
+        // Copy to buffer, wrapping around if necessary
+        int start = (int) (position & (buffer.length - 1));
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(data, offset, buffer, start, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+
+        // Publish data to writer thread
+        written = position + length;
+        LockSupport.unpark(thread);
+
+    }
+
+    /**
+     * Notes that all data added so far ends at an instruction boundary, at
+     * which the recording may continue in a new file. Only the thread
+     * adding data may call this function.
+     */
+    public void markBoundary() {
+        boundary = written;
+    }
+
+    /**
+     * Ends the recording. All data already added is written to disk in the
+     * background, after which the current file is closed.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Writes the given range of the buffer to the given channel, wrapping
+     * around the end of the buffer if necessary, indexing that range first
+     * if an indexer is given.
+     *
+     * @param channel The channel to write to.
+     * @param indexer The RecordingIndexer to pass the range to, or null if
+     *                the recording is not indexed.
+     * @param start The position of the first byte to write.
+     * @param end The position following the last byte to write.
+     * @throws IOException If an error occurs while writing.
+     */
+    private void write(FileChannel channel, RecordingIndexer indexer,
+            long start, long end) throws IOException {
+
+        int length = (int) (end - start);
+        int offset = (int) (start & (buffer.length - 1));
+        int first = Math.min(length, buffer.length - offset);
+
+        if (indexer != null) {
+            indexer.scan(buffer, offset, first);
+            indexer.scan(buffer, 0, length - first);
+        }
+
+        ByteBuffer[] pieces = {
+            ByteBuffer.wrap(buffer, offset, first),
+            ByteBuffer.wrap(buffer, 0, length - first)
+        };
+
+        // Write both pieces fully
+        while (pieces[0].hasRemaining() || pieces[1].hasRemaining())
+            channel.write(pieces);
+
+    }
+
+    /**
+     * Opens the file with the given index for appending.
+     *
+     * @param index The index of the file to open.
+     * @return A channel for appending to the file with the given index.
+     * @throws IOException If the file cannot be opened.
+     */
+    private FileChannel open(int index) throws IOException {
+        return new FileOutputStream(getFile(index), true).getChannel();
+    }
+
+    /**
+     * Writes all data added to disk as it becomes available, until the
+     * recording is closed or fails.
+     */
+    private void writeAll() {
+
+        int index = 0;
+        FileChannel channel = null;
+        RecordingIndexer indexer = null;
+
+        try {
+
+            channel = open(index);
+
+            // Index recording if requested
+            if (indexInterval >= 0)
+                indexer = new RecordingIndexer(getIndexFile(path), indexInterval);
+
+            long fileSize = channel.size();
+
+            while (true) {
+
+                long start = read;
+                long end = written;
+
+                // Wait for data, unless the recording has ended
+                if (start == end) {
+
+                    if (closed || failed)
+                        break;
+
+                    LockSupport.parkNanos(this, MAX_PARK_TIME);
+                    continue;
+
+                }
+
+                // Begin next file once the current file is full, continuing
+                // until the most recent instruction boundary
+                if (fileSize >= maxFileSize) {
+
+                    long nextBoundary = boundary;
+
+                    // At boundary, start next file
+                    if (nextBoundary == start) {
+                        channel.close();
+                        channel = open(++index);
+                        fileSize = channel.size();
+                    }
+
+                    // Otherwise, write only up to boundary
+                    else if (nextBoundary > start)
+                        end = nextBoundary;
+
+                }
+
+                // Do not pass the maximum size unless necessary to reach a
+                // boundary
+                else
+                    end = Math.min(end, start + maxFileSize - fileSize);
+
+                write(channel, indexer, start, end);
+                fileSize += end - start;
+                read = end;
+
+            }
+
+        }
+        catch (IOException e) {
+            logger.error("Recording to \"{}\" stopped due to write error: {}", path, e.getMessage());
+            logger.debug("Unable to write recording.", e);
+            failed = true;
+        }
+
+        // Always close current file and index
+        finally {
+
+            if (indexer != null)
+                indexer.close();
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    logger.debug("Unable to close recording.", e);
+                }
+            }
+
+        }
+
+    }
+
+}
@@ -38,20 +38,18 @@ package org.glyptodon.guacamole.net;
  * ***** END LICENSE BLOCK ***** */
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
-import org.glyptodon.guacamole.io.ReaderGuacamoleReader;
-import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+import org.glyptodon.guacamole.io.OutputStreamGuacamoleWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,7 +91,9 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
     /**
      * Creates a new SSLGuacamoleSocket which reads and writes instructions
      * to the Guacamole instruction stream of the Guacamole proxy server
-     * running at the given hostname and port using SSL.
+     * running at the given hostname and port using SSL. Consecutive
+     * writes are coalesced for up to {@link InetGuacamoleSocket#DEFAULT_FLUSH_DELAY}
+     * milliseconds.
      *
      * @param hostname The hostname of the Guacamole proxy server to connect to.
      * @param port The port of the Guacamole proxy server to connect to.
@@ -101,10 +101,57 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
      *                            Guacamole proxy server.
      */
     public SSLGuacamoleSocket(String hostname, int port) throws GuacamoleException {
+        this(hostname, port, InetGuacamoleSocket.DEFAULT_FLUSH_DELAY);
+    }
+
+    /**
+     * Creates a new SSLGuacamoleSocket which reads and writes instructions
+     * to the Guacamole instruction stream of the Guacamole proxy server
+     * running at the given hostname and port using SSL, coalescing writes for
+     * up to the given number of milliseconds.
+     *
+     * @param hostname The hostname of the Guacamole proxy server to connect to.
+     * @param port The port of the Guacamole proxy server to connect to.
+     * @param flushDelay The maximum number of milliseconds that data written
+     *                   to the Guacamole proxy server may be held before
+     *                   being sent, or zero to send every write immediately.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public SSLGuacamoleSocket(String hostname, int port,
+            int flushDelay) throws GuacamoleException {
+        this(hostname, port, (SSLSocketFactory) SSLSocketFactory.getDefault(),
+                null, null, flushDelay);
+    }
+
+    /**
+     * Creates a new SSLGuacamoleSocket which reads and writes instructions
+     * to the Guacamole instruction stream of the Guacamole proxy server
+     * running at the given hostname and port using SSL, coalescing writes for
+     * up to the given number of milliseconds. The SSL/TLS connection is
+     * created using the given SSLSocketFactory, typically obtained from an
+     * SSLContext shared by all connections, such that sessions previously
+     * negotiated with the same server can be resumed rather than requiring
+     * a full handshake.
+     *
+     * @param hostname The hostname of the Guacamole proxy server to connect to.
+     * @param port The port of the Guacamole proxy server to connect to.
+     * @param sslSocketFactory The SSLSocketFactory to use to create the
+     *                         SSL/TLS connection.
+     * @param protocols The SSL/TLS protocols to enable, or null to use the
+     *                  defaults of the given SSLSocketFactory.
+     * @param cipherSuites The cipher suites to enable, or null to use the
+     *                     defaults of the given SSLSocketFactory.
+     * @param flushDelay The maximum number of milliseconds that data written
+     *                   to the Guacamole proxy server may be held before
+     *                   being sent, or zero to send every write immediately.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public SSLGuacamoleSocket(String hostname, int port,
+            SSLSocketFactory sslSocketFactory, String[] protocols,
+            String[] cipherSuites, int flushDelay) throws GuacamoleException {
 
-        // Get factory for SSL sockets
-        SocketFactory socket_factory = SSLSocketFactory.getDefault();
-        
         try {
 
             logger.debug("Connecting to guacd at {}:{} via SSL/TLS.",
@@ -117,15 +164,47 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
             );
 
             // Connect with timeout
-            sock = socket_factory.createSocket();
-            sock.connect(address, SOCKET_TIMEOUT);
-
-            // Set read timeout
-            sock.setSoTimeout(SOCKET_TIMEOUT);
-
-            // On successful connect, retrieve I/O streams
-            reader = new ReaderGuacamoleReader(new InputStreamReader(sock.getInputStream(),   "UTF-8"));
-            writer = new WriterGuacamoleWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+            Socket plainSock = new Socket();
+            plainSock.connect(address, SOCKET_TIMEOUT);
+
+            try {
+
+                // Layer SSL/TLS over connected socket. Providing the hostname
+                // and port allows cached sessions with the same server to be
+                // resumed.
+                SSLSocket sslSock = (SSLSocket) sslSocketFactory.createSocket(
+                        plainSock, hostname, port, true);
+
+                // Restrict protocols and cipher suites if specified
+                if (protocols != null)
+                    sslSock.setEnabledProtocols(protocols);
+
+                if (cipherSuites != null)
+                    sslSock.setEnabledCipherSuites(cipherSuites);
+
+                sock = sslSock;
+
+                // Set read timeout
+                sock.setSoTimeout(SOCKET_TIMEOUT);
+
+                // Complete SSL/TLS handshake now, rather than upon first use
+                sslSock.startHandshake();
+
+            }
+            catch (IOException e) {
+                plainSock.close();
+                throw e;
+            }
+            catch (IllegalArgumentException e) {
+                plainSock.close();
+                throw new GuacamoleServerException("Unsupported SSL/TLS protocol or cipher suite.", e);
+            }
+
+            // On successful connect, retrieve I/O streams. Instructions are
+            // read and written as raw UTF-8.
+            reader = new InputStreamGuacamoleReader(sock.getInputStream());
+            writer = new OutputStreamGuacamoleWriter(sock.getOutputStream(),
+                    flushDelay);
 
         }
         catch (IOException e) {
@@ -0,0 +1,467 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.OutputStreamGuacamoleWriter;
+import org.glyptodon.guacamole.io.QueuedGuacamoleReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides abstract socket-like access to a Guacamole connection over a given
+ * hostname and port, using a non-blocking SocketChannel serviced by a
+ * GuacamoleSelector. No thread is dedicated to the connection: data
+ * received from guacd is read by the selector thread directly into the
+ * QueuedGuacamoleReader of this socket, which locates the end of each
+ * instruction as the data arrives, and data written to this socket is
+ * queued and sent by the selector thread. Batches read from this socket are
+ * returned directly from that queue, without copying or parsing again, and
+ * reading from guacd continues regardless of whether anything is reading
+ * from this socket, thus this socket needs no separate read pump.
+ *
+ * The only remaining wait is that of the consumer for data to arrive in the
+ * queue, such as a servlet thread holding open an HTTP long-poll. Releasing
+ * that thread requires asynchronous request processing, which the Servlet
+ * 2.5 API does not provide.
+ *
+ * @author Michael Jumper
+ */
+public class SelectorGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(SelectorGuacamoleSocket.class);
+
+    /**
+     * The number of milliseconds to wait for data from guacd, or for space
+     * to queue data for guacd, before timing out.
+     */
+    private static final int SOCKET_TIMEOUT = 15000;
+
+    /**
+     * The size of the buffers holding received data and data waiting to be
+     * sent, in bytes.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The queue receiving all data read from guacd, which is also the
+     * GuacamoleReader of this socket.
+     */
+    private final QueuedGuacamoleReader reader;
+
+    /**
+     * The GuacamoleWriter this socket should write to.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * The GuacamoleSelector servicing the channel of this socket.
+     */
+    private final GuacamoleSelector selector;
+
+    /**
+     * The non-blocking channel connected to guacd.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The registration of the channel with the Selector of the
+     * GuacamoleSelector, or null if not yet registered. This is only
+     * accessed by the selector thread.
+     */
+    private SelectionKey key;
+
+    /**
+     * Data written to this socket which has not yet been sent to guacd. This
+     * buffer is always left ready for further data to be added.
+     */
+    private final ByteBuffer outbound = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Whether guacd has closed its end of the connection.
+     */
+    private boolean endOfStream = false;
+
+    /**
+     * The error which caused the connection to fail, if any.
+     */
+    private IOException error;
+
+    /**
+     * Creates a new SelectorGuacamoleSocket which reads and writes
+     * instructions to the Guacamole instruction stream of the Guacamole proxy
+     * server running at the given hostname and port, using the shared
+     * default GuacamoleSelector.
+     *
+     * @param hostname The hostname of the Guacamole proxy server to connect to.
+     * @param port The port of the Guacamole proxy server to connect to.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public SelectorGuacamoleSocket(String hostname, int port)
+            throws GuacamoleException {
+        this(hostname, port, GuacamoleSelector.getDefault(),
+                InetGuacamoleSocket.DEFAULT_FLUSH_DELAY);
+    }
+
+    /**
+     * Creates a new SelectorGuacamoleSocket which reads and writes
+     * instructions to the Guacamole instruction stream of the Guacamole proxy
+     * server running at the given hostname and port, using the given
+     * GuacamoleSelector and coalescing writes for up to the given number of
+     * milliseconds.
+     *
+     * @param hostname The hostname of the Guacamole proxy server to connect to.
+     * @param port The port of the Guacamole proxy server to connect to.
+     * @param selector The GuacamoleSelector which should service the
+     *                 connection.
+     * @param flushDelay The maximum number of milliseconds that data written
+     *                   to the Guacamole proxy server may be held before
+     *                   being sent, or zero to send every write immediately.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public SelectorGuacamoleSocket(String hostname, int port,
+            GuacamoleSelector selector, int flushDelay)
+            throws GuacamoleException {
+
+        this.selector = selector;
+
+        try {
+
+            logger.debug("Connecting to guacd at {}:{} (non-blocking).", hostname, port);
+
+            // Get address
+            SocketAddress address = new InetSocketAddress(
+                    InetAddress.getByName(hostname),
+                    port
+            );
+
+            // Connect with timeout, switching to non-blocking mode only once
+            // connected
+            channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, SOCKET_TIMEOUT);
+                channel.configureBlocking(false);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+        // Data is received directly into the queue read by consumers,
+        // resuming receipt whenever a full queue is read
+        reader = new QueuedGuacamoleReader(BUFFER_SIZE, SOCKET_TIMEOUT) {
+
+            @Override
+            protected void handleSpaceAvailable() {
+                SelectorGuacamoleSocket.this.selector.update(SelectorGuacamoleSocket.this);
+            }
+
+        };
+
+        // Instructions are written as raw UTF-8 through the outbound buffer
+        writer = new OutputStreamGuacamoleWriter(new ChannelOutputStream(), flushDelay);
+
+        // Begin receiving data
+        selector.update(this);
+
+    }
+
+    /**
+     * Returns the interest set the channel should currently be registered
+     * with. Data is received only while there is space to store it, and sent
+     * only while there is data to send. The caller must hold the lock on this
+     * socket.
+     *
+     * @return The interest set the channel should currently be registered
+     *         with.
+     */
+    private int getInterestOps() {
+
+        int ops = 0;
+
+        if (!endOfStream && reader.hasSpace())
+            ops |= SelectionKey.OP_READ;
+
+        if (outbound.position() > 0)
+            ops |= SelectionKey.OP_WRITE;
+
+        return ops;
+
+    }
+
+    /**
+     * Registers the channel of this socket with the given Selector, or
+     * updates its existing registration, according to the current state of
+     * this socket. This function must only be called by the selector thread.
+     *
+     * @param nioSelector The Selector to register with.
+     */
+    synchronized void updateRegistration(Selector nioSelector) {
+
+        // Nothing to do once closed
+        if (!channel.isOpen())
+            return;
+
+        try {
+
+            if (key == null)
+                key = channel.register(nioSelector, getInterestOps(), this);
+            else if (key.isValid())
+                key.interestOps(getInterestOps());
+
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+
+        // Channel was closed concurrently, which cancels its registration
+        catch (CancelledKeyException e) {
+            logger.debug("Registration of closed channel not updated.", e);
+        }
+
+    }
+
+    /**
+     * Reads and writes as much data as the channel of this socket and the
+     * buffers of this socket allow, waking any threads waiting on those
+     * buffers. This function must only be called by the selector thread.
+     *
+     * @param readyKey The registration of the channel, which has been
+     *                 selected as ready.
+     */
+    synchronized void handleReady(SelectionKey readyKey) {
+
+        try {
+
+            // Receive data from guacd directly into the queue, which signals
+            // end of stream or invalid data to consumers itself
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                if (reader.receive(channel) == -1)
+                    endOfStream = true;
+            }
+
+            // Send queued data to guacd
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                outbound.flip();
+                channel.write(outbound);
+                outbound.compact();
+            }
+
+            // Update interest based on new state
+            if (readyKey.isValid())
+                readyKey.interestOps(getInterestOps());
+
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+
+        // Channel was closed concurrently, which cancels its registration
+        catch (CancelledKeyException e) {
+            logger.debug("Ready channel closed before being handled.", e);
+        }
+
+        notifyAll();
+
+    }
+
+    /**
+     * Marks this socket as failed due to the given error, closing its
+     * channel. Any threads waiting on this socket will be woken, and the
+     * error will be thrown by any subsequent read or write.
+     *
+     * @param e The error which caused the failure.
+     */
+    synchronized void fail(IOException e) {
+
+        if (error == null)
+            error = e;
+
+        // Consumers see the failure once all complete instructions are read
+        reader.end(new GuacamoleServerException("Connection to guacd failed.", e));
+
+        try {
+            channel.close();
+        }
+        catch (IOException closeError) {
+            logger.debug("Error closing failed channel.", closeError);
+        }
+
+        notifyAll();
+
+    }
+
+    /**
+     * Throws the error which caused this socket to fail, if any, or an error
+     * indicating that the socket is closed, if closed. The caller must hold
+     * the lock on this socket.
+     *
+     * @throws IOException If this socket has failed or is closed.
+     */
+    private void checkOpen() throws IOException {
+
+        if (error != null)
+            throw new IOException("Connection to guacd failed.", error);
+
+        if (!channel.isOpen())
+            throw new IOException("Connection to guacd is closed.");
+
+    }
+
+    /**
+     * OutputStream which queues data to be sent by the selector thread.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+
+            synchronized (SelectorGuacamoleSocket.this) {
+
+                while (len > 0) {
+
+                    // Wait for space in queue
+                    long deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+                    while (!outbound.hasRemaining()) {
+
+                        checkOpen();
+
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0)
+                            throw new SocketTimeoutException("Write timed out");
+
+                        try {
+                            SelectorGuacamoleSocket.this.wait(remaining);
+                        }
+                        catch (InterruptedException e) {
+                            throw new IOException("Interrupted while waiting to send data.", e);
+                        }
+
+                    }
+
+                    checkOpen();
+
+                    // Queue as much data as possible
+                    boolean wasEmpty = outbound.position() == 0;
+                    int length = Math.min(len, outbound.remaining());
+                    outbound.put(data, off, length);
+                    off += length;
+                    len -= length;
+
+                    // Begin sending if queue was empty
+                    if (wasEmpty)
+                        selector.update(SelectorGuacamoleSocket.this);
+
+                }
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        logger.debug("Closing socket to guacd.");
+
+        synchronized (this) {
+
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                throw new GuacamoleServerException(e);
+            }
+
+            // Wake any threads waiting on this socket, discarding any
+            // unread data
+            finally {
+                reader.close();
+                notifyAll();
+            }
+
+        }
+
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+}
@@ -0,0 +1,423 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.ArrayList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.QueuedGuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleSocket which shares the instruction stream of another
+ * GuacamoleSocket with any number of read-only viewers. A dedicated thread
+ * reads from the underlying GuacamoleSocket and adds everything read to the
+ * queue of this GuacamoleSocket and of each viewer. This GuacamoleSocket
+ * has full control of the connection, and its queue applies backpressure to
+ * the underlying GuacamoleSocket once full. Viewers cannot slow the
+ * connection: a viewer whose queue cannot accept further data is
+ * disconnected. Nothing written by viewers is sent to the underlying
+ * GuacamoleSocket.
+ *
+ * Viewers receive the instruction stream from the start of the next
+ * instruction after they are created. As the Guacamole protocol provides no
+ * means of requesting that the remote display be redrawn, a viewer created
+ * after the connection has begun will only see what is drawn after it
+ * joins.
+ *
+ * @author Michael Jumper
+ */
+public class SharedGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(SharedGuacamoleSocket.class);
+
+    /**
+     * The length beyond which no further instructions will be added to a
+     * single batch read from the underlying GuacamoleSocket, unless limited
+     * further by the queue length.
+     */
+    private static final int MAX_BATCH_LENGTH = 8192;
+
+    /**
+     * The length beyond which no further instructions will be added to a
+     * single batch read from the underlying GuacamoleSocket. Batches are
+     * kept well below the queue length, such that a viewer which is keeping
+     * up always has room for the next batch.
+     */
+    private final int maxBatchLength;
+
+    /**
+     * The GuacamoleSocket being shared.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The maximum number of bytes which may be queued for each reader.
+     */
+    private final int maxQueueLength;
+
+    /**
+     * The queue read by the GuacamoleReader of this GuacamoleSocket.
+     */
+    private final QueuedGuacamoleReader reader;
+
+    /**
+     * All viewers currently receiving the instruction stream.
+     */
+    private final List<Viewer> viewers = new ArrayList<Viewer>();
+
+    /**
+     * All viewers which will begin receiving the instruction stream at the
+     * start of the next instruction.
+     */
+    private final List<Viewer> pendingViewers = new ArrayList<Viewer>();
+
+    /**
+     * Whether the instruction stream has ended. Once ended, no further
+     * viewers may be added.
+     */
+    private boolean ended = false;
+
+    /**
+     * Creates a new SharedGuacamoleSocket which shares the instruction stream
+     * of the given GuacamoleSocket, queueing up to
+     * {@link QueuedGuacamoleReader#DEFAULT_MAX_QUEUE_LENGTH} bytes for each
+     * reader.
+     *
+     * @param socket The GuacamoleSocket to share.
+     */
+    public SharedGuacamoleSocket(GuacamoleSocket socket) {
+        this(socket, QueuedGuacamoleReader.DEFAULT_MAX_QUEUE_LENGTH);
+    }
+
+    /**
+     * Creates a new SharedGuacamoleSocket which shares the instruction stream
+     * of the given GuacamoleSocket, queueing up to the given number of bytes
+     * for each reader. The thread which reads from the given GuacamoleSocket
+     * is started immediately.
+     *
+     * @param socket The GuacamoleSocket to share.
+     * @param maxQueueLength The maximum number of bytes which may be queued
+     *                       for each reader. Viewers falling further behind
+     *                       than this are disconnected.
+     */
+    public SharedGuacamoleSocket(GuacamoleSocket socket, int maxQueueLength) {
+
+        this.socket = socket;
+        this.maxQueueLength = maxQueueLength;
+        this.maxBatchLength = Math.max(1, Math.min(MAX_BATCH_LENGTH, maxQueueLength / 4));
+        this.reader = new QueuedGuacamoleReader(maxQueueLength);
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                broadcast();
+            }
+
+        }, "Guacamole shared session");
+
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    /**
+     * Reads from the underlying GuacamoleSocket until end of stream, error,
+     * or until this GuacamoleSocket is closed, adding all data read to the
+     * queue of this GuacamoleSocket and of each viewer.
+     */
+    private void broadcast() {
+
+        GuacamoleException failure = null;
+
+        try {
+
+            GuacamoleReader source = socket.getReader();
+            GuacamoleInstructionBatch batch;
+
+            // Whether the next batch begins at the start of an instruction
+            boolean complete = true;
+
+            while ((batch = source.readBatch(maxBatchLength)) != null) {
+
+                // Wait for space in own queue, such that the connection
+                // proceeds at the pace of its primary reader
+                reader.add(batch);
+
+                synchronized (this) {
+
+                    // New viewers start receiving data at the start of the
+                    // next instruction
+                    if (complete) {
+                        viewers.addAll(pendingViewers);
+                        pendingViewers.clear();
+                    }
+
+                    // Drop any viewers unable to accept data without waiting
+                    for (int i = viewers.size() - 1; i >= 0; i--) {
+                        Viewer viewer = viewers.get(i);
+                        if (!viewer.offer(batch)) {
+                            logger.info("Disconnecting viewer unable to keep up with shared connection.");
+                            viewers.remove(i);
+                            viewer.end(new GuacamoleServerException("Viewer unable to keep up with shared connection."));
+                        }
+                    }
+
+                    complete = batch.isComplete();
+
+                }
+
+            }
+
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Shared connection ended due to error.", e);
+            failure = e;
+        }
+
+        // Signal end of stream to everyone
+        reader.end(failure);
+
+        synchronized (this) {
+
+            ended = true;
+
+            for (Viewer viewer : viewers)
+                viewer.end(failure);
+
+            for (Viewer viewer : pendingViewers)
+                viewer.end(failure);
+
+            viewers.clear();
+            pendingViewers.clear();
+
+        }
+
+    }
+
+    /**
+     * Creates a new read-only viewer of the instruction stream of this
+     * GuacamoleSocket. The viewer receives all instructions read from the
+     * underlying GuacamoleSocket, beginning with the next instruction
+     * started. Anything written to the viewer is discarded.
+     *
+     * @return A new GuacamoleSocket providing read-only access to the
+     *         instruction stream of this GuacamoleSocket.
+     */
+    public synchronized GuacamoleSocket createViewer() {
+
+        Viewer viewer = new Viewer();
+
+        // If the stream has already ended, so has the viewer
+        if (ended)
+            viewer.end(null);
+        else
+            pendingViewers.add(viewer);
+
+        return viewer;
+
+    }
+
+    /**
+     * Returns the number of viewers currently attached to this
+     * GuacamoleSocket.
+     *
+     * @return The number of viewers currently attached.
+     */
+    public synchronized int getViewerCount() {
+        return viewers.size() + pendingViewers.size();
+    }
+
+    /**
+     * Stops sending the instruction stream to the given viewer.
+     *
+     * @param viewer The viewer to remove.
+     */
+    private synchronized void removeViewer(Viewer viewer) {
+        viewers.remove(viewer);
+        pendingViewers.remove(viewer);
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return socket.getWriter();
+    }
+
+    /**
+     * Closes the underlying GuacamoleSocket, disconnecting all viewers.
+     *
+     * @throws GuacamoleException If an error occurs while closing the
+     *                            underlying GuacamoleSocket.
+     */
+    @Override
+    public void close() throws GuacamoleException {
+
+        try {
+            socket.close();
+        }
+
+        // Discard any queued data
+        finally {
+            reader.close();
+        }
+
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * A read-only viewer of the instruction stream, receiving a copy of all
+     * data read from the underlying GuacamoleSocket.
+     */
+    private class Viewer implements GuacamoleSocket {
+
+        /**
+         * The queue read by the GuacamoleReader of this viewer.
+         */
+        private final QueuedGuacamoleReader queue =
+                new QueuedGuacamoleReader(maxQueueLength);
+
+        /**
+         * Whether this viewer has been closed.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * GuacamoleWriter which discards all data, such that viewers cannot
+         * send input or otherwise affect the connection.
+         */
+        private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+            @Override
+            public void write(char[] chunk, int off, int len) {
+            }
+
+            @Override
+            public void write(char[] chunk) {
+            }
+
+            @Override
+            public void write(byte[] chunk, int off, int len) {
+            }
+
+            @Override
+            public void writeInstruction(GuacamoleInstruction instruction) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+        };
+
+        /**
+         * Adds the given batch to the queue of this viewer, only if the
+         * entire batch can be added without waiting. The batch is copied
+         * directly into the queue along with its boundary, and is not parsed
+         * again unless read as individual instructions.
+         *
+         * @param batch The batch to add.
+         * @return true if the batch was added, false otherwise.
+         */
+        public boolean offer(GuacamoleInstructionBatch batch) {
+
+            try {
+                return queue.offer(batch);
+            }
+
+            // Closed viewers need no further data
+            catch (GuacamoleException e) {
+                return true;
+            }
+
+        }
+
+        /**
+         * Signals that no further data will be sent to this viewer.
+         *
+         * @param failure The error which should be seen by this viewer once
+         *                all queued data has been read, or null if this
+         *                viewer should simply see end of stream.
+         */
+        public void end(GuacamoleException failure) {
+            queue.end(failure);
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return queue;
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            removeViewer(this);
+            queue.close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && SharedGuacamoleSocket.this.isOpen();
+        }
+
+    }
+
+}
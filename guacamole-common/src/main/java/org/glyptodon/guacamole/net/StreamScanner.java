@@ -0,0 +1,264 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleParser;
+
+/**
+ * Locates the boundaries of Guacamole instructions within arbitrary chunks
+ * of a Guacamole instruction stream, passing the characters of the leading
+ * elements of each instruction to handleCharacter() and the location of
+ * each instruction to handleInstruction(). Chunks need not begin or end at
+ * instruction boundaries. Locations are measured in bytes, as the data would
+ * be encoded in UTF-8. Data which is not a valid instruction is skipped.
+ *
+ * @author Michael Jumper
+ */
+abstract class StreamScanner {
+
+    /**
+     * The parser locating each instruction within the chunks scanned.
+     */
+    private final GuacamoleParser parser;
+
+    /**
+     * The number of bytes counted so far, including the bytes of the chunk
+     * currently being scanned up to the location given by counted.
+     */
+    private long position = 0;
+
+    /**
+     * The location within the chunk currently being scanned up to which
+     * bytes have been counted.
+     */
+    private int counted = 0;
+
+    /**
+     * The UTF-16 chunk currently being scanned, or null if the chunk
+     * currently being scanned is UTF-8, in which case each unit of the chunk
+     * is a byte.
+     */
+    private char[] chars;
+
+    /**
+     * The location in bytes of the start of the current instruction.
+     */
+    private long instructionStart = 0;
+
+    /**
+     * Creates a new StreamScanner which passes each character of the given
+     * number of leading elements of each instruction to handleCharacter().
+     *
+     * @param characterElements The number of leading elements of each
+     *                          instruction whose characters should be passed
+     *                          to handleCharacter(), where the opcode is the
+     *                          first element.
+     */
+    public StreamScanner(int characterElements) {
+
+        parser = new GuacamoleParser(characterElements) {
+
+            @Override
+            protected void handleCharacter(int element, int c) {
+                StreamScanner.this.handleCharacter(element, c);
+            }
+
+            @Override
+            protected boolean handleInstruction(int terminator) {
+
+                long end = advance(terminator + 1);
+                StreamScanner.this.handleInstruction(end, end - instructionStart);
+                instructionStart = end;
+
+                return true;
+
+            }
+
+            @Override
+            protected void handleError(String message) {
+                handleInvalid();
+            }
+
+        };
+
+    }
+
+    /**
+     * Called for each character of content within the leading elements of
+     * each instruction, as configured when this scanner was created. Only
+     * the first unit (UTF-16 character or byte) of each character is passed,
+     * thus any value of 0x80 or greater is not ASCII. By default, this
+     * function does nothing.
+     *
+     * @param element The index of the element containing the character,
+     *                where the opcode is element zero.
+     * @param c The first unit of the character.
+     */
+    protected void handleCharacter(int element, int c) {
+    }
+
+    /**
+     * Called for each complete instruction located.
+     *
+     * @param end The location in bytes immediately following the
+     *            instruction.
+     * @param length The length of the instruction in bytes, including any
+     *               invalid data skipped since the previous instruction.
+     */
+    protected abstract void handleInstruction(long end, long length);
+
+    /**
+     * Called when data which is not a valid instruction is skipped. Scanning
+     * resumes as if at the start of a new instruction. By default, this
+     * function does nothing.
+     */
+    protected void handleInvalid() {
+    }
+
+    /**
+     * Returns the number of bytes scanned so far.
+     *
+     * @return The number of bytes scanned so far.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Counts the bytes of the chunk currently being scanned up to the given
+     * location, returning the resulting position.
+     *
+     * @param location The location within the chunk to count up to.
+     * @return The number of bytes scanned up to the given location.
+     */
+    private long advance(int location) {
+
+        // Each UTF-16 character is counted as it would be encoded in UTF-8
+        if (chars != null)
+            position += getEncodedLength(chars, counted, location);
+        else
+            position += location - counted;
+
+        counted = location;
+        return position;
+
+    }
+
+    /**
+     * Returns the number of bytes the given UTF-16 characters would occupy
+     * if encoded in UTF-8, where each half of a surrogate pair accounts for
+     * two bytes.
+     *
+     * @param chunk The buffer containing the characters.
+     * @param start The location of the first character.
+     * @param end The location immediately following the last character.
+     * @return The number of bytes the characters would occupy in UTF-8.
+     */
+    private static long getEncodedLength(char[] chunk, int start, int end) {
+
+        long length = 0;
+        for (int i = start; i < end; i++) {
+
+            char c = chunk[i];
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800
+                    || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+                length += 2;
+            else
+                length += 3;
+
+        }
+
+        return length;
+
+    }
+
+    /**
+     * Scans the given chunk of UTF-8 data.
+     *
+     * @param chunk The buffer containing the data to scan.
+     * @param offset The offset of the first byte to scan.
+     * @param length The number of bytes to scan.
+     */
+    public void scan(byte[] chunk, int offset, int length) {
+
+        chars = null;
+        counted = offset;
+
+        try {
+            parser.parse(chunk, offset, length);
+        }
+
+        // Invalid data is skipped rather than rejected
+        catch (GuacamoleException e) {
+            throw new IllegalStateException(e);
+        }
+
+        advance(offset + length);
+
+    }
+
+    /**
+     * Scans the given chunk of UTF-16 data.
+     *
+     * @param chunk The buffer containing the data to scan.
+     * @param offset The offset of the first character to scan.
+     * @param length The number of characters to scan.
+     */
+    public void scan(char[] chunk, int offset, int length) {
+
+        chars = chunk;
+        counted = offset;
+
+        try {
+            parser.parse(chunk, offset, length);
+        }
+
+        // Invalid data is skipped rather than rejected
+        catch (GuacamoleException e) {
+            throw new IllegalStateException(e);
+        }
+
+        advance(offset + length);
+        chars = null;
+
+    }
+
+}
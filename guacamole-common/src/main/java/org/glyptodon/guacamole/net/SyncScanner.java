@@ -0,0 +1,140 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+/**
+ * Locates "sync" instructions within arbitrary chunks of a Guacamole
+ * instruction stream, passing the timestamp of each to handleSync(). Chunks
+ * need not begin or end at instruction boundaries.
+ *
+ * @author Michael Jumper
+ */
+abstract class SyncScanner extends StreamScanner {
+
+    /**
+     * The opcode of the instructions located.
+     */
+    private static final String SYNC = "sync";
+
+    /**
+     * The maximum number of digits of timestamp accepted.
+     */
+    private static final int MAX_TIMESTAMP_DIGITS = 18;
+
+    /**
+     * The number of characters of opcode scanned so far which match the
+     * opcode of "sync", or -1 if the opcode does not match.
+     */
+    private int opcodeMatched = 0;
+
+    /**
+     * The timestamp scanned so far.
+     */
+    private long timestamp = 0;
+
+    /**
+     * The number of digits of timestamp scanned so far, or -1 if the
+     * timestamp is not a valid number.
+     */
+    private int timestampDigits = 0;
+
+    /**
+     * Creates a new SyncScanner which inspects the opcode and first argument
+     * of each instruction.
+     */
+    public SyncScanner() {
+        super(2);
+    }
+
+    /**
+     * Called for each complete "sync" instruction located.
+     *
+     * @param timestamp The timestamp of the "sync" instruction.
+     */
+    protected abstract void handleSync(long timestamp);
+
+    /**
+     * Resets the scanner to the beginning of a new instruction.
+     */
+    private void resetInstruction() {
+        opcodeMatched = 0;
+        timestamp = 0;
+        timestampDigits = 0;
+    }
+
+    @Override
+    protected void handleCharacter(int element, int c) {
+
+        // Match content of opcode
+        if (element == 0) {
+            if (opcodeMatched != -1) {
+                if (opcodeMatched < SYNC.length() && c == SYNC.charAt(opcodeMatched))
+                    opcodeMatched++;
+                else
+                    opcodeMatched = -1;
+            }
+        }
+
+        // Parse timestamp
+        else if (timestampDigits != -1) {
+            if (c >= '0' && c <= '9' && timestampDigits < MAX_TIMESTAMP_DIGITS) {
+                timestamp = timestamp * 10 + c - '0';
+                timestampDigits++;
+            }
+            else
+                timestampDigits = -1;
+        }
+
+    }
+
+    @Override
+    protected void handleInstruction(long end, long length) {
+
+        if (opcodeMatched == SYNC.length() && timestampDigits > 0)
+            handleSync(timestamp);
+
+        resetInstruction();
+
+    }
+
+    @Override
+    protected void handleInvalid() {
+        resetInstruction();
+    }
+
+}
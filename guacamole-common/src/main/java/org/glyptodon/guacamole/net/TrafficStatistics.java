@@ -0,0 +1,190 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.glyptodon.guacamole.protocol.GuacamoleOpcode;
+
+/**
+ * Counts of the data and instructions passing in one direction through one
+ * or more tunnels. Counts may be shared with a parent TrafficStatistics,
+ * such that the parent reflects the total of all its children.
+ *
+ * @author Michael Jumper
+ */
+class TrafficStatistics {
+
+    /**
+     * The TrafficStatistics to which all counts are also added, or null if
+     * counts are not shared.
+     */
+    private final TrafficStatistics parent;
+
+    /**
+     * The total length of all data counted, in bytes.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * The total number of complete instructions counted.
+     */
+    private final AtomicLong instructions = new AtomicLong();
+
+    /**
+     * The total length of all complete instructions counted, in bytes,
+     * indexed by opcode ordinal. The final entry contains the total for all
+     * instructions whose opcodes are not known.
+     */
+    private final AtomicLongArray opcodeBytes =
+            new AtomicLongArray(GuacamoleOpcode.values().length + 1);
+
+    /**
+     * The time at which data was last counted, in milliseconds since the
+     * epoch, or zero if no data has been counted.
+     */
+    private volatile long lastActivity = 0;
+
+    /**
+     * Creates a new TrafficStatistics which also adds all counts to the given
+     * parent TrafficStatistics.
+     *
+     * @param parent The TrafficStatistics to which all counts should also be
+     *               added, or null if counts should not be shared.
+     */
+    public TrafficStatistics(TrafficStatistics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Counts the given number of bytes, which need not contain complete
+     * instructions.
+     *
+     * @param length The number of bytes to count.
+     */
+    public void addBytes(long length) {
+
+        bytes.addAndGet(length);
+        lastActivity = System.currentTimeMillis();
+
+        if (parent != null)
+            parent.addBytes(length);
+
+    }
+
+    /**
+     * Counts a single complete instruction having the given opcode and
+     * length. The bytes of that instruction must be counted separately with
+     * addBytes().
+     *
+     * @param opcode The opcode of the instruction, or null if the opcode is
+     *               not known.
+     * @param length The length of the instruction, in bytes.
+     */
+    public void addInstruction(GuacamoleOpcode opcode, long length) {
+
+        instructions.incrementAndGet();
+
+        int index = (opcode != null) ? opcode.ordinal() : opcodeBytes.length() - 1;
+        opcodeBytes.addAndGet(index, length);
+
+        if (parent != null)
+            parent.addInstruction(opcode, length);
+
+    }
+
+    /**
+     * Returns the total length of all data counted, in bytes.
+     *
+     * @return The total length of all data counted, in bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the total number of complete instructions counted.
+     *
+     * @return The total number of complete instructions counted.
+     */
+    public long getInstructions() {
+        return instructions.get();
+    }
+
+    /**
+     * Returns the total length of all complete instructions counted, in
+     * bytes, for each opcode seen. Instructions whose opcodes are not known
+     * are totalled under an empty opcode.
+     *
+     * @return The total length of all complete instructions counted, in
+     *         bytes, by opcode.
+     */
+    public Map<String, Long> getBytesByOpcode() {
+
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+
+        // Add totals of known opcodes
+        for (GuacamoleOpcode opcode : GuacamoleOpcode.values()) {
+            long total = opcodeBytes.get(opcode.ordinal());
+            if (total != 0)
+                totals.put(opcode.getValue(), total);
+        }
+
+        // Add total of unknown opcodes
+        long unknown = opcodeBytes.get(opcodeBytes.length() - 1);
+        if (unknown != 0)
+            totals.put("", unknown);
+
+        return totals;
+
+    }
+
+    /**
+     * Returns the time at which data was last counted, in milliseconds since
+     * the epoch.
+     *
+     * @return The time at which data was last counted, or zero if no data
+     *         has been counted.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+}
@@ -40,9 +40,13 @@ package org.glyptodon.guacamole.protocol;
 import java.util.List;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
 import org.glyptodon.guacamole.io.GuacamoleReader;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
+import org.glyptodon.guacamole.net.GuacamoleSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A GuacamoleSocket which pre-configures the connection based on a given
@@ -58,6 +62,11 @@ import org.glyptodon.guacamole.net.GuacamoleSocket;
  */
 public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(ConfiguredGuacamoleSocket.class);
+
     /**
      * The wrapped socket.
      */
@@ -107,26 +116,177 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         this.socket = socket;
         this.config = config;
 
-        // Get reader and writer
-        GuacamoleReader reader = socket.getReader();
-        GuacamoleWriter writer = socket.getWriter();
+        // Send protocol and wait for server args
+        selectProtocol();
+        List<String> argNames = readArgs();
+
+        // Send remainder of handshake together
+        sendConnect(argNames, info);
+        socket.getWriter().flush();
+
+    }
+
+    /**
+     * Creates a new ConfiguredGuacamoleSocket which uses the given
+     * GuacamoleConfiguration and GuacamoleClientInformation to complete the
+     * initial protocol handshake over the given GuacamoleSocket, which this
+     * ConfiguredGuacamoleSocket takes ownership of. If the arguments the
+     * server requests for the configured protocol are already cached, the
+     * entire handshake is sent at once, without waiting for the server to
+     * request those arguments, saving a round trip. Should the arguments
+     * actually requested differ from those cached, that connection is
+     * closed, and the handshake is completed normally over a new connection
+     * obtained from the given GuacamoleSocketFactory. If the handshake fails,
+     * the connection is closed.
+     *
+     * Because connection parameters are sent in the order the cached
+     * arguments dictate, a server which has changed its arguments will
+     * briefly receive parameters in the wrong order before its connection is
+     * closed. The GuacamoleArgsCache given must thus contain only arguments
+     * requested by the server the given GuacamoleSocket is connected to.
+     *
+     * @param socket The GuacamoleSocket to wrap.
+     * @param argsCache The GuacamoleArgsCache of arguments previously
+     *                  requested by the server the given GuacamoleSocket is
+     *                  connected to, which will be updated with the
+     *                  arguments requested during this handshake.
+     * @param factory The GuacamoleSocketFactory to obtain a new
+     *                GuacamoleSocket from should the cached arguments prove
+     *                incorrect.
+     * @param config The GuacamoleConfiguration to use to complete the initial
+     *               protocol handshake.
+     * @param info The GuacamoleClientInformation to use to complete the initial
+     *             protocol handshake.
+     * @throws GuacamoleException If an error occurs while connecting or while
+     *                            completing the initial protocol handshake.
+     */
+    public ConfiguredGuacamoleSocket(GuacamoleSocket socket,
+            GuacamoleArgsCache argsCache, GuacamoleSocketFactory factory,
+            GuacamoleConfiguration config, GuacamoleClientInformation info)
+            throws GuacamoleException {
+
+        this.socket = socket;
+        this.config = config;
+
+        try {
+
+            String protocol = config.getProtocol();
+            List<String> cachedArgNames = argsCache.getArgs(protocol);
+
+            // If args are known, send entire handshake at once, then verify
+            if (cachedArgNames != null) {
+
+                selectProtocol();
+                sendConnect(cachedArgNames, info);
+                socket.getWriter().flush();
+
+                // Handshake complete if args were as expected
+                List<String> argNames = readArgs();
+                if (argNames.equals(cachedArgNames))
+                    return;
+
+                logger.warn("Arguments of protocol \"{}\" have changed. Retrying connection.", protocol);
+                argsCache.putArgs(protocol, argNames);
+
+                // Otherwise, abandon connection and start over. The new
+                // connection may be to a different server, thus its args
+                // are not cached.
+                this.socket = null;
+                socket.close();
+                this.socket = factory.createSocket();
+
+                selectProtocol();
+                sendConnect(readArgs(), info);
+                this.socket.getWriter().flush();
+                return;
+
+            }
 
-        // Send protocol
-        writer.writeInstruction(new GuacamoleInstruction("select", config.getProtocol()));
+            // Complete handshake normally, caching args for next time
+            selectProtocol();
+            List<String> argNames = readArgs();
+            argsCache.putArgs(protocol, argNames);
+
+            sendConnect(argNames, info);
+            socket.getWriter().flush();
+
+        }
+
+        // Close any connection which did not complete the handshake
+        catch (GuacamoleException e) {
+
+            if (this.socket != null) {
+                try {
+                    this.socket.close();
+                }
+                catch (GuacamoleException closeError) {
+                    logger.debug("Unable to close connection after failed handshake.", closeError);
+                }
+            }
+
+            throw e;
+
+        }
+
+    }
+
+    /**
+     * Sends the "select" instruction selecting the configured protocol,
+     * without flushing.
+     *
+     * @throws GuacamoleException If an error occurs while sending the
+     *                            instruction.
+     */
+    private void selectProtocol() throws GuacamoleException {
+        socket.getWriter().writeInstruction(new GuacamoleInstruction(
+                GuacamoleOpcode.SELECT, config.getProtocol()));
+    }
+
+    /**
+     * Flushes any pending data and waits for the server to request
+     * arguments, returning the names of those arguments.
+     *
+     * @return The names of the arguments requested by the server.
+     * @throws GuacamoleException If an error occurs while reading, or if the
+     *                            server closes the connection before
+     *                            requesting arguments.
+     */
+    private List<String> readArgs() throws GuacamoleException {
+
+        socket.getWriter().flush();
 
         // Wait for server args
-        GuacamoleInstruction instruction;
+        GuacamoleReader reader = socket.getReader();
+        GuacamoleInstructionView view;
         do {
 
             // Read instruction, fail if end-of-stream
-            instruction = reader.readInstruction();
-            if (instruction == null)
+            view = reader.readInstructionView();
+            if (view == null)
                 throw new GuacamoleServerException("End of stream during initial handshake.");
 
-        } while (!instruction.getOpcode().equals("args"));
+        } while (view.getKnownOpcode() != GuacamoleOpcode.ARGS);
+
+        return view.toInstruction().getArgs();
+
+    }
+
+    /**
+     * Sends the remainder of the handshake following the server request for
+     * the given arguments, without flushing.
+     *
+     * @param arg_names The names of the arguments requested by the server.
+     * @param info The GuacamoleClientInformation to use to complete the initial
+     *             protocol handshake.
+     * @throws GuacamoleException If an error occurs while sending the
+     *                            handshake.
+     */
+    private void sendConnect(List<String> arg_names,
+            GuacamoleClientInformation info) throws GuacamoleException {
+
+        GuacamoleWriter writer = socket.getWriter();
 
         // Build args list off provided names and config
-        List<String> arg_names = instruction.getArgs();
         String[] arg_values = new String[arg_names.size()];
         for (int i=0; i<arg_names.size(); i++) {
 
@@ -147,7 +307,7 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         // Send size
         writer.writeInstruction(
             new GuacamoleInstruction(
-                "size",
+                GuacamoleOpcode.SIZE,
                 Integer.toString(info.getOptimalScreenWidth()),
                 Integer.toString(info.getOptimalScreenHeight())
             )
@@ -156,19 +316,19 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         // Send supported audio formats
         writer.writeInstruction(
                 new GuacamoleInstruction(
-                    "audio",
+                    GuacamoleOpcode.AUDIO,
                     info.getAudioMimetypes().toArray(new String[0])
                 ));
 
         // Send supported video formats
         writer.writeInstruction(
                 new GuacamoleInstruction(
-                    "video",
+                    GuacamoleOpcode.VIDEO,
                     info.getVideoMimetypes().toArray(new String[0])
                 ));
 
         // Send args
-        writer.writeInstruction(new GuacamoleInstruction("connect", arg_values));
+        writer.writeInstruction(new GuacamoleInstruction(GuacamoleOpcode.CONNECT, arg_values));
 
     }
 
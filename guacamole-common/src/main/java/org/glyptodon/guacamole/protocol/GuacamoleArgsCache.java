@@ -0,0 +1,99 @@
+
+package org.glyptodon.guacamole.protocol;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the arguments a Guacamole proxy server requests for each
+ * protocol during the initial protocol handshake, allowing later handshakes
+ * with the same server to send all connection parameters without first
+ * waiting for those arguments. As the arguments requested may change
+ * between versions of the server, a separate cache should be used for each
+ * server, and any cached arguments must be verified against those actually
+ * requested.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleArgsCache {
+
+    /**
+     * The arguments last requested for each protocol, indexed by protocol
+     * name.
+     */
+    private final ConcurrentMap<String, List<String>> args =
+            new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * Returns the arguments last requested by the server for the given
+     * protocol, if known.
+     *
+     * @param protocol The name of the protocol.
+     * @return An unmodifiable list of the arguments last requested for the
+     *         given protocol, or null if not known.
+     */
+    public List<String> getArgs(String protocol) {
+        return args.get(protocol);
+    }
+
+    /**
+     * Records the arguments requested by the server for the given protocol,
+     * replacing any arguments previously recorded.
+     *
+     * @param protocol The name of the protocol.
+     * @param protocolArgs The arguments requested for the given protocol.
+     */
+    public void putArgs(String protocol, List<String> protocolArgs) {
+        args.put(protocol, Collections.unmodifiableList(
+                new ArrayList<String>(protocolArgs)));
+    }
+
+    /**
+     * Forgets the arguments recorded for the given protocol, if any.
+     *
+     * @param protocol The name of the protocol.
+     */
+    public void removeArgs(String protocol) {
+        args.remove(protocol);
+    }
+
+}
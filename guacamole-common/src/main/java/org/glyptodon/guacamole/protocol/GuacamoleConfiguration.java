@@ -45,7 +45,9 @@ import java.util.Set;
 
 /**
  * All information necessary to complete the initial protocol handshake of a
- * Guacamole session.
+ * Guacamole session. Copies of a GuacamoleConfiguration share its parameters
+ * until either is modified, and an immutable, canonical copy suitable for
+ * sharing between any number of users can be obtained via intern().
  *
  * @author Michael Jumper
  */
@@ -54,7 +56,7 @@ public class GuacamoleConfiguration implements Serializable {
     /**
      * Identifier unique to this version of GuacamoleConfiguration.
      */
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     /**
      * The name of the protocol associated with this configuration.
@@ -62,9 +64,132 @@ public class GuacamoleConfiguration implements Serializable {
     private String protocol;
 
     /**
-     * Map of all associated parameter values, indexed by parameter name.
+     * Map of all associated parameter values, indexed by parameter name, or
+     * null if the parameters of this configuration are currently stored
+     * in their shared, immutable form.
      */
-    private Map<String, String> parameters = new HashMap<String, String>();
+    private Map<String, String> parameters;
+
+    /**
+     * The shared, immutable parameters of this configuration, or null if
+     * this configuration has its own Map of parameters.
+     */
+    private GuacamoleParameters sharedParameters;
+
+    /**
+     * Whether this configuration may not be modified.
+     */
+    private final boolean immutable;
+
+    /**
+     * Creates a new, empty GuacamoleConfiguration.
+     */
+    public GuacamoleConfiguration() {
+        parameters = new HashMap<String, String>();
+        immutable = false;
+    }
+
+    /**
+     * Creates a new GuacamoleConfiguration having the same protocol and
+     * parameters as the given GuacamoleConfiguration. The new configuration
+     * is mutable, regardless of whether the given configuration is mutable.
+     * If the given configuration has been interned, the parameters of that
+     * configuration will not be copied until the new configuration is
+     * modified.
+     *
+     * @param config The GuacamoleConfiguration to copy.
+     */
+    public GuacamoleConfiguration(GuacamoleConfiguration config) {
+
+        protocol = config.protocol;
+        immutable = false;
+
+        // Share immutable parameters, copying only upon modification
+        if (config.parameters == null)
+            sharedParameters = config.sharedParameters;
+        else
+            parameters = new HashMap<String, String>(config.parameters);
+
+    }
+
+    /**
+     * Creates a new, immutable GuacamoleConfiguration having the given
+     * protocol and shared parameters.
+     *
+     * @param protocol The name of the protocol to be used.
+     * @param sharedParameters The parameters of the new configuration.
+     */
+    private GuacamoleConfiguration(String protocol,
+            GuacamoleParameters sharedParameters) {
+        this.protocol = protocol;
+        this.sharedParameters = sharedParameters;
+        this.immutable = true;
+    }
+
+    /**
+     * Returns an immutable GuacamoleConfiguration having the same protocol
+     * and parameters as this configuration. The protocol and parameter names
+     * of the returned configuration are interned, and its parameters are
+     * shared with every other interned configuration having identical
+     * parameters, thus any number of equivalent interned configurations
+     * occupy the memory of only one. Attempts to modify the returned
+     * configuration will fail with an UnsupportedOperationException.
+     *
+     * @return An immutable, interned GuacamoleConfiguration equivalent to
+     *         this configuration.
+     */
+    public GuacamoleConfiguration intern() {
+
+        // Already interned
+        if (immutable)
+            return this;
+
+        // Reuse canonical parameters if still shared
+        GuacamoleParameters canonical;
+        if (parameters == null)
+            canonical = sharedParameters;
+        else
+            canonical = GuacamoleParameters.intern(new GuacamoleParameters(parameters));
+
+        return new GuacamoleConfiguration(
+            protocol != null ? protocol.intern() : null,
+            canonical
+        );
+
+    }
+
+    /**
+     * Returns whether this configuration may be modified. Configurations
+     * returned by intern() are immutable.
+     *
+     * @return true if this configuration may be modified, false otherwise.
+     */
+    public boolean isMutable() {
+        return !immutable;
+    }
+
+    /**
+     * Returns the Map of parameters of this configuration, copying any shared
+     * parameters first such that the Map returned may be modified.
+     *
+     * @return The modifiable Map of parameters of this configuration.
+     * @throws UnsupportedOperationException If this configuration is
+     *                                       immutable.
+     */
+    private Map<String, String> getModifiableParameters() {
+
+        if (immutable)
+            throw new UnsupportedOperationException("Interned configurations cannot be modified.");
+
+        // Copy shared parameters on first modification
+        if (parameters == null) {
+            parameters = sharedParameters.toMap();
+            sharedParameters = null;
+        }
+
+        return parameters;
+
+    }
 
     /**
      * Returns the name of the protocol to be used.
@@ -77,9 +202,16 @@ public class GuacamoleConfiguration implements Serializable {
     /**
      * Sets the name of the protocol to be used.
      * @param protocol The name of the protocol to be used.
+     * @throws UnsupportedOperationException If this configuration is
+     *                                       immutable.
      */
     public void setProtocol(String protocol) {
+
+        if (immutable)
+            throw new UnsupportedOperationException("Interned configurations cannot be modified.");
+
         this.protocol = protocol;
+
     }
 
     /**
@@ -89,7 +221,12 @@ public class GuacamoleConfiguration implements Serializable {
      *         that parameter has not been set.
      */
     public String getParameter(String name) {
+
+        if (parameters == null)
+            return sharedParameters.get(name);
+
         return parameters.get(name);
+
     }
 
     /**
@@ -97,18 +234,22 @@ public class GuacamoleConfiguration implements Serializable {
      *
      * @param name The name of the parameter to set the value for.
      * @param value The value to set for the parameter with the given name.
+     * @throws UnsupportedOperationException If this configuration is
+     *                                       immutable.
      */
     public void setParameter(String name, String value) {
-        parameters.put(name, value);
+        getModifiableParameters().put(name, value);
     }
 
     /**
      * Removes the value set for the parameter with the given name.
      *
      * @param name The name of the parameter to remove the value of.
+     * @throws UnsupportedOperationException If this configuration is
+     *                                       immutable.
      */
     public void unsetParameter(String name) {
-        parameters.remove(name);
+        getModifiableParameters().remove(name);
     }
 
     /**
@@ -119,7 +260,12 @@ public class GuacamoleConfiguration implements Serializable {
      * @return A set of all currently defined parameter names.
      */
     public Set<String> getParameterNames() {
+
+        if (parameters == null)
+            return sharedParameters.getNames();
+
         return Collections.unmodifiableSet(parameters.keySet());
+
     }
 
 }
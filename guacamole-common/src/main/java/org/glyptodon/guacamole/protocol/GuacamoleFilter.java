@@ -0,0 +1,83 @@
+
+package org.glyptodon.guacamole.protocol;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+
+/**
+ * Filter which is invoked for each instruction passing through a
+ * FilteredGuacamoleSocket in the direction the filter was installed for.
+ * Filters are invoked in order, each deciding the fate of the instruction
+ * through the GuacamoleFilterChain given:
+ *
+ * <ul>
+ * <li>To pass the instruction unchanged, the filter forwards the view it
+ *     was given. The instruction is then passed on exactly as received,
+ *     without copying or re-encoding.</li>
+ * <li>To drop the instruction, the filter forwards nothing.</li>
+ * <li>To rewrite the instruction, the filter forwards a new
+ *     GuacamoleInstruction in its place.</li>
+ * <li>To inject instructions, the filter forwards new GuacamoleInstructions
+ *     before or after forwarding the view it was given.</li>
+ * </ul>
+ *
+ * Everything forwarded passes through the remaining filters of the chain,
+ * in the order forwarded.
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleFilter {
+
+    /**
+     * Filters the given instruction, forwarding any instructions which
+     * should take its place along the given chain. The view given is only
+     * valid for the duration of this call; any data which must be retained
+     * must be copied out, for example with toInstruction().
+     *
+     * @param instruction The instruction to filter.
+     * @param chain The chain along which any instructions which should take
+     *              the place of the given instruction must be forwarded.
+     * @throws GuacamoleException If an error occurs while filtering the
+     *                            instruction, or if the instruction is not
+     *                            allowed and the connection should fail.
+     */
+    public void filter(GuacamoleInstructionView instruction,
+            GuacamoleFilterChain chain) throws GuacamoleException;
+
+}
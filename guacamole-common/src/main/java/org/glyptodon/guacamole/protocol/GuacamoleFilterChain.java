@@ -0,0 +1,77 @@
+
+package org.glyptodon.guacamole.protocol;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+
+/**
+ * The remainder of an ordered chain of GuacamoleFilters, along which a
+ * filter forwards the instructions which should take the place of the
+ * instruction it is filtering. Instructions forwarded past the last filter
+ * of the chain are sent on to their destination.
+ *
+ * @author Michael Jumper
+ */
+public interface GuacamoleFilterChain {
+
+    /**
+     * Passes the given view along to the next filter in the chain, or to
+     * the destination of the chain if there are no further filters. When the
+     * view given is the view being filtered, the instruction is passed on
+     * without being copied or re-encoded.
+     *
+     * @param instruction The instruction to pass along.
+     * @throws GuacamoleException If an error occurs while filtering or
+     *                            sending the instruction.
+     */
+    public void forward(GuacamoleInstructionView instruction)
+            throws GuacamoleException;
+
+    /**
+     * Passes the given instruction along to the next filter in the chain,
+     * or to the destination of the chain if there are no further filters.
+     *
+     * @param instruction The instruction to pass along.
+     * @throws GuacamoleException If an error occurs while filtering or
+     *                            sending the instruction.
+     */
+    public void forward(GuacamoleInstruction instruction)
+            throws GuacamoleException;
+
+}
@@ -49,11 +49,38 @@ import java.util.List;
  */
 public class GuacamoleInstruction {
 
+    /**
+     * The encoded length prefix and value of each known opcode, such as
+     * "4.size", indexed by opcode ordinal. Known opcodes are encoded by
+     * copying the precomputed prefix and value.
+     */
+    private static final char[][] encodedOpcodes;
+
+    static {
+
+        // Precompute encoded form of each known opcode
+        GuacamoleOpcode[] opcodes = GuacamoleOpcode.values();
+        encodedOpcodes = new char[opcodes.length][];
+        for (GuacamoleOpcode opcode : opcodes) {
+            String value = opcode.getValue();
+            char[] element = new char[getEncodedLength(value)];
+            encodeElement(value, element, 0);
+            encodedOpcodes[opcode.ordinal()] = element;
+        }
+
+    }
+
     /**
      * The opcode of this instruction.
      */
     private String opcode;
 
+    /**
+     * The known opcode of this instruction, or null if the opcode is not
+     * defined by the Guacamole protocol.
+     */
+    private final GuacamoleOpcode knownOpcode;
+
     /**
      * All arguments of this instruction, in order.
      */
@@ -69,6 +96,21 @@ public class GuacamoleInstruction {
      */
     public GuacamoleInstruction(String opcode, String... args) {
         this.opcode = opcode;
+        this.knownOpcode = GuacamoleOpcode.fromValue(opcode);
+        this.args = Collections.unmodifiableList(Arrays.asList(args));
+    }
+
+    /**
+     * Creates a new GuacamoleInstruction having the given known opcode and
+     * list of arguments values.
+     *
+     * @param opcode The opcode of the instruction to create.
+     * @param args The list of argument values to provide in the new
+     *             instruction if any.
+     */
+    public GuacamoleInstruction(GuacamoleOpcode opcode, String... args) {
+        this.opcode = opcode.getValue();
+        this.knownOpcode = opcode;
         this.args = Collections.unmodifiableList(Arrays.asList(args));
     }
 
@@ -80,6 +122,17 @@ public class GuacamoleInstruction {
         return opcode;
     }
 
+    /**
+     * Returns the known opcode associated with this GuacamoleInstruction, if
+     * the opcode is defined by the Guacamole protocol.
+     *
+     * @return The known opcode associated with this GuacamoleInstruction, or
+     *         null if the opcode is not defined by the Guacamole protocol.
+     */
+    public GuacamoleOpcode getKnownOpcode() {
+        return knownOpcode;
+    }
+
     /**
      * Returns a List of all argument values specified for this
      * GuacamoleInstruction. Note that the List returned is immutable.
@@ -93,34 +146,138 @@ public class GuacamoleInstruction {
     }
 
     /**
-     * Returns this GuacamoleInstruction in the form it would be sent over the
-     * Guacamole protocol.
+     * Returns the number of decimal digits in the given non-negative value.
      *
-     * @return This GuacamoleInstruction in the form it would be sent over the
-     *         Guacamole protocol.
+     * @param value The value to count the digits of.
+     * @return The number of decimal digits in the given value.
      */
-    @Override
-    public String toString() {
+    private static int getDigitCount(int value) {
 
-        StringBuilder buff = new StringBuilder();
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
 
-        // Write opcode
-        buff.append(opcode.length());
-        buff.append('.');
-        buff.append(opcode);
+        return digits;
+
+    }
+
+    /**
+     * Returns the number of characters required to encode the given value as
+     * an element of a Guacamole instruction, including its length prefix but
+     * excluding any separator or terminator.
+     *
+     * @param value The value to be encoded.
+     * @return The number of characters required to encode the given value.
+     */
+    private static int getEncodedLength(String value) {
+        int length = value.length();
+        return getDigitCount(value.codePointCount(0, length)) + 1 + length;
+    }
+
+    /**
+     * Encodes the given value as an element of a Guacamole instruction,
+     * including its length prefix, storing the result in the given buffer
+     * at the given offset. The length prefix is the number of Unicode
+     * characters in the value, not the number of Java chars.
+     *
+     * @param value The value to encode.
+     * @param buffer The buffer to store the encoded element within.
+     * @param offset The offset within the buffer at which the encoded element
+     *               should be stored.
+     * @return The offset within the buffer immediately after the encoded
+     *         element.
+     */
+    private static int encodeElement(String value, char[] buffer, int offset) {
+
+        int length = value.length();
+
+        // Write length prefix from last digit to first
+        int remaining = value.codePointCount(0, length);
+        int digitOffset = offset + getDigitCount(remaining);
+        offset = digitOffset;
+        do {
+            buffer[--digitOffset] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+
+        // Write value
+        buffer[offset++] = '.';
+        value.getChars(0, length, buffer, offset);
+        return offset + length;
+
+    }
+
+    /**
+     * Returns the number of characters in this GuacamoleInstruction in the
+     * form it would be sent over the Guacamole protocol.
+     *
+     * @return The number of characters required to encode this
+     *         GuacamoleInstruction.
+     */
+    public int getEncodedLength() {
+
+        // Opcode and terminator
+        int length = getEncodedLength(opcode) + 1;
+
+        // Each argument value, preceded by a separator
+        for (int i=0; i<args.size(); i++)
+            length += getEncodedLength(args.get(i)) + 1;
+
+        return length;
+
+    }
+
+    /**
+     * Encodes this GuacamoleInstruction in the form it would be sent over the
+     * Guacamole protocol, storing the result in the given buffer at the given
+     * offset. The buffer must have room for at least getEncodedLength()
+     * characters beyond the given offset.
+     *
+     * @param buffer The buffer to store the encoded instruction within.
+     * @param offset The offset within the buffer at which the encoded
+     *               instruction should be stored.
+     * @return The offset within the buffer immediately after the encoded
+     *         instruction.
+     */
+    public int encode(char[] buffer, int offset) {
+
+        // Write opcode, copying precomputed form if known
+        GuacamoleOpcode knownOpcode = getKnownOpcode();
+        if (knownOpcode != null) {
+            char[] encodedOpcode = encodedOpcodes[knownOpcode.ordinal()];
+            System.arraycopy(encodedOpcode, 0, buffer, offset, encodedOpcode.length);
+            offset += encodedOpcode.length;
+        }
+        else
+            offset = encodeElement(opcode, buffer, offset);
 
         // Write argument values
-        for (String value : args) {
-            buff.append(',');
-            buff.append(value.length());
-            buff.append('.');
-            buff.append(value);
+        for (int i=0; i<args.size(); i++) {
+            buffer[offset++] = ',';
+            offset = encodeElement(args.get(i), buffer, offset);
         }
 
         // Write terminator
-        buff.append(';');
+        buffer[offset++] = ';';
+        return offset;
+
+    }
+
+    /**
+     * Returns this GuacamoleInstruction in the form it would be sent over the
+     * Guacamole protocol.
+     *
+     * @return This GuacamoleInstruction in the form it would be sent over the
+     *         Guacamole protocol.
+     */
+    @Override
+    public String toString() {
 
-        return buff.toString();
+        char[] buffer = new char[getEncodedLength()];
+        encode(buffer, 0);
+        return new String(buffer);
 
     }
 
@@ -0,0 +1,239 @@
+
+package org.glyptodon.guacamole.protocol;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All opcodes defined by the Guacamole protocol. Each opcode is identified
+ * by a small integer code, its ordinal, allowing instructions to be
+ * classified once while parsing and later compared or switched upon without
+ * comparing strings.
+ *
+ * @author Michael Jumper
+ */
+public enum GuacamoleOpcode {
+
+    ACK("ack"),
+    ARC("arc"),
+    ARGS("args"),
+    AUDIO("audio"),
+    BLOB("blob"),
+    CFILL("cfill"),
+    CLIP("clip"),
+    CLIPBOARD("clipboard"),
+    CLOSE("close"),
+    CONNECT("connect"),
+    COPY("copy"),
+    CSTROKE("cstroke"),
+    CURSOR("cursor"),
+    CURVE("curve"),
+    DISCONNECT("disconnect"),
+    DISPOSE("dispose"),
+    DISTORT("distort"),
+    END("end"),
+    ERROR("error"),
+    FILE("file"),
+    IDENTITY("identity"),
+    KEY("key"),
+    LFILL("lfill"),
+    LINE("line"),
+    LSTROKE("lstroke"),
+    MOUSE("mouse"),
+    MOVE("move"),
+    NAME("name"),
+    NEST("nest"),
+    NOP("nop"),
+    PNG("png"),
+    POP("pop"),
+    PUSH("push"),
+    RECT("rect"),
+    RESET("reset"),
+    SELECT("select"),
+    SET("set"),
+    SHADE("shade"),
+    SIZE("size"),
+    START("start"),
+    SYNC("sync"),
+    TRANSFER("transfer"),
+    TRANSFORM("transform"),
+    VIDEO("video");
+
+    /**
+     * The value of this opcode as it appears within the Guacamole protocol.
+     */
+    private final String value;
+
+    /**
+     * Creates a new GuacamoleOpcode having the given value.
+     *
+     * @param value The value of the opcode as it appears within the
+     *              Guacamole protocol.
+     */
+    private GuacamoleOpcode(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns the value of this opcode as it appears within the Guacamole
+     * protocol. The same String instance is always returned.
+     *
+     * @return The value of this opcode.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * All opcodes, indexed by value.
+     */
+    private static final Map<String, GuacamoleOpcode> byValue;
+
+    /**
+     * All opcodes, grouped by the length of their values, such that
+     * byLength[n] contains all opcodes whose values are n characters long.
+     */
+    private static final GuacamoleOpcode[][] byLength;
+
+    static {
+
+        // Determine length of longest opcode
+        int maxLength = 0;
+        for (GuacamoleOpcode opcode : values())
+            maxLength = Math.max(maxLength, opcode.value.length());
+
+        // Count opcodes of each length
+        int[] counts = new int[maxLength + 1];
+        for (GuacamoleOpcode opcode : values())
+            counts[opcode.value.length()]++;
+
+        // Index all opcodes
+        byValue = new HashMap<String, GuacamoleOpcode>();
+        byLength = new GuacamoleOpcode[maxLength + 1][];
+        for (int i=0; i<=maxLength; i++)
+            byLength[i] = new GuacamoleOpcode[counts[i]];
+
+        for (GuacamoleOpcode opcode : values()) {
+            int length = opcode.value.length();
+            byLength[length][--counts[length]] = opcode;
+            byValue.put(opcode.value, opcode);
+        }
+
+    }
+
+    /**
+     * Returns the opcode having the given value, if any.
+     *
+     * @param value The value of the opcode to return.
+     * @return The opcode having the given value, or null if no such opcode
+     *         is defined.
+     */
+    public static GuacamoleOpcode fromValue(String value) {
+        return byValue.get(value);
+    }
+
+    /**
+     * Returns the opcode whose value is stored within the given buffer at
+     * the given offset, if any. The buffer is searched in place, and no
+     * String is created.
+     *
+     * @param buffer The buffer containing the opcode value.
+     * @param offset The offset of the first character of the opcode value.
+     * @param length The number of characters in the opcode value.
+     * @return The opcode having the given value, or null if no such opcode
+     *         is defined.
+     */
+    public static GuacamoleOpcode fromValue(char[] buffer, int offset, int length) {
+
+        if (length >= byLength.length)
+            return null;
+
+        // Compare against each opcode of the same length
+        for (GuacamoleOpcode opcode : byLength[length]) {
+
+            String value = opcode.value;
+
+            int i = 0;
+            while (i < length && buffer[offset + i] == value.charAt(i))
+                i++;
+
+            if (i == length)
+                return opcode;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Returns the opcode whose value is stored within the given buffer of
+     * UTF-8 bytes at the given offset, if any. As all opcode values are
+     * ASCII, the buffer is searched in place, and no String is created.
+     *
+     * @param buffer The buffer containing the UTF-8 opcode value.
+     * @param offset The offset of the first byte of the opcode value.
+     * @param length The number of bytes in the opcode value.
+     * @return The opcode having the given value, or null if no such opcode
+     *         is defined.
+     */
+    public static GuacamoleOpcode fromValue(byte[] buffer, int offset, int length) {
+
+        if (length >= byLength.length)
+            return null;
+
+        // Compare against each opcode of the same length
+        for (GuacamoleOpcode opcode : byLength[length]) {
+
+            String value = opcode.value;
+
+            int i = 0;
+            while (i < length && buffer[offset + i] == value.charAt(i))
+                i++;
+
+            if (i == length)
+                return opcode;
+
+        }
+
+        return null;
+
+    }
+
+}
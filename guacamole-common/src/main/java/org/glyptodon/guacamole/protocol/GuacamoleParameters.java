@@ -0,0 +1,222 @@
+
+package org.glyptodon.guacamole.protocol;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable, compact set of configuration parameters, stored as parallel
+ * arrays of names and values sorted by name. Parameter names are interned,
+ * and identical sets of parameters can be reduced to a single canonical
+ * instance via intern(), such that configurations shared by many users
+ * occupy memory only once.
+ *
+ * @author Michael Jumper
+ */
+final class GuacamoleParameters implements Serializable {
+
+    /**
+     * Identifier unique to this version of GuacamoleParameters.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Canonical instances of all GuacamoleParameters which have been interned
+     * and are still in use.
+     */
+    private static final Map<GuacamoleParameters, WeakReference<GuacamoleParameters>>
+            pool = new WeakHashMap<GuacamoleParameters, WeakReference<GuacamoleParameters>>();
+
+    /**
+     * The names of all parameters, interned and in ascending order.
+     */
+    private final String[] names;
+
+    /**
+     * The values of all parameters, in the same order as their names.
+     */
+    private final String[] values;
+
+    /**
+     * The hash code of this set of parameters, calculated upon creation.
+     */
+    private final int hash;
+
+    /**
+     * Creates a new GuacamoleParameters containing the same names and values
+     * as the given Map.
+     *
+     * @param parameters The Map of parameter values, indexed by parameter
+     *                   name, to copy.
+     */
+    public GuacamoleParameters(Map<String, String> parameters) {
+
+        // Sort interned names
+        names = new String[parameters.size()];
+        int index = 0;
+        for (String name : parameters.keySet())
+            names[index++] = name.intern();
+        Arrays.sort(names);
+
+        // Copy values in same order
+        values = new String[names.length];
+        for (int i=0; i<names.length; i++)
+            values[i] = parameters.get(names[i]);
+
+        hash = 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+
+    }
+
+    /**
+     * Returns the canonical instance of the given GuacamoleParameters. Any
+     * two GuacamoleParameters containing the same names and values will
+     * be interned to the same instance.
+     *
+     * @param parameters The GuacamoleParameters to intern.
+     * @return The canonical instance equal to the given GuacamoleParameters.
+     */
+    public static GuacamoleParameters intern(GuacamoleParameters parameters) {
+
+        synchronized (pool) {
+
+            // Return existing instance, if any
+            WeakReference<GuacamoleParameters> ref = pool.get(parameters);
+            if (ref != null) {
+                GuacamoleParameters canonical = ref.get();
+                if (canonical != null)
+                    return canonical;
+            }
+
+            // Otherwise, given instance is now canonical
+            pool.put(parameters, new WeakReference<GuacamoleParameters>(parameters));
+            return parameters;
+
+        }
+
+    }
+
+    /**
+     * Returns the value of the parameter with the given name, if any.
+     *
+     * @param name The name of the parameter to return the value of.
+     * @return The value of the parameter with the given name, or null if
+     *         no such parameter is present.
+     */
+    public String get(String name) {
+
+        int index = Arrays.binarySearch(names, name);
+        if (index < 0)
+            return null;
+
+        return values[index];
+
+    }
+
+    /**
+     * Returns an unmodifiable set of the names of all parameters present.
+     *
+     * @return An unmodifiable set of the names of all parameters.
+     */
+    public Set<String> getNames() {
+        return new AbstractSet<String>() {
+
+            @Override
+            public Iterator<String> iterator() {
+                return Arrays.asList(names).iterator();
+            }
+
+            @Override
+            public int size() {
+                return names.length;
+            }
+
+            @Override
+            public boolean contains(Object name) {
+                return name instanceof String
+                    && Arrays.binarySearch(names, (String) name) >= 0;
+            }
+
+        };
+    }
+
+    /**
+     * Returns a new, mutable Map containing all parameter values, indexed
+     * by parameter name.
+     *
+     * @return A new Map containing all parameters.
+     */
+    public Map<String, String> toMap() {
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (int i=0; i<names.length; i++)
+            parameters.put(names[i], values[i]);
+
+        return parameters;
+
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (obj == this)
+            return true;
+
+        if (!(obj instanceof GuacamoleParameters))
+            return false;
+
+        GuacamoleParameters other = (GuacamoleParameters) obj;
+        return hash == other.hash
+            && Arrays.equals(names, other.names)
+            && Arrays.equals(values, other.values);
+
+    }
+
+}
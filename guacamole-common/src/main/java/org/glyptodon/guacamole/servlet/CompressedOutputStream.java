@@ -0,0 +1,271 @@
+package org.glyptodon.guacamole.servlet;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * OutputStream which compresses all data written using the "deflate" or
+ * "gzip" content coding, such that flushing the stream sends all data
+ * written so far in a form the recipient can decompress immediately,
+ * without ending the compressed stream. Flushing relies on the
+ * SYNC_FLUSH mode of Deflater, which is only available when running on
+ * Java 7 or later; compression must not be used if isSupported() returns
+ * false.
+ *
+ * @author Michael Jumper
+ */
+class CompressedOutputStream extends OutputStream {
+
+    /**
+     * The value of Deflater.SYNC_FLUSH, which is not defined prior to
+     * Java 7.
+     */
+    private static final int SYNC_FLUSH = 2;
+
+    /**
+     * The fixed header of every gzip stream: magic number, deflate
+     * compression method, no flags, no modification time, no extra flags,
+     * and unknown operating system.
+     */
+    private static final byte[] GZIP_HEADER = {
+        0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF
+    };
+
+    /**
+     * The Deflater.deflate() variant which accepts a flush mode, or null if
+     * not available.
+     */
+    private static final Method deflateWithFlush;
+
+    static {
+
+        Method method;
+
+        // Look up flushing deflate(), if available
+        try {
+            method = Deflater.class.getMethod("deflate",
+                    byte[].class, int.class, int.class, int.class);
+        }
+        catch (NoSuchMethodException e) {
+            method = null;
+        }
+
+        deflateWithFlush = method;
+
+    }
+
+    /**
+     * The OutputStream receiving the compressed data.
+     */
+    private final OutputStream output;
+
+    /**
+     * The Deflater compressing all data written.
+     */
+    private final Deflater deflater;
+
+    /**
+     * The checksum of all data written, if the gzip content coding is used,
+     * or null otherwise.
+     */
+    private final CRC32 crc;
+
+    /**
+     * Buffer receiving compressed data from the Deflater.
+     */
+    private final byte[] buffer = new byte[8192];
+
+    /**
+     * Whether this stream has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Returns whether compressed streams can be flushed in the running JVM,
+     * and thus whether CompressedOutputStream can be used.
+     *
+     * @return true if CompressedOutputStream can be used, false otherwise.
+     */
+    public static boolean isSupported() {
+        return deflateWithFlush != null;
+    }
+
+    /**
+     * Creates a new CompressedOutputStream which writes data compressed
+     * using the given content coding to the given OutputStream.
+     *
+     * @param output The OutputStream to write compressed data to.
+     * @param gzip true if the "gzip" content coding should be used, false
+     *             if the "deflate" content coding should be used.
+     * @throws IOException If an error occurs while writing the gzip header.
+     */
+    public CompressedOutputStream(OutputStream output, boolean gzip)
+            throws IOException {
+
+        this.output = output;
+
+        // The gzip coding wraps raw deflate data with its own header and
+        // trailer, while the deflate coding uses the zlib format
+        if (gzip) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            crc = new CRC32();
+            output.write(GZIP_HEADER);
+        }
+        else {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            crc = null;
+        }
+
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+
+        if (closed)
+            throw new IOException("Stream closed.");
+
+        if (length == 0)
+            return;
+
+        if (crc != null)
+            crc.update(data, offset, length);
+
+        // Compress all data, writing whatever output is produced
+        deflater.setInput(data, offset, length);
+        while (!deflater.needsInput()) {
+            int compressed = deflater.deflate(buffer);
+            if (compressed > 0)
+                output.write(buffer, 0, compressed);
+        }
+
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        if (closed)
+            return;
+
+        try {
+
+            // Write all pending compressed data, ending on a byte boundary.
+            // If the buffer was filled, more data may remain.
+            int compressed;
+            do {
+                compressed = (Integer) deflateWithFlush.invoke(deflater,
+                        buffer, 0, buffer.length, SYNC_FLUSH);
+                output.write(buffer, 0, compressed);
+            } while (compressed == buffer.length);
+
+        }
+        catch (IllegalAccessException e) {
+            throw new IOException("Unable to flush compressed data.", e);
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException("Unable to flush compressed data.", e.getCause());
+        }
+
+        output.flush();
+
+    }
+
+    /**
+     * Writes the given value to the underlying OutputStream as four bytes,
+     * least-significant byte first, as required by the gzip trailer.
+     *
+     * @param value The value to write.
+     * @throws IOException If an error occurs while writing the value.
+     */
+    private void writeIntLE(long value) throws IOException {
+        output.write((int) value & 0xFF);
+        output.write((int) (value >> 8) & 0xFF);
+        output.write((int) (value >> 16) & 0xFF);
+        output.write((int) (value >> 24) & 0xFF);
+    }
+
+    /**
+     * Ends the compressed stream and closes the underlying OutputStream.
+     *
+     * @throws IOException If an error occurs while writing the end of the
+     *                     compressed stream, or while closing the underlying
+     *                     OutputStream.
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (closed)
+            return;
+
+        closed = true;
+
+        try {
+
+            // Write remaining compressed data
+            deflater.finish();
+            while (!deflater.finished()) {
+                int compressed = deflater.deflate(buffer);
+                output.write(buffer, 0, compressed);
+            }
+
+            // Write gzip trailer: checksum and uncompressed length
+            if (crc != null) {
+                writeIntLE(crc.getValue());
+                writeIntLE(deflater.getBytesRead());
+            }
+
+        }
+
+        // Always release Deflater and close underlying stream
+        finally {
+            deflater.end();
+            output.close();
+        }
+
+    }
+
+}
@@ -41,18 +41,19 @@ import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleResourceNotFoundException;
 import org.glyptodon.guacamole.GuacamoleSecurityException;
 import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
 import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleReplayBuffer;
 import org.glyptodon.guacamole.io.GuacamoleWriter;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -83,6 +84,12 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      */
     private static final String WRITE_PREFIX = "write:";
 
+    /**
+     * The prefix of the query string which denotes a tunnel resume
+     * operation.
+     */
+    private static final String RESUME_PREFIX = "resume:";
+
     /**
      * The length of the read prefix, in characters.
      */
@@ -93,11 +100,139 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      */
     private static final int WRITE_PREFIX_LENGTH = WRITE_PREFIX.length();
 
+    /**
+     * The length of the resume prefix, in characters.
+     */
+    private static final int RESUME_PREFIX_LENGTH = RESUME_PREFIX.length();
+
     /**
      * The length of every tunnel UUID, in characters.
      */
     private static final int UUID_LENGTH = 36;
 
+    /**
+     * The end-of-instructions marker sent at the end of every read response,
+     * as UTF-8.
+     */
+    private static final byte[] END_OF_INSTRUCTIONS = { '0', '.', ';' };
+
+    /**
+     * The length beyond which no further instructions will be added to a
+     * single batch read from a tunnel, in bytes.
+     */
+    private static final int MAX_BATCH_LENGTH = 8192;
+
+    /**
+     * The default number of milliseconds to wait for a client to resume a
+     * tunnel after its connection is lost, before closing that tunnel.
+     */
+    public static final int DEFAULT_RESUME_TIMEOUT = 15000;
+
+    /**
+     * Timer which closes tunnels not resumed in time, shared by all
+     * instances of this servlet.
+     */
+    private static final Timer resumeTimer =
+            new Timer("Guacamole tunnel resume timer", true);
+
+    /**
+     * Returns the number of bytes of the data most recently sent through
+     * each tunnel that should be retained, such that a client which loses
+     * its connection may resume that tunnel from the last data it received.
+     * By default, no data is retained, and tunnels cannot be resumed.
+     *
+     * @return The number of bytes to retain for each tunnel, or zero if
+     *         tunnels should not be resumable.
+     * @throws GuacamoleException If an error occurs while determining the
+     *                            number of bytes to retain.
+     */
+    protected int getReplayBufferSize() throws GuacamoleException {
+        return 0;
+    }
+
+    /**
+     * Returns the number of milliseconds a resumable tunnel should remain
+     * open after its connection to the client is lost, awaiting a resume
+     * request from that client. By default, this is
+     * {@link #DEFAULT_RESUME_TIMEOUT}.
+     *
+     * @return The number of milliseconds to wait for a client to resume a
+     *         tunnel before closing that tunnel.
+     * @throws GuacamoleException If an error occurs while determining the
+     *                            resume timeout.
+     */
+    protected int getResumeTimeout() throws GuacamoleException {
+        return DEFAULT_RESUME_TIMEOUT;
+    }
+
+    /**
+     * Returns whether responses to read requests may be compressed, if the
+     * client supports compression. Compressed data is flushed at the same
+     * points as uncompressed data, thus compression does not delay the
+     * delivery of instructions. By default, responses are not compressed.
+     *
+     * @return true if responses to read requests may be compressed, false
+     *         otherwise.
+     * @throws GuacamoleException If an error occurs while determining
+     *                            whether compression should be used.
+     */
+    protected boolean isCompressionEnabled() throws GuacamoleException {
+        return false;
+    }
+
+    /**
+     * Returns the content coding which should be used to compress the
+     * response to the given request, based on the codings accepted by the
+     * client. The "gzip" coding is preferred over "deflate".
+     *
+     * @param request The request whose response may be compressed.
+     * @return "gzip" or "deflate" if the response should be compressed
+     *         using that content coding, or null if the response should not
+     *         be compressed.
+     */
+    private String getContentCoding(HttpServletRequest request) {
+
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null)
+            return null;
+
+        boolean deflate = false;
+
+        // Check each accepted coding, skipping any explicitly refused
+        for (String accepted : acceptEncoding.split(",")) {
+
+            String[] parameters = accepted.split(";");
+            String coding = parameters[0].trim();
+
+            // Skip codings having a quality of zero
+            boolean refused = false;
+            for (int i=1; i<parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Float.parseFloat(parameter.substring(2)) <= 0;
+                    }
+                    catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+
+            if (refused)
+                continue;
+
+            if (coding.equalsIgnoreCase("gzip"))
+                return "gzip";
+
+            if (coding.equalsIgnoreCase("deflate"))
+                deflate = true;
+
+        }
+
+        return deflate ? "deflate" : null;
+
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException {
         handleTunnelRequest(request, response);
@@ -168,6 +303,11 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
                     HttpSession httpSession = request.getSession(true);
                     GuacamoleSession session = new GuacamoleSession(httpSession);
 
+                    // Retain recent data if tunnel may be resumed
+                    int replayBufferSize = getReplayBufferSize();
+                    if (replayBufferSize > 0)
+                        tunnel.setReplayBuffer(new GuacamoleReplayBuffer(replayBufferSize));
+
                     // Attach tunnel to session
                     session.attachTunnel(tunnel);
 
@@ -201,6 +341,34 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
                         READ_PREFIX_LENGTH,
                         READ_PREFIX_LENGTH + UUID_LENGTH));
 
+            // If resume operation, call doResume() with tunnel UUID and
+            // position, ignoring any characters following the position.
+            else if(query.startsWith(RESUME_PREFIX)) {
+
+                String tunnelUUID = query.substring(
+                        RESUME_PREFIX_LENGTH,
+                        RESUME_PREFIX_LENGTH + UUID_LENGTH);
+
+                // Position follows UUID, separated by a colon
+                String position = query.substring(RESUME_PREFIX_LENGTH + UUID_LENGTH);
+                if (!position.startsWith(":"))
+                    throw new GuacamoleClientException("No resume position provided.");
+
+                int end = position.indexOf(':', 1);
+                if (end != -1)
+                    position = position.substring(1, end);
+                else
+                    position = position.substring(1);
+
+                try {
+                    doResume(request, response, tunnelUUID, Long.parseLong(position));
+                }
+                catch (NumberFormatException e) {
+                    throw new GuacamoleClientException("Invalid resume position: " + position, e);
+                }
+
+            }
+
             // If write operation, call doWrite() with tunnel UUID, ignoring any
             // characters following the tunnel UUID.
             else if(query.startsWith(WRITE_PREFIX))
@@ -241,6 +409,13 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      * result of this connection request (whether some sort of credentials must
      * be specified, for example).
      *
+     * This function is called synchronously by the thread servicing the
+     * connection request. Implementations which connect to the Guacamole
+     * proxy should not wait for that connection and its initial handshake
+     * within this function, but should instead return a tunnel whose socket
+     * connects in the background, such as a DeferredGuacamoleSocket, so
+     * that slow or unreachable proxies do not tie up container threads.
+     *
      * @param request The HttpServletRequest associated with the connection
      *                request received. Any parameters specified along with
      *                the connection request can be read from this object.
@@ -270,6 +445,54 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      *                            request.
      */
     protected void doRead(HttpServletRequest request, HttpServletResponse response, String tunnelUUID) throws GuacamoleException {
+        readTunnel(request, response, tunnelUUID, -1);
+    }
+
+    /**
+     * Called whenever the JavaScript Guacamole client attempts to resume
+     * reading from a tunnel after its connection was lost. All data sent
+     * since the given position is sent again, followed by any new data, as
+     * with a read request. If the data following the given position is no
+     * longer available, the tunnel is closed. This function should in
+     * general not be overridden, as it already contains a proper
+     * implementation of the resume operation.
+     *
+     * @param request The HttpServletRequest associated with the resume
+     *                request received.
+     * @param response The HttpServletResponse associated with the resume
+     *                 request received. Any data to be sent to the client in
+     *                 response to the resume request should be written to
+     *                 the response body of this HttpServletResponse.
+     * @param tunnelUUID The UUID of the tunnel to resume, as specified in
+     *                   the resume request. This tunnel must be attached to
+     *                   the Guacamole session.
+     * @param position The position of the end of the last complete
+     *                 instruction received by the client, in UTF-16 code
+     *                 units from the beginning of the stream.
+     * @throws GuacamoleException If an error occurs while handling the
+     *                            resume request, or if the tunnel cannot be
+     *                            resumed from the given position.
+     */
+    protected void doResume(HttpServletRequest request, HttpServletResponse response, String tunnelUUID, long position) throws GuacamoleException {
+        readTunnel(request, response, tunnelUUID, position);
+    }
+
+    /**
+     * Streams data read from the given tunnel to the given response, first
+     * replaying all data sent since the given position if resuming.
+     *
+     * @param request The HttpServletRequest associated with the read or
+     *                resume request received.
+     * @param response The HttpServletResponse associated with the read or
+     *                 resume request received.
+     * @param tunnelUUID The UUID of the tunnel to read from.
+     * @param resumePosition The position to resume from, in UTF-16 code
+     *                       units, or -1 if not resuming.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            tunnel, or if the tunnel cannot be resumed
+     *                            from the given position.
+     */
+    private void readTunnel(HttpServletRequest request, HttpServletResponse response, String tunnelUUID, long resumePosition) throws GuacamoleException {
 
         HttpSession httpSession = request.getSession(false);
         GuacamoleSession session = new GuacamoleSession(httpSession);
@@ -294,43 +517,82 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             response.setContentType("application/octet-stream");
             response.setHeader("Cache-Control", "no-cache");
 
-            // Get writer for response
-            Writer out = new BufferedWriter(new OutputStreamWriter(
-                    response.getOutputStream(), "UTF-8"));
+            // Determine content coding, if the response is to be compressed
+            String coding = null;
+            if (isCompressionEnabled() && CompressedOutputStream.isSupported()) {
+                response.setHeader("Vary", "Accept-Encoding");
+                coding = getContentCoding(request);
+            }
+
+            // Get output stream for response. Instructions are forwarded as
+            // the exact UTF-8 bytes received, without decoding, compressed
+            // if requested.
+            OutputStream out;
+            if (coding != null) {
+                response.setHeader("Content-Encoding", coding);
+                out = new CompressedOutputStream(response.getOutputStream(),
+                        coding.equals("gzip"));
+            }
+            else
+                out = response.getOutputStream();
+
+            // Retain all instructions sent if the tunnel may be resumed
+            GuacamoleReplayBuffer replayBuffer = tunnel.getReplayBuffer();
+            OutputStream instructionOut = out;
+            if (replayBuffer != null)
+                instructionOut = replayBuffer.getOutputStream(out);
 
             // Stream data to response, ensuring output stream is closed
             try {
 
+                // If resuming, first resend everything the client missed
+                if (resumePosition >= 0) {
+
+                    if (replayBuffer == null || !replayBuffer.replay(resumePosition, out))
+                        throw new GuacamoleResourceNotFoundException("Tunnel cannot be resumed.");
+
+                    logger.debug("Resumed tunnel {} at position {}.", tunnelUUID, resumePosition);
+
+                    out.flush();
+                    response.flushBuffer();
+
+                }
+
                 // Detach tunnel and throw error if EOF (and we haven't sent any
-                // data yet.
-                char[] message = reader.read();
-                if (message == null)
+                // data yet. Instructions are forwarded in batches directly
+                // from the reader's buffer, without copying.
+                GuacamoleInstructionBatch batch = reader.readBatch(MAX_BATCH_LENGTH);
+                if (batch == null)
                     throw new GuacamoleResourceNotFoundException("Tunnel reached end of stream.");
 
-                // For all messages, until another stream is ready (we send at least one message)
+                // For all batches, until another stream is ready (we send at least one batch)
                 do {
 
-                    // Get message output bytes
-                    out.write(message, 0, message.length);
+                    // Write entire batch at once
+                    batch.writeTo(instructionOut);
 
-                    // Flush if we expect to wait
-                    if (!reader.available()) {
+                    // Flush if we expect to wait. Further data can only be
+                    // available without waiting if the batch was limited by
+                    // length, or if more data has already arrived.
+                    if (batch.isDrained() && !reader.available()) {
                         out.flush();
                         response.flushBuffer();
                     }
 
-                    // No more messages another stream can take over
-                    if (tunnel.hasQueuedReaderThreads())
+                    // No more messages another stream can take over, unless
+                    // an instruction is being streamed in pieces, in which
+                    // case the rest of that instruction must follow first
+                    if (batch.isComplete() && tunnel.hasQueuedReaderThreads())
                         break;
 
-                } while (tunnel.isOpen() && (message = reader.read()) != null);
+                } while (tunnel.isOpen() && (batch = reader.readBatch(MAX_BATCH_LENGTH)) != null);
 
                 // Close tunnel immediately upon EOF
-                if (message == null)
+                if (batch == null)
                     tunnel.close();
 
                 // End-of-instructions marker
-                out.write("0.;");
+                out.write(END_OF_INSTRUCTIONS);
                 out.flush();
                 response.flushBuffer();
             }
@@ -354,9 +616,15 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             // Log typically frequent I/O error if desired
             logger.debug("Error writing to servlet output stream", e);
 
-            // Detach and close
-            session.detachTunnel(tunnel);
-            tunnel.close();
+            // Allow resumable tunnels a chance to be resumed
+            if (tunnel.getReplayBuffer() != null)
+                suspendTunnel(session, tunnel);
+
+            // Otherwise, detach and close
+            else {
+                session.detachTunnel(tunnel);
+                tunnel.close();
+            }
 
         }
         finally {
@@ -365,6 +633,53 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
 
     }
 
+    /**
+     * Leaves the given resumable tunnel open and attached after its
+     * connection to the client is lost, closing and detaching that tunnel
+     * only if it is not resumed within the resume timeout.
+     *
+     * @param session The GuacamoleSession the tunnel is attached to.
+     * @param tunnel The tunnel whose connection to the client was lost.
+     * @throws GuacamoleException If an error occurs while determining the
+     *                            resume timeout.
+     */
+    private void suspendTunnel(final GuacamoleSession session,
+            final GuacamoleTunnel tunnel) throws GuacamoleException {
+
+        final GuacamoleReplayBuffer replayBuffer = tunnel.getReplayBuffer();
+        final int replayCount = replayBuffer.getReplayCount();
+        final int timeout = getResumeTimeout();
+
+        logger.debug("Awaiting resume of tunnel {} for up to {} ms.",
+                tunnel.getUUID(), timeout);
+
+        resumeTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+
+                // Ignore if resumed or closed since connection was lost
+                if (replayBuffer.getReplayCount() != replayCount || !tunnel.isOpen())
+                    return;
+
+                logger.info("Tunnel {} was not resumed within {} ms.",
+                        tunnel.getUUID(), timeout);
+
+                // Detach and close
+                session.detachTunnel(tunnel);
+                try {
+                    tunnel.close();
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Error closing tunnel.", e);
+                }
+
+            }
+
+        }, timeout);
+
+    }
+
     /**
      * Called whenever the JavaScript Guacamole client makes a write request.
      * This function should in general not be overridden, as it already
@@ -404,9 +719,9 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             // Get writer from tunnel
             GuacamoleWriter writer = tunnel.acquireWriter();
 
-            // Get input reader for HTTP stream
-            Reader input = new InputStreamReader(
-                    request.getInputStream(), "UTF-8");
+            // Get input stream for HTTP stream. Data is forwarded as the
+            // exact UTF-8 bytes received, without decoding.
+            InputStream input = request.getInputStream();
 
             // Transfer data from input stream to tunnel output, ensuring
             // input is always closed
@@ -414,13 +729,17 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
 
                 // Buffer
                 int length;
-                char[] buffer = new char[8192];
+                byte[] buffer = new byte[8192];
 
                 // Transfer data using buffer
                 while (tunnel.isOpen() &&
                         (length = input.read(buffer, 0, buffer.length)) != -1)
                     writer.write(buffer, 0, length);
 
+                // Send all data received within this request together
+                if (tunnel.isOpen())
+                    writer.flush();
+
             }
 
             // Close input stream in all cases
@@ -93,12 +93,22 @@ public class GuacamoleSession {
     }
 
     /**
-     * Attaches the given tunnel to this GuacamoleSession.
+     * Attaches the given tunnel to this GuacamoleSession. Any attached
+     * tunnels which have since closed, such as tunnels closed by the tunnel
+     * reaper, are detached.
      * @param tunnel The tunnel to attach to this GucacamoleSession.
      */
     public void attachTunnel(GuacamoleTunnel tunnel) {
+
+        // Release tunnels closed without being detached
+        for (GuacamoleTunnel attached : tunnels.values()) {
+            if (!attached.isOpen())
+                detachTunnel(attached);
+        }
+
         tunnels.put(tunnel.getUUID().toString(), tunnel);
         logger.debug("Attached tunnel {}.", tunnel.getUUID());
+
     }
 
     /**
@@ -112,14 +122,25 @@ public class GuacamoleSession {
 
     /**
      * Returns the tunnel with the given UUID attached to this GuacamoleSession,
-     * if any.
+     * if any. Tunnels which have closed without being detached, such as
+     * tunnels closed by the tunnel reaper, are detached and not returned.
      *
      * @param tunnelUUID The UUID of an attached tunnel.
-     * @return The tunnel corresponding to the given UUID, if attached, or null
-     *         if no such tunnel is attached.
+     * @return The tunnel corresponding to the given UUID, if attached and
+     *         open, or null if no such tunnel is attached.
      */
     public GuacamoleTunnel getTunnel(String tunnelUUID) {
-        return tunnels.get(tunnelUUID);
+
+        GuacamoleTunnel tunnel = tunnels.get(tunnelUUID);
+
+        // Release tunnels closed without being detached
+        if (tunnel != null && !tunnel.isOpen()) {
+            detachTunnel(tunnel);
+            return null;
+        }
+
+        return tunnel;
+
     }
 
 }
@@ -0,0 +1,278 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.util.ArrayList;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for GuacamoleParser, verifying that characters are counted
+ * correctly when split across chunks, and that invalid data is refused.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleParserTest {
+
+    /**
+     * GuacamoleParser which records everything it parses as a string of
+     * events, such that the results of parsing may be compared.
+     */
+    private static class RecordingParser extends GuacamoleParser {
+
+        /**
+         * All elements, instructions and errors parsed so far.
+         */
+        private final List<String> events = new ArrayList<String>();
+
+        /**
+         * The characters of the leading elements passed to handleCharacter()
+         * so far.
+         */
+        private final StringBuilder characters = new StringBuilder();
+
+        /**
+         * The number of instructions to parse before requesting that parsing
+         * stop, or -1 if parsing should never stop early.
+         */
+        private int remaining = -1;
+
+        /**
+         * Creates a new RecordingParser which records the characters of the
+         * given number of leading elements.
+         *
+         * @param characterElements The number of leading elements whose
+         *                          characters should be recorded.
+         */
+        public RecordingParser(int characterElements) {
+            super(characterElements);
+        }
+
+        @Override
+        protected void handleCharacter(int element, int c) {
+            characters.append((char) c);
+        }
+
+        @Override
+        protected void handleElement(int element, int terminator, int size) {
+            events.add("element " + element + " size " + size);
+        }
+
+        @Override
+        protected boolean handleInstruction(int terminator) {
+            events.add("instruction");
+            return remaining < 0 || --remaining > 0;
+        }
+
+        @Override
+        protected void handleError(String message) {
+            events.add("error");
+        }
+
+        /**
+         * Parses the given data as UTF-16, split into two chunks at the
+         * given location.
+         *
+         * @param data The data to parse.
+         * @param split The location at which the data should be split.
+         * @throws GuacamoleException If the parser refuses the data.
+         */
+        public void parse(String data, int split) throws GuacamoleException {
+            char[] chunk = data.toCharArray();
+            assertEquals(split, parse(chunk, 0, split));
+            assertEquals(chunk.length - split, parse(chunk, split, chunk.length - split));
+        }
+
+        /**
+         * Parses the given data as UTF-8, split into two chunks at the given
+         * location.
+         *
+         * @param data The data to parse.
+         * @param split The location at which the data should be split.
+         * @throws GuacamoleException If the parser refuses the data.
+         */
+        public void parse(byte[] data, int split) throws GuacamoleException {
+            assertEquals(split, parse(data, 0, split));
+            assertEquals(data.length - split, parse(data, split, data.length - split));
+        }
+
+    }
+
+    /**
+     * An instruction containing a character outside the Basic Multilingual
+     * Plane, represented as a surrogate pair in UTF-16 and as four bytes in
+     * UTF-8, at the end of its final element.
+     */
+    private static final String SUPPLEMENTARY = "4.test,2.a😀;";
+
+    /**
+     * Verifies that a surrogate pair is counted as a single character,
+     * regardless of where the chunk containing the pair is split.
+     *
+     * @throws GuacamoleException If the parser refuses the data.
+     */
+    @Test
+    public void testSplitSurrogates() throws GuacamoleException {
+
+        for (int split = 0; split <= SUPPLEMENTARY.length(); split++) {
+
+            RecordingParser parser = new RecordingParser(0);
+            parser.parse(SUPPLEMENTARY, split);
+
+            assertEquals("split at " + split, "[element 0 size 4, element 1 size 3, instruction]",
+                    parser.events.toString());
+
+        }
+
+    }
+
+    /**
+     * Verifies that a multibyte UTF-8 character is counted as a single
+     * character, regardless of where the chunk containing that character is
+     * split, including between its continuation bytes.
+     *
+     * @throws Exception If the parser refuses the data.
+     */
+    @Test
+    public void testSplitContinuationBytes() throws Exception {
+
+        byte[] data = SUPPLEMENTARY.getBytes("UTF-8");
+        for (int split = 0; split <= data.length; split++) {
+
+            RecordingParser parser = new RecordingParser(0);
+            parser.parse(data, split);
+
+            assertEquals("split at " + split, "[element 0 size 4, element 1 size 5, instruction]",
+                    parser.events.toString());
+
+        }
+
+    }
+
+    /**
+     * Verifies that only the first unit of each character within the
+     * leading elements is passed to handleCharacter().
+     *
+     * @throws Exception If the parser refuses the data.
+     */
+    @Test
+    public void testCharacterElements() throws Exception {
+
+        byte[] data = "3.été,3.abc;".getBytes("UTF-8");
+
+        RecordingParser parser = new RecordingParser(1);
+        parser.parse(data, 3);
+
+        assertEquals("[element 0 size 5, element 1 size 3, instruction]",
+                parser.events.toString());
+        assertEquals("ÃtÃ", parser.characters.toString());
+
+    }
+
+    /**
+     * Verifies that length prefixes which cannot be represented as an int
+     * are refused before they overflow, and that parsing resumes at the
+     * start of an instruction afterwards.
+     *
+     * @throws GuacamoleException If the parser refuses the data.
+     */
+    @Test
+    public void testLengthOverflow() throws GuacamoleException {
+
+        RecordingParser parser = new RecordingParser(0);
+
+        // Prefixes within the range of an int are accepted
+        char[] chunk = "214748364".toCharArray();
+        parser.parse(chunk, 0, chunk.length);
+        assertTrue(parser.events.isEmpty());
+
+        // Digits which may exceed the range of an int are refused
+        chunk = "7".toCharArray();
+        parser.parse(chunk, 0, chunk.length);
+        assertEquals("[error]", parser.events.toString());
+        assertEquals(-1, parser.getElementLength());
+
+        // Parsing resumes as if at the start of an instruction
+        chunk = "3.nop;".toCharArray();
+        parser.parse(chunk, 0, chunk.length);
+        assertEquals("[error, element 0 size 3, instruction]",
+                parser.events.toString());
+
+    }
+
+    /**
+     * Verifies that invalid length prefixes and terminators are refused.
+     *
+     * @throws GuacamoleException If the parser refuses the data.
+     */
+    @Test
+    public void testInvalid() throws GuacamoleException {
+
+        RecordingParser parser = new RecordingParser(0);
+
+        char[] chunk = "x3.nop;3.nop!3.nop;".toCharArray();
+        parser.parse(chunk, 0, chunk.length);
+
+        assertEquals("[error, element 0 size 3, instruction, error, element 0 size 3, instruction]",
+                parser.events.toString());
+
+    }
+
+    /**
+     * Verifies that parsing stops immediately after the instruction for
+     * which handleInstruction() requests that parsing stop.
+     *
+     * @throws GuacamoleException If the parser refuses the data.
+     */
+    @Test
+    public void testStop() throws GuacamoleException {
+
+        RecordingParser parser = new RecordingParser(0);
+        parser.remaining = 1;
+
+        char[] chunk = "4.sync,1.0;3.nop;".toCharArray();
+        assertEquals(11, parser.parse(chunk, 0, chunk.length));
+        assertEquals("[element 0 size 4, element 1 size 1, instruction]",
+                parser.events.toString());
+
+    }
+
+}
@@ -0,0 +1,223 @@
+
+package org.glyptodon.guacamole.io;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for GuacamoleReplayBuffer, verifying which data is retained as
+ * the buffer wraps around, and that positions are counted in UTF-16 code
+ * units.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleReplayBufferTest {
+
+    /**
+     * Appends the UTF-8 encoding of the given string to the given buffer.
+     *
+     * @param buffer The buffer to append to.
+     * @param data The string to append.
+     * @throws IOException If UTF-8 is not supported.
+     */
+    private static void append(GuacamoleReplayBuffer buffer, String data)
+            throws IOException {
+        byte[] bytes = data.getBytes("UTF-8");
+        buffer.append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Replays the given buffer from the given position, returning the data
+     * replayed.
+     *
+     * @param buffer The buffer to replay.
+     * @param from The position to replay from, in UTF-16 code units.
+     * @return The data replayed, or null if the buffer could not replay from
+     *         the given position.
+     * @throws IOException If UTF-8 is not supported.
+     */
+    private static String replay(GuacamoleReplayBuffer buffer, long from)
+            throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!buffer.replay(from, output))
+            return null;
+
+        return output.toString("UTF-8");
+
+    }
+
+    /**
+     * Verifies that data can be replayed from any position within the data
+     * retained.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testReplay() throws IOException {
+
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(16);
+        append(buffer, "abc");
+
+        assertEquals(3, buffer.getPosition());
+        assertEquals("abc", replay(buffer, 0));
+        assertEquals("bc", replay(buffer, 1));
+        assertEquals("", replay(buffer, 3));
+        assertNull(replay(buffer, 4));
+        assertEquals(3, buffer.getReplayCount());
+
+    }
+
+    /**
+     * Verifies that the oldest data is discarded as appended data wraps
+     * around the end of the buffer.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testWrapAround() throws IOException {
+
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(8);
+        String data = "abcdefghijklmnopqrstuvwxyz";
+
+        // Append in pieces which do not evenly divide the buffer size
+        for (int end = 3; end <= data.length(); end += 3) {
+
+            append(buffer, data.substring(end - 3, end));
+            assertEquals(end, buffer.getPosition());
+
+            // Only the newest data is retained, regardless of wrapping
+            int start = Math.max(0, end - 8);
+            assertNull(replay(buffer, start - 1));
+            for (int from = start; from <= end; from++)
+                assertEquals(data.substring(from, end), replay(buffer, from));
+
+        }
+
+    }
+
+    /**
+     * Verifies that only the end of appended data is retained if that data
+     * alone would fill the buffer.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testOversizedAppend() throws IOException {
+
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(4);
+        append(buffer, "ab");
+        append(buffer, "cdefgh");
+
+        assertEquals(8, buffer.getPosition());
+        assertNull(replay(buffer, 3));
+        assertEquals("efgh", replay(buffer, 4));
+
+    }
+
+    /**
+     * Verifies that positions count UTF-16 code units rather than bytes, and
+     * that positions within a surrogate pair cannot be replayed from.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testPositions() throws IOException {
+
+        // Seven bytes, but four UTF-16 code units
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(6);
+        append(buffer, "a😀é");
+
+        assertEquals(4, buffer.getPosition());
+        assertNull(replay(buffer, 0));
+        assertEquals("😀é", replay(buffer, 1));
+        assertNull(replay(buffer, 2));
+        assertEquals("é", replay(buffer, 3));
+
+    }
+
+    /**
+     * Verifies that retained data never begins partway through a character
+     * once the start of that character has been discarded.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testDiscardPartialCharacter() throws IOException {
+
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(5);
+        append(buffer, "ab");
+        append(buffer, "😀");
+        append(buffer, "c");
+        assertEquals("😀c", replay(buffer, 2));
+
+        // Discarding the first byte of the pair discards the whole pair
+        append(buffer, "d");
+        assertNull(replay(buffer, 2));
+        assertEquals("cd", replay(buffer, 4));
+
+    }
+
+    /**
+     * Verifies that data written through the OutputStream of the buffer is
+     * both retained and written to the underlying OutputStream.
+     *
+     * @throws IOException If UTF-8 is not supported.
+     */
+    @Test
+    public void testOutputStream() throws IOException {
+
+        GuacamoleReplayBuffer buffer = new GuacamoleReplayBuffer(16);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        OutputStream output = buffer.getOutputStream(sent);
+        output.write("4.sync,".getBytes("UTF-8"));
+        output.write('1');
+        output.write(".0;".getBytes("UTF-8"));
+
+        assertEquals("4.sync,1.0;", sent.toString("UTF-8"));
+        assertEquals("1.0;", replay(buffer, 7));
+
+    }
+
+}
@@ -0,0 +1,444 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for CoalescingGuacamoleReader, verifying which instructions are
+ * dropped from data held back while the client is behind.
+ *
+ * @author Michael Jumper
+ */
+public class CoalescingGuacamoleReaderTest {
+
+    /**
+     * The characters of the base64 alphabet, in order.
+     */
+    private static final String BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * Encodes the given data as base64.
+     *
+     * @param data The data to encode, the length of which must be a multiple
+     *             of three.
+     * @return The base64 encoding of the given data.
+     */
+    private static String encodeBase64(byte[] data) {
+
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int bits = ((data[i] & 0xFF) << 16) | ((data[i+1] & 0xFF) << 8) | (data[i+2] & 0xFF);
+            encoded.append(BASE64.charAt((bits >> 18) & 0x3F));
+            encoded.append(BASE64.charAt((bits >> 12) & 0x3F));
+            encoded.append(BASE64.charAt((bits >> 6) & 0x3F));
+            encoded.append(BASE64.charAt(bits & 0x3F));
+        }
+
+        return encoded.toString();
+
+    }
+
+    /**
+     * Returns a "png" instruction drawing an image of the given size. The
+     * image data contains only the PNG signature and IHDR chunk, which is
+     * all that is inspected when coalescing.
+     *
+     * @param mask The channel mask to draw with.
+     * @param layer The layer to draw to.
+     * @param x The X coordinate of the upper-left corner of the image.
+     * @param y The Y coordinate of the upper-left corner of the image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The encoded "png" instruction.
+     */
+    private static String png(int mask, int layer, int x, int y,
+            int width, int height) {
+
+        byte[] header = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n',
+            0, 0, 0, 13, 'I', 'H', 'D', 'R',
+            (byte) (width >> 24), (byte) (width >> 16), (byte) (width >> 8), (byte) width,
+            (byte) (height >> 24), (byte) (height >> 16), (byte) (height >> 8), (byte) height,
+            8, 6, 0
+        };
+
+        return new GuacamoleInstruction("png", Integer.toString(mask),
+                Integer.toString(layer), Integer.toString(x),
+                Integer.toString(y), encodeBase64(header)).toString();
+
+    }
+
+    /**
+     * Returns the encoded instruction having the given opcode and arguments.
+     *
+     * @param opcode The opcode of the instruction.
+     * @param args The arguments of the instruction.
+     * @return The encoded instruction.
+     */
+    private static String instruction(String opcode, Object... args) {
+
+        String[] values = new String[args.length];
+        for (int i = 0; i < args.length; i++)
+            values[i] = args[i].toString();
+
+        return new GuacamoleInstruction(opcode, values).toString();
+
+    }
+
+    /**
+     * Returns the concatenation of the given encoded instructions.
+     *
+     * @param instructions The encoded instructions to concatenate.
+     * @return The concatenated instructions.
+     */
+    private static String concat(String... instructions) {
+
+        StringBuilder data = new StringBuilder();
+        for (String instruction : instructions)
+            data.append(instruction);
+
+        return data.toString();
+
+    }
+
+    /**
+     * Passes the given instructions through a CoalescingGuacamoleReader
+     * which considers the client behind once more than one frame is
+     * unacknowledged. The given leading instructions are read one at a time
+     * while the client keeps up, the last of which must put the client
+     * behind, and everything after is read as a single coalesced batch.
+     *
+     * @param leading The instructions read while the client keeps up.
+     * @param held The instructions held back and coalesced.
+     * @return The coalesced data.
+     * @throws Exception If an error occurs while reading.
+     */
+    private static String coalesce(String[] leading, String held)
+            throws Exception {
+
+        byte[] data = (concat(leading) + held).getBytes("UTF-8");
+
+        FrameTracker tracker = new FrameTracker(1);
+        CoalescingGuacamoleReader reader = new CoalescingGuacamoleReader(
+                new InputStreamGuacamoleReader(new ByteArrayInputStream(data)),
+                tracker, 10);
+
+        // Pass leading instructions through unchanged
+        for (String instruction : leading) {
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            GuacamoleInstructionBatch batch = reader.readBatch(1);
+            batch.writeTo(output);
+
+            assertEquals(instruction, output.toString("UTF-8"));
+
+        }
+
+        assertTrue(tracker.isBehind());
+
+        // Read remaining data as one coalesced batch
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GuacamoleInstructionBatch batch = reader.readBatch(8192);
+        batch.writeTo(output);
+        assertEquals(output.size(), batch.getLength());
+
+        assertNull(reader.readBatch(8192));
+        return output.toString("UTF-8");
+
+    }
+
+    /**
+     * Verifies that images, copies and rectangle fills covered by a later
+     * image are dropped, with the layer known to be unclipped and
+     * untransformed due to a "reset" passed through long before.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testCoveredDrawingDropped() throws Exception {
+
+        String kept = png(0xC, 0, 0, 0, 64, 64);
+
+        String result = coalesce(
+            new String[] {
+                instruction("size", 0, 1024, 768),
+                instruction("reset", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            concat(
+                png(0xC, 0, 0, 0, 32, 32),
+                png(0xC, 0, 16, 16, 48, 48),
+                instruction("copy", -1, 0, 0, 16, 16, 0xC, 0, 8, 8),
+                instruction("rect", 0, 20, 20, 8, 8),
+                instruction("rect", 0, 40, 40, 8, 8),
+                instruction("cfill", 0xC, 0, 255, 0, 0, 255),
+                instruction("sync", 3),
+                kept,
+                instruction("sync", 4)
+            )
+        );
+
+        assertEquals(concat(kept, instruction("sync", 4)), result);
+
+    }
+
+    /**
+     * Verifies that drawing extending beyond a later image is kept.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testPartiallyCoveredDrawingKept() throws Exception {
+
+        String held = concat(
+            png(0xC, 0, 32, 32, 64, 64),
+            instruction("copy", -1, 0, 0, 16, 16, 0xC, 0, 60, 0),
+            png(0xC, 0, 0, 0, 64, 64),
+            instruction("sync", 3)
+        );
+
+        String result = coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        );
+
+        assertEquals(held, result);
+
+    }
+
+    /**
+     * Verifies that nothing is dropped while the clipping region and
+     * transform of the layer are unknown, or after the layer is clipped or
+     * its state restored, even if that happened while data was passed
+     * through unchanged.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testAlteredLayerNotDropped() throws Exception {
+
+        String held = concat(
+            png(0xC, 0, 0, 0, 32, 32),
+            png(0xC, 0, 0, 0, 64, 64),
+            instruction("sync", 3)
+        );
+
+        // State never known
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+        // Clipped after reset
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("rect", 0, 0, 0, 10, 10),
+                instruction("clip", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+        // Transformed after reset
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("transform", 0, 2, 0, 0, 2, 0, 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+        // Restored state after reset
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("pop", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+        // Unknown instruction after reset
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("unknown", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+    }
+
+    /**
+     * Verifies that an image is kept if something between it and the image
+     * covering it reads from the layer.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testDependentImageKept() throws Exception {
+
+        String held = concat(
+            png(0xC, 0, 0, 0, 32, 32),
+            instruction("copy", 0, 0, 0, 32, 32, 0xC, 1, 0, 0),
+            png(0xC, 0, 0, 0, 64, 64),
+            instruction("sync", 3)
+        );
+
+        String result = coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        );
+
+        assertEquals(held, result);
+
+    }
+
+    /**
+     * Verifies that a fill is kept if its path was begun before the data
+     * held back, or contains anything other than rectangles.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testUnknownPathKept() throws Exception {
+
+        String cover = png(0xC, 0, 0, 0, 64, 64);
+
+        // Path begun while data was passed through unchanged
+        String held = concat(
+            instruction("rect", 0, 0, 0, 8, 8),
+            instruction("cfill", 0xC, 0, 255, 0, 0, 255),
+            cover,
+            instruction("sync", 3)
+        );
+
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("rect", 0, 100, 100, 8, 8),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+        // Path containing a line
+        held = concat(
+            instruction("rect", 0, 0, 0, 8, 8),
+            instruction("line", 0, 100, 100),
+            instruction("cfill", 0xC, 0, 255, 0, 0, 255),
+            cover,
+            instruction("sync", 3)
+        );
+
+        assertEquals(held, coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            held
+        ));
+
+    }
+
+    /**
+     * Verifies that only the last "sync" of the data held back is kept, and
+     * that images drawn with masks other than SRC never cover earlier
+     * images.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testFramesMerged() throws Exception {
+
+        String first = png(0xC, 0, 0, 0, 32, 32);
+        String over = png(0xE, 0, 0, 0, 64, 64);
+
+        String result = coalesce(
+            new String[] {
+                instruction("reset", 0),
+                instruction("sync", 1),
+                instruction("sync", 2)
+            },
+            concat(
+                first,
+                instruction("sync", 3),
+                over,
+                instruction("sync", 4),
+                instruction("sync", 5)
+            )
+        );
+
+        assertEquals(concat(first, over, instruction("sync", 5)), result);
+        assertFalse(result.contains(instruction("sync", 3)));
+
+    }
+
+}
@@ -0,0 +1,341 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-common.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.io.GuacamoleInstructionBatch;
+import org.glyptodon.guacamole.io.GuacamoleInstructionView;
+import org.glyptodon.guacamole.io.GuacamoleReader;
+import org.glyptodon.guacamole.io.GuacamoleWriter;
+import org.glyptodon.guacamole.io.InputStreamGuacamoleReader;
+import org.glyptodon.guacamole.io.WriterGuacamoleWriter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilter;
+import org.glyptodon.guacamole.protocol.GuacamoleFilterChain;
+import org.glyptodon.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for FilteredGuacamoleSocket, verifying the order in which
+ * filters see instructions, and the order in which the instructions they
+ * forward are sent.
+ *
+ * @author Michael Jumper
+ */
+public class FilteredGuacamoleSocketTest {
+
+    /**
+     * The opcodes seen by each filter, in the order seen, each prefixed
+     * with the name of the filter.
+     */
+    private final List<String> seen = new ArrayList<String>();
+
+    /**
+     * Returns a filter which records each opcode it sees within the list of
+     * opcodes seen, passing each instruction through unchanged.
+     *
+     * @param name The name to prefix each recorded opcode with.
+     * @return A filter which records each opcode seen.
+     */
+    private GuacamoleFilter record(final String name) {
+        return new GuacamoleFilter() {
+
+            @Override
+            public void filter(GuacamoleInstructionView instruction,
+                    GuacamoleFilterChain chain) throws GuacamoleException {
+                seen.add(name + ":" + instruction.getOpcode());
+                chain.forward(instruction);
+            }
+
+        };
+    }
+
+    /**
+     * Filter which drops all "nop" instructions.
+     */
+    private static final GuacamoleFilter DROP_NOP = new GuacamoleFilter() {
+
+        @Override
+        public void filter(GuacamoleInstructionView instruction,
+                GuacamoleFilterChain chain) throws GuacamoleException {
+            if (!instruction.isOpcode("nop"))
+                chain.forward(instruction);
+        }
+
+    };
+
+    /**
+     * Filter which replaces each "nop" instruction with a "sync" instruction.
+     */
+    private static final GuacamoleFilter REWRITE_NOP = new GuacamoleFilter() {
+
+        @Override
+        public void filter(GuacamoleInstructionView instruction,
+                GuacamoleFilterChain chain) throws GuacamoleException {
+            if (instruction.isOpcode("nop"))
+                chain.forward(new GuacamoleInstruction("sync", "0"));
+            else
+                chain.forward(instruction);
+        }
+
+    };
+
+    /**
+     * Filter which surrounds each "nop" instruction with "name"
+     * instructions.
+     */
+    private static final GuacamoleFilter SURROUND_NOP = new GuacamoleFilter() {
+
+        @Override
+        public void filter(GuacamoleInstructionView instruction,
+                GuacamoleFilterChain chain) throws GuacamoleException {
+
+            if (instruction.isOpcode("nop")) {
+                chain.forward(new GuacamoleInstruction("name", "before"));
+                chain.forward(instruction);
+                chain.forward(new GuacamoleInstruction("name", "after"));
+            }
+            else
+                chain.forward(instruction);
+
+        }
+
+    };
+
+    /**
+     * Reads the given data through a FilteredGuacamoleSocket
+     * using the given filters.
+     *
+     * @param data The data to read.
+     * @param filters The filters to run each instruction read through.
+     * @return The data read after filtering.
+     * @throws Exception If an error occurs while reading.
+     */
+    private static String read(String data, GuacamoleFilter... filters)
+            throws Exception {
+
+        final GuacamoleReader reader = new InputStreamGuacamoleReader(
+                new ByteArrayInputStream(data.getBytes("UTF-8")));
+
+        GuacamoleSocket socket = new FilteredGuacamoleSocket(
+                new StubSocket(reader, null), Arrays.asList(filters));
+
+        // Read everything, one instruction at a time
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GuacamoleInstructionBatch batch;
+        while ((batch = socket.getReader().readBatch(1)) != null)
+            batch.writeTo(output);
+
+        return output.toString("UTF-8");
+
+    }
+
+    /**
+     * Writes the given data through a FilteredGuacamoleSocket using the
+     * given filters, splitting that data into chunks of the given size.
+     *
+     * @param data The data to write.
+     * @param chunkSize The number of characters to write at a time.
+     * @param filters The filters to run each instruction written through.
+     * @return The data written after filtering.
+     * @throws Exception If an error occurs while writing.
+     */
+    private static String write(String data, int chunkSize,
+            GuacamoleFilter... filters) throws Exception {
+
+        StringWriter output = new StringWriter();
+        GuacamoleSocket socket = new FilteredGuacamoleSocket(
+                new StubSocket(null, new WriterGuacamoleWriter(output)),
+                Collections.<GuacamoleFilter>emptyList(),
+                Arrays.asList(filters));
+
+        // Write in chunks which need not align with instructions
+        char[] chunk = data.toCharArray();
+        GuacamoleWriter writer = socket.getWriter();
+        for (int i = 0; i < chunk.length; i += chunkSize)
+            writer.write(chunk, i, Math.min(chunkSize, chunk.length - i));
+
+        writer.flush();
+        return output.toString();
+
+    }
+
+    /**
+     * GuacamoleSocket which simply provides the given reader and writer.
+     */
+    private static class StubSocket implements GuacamoleSocket {
+
+        /**
+         * The reader to provide.
+         */
+        private final GuacamoleReader reader;
+
+        /**
+         * The writer to provide.
+         */
+        private final GuacamoleWriter writer;
+
+        /**
+         * Creates a new StubSocket which provides the given reader and
+         * writer.
+         *
+         * @param reader The reader to provide.
+         * @param writer The writer to provide.
+         */
+        public StubSocket(GuacamoleReader reader, GuacamoleWriter writer) {
+            this.reader = reader;
+            this.writer = writer;
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return reader;
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+    }
+
+    /**
+     * Verifies that each instruction is seen by every filter in the order
+     * the filters were given, and passed through unchanged.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testOrder() throws Exception {
+
+        String data = "3.nop;4.sync,1.0;";
+        assertEquals(data, read(data, record("a"), record("b")));
+        assertEquals("[a:nop, b:nop, a:sync, b:sync]", seen.toString());
+
+    }
+
+    /**
+     * Verifies that instructions dropped by a filter are not seen by later
+     * filters, while earlier filters still see them.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testDrop() throws Exception {
+
+        assertEquals("4.sync,1.0;", read("3.nop;4.sync,1.0;",
+                record("a"), DROP_NOP, record("b")));
+        assertEquals("[a:nop, a:sync, b:sync]", seen.toString());
+
+    }
+
+    /**
+     * Verifies that later filters see the instruction which replaced an
+     * instruction rewritten by an earlier filter.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+
+        assertEquals("4.sync,1.0;", read("3.nop;", REWRITE_NOP, record("b")));
+        assertEquals("[b:sync]", seen.toString());
+
+    }
+
+    /**
+     * Verifies that instructions injected by a filter pass through later
+     * filters and are sent in the order forwarded, and that filters applied
+     * in a different order produce different results.
+     *
+     * @throws Exception If an error occurs while reading.
+     */
+    @Test
+    public void testInject() throws Exception {
+
+        assertEquals("4.name,6.before;3.nop;4.name,5.after;",
+                read("3.nop;", SURROUND_NOP, record("b")));
+        assertEquals("[b:name, b:nop, b:name]", seen.toString());
+
+        // Dropping after injecting removes only the original
+        assertEquals("4.name,6.before;4.name,5.after;",
+                read("3.nop;", SURROUND_NOP, DROP_NOP));
+
+        // Dropping before injecting leaves nothing to surround
+        assertEquals("", read("3.nop;", DROP_NOP, SURROUND_NOP));
+
+    }
+
+    /**
+     * Verifies that instructions written are filtered in order, regardless
+     * of how the data written is split into chunks.
+     *
+     * @throws Exception If an error occurs while writing.
+     */
+    @Test
+    public void testWrite() throws Exception {
+
+        String data = "3.nop;4.sync,1.0;";
+        for (int chunkSize = 1; chunkSize <= data.length(); chunkSize++) {
+
+            seen.clear();
+            assertEquals("4.name,6.before;4.sync,1.0;4.name,5.after;4.sync,1.0;",
+                    write(data, chunkSize, SURROUND_NOP, REWRITE_NOP, record("c")));
+            assertEquals("[c:name, c:sync, c:name, c:sync]", seen.toString());
+
+        }
+
+    }
+
+}
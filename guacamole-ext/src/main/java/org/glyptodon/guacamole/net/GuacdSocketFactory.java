@@ -0,0 +1,403 @@
+
+package org.glyptodon.guacamole.net;
+
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is guacamole-ext.
+ *
+ * The Initial Developer of the Original Code is
+ * Michael Jumper.
+ * Portions created by the Initial Developer are Copyright (C) 2010
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.properties.GuacamoleProperties;
+import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.glyptodon.guacamole.protocol.GuacamoleArgsCache;
+import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.glyptodon.guacamole.properties.StringGuacamoleProperty;
+
+/**
+ * GuacamoleSocketFactory which creates sockets connected to guacd as
+ * configured within guacamole.properties. If several guacd instances are
+ * listed, connections are balanced across them. If a pool size is
+ * configured, sockets are connected in advance and taken from a pool.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdSocketFactory implements GuacamoleSocketFactory {
+
+    /**
+     * The single GuacdSocketFactory, created when first requested.
+     */
+    private static GuacdSocketFactory instance;
+
+    /**
+     * The factory which creates all sockets, possibly from a pool.
+     */
+    private final GuacamoleSocketFactory factory;
+
+    /**
+     * The arguments each guacd instance has requested for each protocol,
+     * indexed by the name of that guacd instance, or null if the initial
+     * protocol handshake should not be pipelined. Different instances may
+     * run different versions of guacd, thus arguments are never shared
+     * between instances.
+     */
+    private final ConcurrentMap<String, GuacamoleArgsCache> argsCaches;
+
+    /**
+     * The SSLSocketFactory of the SSLContext shared by all SSL/TLS
+     * connections to guacd, created when first needed.
+     */
+    private static SSLSocketFactory sslSocketFactory;
+
+    /**
+     * Creates a new GuacdSocketFactory configured according to
+     * guacamole.properties.
+     *
+     * @throws GuacamoleException If guacamole.properties cannot be read, or
+     *                            contains invalid values.
+     */
+    private GuacdSocketFactory() throws GuacamoleException {
+
+        GuacamoleSocketFactory connectingFactory;
+
+        // Spread connections across all listed guacd instances, if any
+        String hosts = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_HOSTS);
+        if (hosts != null) {
+
+            BalancedGuacamoleSocketFactory balancedFactory = new BalancedGuacamoleSocketFactory(
+                GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_PROBE_INTERVAL,
+                    BalancedGuacamoleSocketFactory.DEFAULT_PROBE_INTERVAL),
+                BalancedGuacamoleSocketFactory.DEFAULT_EJECTION_TIME
+            );
+
+            // Add each "hostname:port[:weight]" entry
+            for (String host : hosts.split(",")) {
+
+                String[] parts = host.trim().split(":");
+                if (parts.length < 2 || parts.length > 3)
+                    throw new GuacamoleServerException("Invalid guacd host \"" + host.trim() + "\". Hosts must be given as \"hostname:port\" or \"hostname:port:weight\".");
+
+                try {
+                    int port = Integer.parseInt(parts[1]);
+                    int weight = (parts.length == 3) ? Integer.parseInt(parts[2]) : 1;
+                    balancedFactory.addEndpoint(parts[0] + ":" + port,
+                            createConnectingFactory(parts[0], port), weight);
+                }
+                catch (NumberFormatException e) {
+                    throw new GuacamoleServerException("Invalid port or weight for guacd host \"" + host.trim() + "\".", e);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new GuacamoleServerException("Invalid weight for guacd host \"" + host.trim() + "\".", e);
+                }
+
+            }
+
+            connectingFactory = balancedFactory;
+
+        }
+
+        // Otherwise, connect to the single configured guacd
+        else
+            connectingFactory = createConnectingFactory(
+                GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_HOSTNAME),
+                GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_PORT)
+            );
+
+        // Connect sockets in advance if a pool is configured
+        int poolSize = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_POOL_SIZE, 0);
+        if (poolSize > 0)
+            factory = new PooledGuacamoleSocketFactory(connectingFactory, poolSize,
+                    GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_POOL_MAX_IDLE,
+                        PooledGuacamoleSocketFactory.DEFAULT_MAX_IDLE_TIME));
+        else
+            factory = connectingFactory;
+
+        // Remember args of each protocol if handshakes are to be pipelined
+        if (GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_PIPELINE_HANDSHAKE, false))
+            argsCaches = new ConcurrentHashMap<String, GuacamoleArgsCache>();
+        else
+            argsCaches = null;
+
+    }
+
+    /**
+     * Returns whether connections to guacd are serviced by the shared
+     * GuacamoleSelector, as configured within guacamole.properties. Such
+     * connections receive data from guacd continuously into a queue of
+     * their own, thus need no further read queue.
+     *
+     * @return true if connections to guacd use non-blocking I/O, false
+     *         otherwise.
+     * @throws GuacamoleException If guacamole.properties cannot be read, or
+     *                            contains invalid values.
+     */
+    public static boolean isNonBlocking() throws GuacamoleException {
+        return GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_NONBLOCKING, false)
+           && !GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL, false);
+    }
+
+    /**
+     * Returns a new GuacamoleSocketFactory which connects directly to the
+     * guacd instance at the given hostname and port, using SSL/TLS or
+     * non-blocking I/O as configured within guacamole.properties.
+     *
+     * @param hostname The hostname of the guacd instance.
+     * @param port The port of the guacd instance.
+     * @return A new GuacamoleSocketFactory which connects to the given guacd
+     *         instance.
+     * @throws GuacamoleException If guacamole.properties cannot be read, or
+     *                            contains invalid values.
+     */
+    private static GuacamoleSocketFactory createConnectingFactory(
+            final String hostname, final int port) throws GuacamoleException {
+
+        final int flushDelay = GuacamoleProperties.getProperty(
+                GuacamoleProperties.GUACD_FLUSH_DELAY,
+                InetGuacamoleSocket.DEFAULT_FLUSH_DELAY);
+
+        // If guacd requires SSL, use it, sharing one SSLContext such that
+        // sessions can be resumed
+        if (GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL, false)) {
+
+            final SSLSocketFactory sharedFactory = getSSLSocketFactory();
+            final String[] protocols = getList(GuacamoleProperties.GUACD_SSL_PROTOCOLS);
+            final String[] cipherSuites = getList(GuacamoleProperties.GUACD_SSL_CIPHERS);
+
+            return new GuacamoleSocketFactory() {
+
+                @Override
+                public GuacamoleSocket createSocket() throws GuacamoleException {
+                    return new SSLGuacamoleSocket(hostname, port, sharedFactory,
+                            protocols, cipherSuites, flushDelay);
+                }
+
+            };
+
+        }
+
+        // Use non-blocking I/O if requested
+        if (isNonBlocking()) {
+
+            final GuacamoleSelector selector = GuacamoleSelector.getDefault();
+            return new GuacamoleSocketFactory() {
+
+                @Override
+                public GuacamoleSocket createSocket() throws GuacamoleException {
+                    return new SelectorGuacamoleSocket(hostname, port, selector, flushDelay);
+                }
+
+            };
+
+        }
+
+        // Otherwise, use plain blocking sockets
+        return new GuacamoleSocketFactory() {
+
+            @Override
+            public GuacamoleSocket createSocket() throws GuacamoleException {
+                return new InetGuacamoleSocket(hostname, port, flushDelay);
+            }
+
+        };
+
+    }
+
+    /**
+     * Returns the values of the given comma-separated property, if
+     * specified.
+     *
+     * @param property The property to read.
+     * @return The trimmed values of the given property, or null if the
+     *         property is not specified.
+     * @throws GuacamoleException If guacamole.properties cannot be read.
+     */
+    private static String[] getList(StringGuacamoleProperty property)
+            throws GuacamoleException {
+
+        String value = GuacamoleProperties.getProperty(property);
+        if (value == null)
+            return null;
+
+        String[] values = value.split(",");
+        for (int i=0; i<values.length; i++)
+            values[i] = values[i].trim();
+
+        return values;
+
+    }
+
+    /**
+     * Returns the SSLSocketFactory of the SSLContext shared by all SSL/TLS
+     * connections to guacd, creating that SSLContext if necessary. The
+     * client session cache of the SSLContext is configured according to
+     * guacamole.properties.
+     *
+     * @return The SSLSocketFactory of the shared SSLContext.
+     * @throws GuacamoleException If guacamole.properties cannot be read, or
+     *                            if the SSLContext cannot be created.
+     */
+    private static synchronized SSLSocketFactory getSSLSocketFactory()
+            throws GuacamoleException {
+
+        if (sslSocketFactory != null)
+            return sslSocketFactory;
+
+        try {
+
+            // Create context using default trust and key material
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            // Configure cache of sessions which may be resumed
+            SSLSessionContext sessions = context.getClientSessionContext();
+
+            Integer cacheSize = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL_SESSION_CACHE_SIZE);
+            if (cacheSize != null)
+                sessions.setSessionCacheSize(cacheSize);
+
+            Integer timeout = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL_SESSION_TIMEOUT);
+            if (timeout != null)
+                sessions.setSessionTimeout(timeout);
+
+            sslSocketFactory = context.getSocketFactory();
+            return sslSocketFactory;
+
+        }
+        catch (GeneralSecurityException e) {
+            throw new GuacamoleServerException("Unable to create SSL/TLS context for guacd connections.", e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new GuacamoleServerException("Invalid SSL/TLS session cache size or timeout.", e);
+        }
+
+    }
+
+    /**
+     * Returns the GuacdSocketFactory configured according to
+     * guacamole.properties, creating it if necessary.
+     *
+     * @return The GuacdSocketFactory configured according to
+     *         guacamole.properties.
+     * @throws GuacamoleException If guacamole.properties cannot be read, or
+     *                            contains invalid values.
+     */
+    public static synchronized GuacdSocketFactory getInstance()
+            throws GuacamoleException {
+
+        if (instance == null)
+            instance = new GuacdSocketFactory();
+
+        return instance;
+
+    }
+
+    @Override
+    public GuacamoleSocket createSocket() throws GuacamoleException {
+        return factory.createSocket();
+    }
+
+    /**
+     * Returns the cache of arguments requested by the guacd instance the
+     * given socket is connected to, creating that cache if necessary.
+     *
+     * @param socket A socket created by this GuacdSocketFactory.
+     * @return The cache of arguments requested by the guacd instance the
+     *         given socket is connected to.
+     */
+    private GuacamoleArgsCache getArgsCache(GuacamoleSocket socket) {
+
+        // Only one instance exists unless balancing
+        String endpoint = BalancedGuacamoleSocketFactory.getEndpointName(socket);
+        if (endpoint == null)
+            endpoint = "";
+
+        GuacamoleArgsCache argsCache = argsCaches.get(endpoint);
+        if (argsCache == null) {
+            GuacamoleArgsCache created = new GuacamoleArgsCache();
+            argsCache = argsCaches.putIfAbsent(endpoint, created);
+            if (argsCache == null)
+                argsCache = created;
+        }
+
+        return argsCache;
+
+    }
+
+    /**
+     * Creates a new GuacamoleSocket connected to guacd, completing the
+     * initial protocol handshake using the given configuration and client
+     * information. If configured within guacamole.properties, the handshake
+     * is pipelined using the arguments the same guacd instance previously
+     * requested for the same protocol.
+     *
+     * @param config The GuacamoleConfiguration to use to complete the initial
+     *               protocol handshake.
+     * @param info The GuacamoleClientInformation to use to complete the initial
+     *             protocol handshake.
+     * @return A new GuacamoleSocket connected to guacd, with the initial
+     *         protocol handshake completed.
+     * @throws GuacamoleException If an error occurs while connecting to
+     *                            guacd or while completing the initial
+     *                            protocol handshake.
+     */
+    public GuacamoleSocket createConfiguredSocket(GuacamoleConfiguration config,
+            GuacamoleClientInformation info) throws GuacamoleException {
+
+        GuacamoleSocket socket = createSocket();
+
+        // Pipeline handshake using args of the guacd instance connected to
+        if (argsCaches != null)
+            return new ConfiguredGuacamoleSocket(socket, getArgsCache(socket),
+                    this, config, info);
+
+        // Otherwise, complete handshake normally, closing the socket if the
+        // handshake fails
+        try {
+            return new ConfiguredGuacamoleSocket(socket, config, info);
+        }
+        catch (GuacamoleException e) {
+            socket.close();
+            throw e;
+        }
+
+    }
+
+}
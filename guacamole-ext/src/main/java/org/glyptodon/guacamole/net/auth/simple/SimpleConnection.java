@@ -41,12 +41,9 @@ import java.util.Collections;
 import java.util.List;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
-import org.glyptodon.guacamole.net.InetGuacamoleSocket;
-import org.glyptodon.guacamole.net.SSLGuacamoleSocket;
+import org.glyptodon.guacamole.net.GuacdSocketFactory;
 import org.glyptodon.guacamole.net.auth.AbstractConnection;
 import org.glyptodon.guacamole.net.auth.ConnectionRecord;
-import org.glyptodon.guacamole.properties.GuacamoleProperties;
-import org.glyptodon.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 
@@ -97,22 +94,8 @@ public class SimpleConnection extends AbstractConnection {
     public GuacamoleSocket connect(GuacamoleClientInformation info)
             throws GuacamoleException {
 
-        // Get guacd connection parameters
-        String hostname = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_HOSTNAME);
-        int port = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_PORT);
-
-        // If guacd requires SSL, use it
-        if (GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_SSL, false))
-            return new ConfiguredGuacamoleSocket(
-                new SSLGuacamoleSocket(hostname, port),
-                config, info
-            );
-
         // Return connected socket
-        return new ConfiguredGuacamoleSocket(
-            new InetGuacamoleSocket(hostname, port),
-            config, info
-        );
+        return GuacdSocketFactory.getInstance().createConfiguredSocket(config, info);
 
     }
 
@@ -84,6 +84,30 @@ public class GuacamoleProperties {
 
     };
 
+    /**
+     * A comma-separated list of guacd instances to spread connections
+     * across, each given as "hostname:port", optionally followed by
+     * ":weight" to receive a larger or smaller share of connections. If
+     * specified, this overrides guacd-hostname and guacd-port.
+     */
+    public static final StringGuacamoleProperty GUACD_HOSTS = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-hosts"; }
+
+    };
+
+    /**
+     * The number of milliseconds between health probes of each guacd
+     * instance listed within guacd-hosts, or zero to disable probes.
+     */
+    public static final IntegerGuacamoleProperty GUACD_PROBE_INTERVAL = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-probe-interval"; }
+
+    };
+
     /**
      * Whether guacd requires SSL/TLS on connections.
      */
@@ -94,6 +118,272 @@ public class GuacamoleProperties {
 
     };
 
+    /**
+     * A comma-separated list of the SSL/TLS protocols which may be used for
+     * connections to guacd, such as "TLSv1.2". If not specified, the Java
+     * defaults are used.
+     */
+    public static final StringGuacamoleProperty GUACD_SSL_PROTOCOLS = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-protocols"; }
+
+    };
+
+    /**
+     * A comma-separated list of the cipher suites which may be used for
+     * SSL/TLS connections to guacd. If not specified, the Java defaults are
+     * used.
+     */
+    public static final StringGuacamoleProperty GUACD_SSL_CIPHERS = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-ciphers"; }
+
+    };
+
+    /**
+     * The maximum number of SSL/TLS sessions with guacd to cache for
+     * resumption, or zero for no limit. If not specified, the Java default
+     * is used.
+     */
+    public static final IntegerGuacamoleProperty GUACD_SSL_SESSION_CACHE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-session-cache-size"; }
+
+    };
+
+    /**
+     * The number of seconds a cached SSL/TLS session with guacd may be
+     * resumed, or zero for no limit. If not specified, the Java default is
+     * used.
+     */
+    public static final IntegerGuacamoleProperty GUACD_SSL_SESSION_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-session-timeout"; }
+
+    };
+
+    /**
+     * Whether the initial protocol handshake with guacd should be sent all
+     * at once, using the arguments guacd requested for the same protocol
+     * during a previous connection, rather than waiting for guacd to request
+     * those arguments. This saves a round trip for every connection. The
+     * arguments of each guacd listed in "guacd-hosts" are remembered
+     * separately. If guacd is upgraded and requests different arguments, the
+     * connection is retried without pipelining. By default, handshakes are
+     * not pipelined.
+     */
+    public static final BooleanGuacamoleProperty GUACD_PIPELINE_HANDSHAKE = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pipeline-handshake"; }
+
+    };
+
+    /**
+     * The number of threads which should connect to guacd in the
+     * background, such that requests for new connections return as soon as
+     * the connection is authorized, without waiting for guacd. If zero or
+     * not specified, connections are made on the thread handling the
+     * request.
+     */
+    public static final IntegerGuacamoleProperty CONNECT_THREADS = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "connect-threads"; }
+
+    };
+
+    /**
+     * The number of connections which may wait for a connect thread before
+     * further connections are refused. Used only if connect threads are
+     * configured.
+     */
+    public static final IntegerGuacamoleProperty CONNECT_QUEUE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "connect-queue-size"; }
+
+    };
+
+    /**
+     * The maximum number of milliseconds that data sent to guacd may be held
+     * so that consecutive writes can be sent together. A value of zero sends
+     * every write immediately.
+     */
+    public static final IntegerGuacamoleProperty GUACD_FLUSH_DELAY = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-flush-delay"; }
+
+    };
+
+    /**
+     * Whether connections to guacd should be serviced by a shared selector
+     * thread using non-blocking I/O, rather than by blocking sockets. Data
+     * is then received from guacd continuously without any thread per
+     * connection, and tunnel-read-queue-size is ignored. This has no effect
+     * if guacd requires SSL/TLS.
+     */
+    public static final BooleanGuacamoleProperty GUACD_NONBLOCKING = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-nonblocking"; }
+
+    };
+
+    /**
+     * The number of connections to guacd to establish in advance, such that
+     * new connections need not wait for the TCP or SSL/TLS handshake. If
+     * zero, connections are established only when needed.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-size"; }
+
+    };
+
+    /**
+     * The number of milliseconds a connection to guacd established in
+     * advance may remain unused before being replaced. This must be less
+     * than the time guacd waits for a new connection to begin the protocol
+     * handshake.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_MAX_IDLE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-max-idle"; }
+
+    };
+
+    /**
+     * The maximum number of bytes received from guacd which may be queued
+     * for each tunnel while awaiting the next read by the client. If
+     * specified, each tunnel reads from guacd continuously using a thread
+     * from a shared pool of bounded size, rather than only while the client
+     * is reading. If not specified or zero, no data is queued.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_READ_QUEUE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-read-queue-size"; }
+
+    };
+
+    /**
+     * Whether the traffic through each tunnel should be counted and exposed
+     * through JMX, both per tunnel and in total. By default, tunnels are not
+     * monitored.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_METRICS = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-metrics"; }
+
+    };
+
+    /**
+     * Whether data sent to the client over the HTTP tunnel may be compressed,
+     * if the client supports compression. By default, data is not
+     * compressed.
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_COMPRESSION = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-compression"; }
+
+    };
+
+    /**
+     * The number of frames a client may fall behind in rendering before
+     * data sent to that client is briefly held back and the frames which
+     * accumulate are coalesced, dropping superseded image updates. Works
+     * best in combination with a read queue. If zero or not specified,
+     * frames are never coalesced.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_MAX_FRAMES_BEHIND = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-frames-behind"; }
+
+    };
+
+    /**
+     * The number of bytes of recently-sent data to retain for each tunnel,
+     * such that a client which briefly loses its connection may resume that
+     * tunnel where it left off. If zero or not specified, tunnels cannot be
+     * resumed, and are closed as soon as their connection is lost.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-buffer-size"; }
+
+    };
+
+    /**
+     * The number of milliseconds to wait for a client to resume a tunnel
+     * after its connection is lost, before closing that tunnel.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-timeout"; }
+
+    };
+
+    /**
+     * The number of seconds a tunnel may go without being read by any
+     * client before it is considered orphaned and closed. This should be
+     * longer than the tunnel resume timeout. If not specified, orphaned
+     * tunnels are closed after 60 seconds. If zero, orphaned tunnels are
+     * not closed until their session expires.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_ORPHAN_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-orphan-timeout"; }
+
+    };
+
+    /**
+     * The number of seconds a tunnel may go without receiving any input
+     * from its client before it is considered idle and closed. If zero or
+     * not specified, idle tunnels are not closed.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_IDLE_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-idle-timeout"; }
+
+    };
+
+    /**
+     * The directory in which recordings of all connections should be
+     * stored. If not specified, connections are not recorded.
+     */
+    public static final FileGuacamoleProperty RECORDING_PATH = new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-path"; }
+
+    };
+
+    /**
+     * The size beyond which each recording continues in a new file, in
+     * megabytes. If not specified, recording files are limited to 256 MB.
+     */
+    public static final IntegerGuacamoleProperty RECORDING_MAX_FILE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-max-file-size"; }
+
+    };
+
     /**
      * All properties read from guacamole.properties when this class was first
      * used.
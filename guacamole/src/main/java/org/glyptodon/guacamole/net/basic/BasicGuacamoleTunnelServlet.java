@@ -21,8 +21,12 @@ package org.glyptodon.guacamole.net.basic;
 import org.glyptodon.guacamole.GuacamoleClientException;
 import org.glyptodon.guacamole.GuacamoleException;
 import org.glyptodon.guacamole.GuacamoleSecurityException;
+import org.glyptodon.guacamole.net.DeferredGuacamoleSocket;
 import org.glyptodon.guacamole.net.GuacamoleSocket;
 import org.glyptodon.guacamole.net.GuacamoleTunnel;
+import org.glyptodon.guacamole.net.GuacamoleTunnelOptions;
+import org.glyptodon.guacamole.net.GuacdSocketFactory;
+import org.glyptodon.guacamole.net.RecordingGuacamoleSocket;
 import org.glyptodon.guacamole.net.auth.Connection;
 import org.glyptodon.guacamole.net.auth.ConnectionGroup;
 import org.glyptodon.guacamole.net.auth.Credentials;
@@ -33,15 +37,19 @@ import org.glyptodon.guacamole.net.event.TunnelCloseEvent;
 import org.glyptodon.guacamole.net.event.TunnelConnectEvent;
 import org.glyptodon.guacamole.net.event.listener.TunnelCloseListener;
 import org.glyptodon.guacamole.net.event.listener.TunnelConnectListener;
+import org.glyptodon.guacamole.properties.GuacamoleProperties;
 import org.glyptodon.guacamole.protocol.GuacamoleClientInformation;
 import org.glyptodon.guacamole.servlet.GuacamoleHTTPTunnelServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -228,6 +236,22 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
      */
     private GuacamoleHTTPTunnelServlet tunnelServlet = new GuacamoleHTTPTunnelServlet() {
 
+        @Override
+        protected boolean isCompressionEnabled() throws GuacamoleException {
+            return GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_COMPRESSION, false);
+        }
+
+        @Override
+        protected int getReplayBufferSize() throws GuacamoleException {
+            return GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_RESUME_BUFFER_SIZE, 0);
+        }
+
+        @Override
+        protected int getResumeTimeout() throws GuacamoleException {
+            return GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_RESUME_TIMEOUT,
+                    GuacamoleHTTPTunnelServlet.DEFAULT_RESUME_TIMEOUT);
+        }
+
         @Override
         protected GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException {
 
@@ -299,60 +323,65 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
             if (video_mimetypes != null)
                 info.getVideoMimetypes().addAll(Arrays.asList(video_mimetypes));
 
-            // Create connected socket from identifier
+            // Connect in the background if configured, such that the
+            // connection to guacd and the handshake do not occupy this thread
+            final IdentifierType type = id_type;
+            final String identifier = id;
+            final GuacamoleClientInformation clientInfo = info;
+            final String remoteAddress = request.getRemoteAddr();
+
             GuacamoleSocket socket;
-            switch (id_type) {
+            ExecutorService executor = ConnectExecutorLoader.getExecutor();
+            if (executor != null) {
+                socket = new DeferredGuacamoleSocket(executor, new Callable<GuacamoleSocket>() {
 
-                // Connection identifiers
-                case CONNECTION: {
+                    @Override
+                    public GuacamoleSocket call() throws GuacamoleException {
+                        return connect(context, type, identifier, clientInfo, remoteAddress);
+                    }
 
-                    // Get connection directory
-                    Directory<String, Connection> directory =
-                        context.getRootConnectionGroup().getConnectionDirectory();
+                });
+            }
 
-                    // Get authorized connection
-                    Connection connection = directory.get(id);
-                    if (connection == null) {
-                        logger.warn("Connection id={} not found.", id);
-                        throw new GuacamoleSecurityException("Requested connection is not authorized.");
-                    }
+            // Otherwise, connect immediately
+            else
+                socket = connect(context, id_type, id, info, remoteAddress);
 
-                    // Connect socket
-                    logger.info("try to connection from {} to \"{}\".", request.getRemoteAddr(), id);
+            // Record connection if configured
+            File recordingPath = GuacamoleProperties.getProperty(GuacamoleProperties.RECORDING_PATH);
+            if (recordingPath != null) {
 
-                    socket = connection.connect(info);
-                    logger.info("Successful connection from {} to \"{}\".", request.getRemoteAddr(), id);
-                    break;
-                }
+                // Name recording after connection and start time, replacing
+                // any characters which may not be valid within filenames
+                File recording = new File(recordingPath,
+                        id_type.name().toLowerCase() + "-"
+                      + id.replaceAll("[^A-Za-z0-9_.-]", "_") + "-"
+                      + System.currentTimeMillis() + ".guac");
 
-                // Connection group identifiers
-                case CONNECTION_GROUP: {
+                long maxFileSize = GuacamoleProperties.getProperty(
+                    GuacamoleProperties.RECORDING_MAX_FILE_SIZE,
+                    (int) (RecordingGuacamoleSocket.DEFAULT_MAX_FILE_SIZE / 1048576)
+                ) * 1048576L;
 
-                    // Get connection group directory
-                    Directory<String, ConnectionGroup> directory =
-                        context.getRootConnectionGroup().getConnectionGroupDirectory();
+                logger.info("Recording connection to \"{}\".", recording);
+                socket = new RecordingGuacamoleSocket(socket, recording,
+                        RecordingGuacamoleSocket.DEFAULT_BUFFER_SIZE, maxFileSize);
 
-                    // Get authorized connection group
-                    ConnectionGroup group = directory.get(id);
-                    if (group == null) {
-                        logger.warn("Connection group id={} not found.", id);
-                        throw new GuacamoleSecurityException("Requested connection group is not authorized.");
-                    }
+            }
 
-                    // Connect socket
-                    socket = group.connect(info);
-                    logger.info("Successful connection from {} to group \"{}\".", request.getRemoteAddr(), id);
-                    break;
-                }
+            GuacamoleTunnelOptions options = new GuacamoleTunnelOptions();
 
-                // Fail if unsupported type
-                default:
-                    throw new GuacamoleClientException("Connection not supported for provided identifier type.");
+            // Non-blocking sockets already queue data read from guacd, thus
+            // need no read pump
+            if (!GuacdSocketFactory.isNonBlocking())
+                options.setMaxQueueLength(GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_READ_QUEUE_SIZE, 0));
 
-            }
+            options.setMonitored(GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_METRICS, false));
+            options.setMaxFramesBehind(GuacamoleProperties.getProperty(GuacamoleProperties.TUNNEL_MAX_FRAMES_BEHIND, 0));
 
-            // Associate socket with tunnel
-            GuacamoleTunnel tunnel = new GuacamoleTunnel(socket) {
+            // Associate socket with tunnel, queueing data read from guacd,
+            // monitoring traffic and coalescing frames if configured
+            GuacamoleTunnel tunnel = new GuacamoleTunnel(socket, options) {
 
                 @Override
                 public void close() throws GuacamoleException {
@@ -380,6 +409,78 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
 
     };
 
+    /**
+     * Connects to the connection or connection group having the given
+     * identifier, as authorized by the given UserContext.
+     *
+     * @param context The UserContext of the user requesting the connection.
+     * @param id_type The type of the given identifier.
+     * @param id The identifier of the connection or connection group,
+     *           without prefix.
+     * @param info The GuacamoleClientInformation to use to complete the
+     *             initial protocol handshake.
+     * @param remoteAddress The address of the client requesting the
+     *                      connection, for the sake of logging.
+     * @return A connected GuacamoleSocket.
+     * @throws GuacamoleException If the connection is not authorized, or if
+     *                            an error occurs while connecting.
+     */
+    private GuacamoleSocket connect(UserContext context, IdentifierType id_type,
+            String id, GuacamoleClientInformation info, String remoteAddress)
+            throws GuacamoleException {
+
+        switch (id_type) {
+
+            // Connection identifiers
+            case CONNECTION: {
+
+                // Get connection directory
+                Directory<String, Connection> directory =
+                    context.getRootConnectionGroup().getConnectionDirectory();
+
+                // Get authorized connection
+                Connection connection = directory.get(id);
+                if (connection == null) {
+                    logger.warn("Connection id={} not found.", id);
+                    throw new GuacamoleSecurityException("Requested connection is not authorized.");
+                }
+
+                // Connect socket
+                logger.info("try to connection from {} to \"{}\".", remoteAddress, id);
+
+                GuacamoleSocket socket = connection.connect(info);
+                logger.info("Successful connection from {} to \"{}\".", remoteAddress, id);
+                return socket;
+            }
+
+            // Connection group identifiers
+            case CONNECTION_GROUP: {
+
+                // Get connection group directory
+                Directory<String, ConnectionGroup> directory =
+                    context.getRootConnectionGroup().getConnectionGroupDirectory();
+
+                // Get authorized connection group
+                ConnectionGroup group = directory.get(id);
+                if (group == null) {
+                    logger.warn("Connection group id={} not found.", id);
+                    throw new GuacamoleSecurityException("Requested connection group is not authorized.");
+                }
+
+                // Connect socket
+                GuacamoleSocket socket = group.connect(info);
+                logger.info("Successful connection from {} to group \"{}\".", remoteAddress, id);
+                return socket;
+            }
+
+            // Fail if unsupported type
+            default:
+                throw new GuacamoleClientException("Connection not supported for provided identifier type.");
+
+        }
+
+    }
+
     @Override
     protected boolean hasNewCredentials(HttpServletRequest request) {
 
@@ -0,0 +1,130 @@
+package org.glyptodon.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.properties.GuacamoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple ServletContextListener which creates the executor used to connect
+ * to guacd in the background when the web application starts, if connect
+ * threads are configured in guacamole.properties, and shuts that executor
+ * down when the web application stops.
+ *
+ * @author Michael Jumper
+ */
+public class ConnectExecutorLoader implements ServletContextListener {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(ConnectExecutorLoader.class);
+
+    /**
+     * The default number of connections which may wait for a connect thread
+     * before further connections are refused.
+     */
+    private static final int DEFAULT_CONNECT_QUEUE_SIZE = 100;
+
+    /**
+     * The executor which connects to guacd in the background, or null if
+     * connections should be made on the requesting thread.
+     */
+    private static ExecutorService executor;
+
+    /**
+     * Returns the executor which should connect to guacd in the background.
+     * The number of threads and of connections which may wait for a thread
+     * are limited according to guacamole.properties.
+     *
+     * @return The executor which should connect to guacd in the background,
+     *         or null if connections should be made on the requesting thread.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+
+        synchronized (ConnectExecutorLoader.class) {
+
+            // Stop any connect threads along with the web application
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+
+        }
+
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        try {
+
+            // Connect on requesting thread unless threads are configured
+            int threads = GuacamoleProperties.getProperty(
+                    GuacamoleProperties.CONNECT_THREADS, 0);
+            if (threads <= 0)
+                return;
+
+            int queueSize = GuacamoleProperties.getProperty(
+                    GuacamoleProperties.CONNECT_QUEUE_SIZE, DEFAULT_CONNECT_QUEUE_SIZE);
+
+            ThreadPoolExecutor created = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Guacamole connect");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+
+            created.allowCoreThreadTimeOut(true);
+
+            synchronized (ConnectExecutorLoader.class) {
+                executor = created;
+            }
+
+        }
+
+        // Log all GuacamoleExceptions
+        catch (GuacamoleException e) {
+            logger.error("Unable to create connect executor.", e);
+        }
+
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.glyptodon.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.net.GuacamoleTunnelRegistry;
+import org.glyptodon.guacamole.properties.GuacamoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple ServletContextListener which starts the background reaper of
+ * orphaned and idle tunnels when the web application starts, using the
+ * timeouts given in guacamole.properties, and stops that reaper when the
+ * web application stops.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelReaperLoader implements ServletContextListener {
+
+    /**
+     * Logger for this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(TunnelReaperLoader.class);
+
+    /**
+     * The default number of seconds a tunnel may go without being read
+     * before being closed.
+     */
+    private static final int DEFAULT_ORPHAN_TIMEOUT = 60;
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        GuacamoleTunnelRegistry.stopReaper();
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        try {
+
+            int orphanTimeout = GuacamoleProperties.getProperty(
+                    GuacamoleProperties.TUNNEL_ORPHAN_TIMEOUT, DEFAULT_ORPHAN_TIMEOUT);
+
+            int idleTimeout = GuacamoleProperties.getProperty(
+                    GuacamoleProperties.TUNNEL_IDLE_TIMEOUT, 0);
+
+            GuacamoleTunnelRegistry.startReaper(orphanTimeout * 1000L,
+                    idleTimeout * 1000L);
+
+        }
+
+        // Log all GuacamoleExceptions
+        catch (GuacamoleException e) {
+            logger.error("Unable to start tunnel reaper.", e);
+        }
+
+    }
+
+}
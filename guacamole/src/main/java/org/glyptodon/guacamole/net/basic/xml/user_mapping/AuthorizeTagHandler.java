@@ -18,6 +18,7 @@ package org.glyptodon.guacamole.net.basic.xml.user_mapping;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.Map;
 import org.glyptodon.guacamole.net.basic.auth.Authorization;
 import org.glyptodon.guacamole.net.basic.auth.UserMapping;
 import org.glyptodon.guacamole.net.basic.xml.TagHandler;
@@ -128,7 +129,14 @@ public class AuthorizeTagHandler implements TagHandler {
 
     @Override
     public void complete(String textContent) throws SAXException {
-        // Do nothing
+
+        // All configurations are now fully parsed. Replace each with its
+        // interned equivalent, such that identical configurations
+        // authorized for different users are shared.
+        for (Map.Entry<String, GuacamoleConfiguration> entry :
+                authorization.getConfigurations().entrySet())
+            entry.setValue(entry.getValue().intern());
+
     }
 
     /**